@@ -0,0 +1,43 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a service implementation that handles a batch of calls of a one-argument method in one go:
+ * it takes a List of the arguments and returns a List of the results, in the same order.
+ * <pre>
+ * &#64;BatchHandler("lookup")
+ * public List&lt;Product&gt; lookupProducts(List&lt;Integer&gt; ids)
+ * </pre>
+ * Without the annotation, a method named after the single call method plus "All", such as getAll for get, is
+ * used when its parameter and return type are List.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface BatchHandler
+{
+    /**
+     * The name of the method whose calls are handled.
+     */
+    String value();
+}
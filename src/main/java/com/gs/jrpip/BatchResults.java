@@ -0,0 +1,64 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip;
+
+import java.io.Serializable;
+
+/**
+ * The outcome of each call of a batch, in the order the calls were recorded. A call that threw has no result;
+ * its exception is kept instead.
+ */
+public class BatchResults implements Serializable
+{
+    private static final long serialVersionUID = 4120385626158740521L;
+
+    private final Object[] results;
+    private final boolean[] thrown;
+
+    public BatchResults(Object[] results, boolean[] thrown)
+    {
+        this.results = results;
+        this.thrown = thrown;
+    }
+
+    public int size()
+    {
+        return this.results.length;
+    }
+
+    public boolean isFailed(int index)
+    {
+        return this.thrown[index];
+    }
+
+    /**
+     * @return the value the call returned, or null if it threw
+     */
+    public Object getResult(int index)
+    {
+        return this.thrown[index] ? null : this.results[index];
+    }
+
+    /**
+     * @return the exception the call threw, or null if it returned normally
+     */
+    public Throwable getException(int index)
+    {
+        return this.thrown[index] ? (Throwable) this.results[index] : null;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Results of the method are cached by the client proxy, keyed on the serialized arguments. Only for methods
+ * whose result depends on nothing but the arguments for the lifetime of an entry.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable
+{
+    long ttlMillis() default 60000;
+
+    int maxEntries() default 1000;
+
+    /**
+     * Upper bound on the serialized arguments and results held, zero for no limit.
+     */
+    long maxBytes() default 0;
+}
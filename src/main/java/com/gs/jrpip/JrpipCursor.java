@@ -0,0 +1,71 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip;
+
+import java.util.Iterator;
+
+/**
+ * A result that is sent element by element. Methods returning a JrpipCursor, an Iterator or a
+ * java.util.stream.Stream are read lazily by the proxy while the caller iterates, so neither side holds the
+ * whole result. The cursor holds a connection until it is exhausted or closed; close it when stopping early.
+ */
+public interface JrpipCursor<T> extends Iterator<T>, AutoCloseable
+{
+    @Override
+    void close();
+
+    /**
+     * Wraps an iterator for a service implementation. The iterator is closed with the cursor if it is AutoCloseable.
+     */
+    static <T> JrpipCursor<T> of(Iterator<T> iterator)
+    {
+        return new JrpipCursor<T>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next()
+            {
+                return iterator.next();
+            }
+
+            @Override
+            public void close()
+            {
+                if (iterator instanceof AutoCloseable)
+                {
+                    try
+                    {
+                        ((AutoCloseable) iterator).close();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        throw e;
+                    }
+                    catch (Exception e)
+                    {
+                        throw new IllegalStateException("Could not close " + iterator, e);
+                    }
+                }
+            }
+        };
+    }
+}
@@ -16,18 +16,33 @@
 
 package com.gs.jrpip;
 
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 import com.gs.jrpip.client.JrpipRuntimeException;
 
 public class MethodResolver
 {
+    private static final ConcurrentHashMap<Method, Boolean> PRIMITIVE_SIGNATURES = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Method, Boolean> RAW_SIGNATURES = new ConcurrentHashMap<>();
+
     private final Map<Method, String> methodToNameMap = new HashMap<>();
     private final Map<String, Method> nameToMethodMap = new HashMap<>();
     private final Map<Method, Integer> methodToTimeoutMap = new HashMap<>();
     private final Map<Method, Boolean> methodToCompressionMap = new HashMap<>();
+    private final Map<Method, Cacheable> methodToCacheableMap = new HashMap<>();
+    private final Map<Method, SingleFlight> methodToSingleFlightMap = new HashMap<>();
+    private final Map<Method, MicroBatch> methodToMicroBatchMap = new HashMap<>();
+    private final Map<Method, Method> methodToBatchHandlerMap = new HashMap<>();
+    private final List<Method> methodsById = new ArrayList<>();
 
     private final Class serviceClass;
 
@@ -51,9 +66,56 @@ public class MethodResolver
             String mangledName = this.mangleName(method);
             this.methodToNameMap.put(method, mangledName);
             this.nameToMethodMap.put(mangledName, method);
+            this.methodsById.add(method);
 
             configureTimeout(classTimeout, method);
             configureCompression(classCompression, method);
+            if (method.isAnnotationPresent(Cacheable.class))
+            {
+                this.methodToCacheableMap.put(method, method.getAnnotation(Cacheable.class));
+            }
+            if (method.isAnnotationPresent(SingleFlight.class))
+            {
+                this.methodToSingleFlightMap.put(method, method.getAnnotation(SingleFlight.class));
+            }
+            if (method.isAnnotationPresent(MicroBatch.class))
+            {
+                this.methodToMicroBatchMap.put(method, method.getAnnotation(MicroBatch.class));
+            }
+        }
+        for (Method method : methodList)
+        {
+            configureBatchHandler(methodList, method);
+        }
+    }
+
+    private void configureBatchHandler(Method[] methodList, Method handler)
+    {
+        Class[] params = handler.getParameterTypes();
+        if (params.length != 1 || !List.class.equals(params[0]) || !List.class.isAssignableFrom(handler.getReturnType()))
+        {
+            return;
+        }
+        String handled;
+        if (handler.isAnnotationPresent(BatchHandler.class))
+        {
+            handled = handler.getAnnotation(BatchHandler.class).value();
+        }
+        else if (handler.getName().endsWith("All"))
+        {
+            handled = handler.getName().substring(0, handler.getName().length() - "All".length());
+        }
+        else
+        {
+            return;
+        }
+        for (Method method : methodList)
+        {
+            if (method.getName().equals(handled) && method.getParameterTypes().length == 1
+                    && !List.class.equals(method.getParameterTypes()[0]))
+            {
+                this.methodToBatchHandlerMap.put(method, handler);
+            }
         }
     }
 
@@ -103,6 +165,25 @@ public class MethodResolver
         return this.nameToMethodMap.get(mangledName);
     }
 
+    /**
+     * Ids are assigned in the order the service class lists its methods, so they are only meaningful to the
+     * peer that received them from this resolver.
+     *
+     * @return the method with the id, or null if there is none
+     */
+    public Method getMethodFromId(int id)
+    {
+        return id >= 0 && id < this.methodsById.size() ? this.methodsById.get(id) : null;
+    }
+
+    /**
+     * @return the number of method ids, which run from zero
+     */
+    public int getMethodCount()
+    {
+        return this.methodsById.size();
+    }
+
     public Integer getMethodTimeout(Method method)
     {
         return this.methodToTimeoutMap.get(method);
@@ -113,6 +194,102 @@ public class MethodResolver
         return this.methodToCompressionMap.get(method);
     }
 
+    /**
+     * @return the cache settings of the method, or null if its results are not cached
+     */
+    public Cacheable getMethodCacheable(Method method)
+    {
+        return this.methodToCacheableMap.get(method);
+    }
+
+    /**
+     * @return the coalescing settings of the method, or null if every call goes to the server
+     */
+    public SingleFlight getMethodSingleFlight(Method method)
+    {
+        return this.methodToSingleFlightMap.get(method);
+    }
+
+    /**
+     * @return the micro batching settings of the method, or null if each call is sent on its own
+     */
+    public MicroBatch getMethodMicroBatch(Method method)
+    {
+        return this.methodToMicroBatchMap.get(method);
+    }
+
+    /**
+     * @return the method of the service class that takes a list of arguments for the method and returns the list
+     * of results, or null if the calls of a batch have to be run one by one
+     * @see BatchHandler
+     */
+    public Method getBatchHandler(Method method)
+    {
+        return this.methodToBatchHandlerMap.get(method);
+    }
+
+    /**
+     * Calls to these methods can use {@link com.gs.jrpip.util.stream.PrimitiveLayout} instead of java serialization.
+     *
+     * @return true if the parameters are primitives or Strings and the result is a primitive, a String or void
+     */
+    public static boolean hasPrimitiveSignature(Method method)
+    {
+        return PRIMITIVE_SIGNATURES.computeIfAbsent(method, (m) -> findSignature(m, false));
+    }
+
+    /**
+     * Calls to these methods can use {@link com.gs.jrpip.util.stream.PrimitiveLayout} with the byte arrays and
+     * buffers written as raw frames.
+     *
+     * @return true if the parameters and the result are primitives, Strings, byte arrays or ByteBuffers
+     */
+    public static boolean hasRawSignature(Method method)
+    {
+        return RAW_SIGNATURES.computeIfAbsent(method, (m) -> findSignature(m, true));
+    }
+
+    /**
+     * The results of these methods are written element by element as the service produces them, and read lazily
+     * by the proxy.
+     *
+     * @return true if the method returns an Iterator, a java.util.stream.Stream or a {@link JrpipCursor}
+     */
+    public static boolean hasStreamedResult(Method method)
+    {
+        Class<?> type = method.getReturnType();
+        return type == Iterator.class || type == Stream.class || type == JrpipCursor.class;
+    }
+
+    /**
+     * The bytes of the stream are sent after the other arguments as the proxy reads them, and the service reads
+     * them as they arrive.
+     *
+     * @return true if the last parameter of the method is an InputStream
+     */
+    public static boolean hasStreamedArgument(Method method)
+    {
+        Class<?>[] types = method.getParameterTypes();
+        return types.length > 0 && types[types.length - 1] == InputStream.class;
+    }
+
+    private static boolean findSignature(Method method, boolean raw)
+    {
+        for (Class<?> type : method.getParameterTypes())
+        {
+            if (!isLayoutType(type, raw))
+            {
+                return false;
+            }
+        }
+        return isLayoutType(method.getReturnType(), raw);
+    }
+
+    private static boolean isLayoutType(Class<?> type, boolean raw)
+    {
+        return type.isPrimitive() || type == String.class || raw && (type == byte[].class || type == ByteBuffer.class);
+    }
+
     protected String mangleName(Method method)
     {
         StringBuilder sb = new StringBuilder();
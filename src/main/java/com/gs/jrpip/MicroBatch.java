@@ -0,0 +1,43 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Calls of the method made by different threads through proxies to the same endpoint within a short window are
+ * sent together as one batch request. Each caller still gets its own result or exception. On the server, a
+ * {@link BatchHandler} for the method runs the whole group in one call.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface MicroBatch
+{
+    /**
+     * How long the first call of a group waits for others to join it.
+     */
+    long windowMicros() default 200;
+
+    /**
+     * A group is sent as soon as it has this many calls.
+     */
+    int maxCalls() default 64;
+}
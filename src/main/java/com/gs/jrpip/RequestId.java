@@ -112,6 +112,11 @@ public class RequestId implements Serializable
 
     public boolean isExpired()
     {
-        return System.currentTimeMillis() - this.finishedTime > Context.MAX_LIFE_TIME_FROM_FINISHED;
+        return this.isExpired(System.currentTimeMillis());
+    }
+
+    public boolean isExpired(long now)
+    {
+        return now - this.finishedTime > Context.MAX_LIFE_TIME_FROM_FINISHED;
     }
 }
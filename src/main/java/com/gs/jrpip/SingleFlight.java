@@ -0,0 +1,39 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Concurrent calls of the method with equal arguments to the same endpoint share one remote invocation.
+ * Only for idempotent methods: callers that arrive while a call is running get its result instead of
+ * running the method again.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface SingleFlight
+{
+    /**
+     * When true, every caller gets the same result object. Otherwise each caller other than the one that made
+     * the call gets its own deserialized copy.
+     */
+    boolean immutableResult() default false;
+}
@@ -0,0 +1,122 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.client;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Backs the asynchronous view of a service interface. Each method of the view has the name and parameters of
+ * a method of the service interface and returns a CompletableFuture of its result.
+ */
+class AsyncProxyInvocationHandler
+        implements InvocationHandler
+{
+    private final Map<Method, Method> serviceMethods;
+    private final MtProxyInvocationHandler remote;
+    private final Object local;
+
+    AsyncProxyInvocationHandler(Map<Method, Method> serviceMethods, MtProxyInvocationHandler remote)
+    {
+        this.serviceMethods = serviceMethods;
+        this.remote = remote;
+        this.local = null;
+    }
+
+    AsyncProxyInvocationHandler(Map<Method, Method> serviceMethods, Object local)
+    {
+        this.serviceMethods = serviceMethods;
+        this.remote = null;
+        this.local = local;
+    }
+
+    /**
+     * @return the handler making the remote calls, or null for a local service
+     */
+    MtProxyInvocationHandler getRemote()
+    {
+        return this.remote;
+    }
+
+    /**
+     * @return the service interface method for each method of the asynchronous view
+     */
+    static Map<Method, Method> mapServiceMethods(Class asyncApi, Class api)
+    {
+        if (!asyncApi.isInterface())
+        {
+            throw new JrpipRuntimeException(asyncApi.getName() + " is not an interface");
+        }
+        Map<Method, Method> result = new HashMap<>();
+        for (Method method : asyncApi.getMethods())
+        {
+            if (!CompletableFuture.class.equals(method.getReturnType()))
+            {
+                throw new JrpipRuntimeException("Method " + method.getName() + " of " + asyncApi.getName() + " must return a CompletableFuture");
+            }
+            try
+            {
+                result.put(method, api.getMethod(method.getName(), method.getParameterTypes()));
+            }
+            catch (NoSuchMethodException e)
+            {
+                throw new JrpipRuntimeException("Method " + method.getName() + " of " + asyncApi.getName() + " has no counterpart in " + api.getName(), e);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        String simpleMethodName = method.getName();
+        Class[] params = method.getParameterTypes();
+
+        if ("equals".equals(simpleMethodName) && params.length == 1 && params[0].equals(Object.class))
+        {
+            return proxy == args[0];
+        }
+        if ("hashCode".equals(simpleMethodName) && params.length == 0)
+        {
+            return System.identityHashCode(proxy);
+        }
+        if ("toString".equals(simpleMethodName) && params.length == 0)
+        {
+            return "[AsyncProxy " + (this.remote == null ? this.local : this.remote.getMessageTransportData()) + ']';
+        }
+
+        Method serviceMethod = this.serviceMethods.get(method);
+        if (this.remote != null)
+        {
+            return this.remote.invokeRemoteMethodAsync(serviceMethod, args);
+        }
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        try
+        {
+            result.complete(serviceMethod.invoke(this.local, args));
+        }
+        catch (InvocationTargetException e)
+        {
+            result.completeExceptionally(e.getCause());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.client;
+
+import com.gs.jrpip.util.JrpipThreadFactory;
+
+import java.io.IOException;
+import java.net.SocketException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads shared by asynchronous proxies: a bounded pool for the blocking parts of a call (transports without a
+ * non-blocking path, single pings) and a timer for backoffs, timeouts and the pauses between pings.
+ */
+final class AsyncSupport
+{
+    private static final int MAX_THREADS = Integer.getInteger("jrpip.asyncThreads", 32);
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new JrpipThreadFactory("JrpipAsync"));
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new JrpipThreadFactory("JrpipAsyncTimer"));
+
+    static
+    {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private AsyncSupport()
+    {
+    }
+
+    public static ExecutorService getExecutor()
+    {
+        return EXECUTOR;
+    }
+
+    public static int getMaxThreads()
+    {
+        return EXECUTOR.getMaximumPoolSize();
+    }
+
+    /**
+     * Work beyond this many threads queues until a thread is free.
+     */
+    public static synchronized void setMaxThreads(int maxThreads)
+    {
+        if (maxThreads < 1)
+        {
+            throw new IllegalArgumentException("maxThreads must be positive: " + maxThreads);
+        }
+        if (maxThreads > EXECUTOR.getMaximumPoolSize())
+        {
+            EXECUTOR.setMaximumPoolSize(maxThreads);
+            EXECUTOR.setCorePoolSize(maxThreads);
+        }
+        else
+        {
+            EXECUTOR.setCorePoolSize(maxThreads);
+            EXECUTOR.setMaximumPoolSize(maxThreads);
+        }
+    }
+
+    /**
+     * Runs the callable on the shared pool.
+     */
+    public static <T> CompletableFuture<T> supply(Callable<T> callable)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        EXECUTOR.execute(() ->
+        {
+            try
+            {
+                result.complete(callable.call());
+            }
+            catch (Throwable t)
+            {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable runnable, long delayMillis)
+    {
+        return TIMER.schedule(runnable, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a future completed on the pool after the delay
+     */
+    public static CompletableFuture<Void> delay(long delayMillis)
+    {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        schedule(() -> EXECUTOR.execute(() -> result.complete(null)), delayMillis);
+        return result;
+    }
+
+    /**
+     * Pings until the server answers or the deadline passes. A pool thread is held for one ping at a time; the
+     * pauses between pings are on the timer.
+     */
+    public static CompletableFuture<Void> waitForServer(Ping ping, long deadline, MessageTransportData data)
+    {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        ping(ping, deadline, data, result);
+        return result;
+    }
+
+    private static void ping(Ping ping, long deadline, MessageTransportData data, CompletableFuture<Void> result)
+    {
+        long now = System.currentTimeMillis();
+        if (now >= deadline)
+        {
+            result.completeExceptionally(new JrpipRuntimeException("Could not reach server at " + data));
+            return;
+        }
+        int timeout = (int) Math.max(1L, Math.min(MessageTransport.PING_TIMEOUT, deadline - now));
+        supply(() -> ping.ping(timeout)).whenComplete((answered, t) ->
+        {
+            t = unwrap(t);
+            if (t == null && answered)
+            {
+                result.complete(null);
+                return;
+            }
+            if (t != null && !(t instanceof IOException))
+            {
+                result.completeExceptionally(t);
+                return;
+            }
+            String message = t instanceof SocketException ? t.getMessage() : null;
+            if (message != null && (message.contains("reset") || message.contains("peer") || message.contains("abort")))
+            {
+                ping(ping, deadline, data, result);
+                return;
+            }
+            long pause = Math.min(MessageTransport.PING_INTERVAL, deadline - System.currentTimeMillis());
+            delay(Math.max(pause, 0L)).thenRun(() -> ping(ping, deadline, data, result));
+        });
+    }
+
+    public static Throwable unwrap(Throwable t)
+    {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null)
+        {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    interface Ping
+    {
+        /**
+         * @return true if the server answered; false or an IOException to try again later. Any other exception
+         * means waiting won't help.
+         */
+        boolean ping(int timeoutMillis) throws IOException;
+    }
+}
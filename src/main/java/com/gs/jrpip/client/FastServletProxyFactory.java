@@ -142,6 +142,25 @@ public class FastServletProxyFactory implements ServletProxyFactory
         return this.proxyFactory.create(api, url, timeoutMillis, disconnectedMode);
     }
 
+    /**
+     * Creates an asynchronous view of a remote service.
+     *
+     * @param asyncApi the interface the proxy class needs to implement
+     * @param api      the service interface the server exposes
+     * @param url      the URL where the client object is located.
+     * @return a proxy to the object with the asynchronous interface.
+     * @see MtProxyFactory#createAsync(Class, Class, String)
+     */
+    public <A> A createAsync(Class<A> asyncApi, Class<?> api, String url) throws MalformedURLException
+    {
+        return this.proxyFactory.createAsync(asyncApi, api, url);
+    }
+
+    public <A> A createAsync(Class<A> asyncApi, Class<?> api, String url, int timeoutMillis) throws MalformedURLException
+    {
+        return this.proxyFactory.createAsync(asyncApi, api, url, timeoutMillis);
+    }
+
     /**
      * @return the http response code returned from the server. Response code 200 means success.
      */
@@ -21,6 +21,7 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class HttpMessageTransport implements MessageTransport
 {
@@ -98,25 +99,7 @@ public class HttpMessageTransport implements MessageTransport
         {
             try
             {
-                int code = fastFailPing(data.getUrl(), MessageTransport.PING_TIMEOUT);
-                if (code == 401 || code == 403)
-                {
-                    throw new JrpipRuntimeException("Authorization required for " + data.getUrl() + " (HTTP/" + code + "). Please provide valid credentials to servlet factory!");
-                }
-
-                if (code == 404)
-                {
-                    throw new JrpipRuntimeException("Could not find " + data.getUrl() + " (HTTP/404). Looks like the servlet is not properly configured!");
-                }
-
-                if (code == 200)
-                {
-                    noValidResponse = false;
-                }
-                else
-                {
-                    LOGGER.warn("Ping request to {} resulted in HTTP/{}", data.getUrl(), code);
-                }
+                noValidResponse = !ping(data, MessageTransport.PING_TIMEOUT);
             }
             catch (IOException e)
             {
@@ -187,6 +170,12 @@ public class HttpMessageTransport implements MessageTransport
 
     @Override
     public boolean sendThanks(Object k, List<ThankYouWriter.ThankYouRequest> requestList) throws IOException
+    {
+        return this.sendThanks(k, null, ThankYouWriter.ThankYouRequest.requestIds(requestList));
+    }
+
+    @Override
+    public boolean sendThanks(Object k, MessageTransportData data, List<RequestId> requestList) throws IOException
     {
         HttpMethod streamedPostMethod = null;
         HttpMessageTransportData.CoalesceThankYouNotesKey key = (HttpMessageTransportData.CoalesceThankYouNotesKey) k;
@@ -249,7 +238,7 @@ public class HttpMessageTransport implements MessageTransport
             //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
 
             byte status = (byte) is.read();
-            if (status != StreamBasedInvocator.REQUEST_NEVER_ARRVIED_STATUS)
+            if (StreamBasedInvocator.hasResult(status))
             {
                 returned = this.getResult(method, args, is);
             }
@@ -340,7 +329,15 @@ public class HttpMessageTransport implements MessageTransport
                 for (int i = 0; i < this.args.length; i++)
                 {
                     //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
-                    objectOutputStream.writeObject(this.args[i]);
+                    if (this.args[i] instanceof StreamedArgument)
+                    {
+                        // sent as it is read when the server takes chunked requests
+                        ((StreamedArgument) this.args[i]).writeTo(objectOutputStream);
+                    }
+                    else
+                    {
+                        objectOutputStream.writeObject(this.args[i]);
+                    }
                 }
             }
         }
@@ -371,6 +368,34 @@ public class HttpMessageTransport implements MessageTransport
     /**
      * @return the http response code returned from the server. Response code 200 means success.
      */
+    @Override
+    public CompletableFuture<Void> waitForServerAsync(long deadline, MessageTransportData d)
+    {
+        HttpMessageTransportData data = (HttpMessageTransportData) d;
+        return AsyncSupport.waitForServer((timeout) -> ping(data, timeout), deadline, data);
+    }
+
+    private static boolean ping(HttpMessageTransportData data, int timeout) throws IOException
+    {
+        int code = fastFailPing(data.getUrl(), timeout);
+        if (code == 401 || code == 403)
+        {
+            throw new JrpipRuntimeException("Authorization required for " + data.getUrl() + " (HTTP/" + code + "). Please provide valid credentials to servlet factory!");
+        }
+
+        if (code == 404)
+        {
+            throw new JrpipRuntimeException("Could not find " + data.getUrl() + " (HTTP/404). Looks like the servlet is not properly configured!");
+        }
+
+        if (code == 200)
+        {
+            return true;
+        }
+        LOGGER.warn("Ping request to {} resulted in HTTP/{}", data.getUrl(), code);
+        return false;
+    }
+
     public static int fastFailPing(AuthenticatedUrl url, int timeout) throws IOException
     {
         PingRequest pingRequest = null;
@@ -772,9 +797,9 @@ public class HttpMessageTransport implements MessageTransport
 
     protected static class ThankYouStreamWriter extends JrpipRequestWriter
     {
-        private final List<ThankYouWriter.ThankYouRequest> requestList;
+        private final List<RequestId> requestList;
 
-        protected ThankYouStreamWriter(List<ThankYouWriter.ThankYouRequest> requestList)
+        protected ThankYouStreamWriter(List<RequestId> requestList)
         {
             this.requestList = requestList;
         }
@@ -789,10 +814,10 @@ public class HttpMessageTransport implements MessageTransport
         public void writeParameters(ObjectOutputStream objectOutputStream) throws IOException
         {
             objectOutputStream.writeInt(this.requestList.size());
-            for (ThankYouWriter.ThankYouRequest request : this.requestList)
+            for (RequestId request : this.requestList)
             {
                 //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
-                objectOutputStream.writeObject(request.getRequestId());
+                objectOutputStream.writeObject(request);
             }
         }
     }
@@ -0,0 +1,152 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One remote invocation shared by concurrent identical calls of a {@link com.gs.jrpip.SingleFlight} method.
+ * The caller that registers the flight makes the call; callers that find it registered wait for its result.
+ * The flight is unregistered as soon as the call finishes, so later calls go to the server again.
+ */
+final class InFlightCall
+{
+    private static final ConcurrentHashMap<Key, InFlightCall> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    private final Key key;
+    private final boolean immutableResult;
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+    private byte[] serializedResult;
+
+    InFlightCall(Object endPoint, Method method, Object[] args, boolean immutableResult)
+    {
+        this.key = new Key(endPoint, method, args);
+        this.immutableResult = immutableResult;
+    }
+
+    /**
+     * @return the flight already running for the same call, or null if this one was registered and the caller
+     * must make the call and finish it
+     */
+    InFlightCall register()
+    {
+        return IN_FLIGHT.putIfAbsent(this.key, this);
+    }
+
+    void finish(Object value, Throwable failure)
+    {
+        IN_FLIGHT.remove(this.key, this);
+        if (failure == null)
+        {
+            this.result.complete(value);
+        }
+        else
+        {
+            this.result.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Blocks until the call finishes. Exceptions are shared by all waiters.
+     */
+    Object await() throws Throwable
+    {
+        try
+        {
+            return this.copyOf(this.result.join());
+        }
+        catch (Throwable t)
+        {
+            throw AsyncSupport.unwrap(t);
+        }
+    }
+
+    CompletableFuture<Object> awaitAsync()
+    {
+        return this.result.thenApply(this::copyOf);
+    }
+
+    private Object copyOf(Object value)
+    {
+        if (this.immutableResult || value == null)
+        {
+            return value;
+        }
+        return ResultCache.deserialize(this.serialized(value));
+    }
+
+    private synchronized byte[] serialized(Object value)
+    {
+        if (this.serializedResult == null)
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try
+            {
+                ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(value);
+                out.flush();
+            }
+            catch (IOException e)
+            {
+                throw new JrpipRuntimeException("Could not copy shared result", e);
+            }
+            this.serializedResult = bytes.toByteArray();
+        }
+        return this.serializedResult;
+    }
+
+    private static final class Key
+    {
+        private final Object endPoint;
+        private final Method method;
+        private final Object[] args;
+        private final int hashCode;
+
+        private Key(Object endPoint, Method method, Object[] args)
+        {
+            this.endPoint = endPoint;
+            this.method = method;
+            this.args = args == null ? new Object[0] : args;
+            this.hashCode = (endPoint.hashCode() * 31 + method.hashCode()) * 31 + Arrays.deepHashCode(this.args);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this.hashCode == other.hashCode && this.method.equals(other.method)
+                    && this.endPoint.equals(other.endPoint) && Arrays.deepEquals(this.args, other.args);
+        }
+    }
+}
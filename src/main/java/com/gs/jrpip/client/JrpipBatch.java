@@ -0,0 +1,220 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip.client;
+
+import com.gs.jrpip.BatchResults;
+import com.gs.jrpip.MethodResolver;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Calls recorded against a service and sent to the server as one request. Calls made on {@link #record()}
+ * return immediately with null, zero or false; {@link #execute()} runs them all and returns each call's result
+ * or exception, in the order they were recorded.
+ * <p/>
+ * <pre>
+ * JrpipBatch&lt;RemoteObjectManager&gt; batch = MtProxyFactory.createBatch(RemoteObjectManager.class, rom);
+ * for (String name : names)
+ * {
+ *     batch.record().lookup(name);
+ * }
+ * BatchResults results = batch.execute();
+ * </pre>
+ * A batch is executed once as a whole: a retry after a network failure picks up the server's response rather
+ * than running the calls again.
+ */
+public class JrpipBatch<T>
+{
+    static final Method EXECUTE;
+
+    static
+    {
+        try
+        {
+            EXECUTE = JrpipBatch.class.getMethod("execute");
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new RuntimeException("Never happens", e);
+        }
+    }
+
+    private final Class<T> api;
+    private final MtProxyInvocationHandler remote;
+    private final Object local;
+    private T recorder;
+    private final List<Method> methods = new ArrayList<>();
+    private final List<Object[]> args = new ArrayList<>();
+    private boolean parallel;
+    private boolean executed;
+
+    JrpipBatch(Class<T> api, MtProxyInvocationHandler remote, Object local)
+    {
+        this.api = api;
+        this.remote = remote;
+        this.local = local;
+    }
+
+    /**
+     * @return a view of the service that adds each call made on it to the batch
+     */
+    public synchronized T record()
+    {
+        if (this.recorder == null)
+        {
+            this.recorder = (T) Proxy.newProxyInstance(this.api.getClassLoader(), new Class[]{this.api}, new Recorder());
+        }
+        return this.recorder;
+    }
+
+    synchronized void add(Method method, Object[] args)
+    {
+        if (this.executed)
+        {
+            throw new JrpipRuntimeException("The batch was already executed");
+        }
+        if (this.remote != null && MethodResolver.hasStreamedArgument(method))
+        {
+            throw new JrpipRuntimeException("Method " + method.getName() + " takes a stream and can't be batched");
+        }
+        this.methods.add(method);
+        this.args.add(args);
+    }
+
+    public synchronized int size()
+    {
+        return this.methods.size();
+    }
+
+    /**
+     * Lets the server run the calls concurrently, on its invocation executor when it has one. By default they
+     * run one after the other, in the order they were recorded.
+     */
+    public void setParallel(boolean parallel)
+    {
+        this.parallel = parallel;
+    }
+
+    boolean isParallel()
+    {
+        return this.parallel;
+    }
+
+    List<Method> getMethods()
+    {
+        return this.methods;
+    }
+
+    List<Object[]> getArgs()
+    {
+        return this.args;
+    }
+
+    /**
+     * Sends the recorded calls in one round trip.
+     *
+     * @return the result or exception of each call
+     */
+    public synchronized BatchResults execute()
+    {
+        if (this.executed)
+        {
+            throw new JrpipRuntimeException("The batch was already executed");
+        }
+        this.executed = true;
+        if (this.methods.isEmpty())
+        {
+            return new BatchResults(new Object[0], new boolean[0]);
+        }
+        if (this.remote == null)
+        {
+            return this.executeLocally();
+        }
+        try
+        {
+            return this.remote.invokeBatch(this);
+        }
+        catch (RuntimeException | Error e)
+        {
+            throw e;
+        }
+        catch (Throwable t)
+        {
+            throw new JrpipRuntimeException("Could not execute batch", t);
+        }
+    }
+
+    private BatchResults executeLocally()
+    {
+        Object[] results = new Object[this.methods.size()];
+        boolean[] thrown = new boolean[results.length];
+        for (int i = 0; i < results.length; i++)
+        {
+            try
+            {
+                results[i] = this.methods.get(i).invoke(this.local, this.args.get(i));
+            }
+            catch (InvocationTargetException e)
+            {
+                results[i] = e.getCause();
+                thrown[i] = true;
+            }
+            catch (IllegalAccessException e)
+            {
+                throw new JrpipRuntimeException("Could not invoke " + this.methods.get(i).getName(), e);
+            }
+        }
+        return new BatchResults(results, thrown);
+    }
+
+    private class Recorder implements InvocationHandler
+    {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String simpleMethodName = method.getName();
+            Class[] params = method.getParameterTypes();
+
+            if ("equals".equals(simpleMethodName) && params.length == 1 && params[0].equals(Object.class))
+            {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(simpleMethodName) && params.length == 0)
+            {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(simpleMethodName) && params.length == 0)
+            {
+                return "[JrpipBatch recorder, " + JrpipBatch.this.size() + " calls]";
+            }
+            JrpipBatch.this.add(method, args);
+            Class returnType = method.getReturnType();
+            if (returnType.isPrimitive() && returnType != void.class)
+            {
+                return Array.get(Array.newInstance(returnType, 1), 0);
+            }
+            return null;
+        }
+    }
+}
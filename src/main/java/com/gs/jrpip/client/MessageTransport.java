@@ -6,7 +6,9 @@ import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface MessageTransport
 {
@@ -20,13 +22,69 @@ public interface MessageTransport
 
     public void waitForServer(long deadline, MessageTransportData data);
 
+    /**
+     * Used by asynchronous proxies. The default runs waitForServer on a shared pool; transports that can ping
+     * once override it, so only the pings hold a thread and the pauses between them are on a timer.
+     */
+    public default CompletableFuture<Void> waitForServerAsync(long deadline, MessageTransportData data)
+    {
+        return AsyncSupport.supply(() ->
+        {
+            this.waitForServer(deadline, data);
+            return null;
+        });
+    }
+
     public ResponseMessage sendParameters(MessageTransportData data, RequestId requestId, int timeout, String serviceClass,
             String mangledMethodName, Object[] args, Method method, boolean compress) throws ClassNotFoundException, IOException;
 
     public ResponseMessage requestResend(MessageTransportData data, RequestId requestId, int timeout, Object[] args, Method method, boolean compress)
             throws ClassNotFoundException, IOException;
 
+    /**
+     * Used by asynchronous proxies. The default runs sendParameters on a shared pool; transports that can
+     * send without holding a thread for the response override it.
+     */
+    public default CompletableFuture<ResponseMessage> sendParametersAsync(MessageTransportData data, RequestId requestId,
+            int timeout, String serviceClass, String mangledMethodName, Object[] args, Method method, boolean compress)
+    {
+        return AsyncSupport.supply(() -> this.sendParameters(data, requestId, timeout, serviceClass, mangledMethodName, args, method, compress));
+    }
+
+    public default CompletableFuture<ResponseMessage> requestResendAsync(MessageTransportData data, RequestId requestId,
+            int timeout, Object[] args, Method method, boolean compress)
+    {
+        return AsyncSupport.supply(() -> this.requestResend(data, requestId, timeout, args, method, compress));
+    }
+
+    /**
+     * Sends the calls of a batch as one request; the result is a {@link com.gs.jrpip.BatchResults}. Resends go
+     * through requestResend like any other request.
+     *
+     * @throws RequestNotSupportedException if the transport or the server can't run batches
+     */
+    public default ResponseMessage sendBatch(MessageTransportData data, RequestId requestId, int timeout, String serviceClass,
+            List<String> mangledMethodNames, List<Object[]> args, boolean parallel, boolean compress)
+            throws ClassNotFoundException, IOException
+    {
+        throw new RequestNotSupportedException(this.getClass().getName() + " does not support batches");
+    }
+
     public boolean sendThanks(Object key, List<ThankYouWriter.ThankYouRequest> requestList) throws IOException;
 
+    /**
+     * Sends the thank you notes collected for the key. The default wraps them for
+     * {@link #sendThanks(Object, List)}; the built-in transports override it to send the ids as they are.
+     */
+    public default boolean sendThanks(Object key, MessageTransportData data, List<RequestId> requestIds) throws IOException
+    {
+        List<ThankYouWriter.ThankYouRequest> requestList = new ArrayList<>(requestIds.size());
+        for (RequestId requestId : requestIds)
+        {
+            requestList.add(new ThankYouWriter.ThankYouRequest(this, data, requestId));
+        }
+        return this.sendThanks(key, requestList);
+    }
+
     public void initAndRegisterLocalServices(String url, boolean disconnectedMode, int timeout) throws MalformedURLException;
 }
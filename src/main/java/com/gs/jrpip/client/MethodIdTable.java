@@ -0,0 +1,89 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.client;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The service and method ids a server listed when it granted
+ * {@link com.gs.jrpip.server.StreamBasedInvocator#METHOD_ID_CAPABILITY}. They are only valid on the connection
+ * that received them.
+ */
+final class MethodIdTable
+{
+    private final Map<String, Service> services;
+
+    private MethodIdTable(Map<String, Service> services)
+    {
+        this.services = services;
+    }
+
+    public static MethodIdTable read(DataInputStream in) throws IOException
+    {
+        int serviceCount = in.readInt();
+        Map<String, Service> services = new HashMap<>(serviceCount * 2);
+        for (int serviceId = 0; serviceId < serviceCount; serviceId++)
+        {
+            String serviceClass = in.readUTF();
+            int methodCount = in.readInt();
+            Map<String, Integer> methodIds = new HashMap<>(methodCount * 2);
+            for (int methodId = 0; methodId < methodCount; methodId++)
+            {
+                methodIds.put(in.readUTF(), methodId);
+            }
+            services.put(serviceClass, new Service(serviceId, methodIds));
+        }
+        return new MethodIdTable(services);
+    }
+
+    /**
+     * @return the service, or null if the server didn't list it
+     */
+    public Service getService(String serviceClass)
+    {
+        return this.services.get(serviceClass);
+    }
+
+    public static final class Service
+    {
+        private final int id;
+        private final Map<String, Integer> methodIds;
+
+        private Service(int id, Map<String, Integer> methodIds)
+        {
+            this.id = id;
+            this.methodIds = methodIds;
+        }
+
+        public int getId()
+        {
+            return this.id;
+        }
+
+        /**
+         * @return the id of the method, or -1 if the server didn't list it
+         */
+        public int getMethodId(String mangledMethodName)
+        {
+            Integer id = this.methodIds.get(mangledMethodName);
+            return id == null ? -1 : id;
+        }
+    }
+}
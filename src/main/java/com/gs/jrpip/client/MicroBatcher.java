@@ -0,0 +1,216 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip.client;
+
+import com.gs.jrpip.BatchResults;
+import com.gs.jrpip.MicroBatch;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Groups concurrent calls of a {@link MicroBatch} method to the same endpoint. The first call of a group waits
+ * for the window to pass or the group to fill up, then sends the whole group as one batch request; the calls
+ * that joined wait for its results. A call made while no other call of the method to the endpoint is in progress
+ * doesn't wait for the window: there is nothing for it to group with.
+ */
+final class MicroBatcher
+{
+    private static final ConcurrentHashMap<Key, Group> OPEN_GROUPS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Key, Integer> IN_PROGRESS = new ConcurrentHashMap<>();
+
+    private MicroBatcher()
+    {
+    }
+
+    static Object invoke(MtProxyInvocationHandler handler, Object endPoint, Method method, Object[] args, MicroBatch settings)
+            throws Throwable
+    {
+        Key key = new Key(endPoint, method);
+        boolean alone = IN_PROGRESS.merge(key, 1, Integer::sum) == 1;
+        try
+        {
+            while (true)
+            {
+                Group group = OPEN_GROUPS.get(key);
+                if (group == null)
+                {
+                    Group started = new Group(handler, settings.maxCalls());
+                    started.join(method, args);
+                    if (OPEN_GROUPS.putIfAbsent(key, started) == null)
+                    {
+                        started.lead(key, alone ? 0 : TimeUnit.MICROSECONDS.toNanos(settings.windowMicros()));
+                        return started.resultOf(0, method, args);
+                    }
+                }
+                else
+                {
+                    int index = group.join(method, args);
+                    if (index >= 0)
+                    {
+                        return group.resultOf(index, method, args);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            IN_PROGRESS.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    private static final class Group
+    {
+        private final MtProxyInvocationHandler handler;
+        private final int maxCalls;
+        private final JrpipBatch<Object> batch;
+        private final Thread leader = Thread.currentThread();
+        private final CompletableFuture<BatchResults> results = new CompletableFuture<>();
+        private boolean closed;
+
+        private Group(MtProxyInvocationHandler handler, int maxCalls)
+        {
+            this.handler = handler;
+            this.maxCalls = maxCalls;
+            this.batch = new JrpipBatch<>(null, handler, null);
+        }
+
+        /**
+         * @return the position of the call in the group, or -1 if the group was already sent
+         */
+        private synchronized int join(Method method, Object[] args)
+        {
+            if (this.closed)
+            {
+                return -1;
+            }
+            this.batch.add(method, args);
+            int size = this.batch.size();
+            if (size >= this.maxCalls)
+            {
+                this.closed = true;
+                LockSupport.unpark(this.leader);
+            }
+            return size - 1;
+        }
+
+        private synchronized boolean isClosed()
+        {
+            return this.closed;
+        }
+
+        private void lead(Key key, long windowNanos)
+        {
+            long deadline = System.nanoTime() + windowNanos;
+            long left = windowNanos;
+            while (left > 0 && !this.isClosed())
+            {
+                LockSupport.parkNanos(this, left);
+                left = deadline - System.nanoTime();
+            }
+            OPEN_GROUPS.remove(key, this);
+            synchronized (this)
+            {
+                this.closed = true;
+            }
+            try
+            {
+                this.results.complete(this.batch.size() == 1 ? null : this.handler.invokeBatch(this.batch));
+            }
+            catch (Throwable t)
+            {
+                this.results.completeExceptionally(t);
+            }
+        }
+
+        /**
+         * Waits, up to the timeout of the call, for the group to be sent. A group of one is sent as a plain call,
+         * and so is every call of a group the server can't take as a batch.
+         */
+        private Object resultOf(int index, Method method, Object[] args) throws Throwable
+        {
+            BatchResults batchResults;
+            try
+            {
+                int timeout = this.handler.timeoutFor(method);
+                batchResults = timeout == 0 ? this.results.get() : this.results.get(timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e)
+            {
+                throw new JrpipTimeoutException("Remote method " + method.getName() + " timed out waiting for its batch.");
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new JrpipRuntimeException("Interrupted while waiting for the batch of " + method.getName(), e);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = AsyncSupport.unwrap(e);
+                if (cause instanceof RequestNotSupportedException)
+                {
+                    return this.handler.invokeRemoteMethod(method, args);
+                }
+                throw cause;
+            }
+            if (batchResults == null)
+            {
+                return this.handler.invokeRemoteMethod(method, args);
+            }
+            if (batchResults.isFailed(index))
+            {
+                throw this.handler.returnedException(method, batchResults.getException(index));
+            }
+            return batchResults.getResult(index);
+        }
+    }
+
+    private static final class Key
+    {
+        private final Object endPoint;
+        private final Method method;
+
+        private Key(Object endPoint, Method method)
+        {
+            this.endPoint = endPoint;
+            this.method = method;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.endPoint.hashCode() * 31 + this.method.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this.method.equals(other.method) && this.endPoint.equals(other.endPoint);
+        }
+    }
+}
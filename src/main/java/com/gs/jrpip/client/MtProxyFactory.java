@@ -17,12 +17,19 @@
 package com.gs.jrpip.client;
 
 import com.gs.jrpip.JrpipServiceRegistry;
+import com.gs.jrpip.codec.JrpipCodec;
+import com.gs.jrpip.codec.JrpipCodecs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 public class MtProxyFactory implements ServletProxyFactory
 {
@@ -122,6 +129,138 @@ public class MtProxyFactory implements ServletProxyFactory
         return result;
     }
 
+    /**
+     * Creates an asynchronous view of a remote service. Each method of asyncApi must have the name and
+     * parameters of a method of api and return a CompletableFuture of its result. Calls don't block the
+     * caller; retries and resends run as the responses arrive and the future completes with the result
+     * or the exception thrown by the remote method.
+     * <p/>
+     * <pre>
+     * interface RemoteObjectManagerAsync
+     * {
+     *     CompletableFuture&lt;Object&gt; lookup(String name);
+     * }
+     * RemoteObjectManagerAsync rom = factory.createAsync(RemoteObjectManagerAsync.class, RemoteObjectManager.class, url);
+     * </pre>
+     *
+     * @param asyncApi the interface the proxy class needs to implement
+     * @param api      the service interface the server exposes
+     * @param url      the URL where the client object is located.
+     * @return a proxy to the object with the asynchronous interface.
+     */
+    public <A> A createAsync(Class<A> asyncApi, Class<?> api, String url) throws MalformedURLException
+    {
+        return this.createAsync(asyncApi, api, url, 0);
+    }
+
+    /**
+     * Creates an asynchronous view of a remote service.
+     *
+     * @param asyncApi      the interface the proxy class needs to implement
+     * @param api           the service interface the server exposes
+     * @param url           the URL where the client object is located.
+     * @param timeoutMillis maximum timeoutMillis for remote method call to run, zero for no timeoutMillis
+     * @return a proxy to the object with the asynchronous interface.
+     * @see #createAsync(Class, Class, String)
+     */
+    public <A> A createAsync(Class<A> asyncApi, Class<?> api, String url, int timeoutMillis) throws MalformedURLException
+    {
+        Map<Method, Method> serviceMethods = AsyncProxyInvocationHandler.mapServiceMethods(asyncApi, api);
+        Object local = null;
+        if (this.useLocalService)
+        {
+            local = JrpipServiceRegistry.getInstance().getLocalService(url, api);
+        }
+        if (local == null)
+        {
+            this.transport.initAndRegisterLocalServices(url, false, timeoutMillis);
+            if (this.useLocalService)
+            {
+                local = JrpipServiceRegistry.getInstance().getLocalService(url, api);
+            }
+        }
+        AsyncProxyInvocationHandler handler;
+        if (local != null)
+        {
+            handler = new AsyncProxyInvocationHandler(serviceMethods, local);
+        }
+        else
+        {
+            InvocationHandler remote = this.transport.createInvocationHandler(api, url, timeoutMillis, false);
+            if (!(remote instanceof MtProxyInvocationHandler))
+            {
+                throw new JrpipRuntimeException("Invocation handler " + remote.getClass().getName() + " does not support asynchronous calls");
+            }
+            handler = new AsyncProxyInvocationHandler(serviceMethods, (MtProxyInvocationHandler) remote);
+        }
+        return (A) Proxy.newProxyInstance(asyncApi.getClassLoader(), new Class[]{asyncApi}, handler);
+    }
+
+    /**
+     * Starts a batch of calls against a proxy created by this class, sent to the server in one request when the
+     * batch is executed. A batch against a local service runs the calls directly.
+     *
+     * @param api   the interface the proxy implements
+     * @param proxy the proxy the calls are made against
+     * @see JrpipBatch
+     */
+    public static <T> JrpipBatch<T> createBatch(Class<T> api, T proxy)
+    {
+        if (Proxy.isProxyClass(proxy.getClass()) && Proxy.getInvocationHandler(proxy) instanceof MtProxyInvocationHandler)
+        {
+            return new JrpipBatch<>(api, (MtProxyInvocationHandler) Proxy.getInvocationHandler(proxy), null);
+        }
+        return new JrpipBatch<>(api, null, proxy);
+    }
+
+    /**
+     * Registers a codec with the proxies of this vm. Methods annotated with its name use it against servers that
+     * offer it too, and java serialization otherwise.
+     *
+     * @see com.gs.jrpip.Codec
+     * @see com.gs.jrpip.server.SocketServerConfig#addCodec(JrpipCodec)
+     */
+    public static void registerCodec(JrpipCodec codec)
+    {
+        JrpipCodecs.register(codec);
+    }
+
+    /**
+     * Sets how many threads the asynchronous proxies of this vm share for blocking work: transports without a
+     * non-blocking path and single pings while waiting for a server. Further work queues. Default: 32, or the
+     * jrpip.asyncThreads system property.
+     */
+    public static void setAsyncThreads(int maxThreads)
+    {
+        AsyncSupport.setMaxThreads(maxThreads);
+    }
+
+    public static int getAsyncThreads()
+    {
+        return AsyncSupport.getMaxThreads();
+    }
+
+    /**
+     * @return hit, miss and eviction counts for the {@link com.gs.jrpip.Cacheable} methods of a proxy created by
+     * this class, or an empty list for a local service
+     */
+    public static List<ResultCacheStats> getResultCacheStats(Object proxy)
+    {
+        if (Proxy.isProxyClass(proxy.getClass()))
+        {
+            InvocationHandler handler = Proxy.getInvocationHandler(proxy);
+            if (handler instanceof AsyncProxyInvocationHandler)
+            {
+                handler = ((AsyncProxyInvocationHandler) handler).getRemote();
+            }
+            if (handler instanceof MtProxyInvocationHandler)
+            {
+                return ((MtProxyInvocationHandler) handler).getResultCacheStats();
+            }
+        }
+        return Collections.emptyList();
+    }
+
     @Override
     public boolean isServiceAvailable(String url)
     {
@@ -16,8 +16,12 @@
 
 package com.gs.jrpip.client;
 
+import com.gs.jrpip.BatchResults;
+import com.gs.jrpip.Cacheable;
 import com.gs.jrpip.MethodResolver;
+import com.gs.jrpip.MicroBatch;
 import com.gs.jrpip.RequestId;
+import com.gs.jrpip.SingleFlight;
 import com.gs.jrpip.server.Context;
 import com.gs.jrpip.server.StreamBasedInvocator;
 import org.slf4j.Logger;
@@ -29,6 +33,11 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class MtProxyInvocationHandler
         implements InvocationHandler
@@ -41,6 +50,8 @@ public class MtProxyInvocationHandler
     private static final int RETRY_COUNT = 4;
 
     private static final long MAX_WAIT_FOR_NETWORK_FAILURE = 120000L;
+    private static final long MIN_BUSY_BACKOFF = 10L;
+    private static final long MAX_BUSY_BACKOFF = 1000L;
     //private static final boolean CAUSE_RANDOM_ERROR = true;
 
     // private static final double ERROR_RATE = 0.98;
@@ -48,6 +59,7 @@ public class MtProxyInvocationHandler
     private final MessageTransportData mtData;
     private final MessageTransport transport;
     private final int timeout;
+    private final Map<Method, ResultCache> resultCaches = new HashMap<>();
 
     protected MtProxyInvocationHandler(
             MessageTransportData mtData,
@@ -59,6 +71,14 @@ public class MtProxyInvocationHandler
         this.transport = transport;
         this.methodResolver = new MethodResolver(api);
         this.timeout = timeout;
+        for (Method method : api.getMethods())
+        {
+            Cacheable cacheable = this.methodResolver.getMethodCacheable(method);
+            if (cacheable != null)
+            {
+                this.resultCaches.put(method, new ResultCache(method, cacheable));
+            }
+        }
 
     }
 
@@ -72,6 +92,19 @@ public class MtProxyInvocationHandler
         return LOGGER;
     }
 
+    /**
+     * @return hit, miss and eviction counts for the methods marked {@link Cacheable}
+     */
+    public List<ResultCacheStats> getResultCacheStats()
+    {
+        List<ResultCacheStats> result = new ArrayList<>(this.resultCaches.size());
+        for (ResultCache cache : this.resultCaches.values())
+        {
+            result.add(cache.getStats());
+        }
+        return result;
+    }
+
     /**
      * Handles the object invocation.
      *
@@ -108,7 +141,88 @@ public class MtProxyInvocationHandler
             return "[MtProxyInvocationHandler " + this.mtData.toString() + ']';
         }
 
-        return this.invokeRemoteMethod(method, args);
+        if (MethodResolver.hasStreamedResult(method) || MethodResolver.hasStreamedArgument(method))
+        {
+            // a stream belongs to its caller; the call can't be cached, shared or batched
+            return this.invokeRemoteMethod(method, args);
+        }
+        ResultCache cache = this.resultCaches.get(method);
+        if (cache != null)
+        {
+            return this.invokeCached(cache, method, args);
+        }
+        return this.invokeCoalesced(method, args);
+    }
+
+    /**
+     * A hit is answered without a remote call, so there is nothing to thank the server for.
+     */
+    private Object invokeCached(ResultCache cache, Method method, Object[] args) throws Throwable
+    {
+        ResultCache.Key key = cache.keyFor(args);
+        if (key == null)
+        {
+            return this.invokeCoalesced(method, args);
+        }
+        byte[] cached = cache.get(key);
+        if (cached != null)
+        {
+            return ResultCache.deserialize(cached);
+        }
+        Object result = this.invokeCoalesced(method, args);
+        cache.put(key, result);
+        return result;
+    }
+
+    /**
+     * Joins a running call of a {@link SingleFlight} method with the same arguments, if there is one.
+     */
+    private Object invokeCoalesced(Method method, Object[] args) throws Throwable
+    {
+        InFlightCall flight = this.createFlight(method, args);
+        if (flight == null)
+        {
+            return this.invokeOrBatch(method, args);
+        }
+        InFlightCall running = flight.register();
+        if (running != null)
+        {
+            return running.await();
+        }
+        try
+        {
+            Object result = this.invokeOrBatch(method, args);
+            flight.finish(result, null);
+            return result;
+        }
+        catch (Throwable t)
+        {
+            flight.finish(null, t);
+            throw t;
+        }
+    }
+
+    /**
+     * Sends a call of a {@link MicroBatch} method together with the calls other threads make at about the same time.
+     */
+    private Object invokeOrBatch(Method method, Object[] args) throws Throwable
+    {
+        MicroBatch microBatch = this.methodResolver.getMethodMicroBatch(method);
+        if (microBatch == null)
+        {
+            return this.invokeRemoteMethod(method, args);
+        }
+        return MicroBatcher.invoke(this, this.mtData.createThankYouKey(), method, args, microBatch);
+    }
+
+    private InFlightCall createFlight(Method method, Object[] args)
+    {
+        SingleFlight settings = this.methodResolver.getMethodSingleFlight(method);
+        if (settings == null)
+        {
+            return null;
+        }
+        return new InFlightCall(this.mtData.createThankYouKey(), method, args, settings.immutableResult());
     }
 
     /**
@@ -116,15 +230,69 @@ public class MtProxyInvocationHandler
      */
     protected void waitForServer(boolean parametersSent)
     {
-        long timeToLive = System.currentTimeMillis() + Context.MAX_LIFE_TIME_FROM_FINISHED;
-        if (!parametersSent)
+        this.transport.waitForServer(this.serverWaitDeadline(parametersSent), this.mtData);
+    }
+
+    private long serverWaitDeadline(boolean parametersSent)
+    {
+        if (parametersSent)
         {
-            timeToLive = System.currentTimeMillis() + MAX_WAIT_FOR_NETWORK_FAILURE;
+            return System.currentTimeMillis() + Context.MAX_LIFE_TIME_FROM_FINISHED;
         }
-        this.transport.waitForServer(timeToLive, this.mtData);
+        return System.currentTimeMillis() + MAX_WAIT_FOR_NETWORK_FAILURE;
+    }
+
+    /**
+     * @return the timeout of the method in milliseconds, 0 for none
+     */
+    int timeoutFor(Method method)
+    {
+        Integer methodTimeout = this.methodResolver.getMethodTimeout(method);
+        return methodTimeout == null ? this.timeout : methodTimeout;
     }
 
     protected Object invokeRemoteMethod(Method method, Object[] args) throws Throwable
+    {
+        return this.invokeRemote(method, args, null);
+    }
+
+    /**
+     * Sends the recorded calls as one request. The batch goes through the same retries and resends as a single
+     * call, so the server runs it at most once.
+     */
+    BatchResults invokeBatch(JrpipBatch<?> batch) throws Throwable
+    {
+        BatchResults results = (BatchResults) this.invokeRemote(JrpipBatch.EXECUTE, null, batch);
+        List<Method> methods = batch.getMethods();
+        Object[] adapted = null;
+        for (int i = 0; i < methods.size(); i++)
+        {
+            if (!results.isFailed(i) && MethodResolver.hasStreamedResult(methods.get(i)))
+            {
+                if (adapted == null)
+                {
+                    adapted = new Object[results.size()];
+                }
+                adapted[i] = StreamedResult.adapt(methods.get(i), results.getResult(i));
+            }
+        }
+        if (adapted == null)
+        {
+            return results;
+        }
+        boolean[] thrown = new boolean[results.size()];
+        for (int i = 0; i < thrown.length; i++)
+        {
+            thrown[i] = results.isFailed(i);
+            if (adapted[i] == null)
+            {
+                adapted[i] = thrown[i] ? results.getException(i) : results.getResult(i);
+            }
+        }
+        return new BatchResults(adapted, thrown);
+    }
+
+    private Object invokeRemote(Method method, Object[] args, JrpipBatch<?> batch) throws Throwable
     {
         if (LOGGER.isDebugEnabled())
         {
@@ -135,14 +303,32 @@ public class MtProxyInvocationHandler
         int state = SEND_PARAMETERS_STATE;
         Exception lastException = null;
         boolean checkServerStatus = false;
-        int timeout = this.timeout;
-        Integer methodTimeout = this.methodResolver.getMethodTimeout(method);
-        if (methodTimeout != null)
-        {
-            timeout = methodTimeout;
-        }
+        int busyResponses = 0;
+        long busySince = 0;
+        int timeout = this.timeoutFor(method);
         long methodStart = timeout == 0 ? 0 : System.currentTimeMillis();
         long deadline = timeout == 0 ? Long.MAX_VALUE : methodStart + timeout;
+        if (batch == null && MethodResolver.hasStreamedArgument(method))
+        {
+            args = StreamedArgument.wrap(args);
+        }
+        StreamedArgument upload = StreamedArgument.of(args);
+        List<String> batchMethodNames = null;
+        boolean compress;
+        if (batch == null)
+        {
+            compress = this.methodResolver.getMethodCompression(method);
+        }
+        else
+        {
+            batchMethodNames = new ArrayList<>(batch.getMethods().size());
+            compress = false;
+            for (Method batchMethod : batch.getMethods())
+            {
+                batchMethodNames.add(this.methodResolver.getMangledMethodName(batchMethod));
+                compress |= this.methodResolver.getMethodCompression(batchMethod);
+            }
+        }
         while (retries > 0)
         {
             long retryStart = System.currentTimeMillis();
@@ -150,6 +336,10 @@ public class MtProxyInvocationHandler
             {
                 throw new JrpipTimeoutException("Remote method " + method.getName() + " timed out." + this.mtData.toString());
             }
+            if (state == SEND_PARAMETERS_STATE && upload != null && upload.isSent())
+            {
+                throw this.cannotResend(method, lastException);
+            }
             int timeLeftForProcessing = timeout == 0 ? 0 : timeout - (int) (retryStart - methodStart);
             byte status = StreamBasedInvocator.FAULT_STATUS;
             Object returned = null;
@@ -161,13 +351,22 @@ public class MtProxyInvocationHandler
                 switch (state)
                 {
                     case SEND_PARAMETERS_STATE:
-                        responseMessage = transport.sendParameters(mtData, requestId, timeLeftForProcessing,
-                                this.methodResolver.getServiceClass().getName(), this.methodResolver.getMangledMethodName(method),
-                                args, method, this.methodResolver.getMethodCompression(method));
+                        if (batch == null)
+                        {
+                            responseMessage = transport.sendParameters(mtData, requestId, timeLeftForProcessing,
+                                    this.methodResolver.getServiceClass().getName(), this.methodResolver.getMangledMethodName(method),
+                                    args, method, compress);
+                        }
+                        else
+                        {
+                            responseMessage = transport.sendBatch(mtData, requestId, timeLeftForProcessing,
+                                    this.methodResolver.getServiceClass().getName(), batchMethodNames, batch.getArgs(),
+                                    batch.isParallel(), compress);
+                        }
                         break;
                     case RECEIVE_RESULT_STATE:
                         responseMessage = transport.requestResend(mtData, requestId, timeLeftForProcessing, args, method,
-                                this.methodResolver.getMethodCompression(method));
+                                compress);
                         break;
                 }
 
@@ -205,53 +404,60 @@ public class MtProxyInvocationHandler
             {
                 throw new JrpipRuntimeException("Method call successfully completed but result class not found", e);
             }
+            catch (JrpipTimeoutException e)
+            {
+                // no connection became available in time; nothing was sent
+                throw e;
+            }
+            catch (RequestNotSupportedException e)
+            {
+                // the transport or the server can't take the request in this form; nothing was sent
+                throw e;
+            }
             catch (Exception e)
             {
+                if (e.getCause() instanceof InterruptedException)
+                {
+                    // interrupted while waiting for a connection; nothing was sent
+                    throw e;
+                }
                 retries--;
                 lastException = e;
                 LOGGER.debug("Exception in JRPIP invocation. Retries left {}", retries, e);
             }
+            if (!gotResult && upload != null && upload.isSent())
+            {
+                // the server may have the whole call
+                state = RECEIVE_RESULT_STATE;
+            }
             if (gotResult)
             {
                 switch (status)
                 {
                     case StreamBasedInvocator.OK_STATUS:
-                        ThankYouWriter.getINSTANCE().addRequest(this.transport, this.mtData, requestId);
                         if (LOGGER.isDebugEnabled())
                         {
                             LOGGER.debug("finished remote method normally {}.{}", method.getDeclaringClass(), method.getName());
                         }
-                        return returned;
+                        return this.acceptResult(method, args, requestId, timeout, compress, returned);
                     case StreamBasedInvocator.FAULT_STATUS:
                         ThankYouWriter.getINSTANCE().addRequest(this.transport, this.mtData, requestId);
                         if (LOGGER.isDebugEnabled())
                         {
                             LOGGER.debug("finished remote method {}.{} with exception {}", method.getDeclaringClass(), method.getName(), returned.getClass().getName(), new JrpipRuntimeException("for tracing local invocation context"));
                         }
-                        Class[] exceptions = method.getExceptionTypes();
-                        for (Class exception : exceptions)
-                        {
-                            if (exception.isAssignableFrom(returned.getClass()))
-                            {
-                                throw (Throwable) returned;
-                            }
-                        }
-                        if (RuntimeException.class.isAssignableFrom(returned.getClass()))
-                        {
-                            throw (RuntimeException) returned;
-                        }
-                        if (Error.class.isAssignableFrom(returned.getClass()))
-                        {
-                            throw (Error) returned;
-                        }
-                        if (Throwable.class.isAssignableFrom(returned.getClass()) && !Exception.class.isAssignableFrom(returned.getClass()))
-                        {
-                            throw (Throwable) returned;
-                        }
-                        throw new JrpipRuntimeException("Could not throw returned exception, as it was not declared in the method signature for method " + method.getName(), (Throwable) returned);
+                        throw this.returnedException(method, returned);
                     case StreamBasedInvocator.REQUEST_NEVER_ARRVIED_STATUS:
                         state = SEND_PARAMETERS_STATE;
                         break;
+                    case StreamBasedInvocator.SERVER_BUSY_STATUS:
+                        state = SEND_PARAMETERS_STATE;
+                        if (busyResponses == 0)
+                        {
+                            busySince = System.currentTimeMillis();
+                        }
+                        this.backoffWhileBusy(busyResponses++, busySince, deadline, method);
+                        break;
                 }
             }
             else
@@ -271,6 +477,181 @@ public class MtProxyInvocationHandler
         throw new JrpipRuntimeException("Could not invoke remote method " + method.getName() + " while accessing " + this.mtData.toString(), lastException);
     }
 
+    /**
+     * Runs the same state machine as invokeRemoteMethod, but without blocking the calling thread: each step
+     * continues when the transport completes the previous one, and backoffs are scheduled instead of slept.
+     *
+     * @return a future completed with the result or the exception the remote method threw
+     */
+    protected CompletableFuture<Object> invokeRemoteMethodAsync(Method method, Object[] args)
+    {
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("starting asynchronous remote method {}.{}", method.getDeclaringClass(), method.getName());
+        }
+        if (MethodResolver.hasStreamedResult(method) || MethodResolver.hasStreamedArgument(method))
+        {
+            AsyncCall call = new AsyncCall(method, args);
+            call.next();
+            return call.result;
+        }
+        ResultCache cache = this.resultCaches.get(method);
+        ResultCache.Key key = cache == null ? null : cache.keyFor(args);
+        if (key != null)
+        {
+            byte[] cached = cache.get(key);
+            if (cached != null)
+            {
+                return CompletableFuture.completedFuture(ResultCache.deserialize(cached));
+            }
+        }
+        CompletableFuture<Object> result;
+        InFlightCall flight = this.createFlight(method, args);
+        InFlightCall running = flight == null ? null : flight.register();
+        if (running != null)
+        {
+            result = running.awaitAsync();
+        }
+        else
+        {
+            AsyncCall call = new AsyncCall(method, args);
+            call.next();
+            result = call.result;
+            if (flight != null)
+            {
+                result.whenComplete(flight::finish);
+            }
+        }
+        if (key != null)
+        {
+            return result.thenApply((value) ->
+            {
+                cache.put(key, value);
+                return value;
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Thanks the server for a normal result. A streamed result is thanked for once it is read or closed, right
+     * away if it was closed part way so the server stops producing it, and is asked for again if its connection
+     * fails part way.
+     *
+     * @return the result as the method declares it
+     */
+    private Object acceptResult(Method method, Object[] args, RequestId requestId, int timeout, boolean compress, Object returned)
+    {
+        if (returned instanceof StreamedResult)
+        {
+            ((StreamedResult) returned).attach(
+                    () -> ThankYouWriter.getINSTANCE().addRequest(this.transport, this.mtData, requestId),
+                    () -> ThankYouWriter.getINSTANCE().addUrgentRequest(this.transport, this.mtData, requestId),
+                    () -> this.resendStreamedResult(method, args, requestId, timeout, compress));
+        }
+        else
+        {
+            ThankYouWriter.getINSTANCE().addRequest(this.transport, this.mtData, requestId);
+        }
+        if (method != null && MethodResolver.hasStreamedResult(method))
+        {
+            return StreamedResult.adapt(method, returned);
+        }
+        return returned;
+    }
+
+    private StreamedResult resendStreamedResult(Method method, Object[] args, RequestId requestId, int timeout, boolean compress)
+            throws Throwable
+    {
+        ResponseMessage responseMessage = this.transport.requestResend(this.mtData, requestId, timeout, args, method, compress);
+        int code = responseMessage.getTransportStatusCode();
+        if (code != ResponseMessage.SERVER_OK)
+        {
+            this.throwServerError(code, responseMessage.getTransportError(), method.getName(), this.mtData.toString());
+        }
+        Object returned = responseMessage.getResult();
+        if (responseMessage.getResponseStatusCode() == StreamBasedInvocator.FAULT_STATUS)
+        {
+            throw this.returnedException(method, returned);
+        }
+        if (responseMessage.getResponseStatusCode() != StreamBasedInvocator.OK_STATUS || !(returned instanceof StreamedResult))
+        {
+            throw new JrpipRuntimeException("The result of remote method " + method.getName() + " is no longer available on " + this.mtData.toString());
+        }
+        return (StreamedResult) returned;
+    }
+
+    /**
+     * The bytes of a stream argument were read from the caller's stream as they were sent, so the call can't be
+     * sent again.
+     */
+    private JrpipRuntimeException cannotResend(Method method, Throwable cause)
+    {
+        return new JrpipRuntimeException("The stream argument of remote method " + method.getName()
+                + " was sent but the call did not reach " + this.mtData.toString() + ", and it can't be sent again", cause);
+    }
+
+    /**
+     * @return the exception a fault response is rethrown as
+     */
+    Throwable returnedException(Method method, Object returned)
+    {
+        Class[] exceptions = method.getExceptionTypes();
+        for (Class exception : exceptions)
+        {
+            if (exception.isAssignableFrom(returned.getClass()))
+            {
+                return (Throwable) returned;
+            }
+        }
+        if (RuntimeException.class.isAssignableFrom(returned.getClass()))
+        {
+            return (RuntimeException) returned;
+        }
+        if (Error.class.isAssignableFrom(returned.getClass()))
+        {
+            return (Error) returned;
+        }
+        if (Throwable.class.isAssignableFrom(returned.getClass()) && !Exception.class.isAssignableFrom(returned.getClass()))
+        {
+            return (Throwable) returned;
+        }
+        return new JrpipRuntimeException("Could not throw returned exception, as it was not declared in the method signature for method " + method.getName(), (Throwable) returned);
+    }
+
+    /**
+     * sleeps before resending a request the server was too busy to accept. The backoff doubles with each
+     * busy response, with jitter so rejected clients don't come back in lockstep.
+     */
+    protected void backoffWhileBusy(int busyResponses, long busySince, long deadline, Method method)
+    {
+        long backoff = this.busyBackoff(busyResponses, busySince, deadline, method);
+        if (backoff > 0)
+        {
+            try
+            {
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new JrpipRuntimeException("Interrupted while the server was too busy to invoke remote method "
+                        + method.getName() + " while accessing " + this.mtData.toString(), e);
+            }
+        }
+    }
+
+    private long busyBackoff(int busyResponses, long busySince, long deadline, Method method)
+    {
+        long now = System.currentTimeMillis();
+        if (now - busySince > MAX_WAIT_FOR_NETWORK_FAILURE)
+        {
+            throw new JrpipRuntimeException("Server too busy to invoke remote method " + method.getName() + " while accessing " + this.mtData.toString());
+        }
+        long backoff = Math.min(MAX_BUSY_BACKOFF, MIN_BUSY_BACKOFF << Math.min(busyResponses, 7));
+        return Math.min(backoff / 2 + (long) (Math.random() * backoff / 2), deadline - now);
+    }
+
     private void throwServerError(int code, String serverError, String methodName, String dest)
     {
         if (code == 401 || code == 403)
@@ -282,4 +663,204 @@ public class MtProxyInvocationHandler
                 " while accessing "+dest);
     }
 
+    private class AsyncCall
+    {
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private final Method method;
+        private final Object[] args;
+        private final RequestId requestId = new RequestId(MtProxyInvocationHandler.this.mtData.getProxyId());
+        private final int timeout;
+        private final long methodStart;
+        private final long deadline;
+        private int retries = RETRY_COUNT;
+        private int state = SEND_PARAMETERS_STATE;
+        private Throwable lastException;
+        private int busyResponses;
+        private long busySince;
+
+        private AsyncCall(Method method, Object[] args)
+        {
+            this.method = method;
+            this.args = MethodResolver.hasStreamedArgument(method) ? StreamedArgument.wrap(args) : args;
+            int timeout = MtProxyInvocationHandler.this.timeoutFor(method);
+            this.timeout = timeout;
+            this.methodStart = timeout == 0 ? 0 : System.currentTimeMillis();
+            this.deadline = timeout == 0 ? Long.MAX_VALUE : this.methodStart + timeout;
+        }
+
+        private void next()
+        {
+            try
+            {
+                long retryStart = System.currentTimeMillis();
+                if (retryStart >= this.deadline)
+                {
+                    this.result.completeExceptionally(new JrpipTimeoutException("Remote method " + this.method.getName() + " timed out." + mtData.toString()));
+                    return;
+                }
+                int timeLeftForProcessing = this.timeout == 0 ? 0 : this.timeout - (int) (retryStart - this.methodStart);
+                StreamedArgument upload = StreamedArgument.of(this.args);
+                if (this.state == SEND_PARAMETERS_STATE && upload != null && upload.isSent())
+                {
+                    this.result.completeExceptionally(cannotResend(this.method, this.lastException));
+                    return;
+                }
+                boolean compress = methodResolver.getMethodCompression(this.method);
+                CompletableFuture<ResponseMessage> response;
+                if (this.state == SEND_PARAMETERS_STATE)
+                {
+                    response = transport.sendParametersAsync(mtData, this.requestId, timeLeftForProcessing,
+                            methodResolver.getServiceClass().getName(), methodResolver.getMangledMethodName(this.method),
+                            this.args, this.method, compress);
+                }
+                else
+                {
+                    response = transport.requestResendAsync(mtData, this.requestId, timeLeftForProcessing, this.args, this.method, compress);
+                }
+                response.whenComplete(this::received);
+            }
+            catch (Throwable t)
+            {
+                this.result.completeExceptionally(t);
+            }
+        }
+
+        private void received(ResponseMessage responseMessage, Throwable failure)
+        {
+            try
+            {
+                this.handle(responseMessage, AsyncSupport.unwrap(failure));
+            }
+            catch (Throwable t)
+            {
+                this.result.completeExceptionally(t);
+            }
+        }
+
+        private void handle(ResponseMessage responseMessage, Throwable failure)
+        {
+            boolean wait = true;
+            if (failure == null)
+            {
+                this.state = RECEIVE_RESULT_STATE;
+                int code = responseMessage.getTransportStatusCode();
+                if (code != ResponseMessage.SERVER_OK)
+                {
+                    try
+                    {
+                        throwServerError(code, responseMessage.getTransportError(), this.method.getName(), mtData.toString());
+                    }
+                    catch (JrpipRuntimeException e)
+                    {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure instanceof SocketTimeoutException)
+            {
+                LOGGER.debug("Socket timeout reached for JRPIP invocation", failure);
+                throw new JrpipTimeoutException("Remote method " + this.method.getName() + " timed out." + mtData.toString(), failure);
+            }
+            else if (failure instanceof SocketException)
+            {
+                String message = failure.getMessage();
+                if (message.contains("reset") || message.contains("peer") || message.contains("abort"))
+                {
+                    wait = false;
+                }
+            }
+            else if (failure instanceof NotSerializableException)
+            {
+                throw new JrpipRuntimeException("Method arguments are not serializable!", failure);
+            }
+            else if (failure instanceof ClassNotFoundException)
+            {
+                throw new JrpipRuntimeException("Method call successfully completed but result class not found", failure);
+            }
+            else if (failure instanceof JrpipTimeoutException)
+            {
+                // no connection became available in time; nothing was sent
+                throw (JrpipTimeoutException) failure;
+            }
+            else if (failure instanceof Error)
+            {
+                throw (Error) failure;
+            }
+            else if (failure != null)
+            {
+                this.retries--;
+                this.lastException = failure;
+                LOGGER.debug("Exception in JRPIP invocation. Retries left {}", this.retries, failure);
+            }
+            else
+            {
+                Object returned = responseMessage.getResult();
+                switch (responseMessage.getResponseStatusCode())
+                {
+                    case StreamBasedInvocator.OK_STATUS:
+                        if (LOGGER.isDebugEnabled())
+                        {
+                            LOGGER.debug("finished asynchronous remote method normally {}.{}", this.method.getDeclaringClass(), this.method.getName());
+                        }
+                        this.result.complete(acceptResult(this.method, this.args, this.requestId, this.timeout,
+                                methodResolver.getMethodCompression(this.method), returned));
+                        return;
+                    case StreamBasedInvocator.FAULT_STATUS:
+                        ThankYouWriter.getINSTANCE().addRequest(transport, mtData, this.requestId);
+                        if (LOGGER.isDebugEnabled())
+                        {
+                            LOGGER.debug("finished asynchronous remote method {}.{} with exception {}", this.method.getDeclaringClass(), this.method.getName(), returned.getClass().getName());
+                        }
+                        this.result.completeExceptionally(returnedException(this.method, returned));
+                        return;
+                    case StreamBasedInvocator.REQUEST_NEVER_ARRVIED_STATUS:
+                        this.state = SEND_PARAMETERS_STATE;
+                        this.next();
+                        return;
+                    case StreamBasedInvocator.SERVER_BUSY_STATUS:
+                        this.state = SEND_PARAMETERS_STATE;
+                        if (this.busyResponses == 0)
+                        {
+                            this.busySince = System.currentTimeMillis();
+                        }
+                        long backoff = busyBackoff(this.busyResponses++, this.busySince, this.deadline, this.method);
+                        AsyncSupport.delay(Math.max(backoff, 0)).thenRun(this::next);
+                        return;
+                }
+            }
+            StreamedArgument upload = StreamedArgument.of(this.args);
+            if (upload != null && upload.isSent())
+            {
+                // the server may have the whole call
+                this.state = RECEIVE_RESULT_STATE;
+            }
+            if (this.retries <= 0)
+            {
+                if (this.lastException instanceof JrpipRuntimeException)
+                {
+                    throw (JrpipRuntimeException) this.lastException;
+                }
+                throw new JrpipRuntimeException("Could not invoke remote method " + this.method.getName() + " while accessing " + mtData.toString(), this.lastException);
+            }
+            if (wait)
+            {
+                long waitDeadline = serverWaitDeadline(this.state == RECEIVE_RESULT_STATE);
+                transport.waitForServerAsync(waitDeadline, mtData).whenComplete((ignored, t) ->
+                {
+                    if (t != null)
+                    {
+                        this.result.completeExceptionally(AsyncSupport.unwrap(t));
+                    }
+                    else
+                    {
+                        this.next();
+                    }
+                });
+            }
+            else
+            {
+                this.next();
+            }
+        }
+    }
 }
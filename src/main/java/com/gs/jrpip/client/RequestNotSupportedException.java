@@ -0,0 +1,35 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.client;
+
+/**
+ * Thrown before anything is sent when the transport or the server can't take a request in the form it was built,
+ * e.g. a batch or a call with stream arguments. The call is not retried; a caller that has a plainer form of the
+ * request can fall back to it.
+ */
+public class RequestNotSupportedException extends JrpipRuntimeException
+{
+    private static final long serialVersionUID = 1422796485843065260L;
+
+    /**
+     * Create the exception.
+     */
+    public RequestNotSupportedException(String message)
+    {
+        super(message);
+    }
+}
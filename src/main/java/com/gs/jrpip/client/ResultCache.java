@@ -0,0 +1,254 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.client;
+
+import com.gs.jrpip.Cacheable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of one {@link Cacheable} method, keyed on the serialized arguments. The entries are spread over
+ * segments, each a least recently used list with its own lock. Results are kept serialized, so every hit
+ * hands out its own copy.
+ */
+class ResultCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultCache.class);
+    private static final int SEGMENTS = 16;
+
+    private final Method method;
+    private final long ttlMillis;
+    private final Segment[] segments;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    ResultCache(Method method, Cacheable settings)
+    {
+        this.method = method;
+        this.ttlMillis = settings.ttlMillis();
+        int segmentCount = settings.maxEntries() >= SEGMENTS * 16 ? SEGMENTS : 1;
+        this.segments = new Segment[segmentCount];
+        int maxEntries = Math.max(1, (settings.maxEntries() + segmentCount - 1) / segmentCount);
+        long maxBytes = settings.maxBytes() == 0 ? Long.MAX_VALUE : Math.max(1, settings.maxBytes() / segmentCount);
+        for (int i = 0; i < segmentCount; i++)
+        {
+            this.segments[i] = new Segment(maxEntries, maxBytes);
+        }
+    }
+
+    /**
+     * @return the key for the arguments, or null if they can't be serialized (the call is then not cached)
+     */
+    Key keyFor(Object[] args)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try
+        {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            if (args != null)
+            {
+                for (Object arg : args)
+                {
+                    out.writeObject(arg);
+                }
+            }
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            LOGGER.debug("Not caching {}, arguments can't be serialized", this.method.getName(), e);
+            return null;
+        }
+        return new Key(bytes.toByteArray());
+    }
+
+    /**
+     * @return the serialized result, or null on a miss
+     */
+    byte[] get(Key key)
+    {
+        byte[] result = this.segmentFor(key).get(key, System.currentTimeMillis());
+        if (result == null)
+        {
+            this.misses.incrementAndGet();
+        }
+        else
+        {
+            this.hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    void put(Key key, Object result)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try
+        {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(result);
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            LOGGER.debug("Not caching result of {}", this.method.getName(), e);
+            return;
+        }
+        this.segmentFor(key).put(key, bytes.toByteArray(), System.currentTimeMillis() + this.ttlMillis);
+    }
+
+    static Object deserialize(byte[] result)
+    {
+        try
+        {
+            return new ObjectInputStream(new ByteArrayInputStream(result)).readObject();
+        }
+        catch (IOException | ClassNotFoundException e)
+        {
+            throw new JrpipRuntimeException("Could not deserialize result", e);
+        }
+    }
+
+    ResultCacheStats getStats()
+    {
+        int entries = 0;
+        long bytes = 0;
+        for (Segment segment : this.segments)
+        {
+            synchronized (segment)
+            {
+                entries += segment.entries.size();
+                bytes += segment.bytes;
+            }
+        }
+        return new ResultCacheStats(this.method.getDeclaringClass().getName() + "." + this.method.getName(),
+                this.hits.get(), this.misses.get(), this.evictions.get(), entries, bytes);
+    }
+
+    private Segment segmentFor(Key key)
+    {
+        return this.segments[(key.hashCode & 0x7fffffff) % this.segments.length];
+    }
+
+    static final class Key
+    {
+        private final byte[] bytes;
+        private final int hashCode;
+
+        private Key(byte[] bytes)
+        {
+            this.bytes = bytes;
+            int hash = Arrays.hashCode(bytes);
+            this.hashCode = hash ^ (hash >>> 16);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof Key && Arrays.equals(this.bytes, ((Key) obj).bytes);
+        }
+    }
+
+    private static final class Entry
+    {
+        private final byte[] result;
+        private final long expiry;
+
+        private Entry(byte[] result, long expiry)
+        {
+            this.result = result;
+            this.expiry = expiry;
+        }
+
+        private long weight(Key key)
+        {
+            return key.bytes.length + this.result.length;
+        }
+    }
+
+    private final class Segment
+    {
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxEntries;
+        private final long maxBytes;
+        private long bytes;
+
+        private Segment(int maxEntries, long maxBytes)
+        {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        private synchronized byte[] get(Key key, long now)
+        {
+            Entry entry = this.entries.get(key);
+            if (entry == null)
+            {
+                return null;
+            }
+            if (entry.expiry <= now)
+            {
+                this.entries.remove(key);
+                this.bytes -= entry.weight(key);
+                evictions.incrementAndGet();
+                return null;
+            }
+            return entry.result;
+        }
+
+        private synchronized void put(Key key, byte[] result, long expiry)
+        {
+            Entry entry = new Entry(result, expiry);
+            if (entry.weight(key) > this.maxBytes)
+            {
+                return;
+            }
+            Entry old = this.entries.put(key, entry);
+            if (old != null)
+            {
+                this.bytes -= old.weight(key);
+            }
+            this.bytes += entry.weight(key);
+            Iterator<Map.Entry<Key, Entry>> eldest = this.entries.entrySet().iterator();
+            while (this.entries.size() > this.maxEntries || this.bytes > this.maxBytes)
+            {
+                Map.Entry<Key, Entry> evicted = eldest.next();
+                this.bytes -= evicted.getValue().weight(evicted.getKey());
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+}
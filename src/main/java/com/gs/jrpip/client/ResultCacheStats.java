@@ -0,0 +1,86 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.client;
+
+/**
+ * A snapshot of the client side result cache of one method.
+ */
+public class ResultCacheStats
+{
+    private final String methodName;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int entries;
+    private final long bytes;
+
+    public ResultCacheStats(String methodName, long hits, long misses, long evictions, int entries, long bytes)
+    {
+        this.methodName = methodName;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    public String getMethodName()
+    {
+        return this.methodName;
+    }
+
+    /**
+     * @return calls answered from the cache, without a remote call
+     */
+    public long getHits()
+    {
+        return this.hits;
+    }
+
+    public long getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * @return entries removed to stay within the size limits or because they expired
+     */
+    public long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    public int getEntries()
+    {
+        return this.entries;
+    }
+
+    /**
+     * @return serialized size of the cached arguments and results
+     */
+    public long getBytes()
+    {
+        return this.bytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.methodName + ": hits " + this.hits + ", misses " + this.misses + ", evictions " + this.evictions
+                + ", entries " + this.entries + ", bytes " + this.bytes;
+    }
+}
@@ -2,9 +2,14 @@ package com.gs.jrpip.client;
 
 import com.gs.jrpip.FixedDeflaterOutputStream;
 import com.gs.jrpip.FixedInflaterInputStream;
+import com.gs.jrpip.MethodResolver;
 import com.gs.jrpip.RequestId;
+import com.gs.jrpip.codec.JrpipCodec;
+import com.gs.jrpip.codec.JrpipCodecs;
 import com.gs.jrpip.server.StreamBasedInvocator;
 import com.gs.jrpip.util.*;
+import com.gs.jrpip.util.stream.ClassDescriptorTableOutput;
+import com.gs.jrpip.util.stream.PrimitiveLayout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,24 +25,49 @@ import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SocketMessageTransport implements MessageTransport
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(SocketMessageTransport.class.getName());
     private static ConcurrentHashMap<String, Integer> serverInitialized = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<String, Integer> serverCapabilities = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<SocketMessageTransportData, SessionTicket> SESSION_TICKETS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, ServerInstance> SERVER_INSTANCES = new ConcurrentHashMap<>();
+    public static final String MAX_CONNECTIONS_PER_SERVER = "jrpip.socket.maxConnectionsPerServer";
+    public static final String BORROW_TIMEOUT = "jrpip.socket.borrowTimeout";
+    public static final String MIN_IDLE_CONNECTIONS = "jrpip.socket.minIdleConnections";
+    public static final String REUSE_CLASS_DESCRIPTORS = "jrpip.socket.reuseClassDescriptors";
+    private static volatile int maxConnectionsPerServer = Integer.parseInt(System.getProperty(MAX_CONNECTIONS_PER_SERVER, "0"));
+    private static volatile long borrowTimeout = Long.parseLong(System.getProperty(BORROW_TIMEOUT, "30000"));
+    private static volatile int minIdleConnections = Integer.parseInt(System.getProperty(MIN_IDLE_CONNECTIONS, "0"));
+    private static volatile boolean reuseClassDescriptors = Boolean.parseBoolean(System.getProperty(REUSE_CLASS_DESCRIPTORS));
     private static final SocketPool SOCKET_POOL = new SocketPool();
     private static final int IDLE_CLOSER_PERIOD = 1000;
+    private static final ConcurrentHashMap<SocketMessageTransportData, MultiplexedConnection> MULTIPLEXED_CONNECTIONS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<SocketMessageTransportData, Object> MULTIPLEX_LOCKS = new ConcurrentHashMap<>();
 
     private final String username;
     private final byte[] token;
     private final boolean encrypt;
+    private boolean multiplexed;
 
     public SocketMessageTransport()
     {
@@ -65,6 +95,69 @@ public class SocketMessageTransport implements MessageTransport
         this.encrypt = encrypt;
     }
 
+    /**
+     * Share one connection per server between concurrent calls, if the server supports it.
+     * Calls to older servers, and encrypted calls, keep using a connection per call.
+     * @param multiplexed true to multiplex calls
+     */
+    public void setMultiplexed(boolean multiplexed)
+    {
+        this.multiplexed = multiplexed;
+    }
+
+    /**
+     * Limits the connections to each server (per user). Calls beyond that wait for a connection to be returned.
+     * Applies to servers first contacted after the call. Default: 0 (no limit), or the
+     * jrpip.socket.maxConnectionsPerServer system property.
+     */
+    public static void setMaxConnectionsPerServer(int maxConnections)
+    {
+        maxConnectionsPerServer = maxConnections;
+    }
+
+    /**
+     * How long a call waits for a connection when the server's connections are all in use. Default: 30000,
+     * or the jrpip.socket.borrowTimeout system property.
+     */
+    public static void setBorrowTimeout(long borrowTimeoutMillis)
+    {
+        borrowTimeout = borrowTimeoutMillis;
+    }
+
+    /**
+     * Keeps this many idle connections open to each server that was called before. Default: 0,
+     * or the jrpip.socket.minIdleConnections system property.
+     */
+    public static void setMinIdleConnections(int minIdle)
+    {
+        minIdleConnections = minIdle;
+    }
+
+    /**
+     * Sends the class descriptors of the arguments once per pooled connection instead of with every call, which
+     * shrinks calls with rich argument objects. Applies to connections opened after the call, to servers that
+     * support it. Multiplexed connections always send full descriptors. Default: false, or the
+     * jrpip.socket.reuseClassDescriptors system property.
+     */
+    public static void setReuseClassDescriptors(boolean reuse)
+    {
+        reuseClassDescriptors = reuse;
+    }
+
+    public static List<SocketPoolStats> getSocketPoolStats()
+    {
+        return SOCKET_POOL.getStats();
+    }
+
+    /**
+     * Opens connections to the server ahead of the first calls.
+     */
+    public void prewarm(String url, int connections) throws IOException
+    {
+        SocketMessageTransportData data = new SocketMessageTransportData(url, -1, this.username, this.token, this.encrypt, 0);
+        SOCKET_POOL.prewarm(data, connections);
+    }
+
     @Override
     public <T> InvocationHandler createInvocationHandler(Class<T> api, String url, int timeoutMillis, boolean disconnectedMode)
             throws MalformedURLException
@@ -135,7 +228,9 @@ public class SocketMessageTransport implements MessageTransport
     {
         if (socket != null)
         {
+            socket.returnThankYous();
             socket.forceClose();
+            SOCKET_POOL.putBackIntoPool(socket);
         }
     }
 
@@ -148,6 +243,11 @@ public class SocketMessageTransport implements MessageTransport
             socket = borrowSocket(url, timeoutMillis);
             return socket.fastFailPing(timeoutMillis) == 200;
         }
+        catch (AuthorizationFailedException e)
+        {
+            // the server answered the init of the connection
+            return true;
+        }
         catch(Throwable t)
         {
             forceCloseSocket(socket);
@@ -169,55 +269,78 @@ public class SocketMessageTransport implements MessageTransport
 
     private JrpipClientSocket borrowSocket(SocketMessageTransportData data) throws IOException
     {
+        if (this.multiplexed && !data.requiresEncryption())
+        {
+            MultiplexedConnection connection = getMultiplexedConnection(data);
+            if (connection.isMultiplexed())
+            {
+                return new MultiplexedCall(data, connection);
+            }
+        }
         return SOCKET_POOL.borrow(data);
     }
 
+    /**
+     * A multiplexed call buffers its request, so a call with a stream argument takes a connection of its own. Its
+     * resends do too, to get the result in the same layout.
+     */
+    private JrpipClientSocket borrowSocket(SocketMessageTransportData data, Method method) throws IOException
+    {
+        if (method != null && MethodResolver.hasStreamedArgument(method))
+        {
+            return SOCKET_POOL.borrow(data);
+        }
+        return borrowSocket(data);
+    }
+
+    private static MultiplexedConnection getMultiplexedConnection(SocketMessageTransportData data) throws IOException
+    {
+        MultiplexedConnection connection = MULTIPLEXED_CONNECTIONS.get(data);
+        if (connection != null && connection.isUsable())
+        {
+            return connection;
+        }
+        synchronized (MULTIPLEX_LOCKS.computeIfAbsent(data, (x) -> new Object()))
+        {
+            connection = MULTIPLEXED_CONNECTIONS.get(data);
+            if (connection == null || !connection.isUsable())
+            {
+                connection = MultiplexedConnection.connect(data);
+                MULTIPLEXED_CONNECTIONS.put(data, connection);
+            }
+            return connection;
+        }
+    }
+
     @Override
     public void waitForServer(long deadline, MessageTransportData d)
     {
         SocketMessageTransportData data = (SocketMessageTransportData) d;
+        // the server may come back as a different version
+        serverCapabilities.remove(data.getUrl());
         boolean noValidResponse = true;
         while (System.currentTimeMillis() < deadline && noValidResponse)
         {
             boolean wait = true;
-            JrpipClientSocket socket = null;
             try
             {
-                socket = borrowSocket(data);
                 int timeout = (int) Math.min(MessageTransport.PING_TIMEOUT, deadline - System.currentTimeMillis());
                 if (timeout == 0)
                 {
                     timeout = 1;
                 }
-                int code = socket.fastFailPing(timeout);
-
-                if (code == 200)
-                {
-                    noValidResponse = false;
-                }
-                else
-                {
-                    LOGGER.warn("Ping request to {} resulted in {}", data.getUrl(), code);
-                }
+                noValidResponse = !this.ping(data, timeout);
             }
             catch (SocketException se)
             {
-                forceCloseSocket(socket);
-                socket = null;
                 if (se.getMessage().contains("reset") || se.getMessage().contains("peer") || se.getMessage().contains("abort"))
                 {
                     wait = false;
                 }
             }
-            catch (Throwable t)
-            {
-                LOGGER.warn("could not ping server at {}", data.getUrl(), t);
-                forceCloseSocket(socket);
-                socket = null;
-            }
-            finally
+            catch (IOException e)
             {
-                SOCKET_POOL.putBackIntoPool(socket);
+                LOGGER.warn("could not ping server at {}", data.getUrl(), e);
             }
             try
             {
@@ -240,6 +363,69 @@ public class SocketMessageTransport implements MessageTransport
 
     }
 
+    @Override
+    public CompletableFuture<Void> waitForServerAsync(long deadline, MessageTransportData d)
+    {
+        SocketMessageTransportData data = (SocketMessageTransportData) d;
+        serverCapabilities.remove(data.getUrl());
+        return AsyncSupport.waitForServer((timeout) -> this.ping(data, timeout), deadline, data);
+    }
+
+    private boolean ping(SocketMessageTransportData data, int timeout) throws IOException
+    {
+        JrpipClientSocket socket = null;
+        try
+        {
+            socket = borrowSocket(data);
+            int code = socket.fastFailPing(timeout);
+            if (code == 200)
+            {
+                refreshCapabilities(socket, timeout);
+                return true;
+            }
+            LOGGER.warn("Ping request to {} resulted in {}", data.getUrl(), code);
+            return false;
+        }
+        catch (AuthorizationFailedException e)
+        {
+            // the server answered the init of the connection
+            return true;
+        }
+        catch (IOException e)
+        {
+            forceCloseSocket(socket);
+            socket = null;
+            throw e;
+        }
+        catch (Throwable t)
+        {
+            LOGGER.warn("could not ping server at {}", data.getUrl(), t);
+            forceCloseSocket(socket);
+            socket = null;
+            return false;
+        }
+        finally
+        {
+            SOCKET_POOL.putBackIntoPool(socket);
+        }
+    }
+
+    private static void refreshCapabilities(JrpipClientSocket socket, int timeout)
+    {
+        if (socket.isPooled())
+        {
+            try
+            {
+                socket.initRequest(timeout);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                LOGGER.debug("Could not refresh server capabilities", e);
+                socket.forceClose();
+            }
+        }
+    }
+
     @Override
     public ResponseMessage sendParameters(MessageTransportData d, RequestId requestId, int timeout,
             String serviceClass, String mangledMethodName, Object[] args, Method method, boolean compress)
@@ -249,8 +435,28 @@ public class SocketMessageTransport implements MessageTransport
         JrpipClientSocket socket = null;
         try
         {
-            socket = borrowSocket(data);
-            return socket.sendParameters(requestId, timeout, serviceClass, mangledMethodName, args, compress);
+            socket = borrowSocket(data, method);
+            if (StreamedArgument.of(args) != null && !serverSupports(data, StreamBasedInvocator.STREAMED_ARGUMENT_CAPABILITY))
+            {
+                throw new RequestNotSupportedException("The server at " + data.getUrl() + " does not accept stream arguments");
+            }
+            ResponseMessage response = socket.sendParameters(requestId, timeout, serviceClass, mangledMethodName, args, method, compress);
+            if (response.getResult() instanceof StreamedResult)
+            {
+                // the result returns the socket to the pool once it is read
+                socket = null;
+            }
+            return response;
+        }
+        catch (RequestNotSupportedException e)
+        {
+            throw e;
+        }
+        catch (AuthorizationFailedException e)
+        {
+            forceCloseSocket(socket);
+            socket = null;
+            return ResponseMessage.forTransportErrorCode(401, "Bad or missing credentials");
         }
         catch (Throwable t)
         {
@@ -269,13 +475,63 @@ public class SocketMessageTransport implements MessageTransport
     public ResponseMessage requestResend(MessageTransportData d, RequestId requestId, int timeout,
             Object[] args, Method method, boolean compress)
             throws ClassNotFoundException, IOException
+    {
+        SocketMessageTransportData data = (SocketMessageTransportData) d;
+        JrpipClientSocket socket = null;
+        try
+        {
+            socket = borrowSocket(data, method);
+            ResponseMessage response = socket.requestResend(requestId, timeout, method, compress);
+            if (response.getResult() instanceof StreamedResult)
+            {
+                socket = null;
+            }
+            return response;
+        }
+        catch (AuthorizationFailedException e)
+        {
+            forceCloseSocket(socket);
+            socket = null;
+            return ResponseMessage.forTransportErrorCode(401, "Bad or missing credentials");
+        }
+        catch (Throwable t)
+        {
+            forceCloseSocket(socket);
+            socket = null;
+            rethrowCnf(t);
+        }
+        finally
+        {
+            SOCKET_POOL.putBackIntoPool(socket);
+        }
+        return null; // will never get here!
+    }
+
+    @Override
+    public ResponseMessage sendBatch(MessageTransportData d, RequestId requestId, int timeout, String serviceClass,
+            List<String> mangledMethodNames, List<Object[]> args, boolean parallel, boolean compress)
+            throws ClassNotFoundException, IOException
     {
         SocketMessageTransportData data = (SocketMessageTransportData) d;
         JrpipClientSocket socket = null;
         try
         {
             socket = borrowSocket(data);
-            return socket.requestResend(requestId, timeout, compress);
+            if (!serverSupports(data, StreamBasedInvocator.BATCH_CAPABILITY))
+            {
+                throw new RequestNotSupportedException("The server at " + data.getUrl() + " does not accept batches");
+            }
+            return socket.sendBatch(requestId, timeout, serviceClass, mangledMethodNames, args, parallel, compress);
+        }
+        catch (RequestNotSupportedException e)
+        {
+            throw e;
+        }
+        catch (AuthorizationFailedException e)
+        {
+            forceCloseSocket(socket);
+            socket = null;
+            return ResponseMessage.forTransportErrorCode(401, "Bad or missing credentials");
         }
         catch (Throwable t)
         {
@@ -290,8 +546,55 @@ public class SocketMessageTransport implements MessageTransport
         return null; // will never get here!
     }
 
+    @Override
+    public CompletableFuture<ResponseMessage> sendParametersAsync(MessageTransportData d, RequestId requestId, int timeout,
+            String serviceClass, String mangledMethodName, Object[] args, Method method, boolean compress)
+    {
+        MultiplexedCall call = this.multiplexedCall((SocketMessageTransportData) d, method);
+        if (call == null)
+        {
+            return MessageTransport.super.sendParametersAsync(d, requestId, timeout, serviceClass, mangledMethodName, args, method, compress);
+        }
+        return call.sendParametersAsync(requestId, timeout, serviceClass, mangledMethodName, args, method, compress);
+    }
+
+    @Override
+    public CompletableFuture<ResponseMessage> requestResendAsync(MessageTransportData d, RequestId requestId, int timeout,
+            Object[] args, Method method, boolean compress)
+    {
+        MultiplexedCall call = this.multiplexedCall((SocketMessageTransportData) d, method);
+        if (call == null)
+        {
+            return MessageTransport.super.requestResendAsync(d, requestId, timeout, args, method, compress);
+        }
+        return call.requestResendAsync(requestId, timeout, method, compress);
+    }
+
+    /**
+     * @return a call on an already open multiplexed connection, or null if the call has to go through the
+     * blocking path (which also opens the connection, and sends calls with a stream argument)
+     */
+    private MultiplexedCall multiplexedCall(SocketMessageTransportData data, Method method)
+    {
+        if (this.multiplexed && !data.requiresEncryption() && (method == null || !MethodResolver.hasStreamedArgument(method)))
+        {
+            MultiplexedConnection connection = MULTIPLEXED_CONNECTIONS.get(data);
+            if (connection != null && connection.isMultiplexed() && connection.isUsable())
+            {
+                return new MultiplexedCall(data, connection);
+            }
+        }
+        return null;
+    }
+
     @Override
     public boolean sendThanks(Object key, List<ThankYouWriter.ThankYouRequest> requestList) throws IOException
+    {
+        return this.sendThanks(key, null, ThankYouWriter.ThankYouRequest.requestIds(requestList));
+    }
+
+    @Override
+    public boolean sendThanks(Object key, MessageTransportData d, List<RequestId> requestList) throws IOException
     {
         SocketMessageTransportData data = (SocketMessageTransportData) key;
         JrpipClientSocket socket = null;
@@ -362,6 +665,92 @@ public class SocketMessageTransport implements MessageTransport
         return (long) (Math.random() * 2000000000000L);
     }
 
+    /**
+     * Writes the body of an invoke or batch request, after the headers and inside any compression and encryption.
+     */
+    private interface InvocationWriter
+    {
+        void write(ObjectOutput out) throws IOException;
+    }
+
+    /**
+     * How the body of an invocation and its result are written: java serialization, a codec or the primitive layout.
+     * A streamed result is java serialized element by element.
+     */
+    private static final class CallFormat
+    {
+        private static final CallFormat SERIALIZED = new CallFormat(null, null, false, false);
+        private static final CallFormat STREAMED = new CallFormat(null, null, false, true);
+
+        private final JrpipCodec codec;
+        private final Class<?> primitiveResultType;
+        private final boolean rawBytes;
+        private final boolean streamed;
+
+        private CallFormat(JrpipCodec codec, Class<?> primitiveResultType, boolean rawBytes, boolean streamed)
+        {
+            this.codec = codec;
+            this.primitiveResultType = primitiveResultType;
+            this.rawBytes = rawBytes;
+            this.streamed = streamed;
+        }
+
+        public boolean isSerialized()
+        {
+            return this.codec == null && this.primitiveResultType == null;
+        }
+
+        public boolean isStreamed()
+        {
+            return this.streamed;
+        }
+
+        public JrpipCodec getCodec()
+        {
+            return this.codec;
+        }
+
+        /**
+         * Primitive calls are too small to gain from compression. Calls with raw bytes follow the method, so
+         * {@code @Compression(compress = false)} sends incompressible blobs as they are.
+         */
+        public boolean compresses(boolean compress)
+        {
+            return compress && (this.primitiveResultType == null || this.rawBytes);
+        }
+
+        public int getRequestOptions()
+        {
+            if (this.codec != null)
+            {
+                return StreamBasedInvocator.CODEC_OPTION;
+            }
+            if (this.streamed)
+            {
+                return StreamBasedInvocator.STREAMED_RESULT_OPTION;
+            }
+            return this.primitiveResultType == null ? 0 : StreamBasedInvocator.PRIMITIVE_OPTION;
+        }
+
+        public ObjectOutput createOutput(OutputStream out) throws IOException
+        {
+            return this.codec == null ? new PrimitiveLayout.Output(out) : this.codec.createOutput(out);
+        }
+
+        /**
+         * Exceptions are always java serialized.
+         */
+        public Object readResult(InputStream in, byte status) throws IOException, ClassNotFoundException
+        {
+            if (this.primitiveResultType != null && status == StreamBasedInvocator.OK_STATUS)
+            {
+                return new PrimitiveLayout.Input(in).readValue(this.primitiveResultType);
+            }
+            ObjectInput objectInput = this.codec == null ? new ObjectInputStream(in) : this.codec.createInput(in);
+            return objectInput.readObject();
+        }
+    }
+
     private static class JrpipClientSocket
     {
         private Socket socket;
@@ -374,23 +763,45 @@ public class SocketMessageTransport implements MessageTransport
         private boolean authenticated = false;
         private long proxyId = -1;
         private int serverShutdownTime;
+        private int capabilities;
+        private byte[] keyIv;
+        private boolean sendsOptions;
+        private List<RequestId> sentThankYous;
+        private boolean closeNoticed;
+        private Endpoint borrowedFrom;
+        private MethodIdTable methodIds;
+        private Map<String, Integer> codecIds;
+        private ClassDescriptorTableOutput classTable;
         private CipherOutputStream128 cos;
         private CipherInputStream128 cis;
 
         public JrpipClientSocket(SocketMessageTransportData data, Integer serverShutdownTime) throws IOException
         {
             this.data = data;
-            this.socket = new Socket();
-            this.socket.setKeepAlive(true);
-            this.socket.setTcpNoDelay(true);
-            this.socket.setSoLinger(true, 2);
-            this.socket.connect(new InetSocketAddress(data.getHost(), data.getPort()), (int) data.getTimeoutMillis());
+            if (data.isUnixDomain())
+            {
+                this.socket = new UnixDomainSocket(data.getHost());
+            }
+            else
+            {
+                this.socket = new Socket();
+                this.socket.setKeepAlive(true);
+                this.socket.setTcpNoDelay(true);
+                this.socket.setSoLinger(true, 2);
+                this.socket.connect(new InetSocketAddress(data.getHost(), data.getPort()), (int) data.getTimeoutMillis());
+            }
             this.socket.setSoTimeout(0);
             in = new BlockInputStream(this.socket.getInputStream());
             out = new BlockOutputStream(this.socket.getOutputStream());
             lastUsed = System.currentTimeMillis();
             this.serverShutdownTime = serverShutdownTime == null ? 0 : serverShutdownTime;
-            this.authGenerator = this.data.createAuthGenerator();
+        }
+
+        protected JrpipClientSocket(SocketMessageTransportData data, int serverShutdownTime, boolean authenticated)
+        {
+            this.data = data;
+            this.serverShutdownTime = serverShutdownTime;
+            this.authenticated = authenticated;
         }
 
         public SocketMessageTransportData getData()
@@ -398,34 +809,163 @@ public class SocketMessageTransport implements MessageTransport
             return data;
         }
 
+        public boolean isPooled()
+        {
+            return true;
+        }
+
         public boolean isClosed()
         {
-            closeIfTimedOut();
+            return this.isClosed(System.currentTimeMillis());
+        }
+
+        public boolean isClosed(long now)
+        {
+            closeIfTimedOut(now);
             return this.socket == null;
         }
 
         public void closeIfTimedOut()
+        {
+            this.closeIfTimedOut(System.currentTimeMillis());
+        }
+
+        public void closeIfTimedOut(long now)
         {
             if (socket == null)
             {
                 return;
             }
-            if (System.currentTimeMillis() > lastUsed + this.serverShutdownTime - 250)
+            if (this.isTimedOut(now))
             {
                 quietlyClose(socket);
                 socket = null;
             }
         }
 
-        public int fastFailPing(int timeout) throws IOException
+        public boolean isTimedOut(long now)
+        {
+            return this.closeNoticed || now > lastUsed + this.serverShutdownTime - 250;
+        }
+
+        protected OutputStream startRequest(int timeout) throws IOException
         {
             this.socket.setSoTimeout(timeout);
             this.out.beginConversation();
-            this.out.write(StreamBasedInvocator.PING_REQUEST);
-            this.out.endConversation();
+            return this.out;
+        }
+
+        protected InputStream startResponse() throws IOException
+        {
+            this.out.endConversation();
             this.in.beginConversation();
-            byte ping = this.in.readByte();
+            return this.in;
+        }
+
+        protected void endResponse() throws IOException
+        {
             this.in.endConversation();
+        }
+
+        private void writeRequestType(OutputStream out, byte type) throws IOException
+        {
+            this.writeRequestType(out, type, 0);
+        }
+
+        /**
+         * Writes the request type, followed by the request options if the server understands them.
+         */
+        private void writeRequestType(OutputStream out, byte type, int requestOptions) throws IOException
+        {
+            this.sendsOptions = requestOptions != 0 || serverSupports(this.data, StreamBasedInvocator.CLOSE_NOTICE_CAPABILITY);
+            if (this.sendsOptions)
+            {
+                out.write(StreamBasedInvocator.withOptions(type));
+                out.write(requestOptions);
+            }
+            else
+            {
+                out.write(type);
+            }
+        }
+
+        private void readResponseOptions(InputStream in) throws IOException
+        {
+            // the server has read the request, including any thank you notes
+            if (this.sentThankYous != null)
+            {
+                this.sentThankYous = null;
+                ThankYouWriter.getINSTANCE().requestsDelivered(this.data.createThankYouKey());
+            }
+            if (this.sendsOptions && (readByte(in) & StreamBasedInvocator.CLOSE_NOTICE) != 0)
+            {
+                this.closeNoticed();
+            }
+        }
+
+        /**
+         * The server is going away and closes this connection after the current response.
+         */
+        protected void closeNoticed()
+        {
+            this.closeNoticed = true;
+        }
+
+        /**
+         * Takes the thank you notes waiting for this server, so they go with the request instead of in a
+         * conversation of their own.
+         * @return the request options to send
+         */
+        private int takeThankYous(int requestOptions)
+        {
+            if (serverSupports(this.data, StreamBasedInvocator.THANK_YOU_OPTION_CAPABILITY))
+            {
+                this.sentThankYous = ThankYouWriter.getINSTANCE().takeRequests(this.data.createThankYouKey());
+                if (this.sentThankYous != null)
+                {
+                    return requestOptions | StreamBasedInvocator.THANK_YOU_OPTION;
+                }
+            }
+            return requestOptions;
+        }
+
+        private void writeThankYous(OutputStream out) throws IOException
+        {
+            if (this.sentThankYous != null)
+            {
+                DataOutputStream dos = new DataOutputStream(out);
+                dos.writeInt(this.sentThankYous.size());
+                for (RequestId requestId : this.sentThankYous)
+                {
+                    dos.writeInt(requestId.getClientIp());
+                    dos.writeLong(requestId.getProxyId());
+                    dos.writeInt(requestId.getTransactionId());
+                }
+            }
+        }
+
+        /**
+         * The request failed before the server answered; the thank you notes it carried are sent again later.
+         */
+        public void returnThankYous()
+        {
+            List<RequestId> thankYous = this.sentThankYous;
+            if (thankYous != null)
+            {
+                this.sentThankYous = null;
+                ThankYouWriter.getINSTANCE().readdList(this.data.createThankYouKey(), thankYous);
+            }
+        }
+
+        public int fastFailPing(int timeout) throws IOException
+        {
+            OutputStream out = this.startRequest(timeout);
+            this.writeRequestType(out, StreamBasedInvocator.PING_REQUEST, this.takeThankYous(0));
+            this.writeThankYous(out);
+            InputStream in = this.startResponse();
+            this.readResponseOptions(in);
+            byte ping = readByte(in);
+            this.endResponse();
             if (ping != StreamBasedInvocator.PING_REQUEST)
             {
                 return 400;
@@ -435,15 +975,56 @@ public class SocketMessageTransport implements MessageTransport
         }
 
         public long initRequest(int timeout) throws IOException
+        {
+            int requestedCapabilities = StreamBasedInvocator.CLOSE_NOTICE_CAPABILITY | StreamBasedInvocator.THANK_YOU_OPTION_CAPABILITY
+                    | StreamBasedInvocator.BATCH_CAPABILITY | StreamBasedInvocator.METHOD_ID_CAPABILITY
+                    | StreamBasedInvocator.CODEC_CAPABILITY | StreamBasedInvocator.PRIMITIVE_CALL_CAPABILITY
+                    | StreamBasedInvocator.RAW_BYTES_CAPABILITY | StreamBasedInvocator.STREAMED_RESULT_CAPABILITY
+                    | StreamBasedInvocator.STREAMED_ARGUMENT_CAPABILITY | StreamBasedInvocator.SERVER_INSTANCE_CAPABILITY;
+            if (this.data.requiresAuth())
+            {
+                requestedCapabilities |= StreamBasedInvocator.SESSION_TICKET_CAPABILITY;
+            }
+            if (reuseClassDescriptors)
+            {
+                requestedCapabilities |= StreamBasedInvocator.CLASS_TABLE_CAPABILITY;
+            }
+            return this.initRequest(timeout, requestedCapabilities);
+        }
+
+        public long initRequest(int timeout, int requestedCapabilities) throws IOException
         {
             if (this.initialized)
             {
                 return this.proxyId;
             }
-            this.socket.setSoTimeout(timeout);
-            this.out.beginConversation();
+            SessionTicket ticket = null;
+            if (this.data.requiresAuth() && !this.authenticated)
+            {
+                ticket = this.resumableSession();
+            }
+            boolean needAuth = this.data.requiresAuth() && !this.authenticated && ticket == null;
+            ServerInstance known = null;
+            if ((requestedCapabilities & StreamBasedInvocator.SERVER_INSTANCE_CAPABILITY) != 0)
+            {
+                known = SERVER_INSTANCES.get(this.data.getUrl());
+                if (known != null && !known.hasTablesFor(requestedCapabilities))
+                {
+                    known = null;
+                }
+            }
+            int requestOptions = 0;
+            if (ticket != null)
+            {
+                requestOptions |= StreamBasedInvocator.RESUME_SESSION_OPTION;
+            }
+            if (known != null)
+            {
+                requestOptions |= StreamBasedInvocator.KNOWN_INSTANCE_OPTION;
+            }
+            OutputStream out = this.startRequest(timeout);
             byte type = StreamBasedInvocator.INIT_REQUEST;
-            if (this.data.requiresAuth())
+            if (needAuth)
             {
                 type = StreamBasedInvocator.withAuth(type);
             }
@@ -451,34 +1032,102 @@ public class SocketMessageTransport implements MessageTransport
             {
                 type = StreamBasedInvocator.withEncryption(type);
             }
-            this.out.write(type);
-            DataOutputStream dos = new DataOutputStream(this.out);
+            DataOutputStream dos = new DataOutputStream(out);
+            if (requestOptions != 0)
+            {
+                this.writeRequestType(out, type, requestOptions);
+            }
+            else
+            {
+                out.write(type);
+            }
+            if (known != null)
+            {
+                // a new connection to the same server instance only confirms it instead of fetching its tables again
+                dos.writeLong(known.vmId);
+                dos.writeLong(known.startTime);
+            }
+            if (ticket != null)
+            {
+                // a new connection of an authenticated client resumes the session instead of repeating the handshake
+                this.writeResumeHeader(dos, ticket);
+            }
             dos.writeUTF(this.data.getUrl());
-            if (this.data.requiresAuth())
+            if (needAuth)
             {
                 writeAuthHeader(dos);
             }
+            if (requestedCapabilities != 0)
+            {
+                dos.writeInt(requestedCapabilities);
+            }
             dos.flush();
-            out.endConversation();
-            in.beginConversation();
-            DataInputStream dis = new DataInputStream(this.in);
+            InputStream in = this.startResponse();
+            if (requestOptions != 0)
+            {
+                this.readResponseOptions(in);
+            }
+            DataInputStream dis = new DataInputStream(in);
             byte status = dis.readByte();
+            if (status == StreamBasedInvocator.SESSION_EXPIRED && ticket != null)
+            {
+                this.endResponse();
+                SESSION_TICKETS.remove(this.data, ticket);
+                return this.initRequest(timeout, requestedCapabilities);
+            }
             if (this.data.requiresAuth())
             {
                 if (status != StreamBasedInvocator.INIT_REQUEST)
                 {
-                    in.endConversation();
-                    throw new JrpipRuntimeException("Authorization failed!");
+                    this.endResponse();
+                    throw new AuthorizationFailedException();
                 }
             }
             if (status == StreamBasedInvocator.AUTH_FAILED)
             {
-                throw new JrpipRuntimeException("Authorization failed!");
+                this.endResponse();
+                throw new AuthorizationFailedException();
             }
 
             long proxyId = dis.readLong();
             this.serverShutdownTime = dis.readInt();
-            in.endConversation();
+            if (requestedCapabilities != 0)
+            {
+                this.capabilities = StreamBasedInvocator.readCapabilities(in);
+                serverCapabilities.put(this.data.getUrl(), this.capabilities);
+                if ((this.capabilities & StreamBasedInvocator.SESSION_TICKET_CAPABILITY) != 0)
+                {
+                    long ticketId = dis.readLong();
+                    int lifetime = dis.readInt();
+                    SESSION_TICKETS.put(this.data, new SessionTicket(ticketId, lifetime, this.getAuthGenerator(), this.keyIv));
+                }
+                long startTime = 0L;
+                boolean sameInstance = false;
+                if ((this.capabilities & StreamBasedInvocator.SERVER_INSTANCE_CAPABILITY) != 0)
+                {
+                    startTime = dis.readLong();
+                    // the server leaves out the tables it sent for the known instance
+                    sameInstance = known != null && known.isSame(proxyId, startTime);
+                }
+                if ((this.capabilities & StreamBasedInvocator.METHOD_ID_CAPABILITY) != 0)
+                {
+                    this.methodIds = sameInstance ? known.methodIds : MethodIdTable.read(dis);
+                }
+                if ((this.capabilities & StreamBasedInvocator.CLASS_TABLE_CAPABILITY) != 0)
+                {
+                    this.classTable = new ClassDescriptorTableOutput();
+                }
+                if ((this.capabilities & StreamBasedInvocator.CODEC_CAPABILITY) != 0)
+                {
+                    this.codecIds = sameInstance ? known.codecIds : readCodecIds(dis);
+                }
+                if ((this.capabilities & StreamBasedInvocator.SERVER_INSTANCE_CAPABILITY) != 0 && !sameInstance)
+                {
+                    SERVER_INSTANCES.put(this.data.getUrl(),
+                            new ServerInstance(proxyId, startTime, requestedCapabilities, this.methodIds, this.codecIds));
+                }
+            }
+            this.endResponse();
             this.initialized = true;
             if (this.data.requiresAuth())
             {
@@ -489,302 +1138,1170 @@ public class SocketMessageTransport implements MessageTransport
             return proxyId;
         }
 
+        private static Map<String, Integer> readCodecIds(DataInputStream dis) throws IOException
+        {
+            int count = dis.readInt();
+            Map<String, Integer> codecIds = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++)
+            {
+                codecIds.put(dis.readUTF(), i);
+            }
+            return codecIds;
+        }
+
+        /**
+         * Calls use the codec their method is annotated with if both sides know it, unless the method takes a stream,
+         * whose bytes always follow a serialized invocation. Other calls to methods with a
+         * streamed result, or with a primitive or raw signature, use the layout for them, which only depends on the
+         * server, so resends make the same choice.
+         */
+        private CallFormat formatFor(Method method)
+        {
+            if (method == null)
+            {
+                return CallFormat.SERIALIZED;
+            }
+            String codecName = JrpipCodecs.getCodecName(method);
+            if (codecName != null && this.codecIds != null && this.codecIds.containsKey(codecName)
+                    && !MethodResolver.hasStreamedArgument(method))
+            {
+                JrpipCodec codec = JrpipCodecs.get(codecName);
+                if (codec != null)
+                {
+                    return new CallFormat(codec, null, false, false);
+                }
+            }
+            if (this.streamsResults() && MethodResolver.hasStreamedResult(method)
+                    && serverSupports(this.data, StreamBasedInvocator.STREAMED_RESULT_CAPABILITY))
+            {
+                return CallFormat.STREAMED;
+            }
+            if (serverSupports(this.data, StreamBasedInvocator.PRIMITIVE_CALL_CAPABILITY))
+            {
+                if (MethodResolver.hasPrimitiveSignature(method))
+                {
+                    return new CallFormat(null, method.getReturnType(), false, false);
+                }
+                if (serverSupports(this.data, StreamBasedInvocator.RAW_BYTES_CAPABILITY) && MethodResolver.hasRawSignature(method))
+                {
+                    return new CallFormat(null, method.getReturnType(), true, false);
+                }
+            }
+            return CallFormat.SERIALIZED;
+        }
+
+        /**
+         * A streamed result keeps the connection until the caller is done with it.
+         */
+        protected boolean streamsResults()
+        {
+            return true;
+        }
+
+        private AuthGenerator getAuthGenerator()
+        {
+            if (this.authGenerator == null)
+            {
+                this.authGenerator = this.data.createAuthGenerator();
+            }
+            return this.authGenerator;
+        }
+
+        /**
+         * @return the session ticket to resume with, or null if the request has to carry the full auth header
+         */
+        private SessionTicket resumableSession()
+        {
+            SessionTicket ticket = SESSION_TICKETS.get(this.data);
+            return ticket != null && ticket.isUsable(this.data) ? ticket : null;
+        }
+
+        private void writeResumeHeader(DataOutputStream dos, SessionTicket ticket) throws IOException
+        {
+            long challenge = AuthGenerator.createChallenge();
+            dos.writeLong(ticket.id);
+            dos.writeLong(challenge);
+            dos.writeInt(ticket.authCode(challenge));
+            if (this.data.requiresEncryption() && this.cos == null)
+            {
+                this.initCiphers(AuthGenerator.deriveKeyIv(ticket.keyIv, challenge));
+            }
+        }
+
         private void writeAuthHeader(DataOutputStream dos) throws IOException
         {
             dos.writeUTF(this.data.getUsername());
             long challenge = AuthGenerator.createChallenge();
             dos.writeLong(challenge);
-            dos.writeInt(this.authGenerator.authCode(challenge));
+            dos.writeInt(this.getAuthGenerator().authCode(challenge));
             if (this.data.requiresEncryption())
             {
-                try
+                this.keyIv = this.getAuthGenerator().generateKeyIv(challenge);
+                this.initCiphers(this.keyIv);
+            }
+        }
+
+        private void initCiphers(byte[] keyIv) throws IOException
+        {
+            try
+            {
+                SecretKey key = new SecretKeySpec(keyIv, 0, 16, "AES");
+                IvParameterSpec iv = new IvParameterSpec(keyIv, 16, 16);
+                Cipher enc = Cipher.getInstance("AES/CBC/NoPadding");
+                enc.init(Cipher.ENCRYPT_MODE, key, iv);
+
+                Cipher dec = Cipher.getInstance("AES/CBC/NoPadding");
+                dec.init(Cipher.DECRYPT_MODE, key, iv);
+
+                this.cos = new CipherOutputStream128(null, enc);
+                this.cis = new CipherInputStream128(null, dec);
+            }
+            catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e)
+            {
+                throw new RuntimeException("Shouldn't get here", e);
+            }
+        }
+
+        public ResponseMessage sendParameters(RequestId requestId, int timeout, String serviceClass, String mangledMethodName,
+                Object[] args, Method method, boolean compress) throws IOException, ClassNotFoundException
+        {
+            CallFormat format = this.formatFor(method);
+            MethodIdTable.Service service = this.methodIds == null ? null : this.methodIds.getService(serviceClass);
+            int methodId = service == null ? -1 : service.getMethodId(mangledMethodName);
+            StreamedArgument upload = StreamedArgument.of(args);
+            if (methodId >= 0)
+            {
+                return this.sendInvocation(StreamBasedInvocator.INVOKE_BY_ID_REQUEST, timeout, compress, format,
+                        invocationById(requestId, format, service.getId(), methodId, args), upload);
+            }
+            return this.sendInvocation(StreamBasedInvocator.INVOKE_REQUEST, timeout, compress, format,
+                    invocation(requestId, format, serviceClass, mangledMethodName, args), upload);
+        }
+
+        public ResponseMessage sendBatch(RequestId requestId, int timeout, String serviceClass, List<String> mangledMethodNames,
+                List<Object[]> args, boolean parallel, boolean compress) throws IOException, ClassNotFoundException
+        {
+            return this.sendInvocation(StreamBasedInvocator.BATCH_REQUEST, timeout, compress, CallFormat.SERIALIZED, (objectOut) ->
+            {
+                objectOut.writeObject(requestId);
+                objectOut.writeObject(serviceClass);
+                objectOut.writeBoolean(parallel);
+                objectOut.writeInt(mangledMethodNames.size());
+                for (int i = 0; i < mangledMethodNames.size(); i++)
+                {
+                    writeCall(objectOut, mangledMethodNames.get(i), args.get(i));
+                }
+            }, null);
+        }
+
+        private ResponseMessage sendInvocation(byte requestType, int timeout, boolean compress, CallFormat format,
+                InvocationWriter invocation, StreamedArgument upload) throws IOException, ClassNotFoundException
+        {
+            compress = format.compresses(compress);
+            SessionTicket ticket = null;
+            if (this.data.requiresAuth() && !this.authenticated && upload == null)
+            {
+                // a streamed argument can't be sent again after an expired ticket, so its call carries the full auth header
+                ticket = this.resumableSession();
+            }
+            boolean needAuth = this.data.requiresAuth() && !this.authenticated && ticket == null;
+            byte type = compress ? StreamBasedInvocator.withCompression(requestType) : requestType;
+            if (this.data.requiresEncryption())
+            {
+                type = StreamBasedInvocator.withEncryption(type);
+            }
+            if (needAuth)
+            {
+                type = StreamBasedInvocator.withAuth(type);
+            }
+            int requestOptions = format.getRequestOptions();
+            if (ticket != null)
+            {
+                requestOptions |= StreamBasedInvocator.RESUME_SESSION_OPTION;
+            }
+            OutputStream request = this.startRequest(timeout);
+            this.writeRequestType(request, type, this.takeThankYous(requestOptions));
+            this.writeThankYous(request);
+            this.writeCodecId(request, format.getCodec());
+            if (ticket != null)
+            {
+                writeResumeHeader(new DataOutputStream(request), ticket);
+            }
+            else if (needAuth)
+            {
+                writeAuthHeader(new DataOutputStream(request));
+            }
+            this.writeInvocation(request, compress, format, invocation, upload);
+            InputStream in = this.startResponse();
+            this.readResponseOptions(in);
+            byte status = readByte(in);
+            if (this.classTable != null)
+            {
+                if (status == StreamBasedInvocator.SESSION_EXPIRED || status == StreamBasedInvocator.AUTH_FAILED
+                        || status == StreamBasedInvocator.REQUEST_TOO_LARGE)
+                {
+                    this.classTable.rollback();
+                }
+                else
                 {
-                    byte[] keyIv = this.authGenerator.generateKeyIv(challenge);
-                    SecretKey key = new SecretKeySpec(keyIv, 0, 16, "AES");
-                    IvParameterSpec iv = new IvParameterSpec(keyIv, 16, 16);
-                    Cipher enc = Cipher.getInstance("AES/CBC/NoPadding");
-                    enc.init(Cipher.ENCRYPT_MODE, key, iv);
+                    this.classTable.commit();
+                }
+            }
+            Object returned = null;
+            if (status == StreamBasedInvocator.SESSION_EXPIRED)
+            {
+                this.endResponse();
+                SESSION_TICKETS.remove(this.data, ticket);
+                if (upload != null && upload.isSent())
+                {
+                    throw new JrpipRuntimeException("The session expired after the streamed argument was sent");
+                }
+                return this.sendInvocation(requestType, timeout, compress, format, invocation, upload);
+            }
+            if (status == StreamBasedInvocator.AUTH_FAILED)
+            {
+                return ResponseMessage.forTransportErrorCode(401, "Bad or missing credentials");
+            }
+            if (status == StreamBasedInvocator.REQUEST_TOO_LARGE)
+            {
+                return ResponseMessage.forTransportErrorCode(413, "The request is larger than the server accepts");
+            }
+            else if (StreamBasedInvocator.hasResult(status))
+            {
+                returned = this.readResult(in, compress, format, status);
+            }
+            if (needAuth || ticket != null)
+            {
+                this.authenticated = true;
+            }
+            if (!(returned instanceof StreamedResult))
+            {
+                this.endResponse();
+                this.lastUsed = System.currentTimeMillis();
+            }
+            return ResponseMessage.forSuccess(status, returned);
+        }
+
+        private void writeCodecId(OutputStream request, JrpipCodec codec) throws IOException
+        {
+            if (codec != null)
+            {
+                request.write(this.codecIds.get(codec.getName()));
+            }
+        }
+
+        private static InvocationWriter invocation(RequestId requestId, CallFormat format, String serviceClass,
+                String mangledMethodName, Object[] args)
+        {
+            return (objectOut) ->
+            {
+                writeRequestId(objectOut, requestId, format);
+                objectOut.writeObject(serviceClass);
+                writeCall(objectOut, mangledMethodName, args);
+            };
+        }
+
+        private static InvocationWriter invocationById(RequestId requestId, CallFormat format, int serviceId, int methodId,
+                Object[] args)
+        {
+            return (objectOut) ->
+            {
+                writeRequestId(objectOut, requestId, format);
+                objectOut.writeInt(serviceId);
+                objectOut.writeInt(methodId);
+                writeArguments(objectOut, args);
+            };
+        }
+
+        private static void writeRequestId(ObjectOutput objectOut, RequestId requestId, CallFormat format) throws IOException
+        {
+            if (format.isSerialized())
+            {
+                objectOut.writeObject(requestId);
+            }
+            else
+            {
+                objectOut.writeInt(requestId.getClientIp());
+                objectOut.writeLong(requestId.getProxyId());
+                objectOut.writeInt(requestId.getTransactionId());
+            }
+        }
+
+        private static void writeCall(ObjectOutput objectOut, String mangledMethodName, Object[] args) throws IOException
+        {
+            objectOut.writeObject(mangledMethodName);
+            writeArguments(objectOut, args);
+        }
+
+        private static void writeArguments(ObjectOutput objectOut, Object[] args) throws IOException
+        {
+            if (args != null)
+            {
+                for (Object o : args)
+                {
+                    // the bytes of a stream follow the rest of the invocation
+                    if (!(o instanceof StreamedArgument))
+                    {
+                        objectOut.writeObject(o);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param upload the stream argument of the call, written after the invocation, or null
+         */
+        private void writeInvocation(OutputStream request, boolean compress, CallFormat format, InvocationWriter invocation,
+                StreamedArgument upload) throws IOException
+        {
+            OutputStream out = request;
+            FixedDeflaterOutputStream zipped = null;
+            CipherOutputStream128 cos = null;
+            try
+            {
+                if (this.data.requiresEncryption())
+                {
+                    cos = this.cos;
+                    cos.reset(out);
+                    out = cos;
+                }
+                if (compress)
+                {
+                    zipped = new FixedDeflaterOutputStream(out);
+                    out = zipped;
+                }
+                if (!format.isSerialized())
+                {
+                    ObjectOutput objectOut = format.createOutput(out);
+                    invocation.write(objectOut);
+                    objectOut.flush();
+                }
+                else if (this.classTable != null)
+                {
+                    ObjectOutputStream objectOut = this.classTable.startWriting();
+                    invocation.write(objectOut);
+                    this.classTable.finishWriting(objectOut, out);
+                    if (upload != null)
+                    {
+                        // past the buffered body, so the bytes go out as they are read
+                        upload.writeTo(objectOut);
+                        objectOut.flush();
+                    }
+                }
+                else
+                {
+                    ObjectOutput objectOut = new ObjectOutputStream(out);
+                    invocation.write(objectOut);
+                    if (upload != null)
+                    {
+                        upload.writeTo(objectOut);
+                    }
+                    objectOut.flush();
+                }
+            }
+            finally
+            {
+                if (zipped != null)
+                {
+                    zipped.finish();
+                }
+                if (cos != null)
+                {
+                    cos.finish();
+                }
+            }
+        }
+
+        /**
+         * @return the result, or a {@link StreamedResult} that ends the response and puts the socket back into
+         * the pool once it is read
+         */
+        private Object readResult(InputStream in, boolean compress, CallFormat format, byte status)
+                throws IOException, ClassNotFoundException
+        {
+            if (!format.isStreamed() || status != StreamBasedInvocator.OK_STATUS)
+            {
+                return this.getResult(in, compress, format, status);
+            }
+            if (this.data.requiresEncryption())
+            {
+                this.cis.reset(in);
+                in = this.cis;
+            }
+            FixedInflaterInputStream zipped = compress ? new FixedInflaterInputStream(in) : null;
+            StreamedResult result = StreamedResult.open(new ObjectInputStream(zipped == null ? in : zipped),
+                    (complete) -> this.releaseStreamedResult(zipped, complete));
+            if (result == null && zipped != null)
+            {
+                zipped.finish();
+            }
+            return result;
+        }
+
+        private void releaseStreamedResult(FixedInflaterInputStream zipped, boolean complete)
+        {
+            if (complete)
+            {
+                try
+                {
+                    if (zipped != null)
+                    {
+                        zipped.finish();
+                    }
+                    this.endResponse();
+                    this.lastUsed = System.currentTimeMillis();
+                }
+                catch (IOException e)
+                {
+                    LOGGER.debug("Could not finish a streamed result", e);
+                    complete = false;
+                }
+            }
+            if (!complete)
+            {
+                this.returnThankYous();
+                this.forceClose();
+            }
+            SOCKET_POOL.putBackIntoPool(this);
+        }
+
+        private Object getResult(InputStream in, boolean compress, CallFormat format, byte status)
+                throws IOException, ClassNotFoundException
+        {
+            if (this.data.requiresEncryption())
+            {
+                this.cis.reset(in);
+                in = this.cis;
+            }
+
+            FixedInflaterInputStream zipped = null;
+            try
+            {
+                if (compress)
+                {
+                    zipped = new FixedInflaterInputStream(in);
+                    in = zipped;
+                }
+                return format.readResult(in, status);
+            }
+            finally
+            {
+                if (zipped != null)
+                {
+                    zipped.finish();
+                }
+            }
+        }
+
+        /**
+         * @param method the method of the invocation, whose result the server resends in the format it was invoked with
+         */
+        public ResponseMessage requestResend(RequestId requestId, int timeout, Method method, boolean compress)
+                throws IOException, ClassNotFoundException
+        {
+            SessionTicket ticket = null;
+            if (this.data.requiresAuth() && !this.authenticated)
+            {
+                ticket = this.resumableSession();
+            }
+            boolean needAuth = this.data.requiresAuth() && !this.authenticated && ticket == null;
+            byte type = StreamBasedInvocator.RESEND_REQUEST;
+            if (needAuth)
+            {
+                type = StreamBasedInvocator.withAuth(type);
+            }
+            OutputStream out = this.startRequest(timeout);
+            this.writeRequestType(out, type, ticket == null ? 0 : StreamBasedInvocator.RESUME_SESSION_OPTION);
+            if (ticket != null)
+            {
+                writeResumeHeader(new DataOutputStream(out), ticket);
+            }
+            else if (needAuth)
+            {
+                writeAuthHeader(new DataOutputStream(out));
+            }
+            ObjectOutput objectOut = new ObjectOutputStream(out);
+            objectOut.writeObject(requestId);
+            objectOut.flush();
+            InputStream in = this.startResponse();
+            this.readResponseOptions(in);
+            byte status = readByte(in);
+            Object returned = null;
+            if (status == StreamBasedInvocator.SESSION_EXPIRED)
+            {
+                this.endResponse();
+                SESSION_TICKETS.remove(this.data, ticket);
+                return this.requestResend(requestId, timeout, method, compress);
+            }
+            if (status == StreamBasedInvocator.AUTH_FAILED)
+            {
+                return ResponseMessage.forTransportErrorCode(401, "Bad or missing credentials");
+            }
+            if (status == StreamBasedInvocator.REQUEST_TOO_LARGE)
+            {
+                return ResponseMessage.forTransportErrorCode(413, "The request is larger than the server accepts");
+            }
+            else if (StreamBasedInvocator.hasResult(status))
+            {
+                CallFormat format = this.formatFor(method);
+                returned = this.readResult(in, format.compresses(compress), format, status);
+            }
+            if (needAuth || ticket != null)
+            {
+                this.authenticated = true;
+            }
+            if (!(returned instanceof StreamedResult))
+            {
+                this.endResponse();
+                this.lastUsed = System.currentTimeMillis();
+            }
+            return ResponseMessage.forSuccess(status, returned);
+        }
+
+        public boolean sendThanks(List<RequestId> requestList)
+                throws IOException
+        {
+            OutputStream out = this.startRequest(0);
+            this.writeRequestType(out, StreamBasedInvocator.THANK_YOU_REQUEST);
+            FixedDeflaterOutputStream zipped = null;
+            try
+            {
+                zipped = new FixedDeflaterOutputStream(out);
+                ObjectOutput objectOut = new ObjectOutputStream(zipped);
+                objectOut.writeInt(requestList.size());
+                for (RequestId request : requestList)
+                {
+                    //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
+                    objectOut.writeObject(request);
+                }
+                objectOut.flush();
+            }
+            finally
+            {
+                if (zipped != null)
+                {
+                    zipped.finish();
+                }
+            }
+            InputStream in = this.startResponse();
+            this.readResponseOptions(in);
+            byte status = readByte(in);
+            if (status != StreamBasedInvocator.THANK_YOU_REQUEST)
+            {
+                throw new IOException("Incorrect return type "+status);
+            }
+            this.endResponse();
+            this.lastUsed = System.currentTimeMillis();
+            return true;
+        }
+
+        public void forceClose()
+        {
+            if (this.socket != null)
+            {
+                quietlyClose(socket);
+                this.socket = null;
+            }
+        }
+    }
+
+    /**
+     * A single call over a shared multiplexed connection. The request is buffered, sent in one piece and the
+     * response handed back by the connection's reader thread.
+     */
+    private static class MultiplexedCall extends JrpipClientSocket
+    {
+        private final MultiplexedConnection connection;
+        private ByteArrayOutputStream request;
+        private int timeout;
+
+        public MultiplexedCall(SocketMessageTransportData data, MultiplexedConnection connection)
+        {
+            super(data, connection.serverShutdownTime, data.requiresAuth());
+            this.connection = connection;
+            super.methodIds = connection.methodIds;
+            super.codecIds = connection.codecIds;
+        }
+
+        @Override
+        public boolean isPooled()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isClosed(long now)
+        {
+            return this.connection.closed;
+        }
+
+        @Override
+        public void closeIfTimedOut(long now)
+        {
+            // the connection is shared; it is closed by its reader
+        }
+
+        @Override
+        protected OutputStream startRequest(int timeout) throws IOException
+        {
+            this.timeout = timeout;
+            this.request = new ByteArrayOutputStream(256);
+            return this.request;
+        }
+
+        @Override
+        protected InputStream startResponse() throws IOException
+        {
+            byte[] response = this.connection.call(this.request, this.timeout);
+            this.request = null;
+            return new ByteArrayInputStream(response);
+        }
+
+        @Override
+        protected void endResponse() throws IOException
+        {
+        }
+
+        @Override
+        protected void closeNoticed()
+        {
+            this.connection.closeNoticed = true;
+        }
+
+        /**
+         * The response is read from the connection in one piece, so a streamed result is sent as a list.
+         */
+        @Override
+        protected boolean streamsResults()
+        {
+            return false;
+        }
+
+        @Override
+        public void forceClose()
+        {
+            // a failed call doesn't affect the other calls on the connection
+        }
+
+        /**
+         * Sends the invocation without waiting; the response is read on the async pool once the connection's
+         * reader hands it over. Multiplexed calls are never encrypted and always authenticated.
+         */
+        public CompletableFuture<ResponseMessage> sendParametersAsync(RequestId requestId, int timeout, String serviceClass,
+                String mangledMethodName, Object[] args, Method method, boolean compress)
+        {
+            CallFormat format = super.formatFor(method);
+            compress = format.compresses(compress);
+            try
+            {
+                MethodIdTable.Service service = super.methodIds == null ? null : super.methodIds.getService(serviceClass);
+                int methodId = service == null ? -1 : service.getMethodId(mangledMethodName);
+                byte type = methodId >= 0 ? StreamBasedInvocator.INVOKE_BY_ID_REQUEST : StreamBasedInvocator.INVOKE_REQUEST;
+                type = compress ? StreamBasedInvocator.withCompression(type) : type;
+                OutputStream request = this.startRequest(timeout);
+                super.writeRequestType(request, type, super.takeThankYous(format.getRequestOptions()));
+                super.writeThankYous(request);
+                super.writeCodecId(request, format.getCodec());
+                super.writeInvocation(request, compress, format, methodId >= 0
+                        ? JrpipClientSocket.invocationById(requestId, format, service.getId(), methodId, args)
+                        : JrpipClientSocket.invocation(requestId, format, serviceClass, mangledMethodName, args), null);
+            }
+            catch (IOException e)
+            {
+                this.returnThankYous();
+                CompletableFuture<ResponseMessage> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+            return this.callAsync(compress, format);
+        }
+
+        public CompletableFuture<ResponseMessage> requestResendAsync(RequestId requestId, int timeout, Method method,
+                boolean compress)
+        {
+            try
+            {
+                OutputStream request = this.startRequest(timeout);
+                super.writeRequestType(request, StreamBasedInvocator.RESEND_REQUEST, 0);
+                ObjectOutput objectOut = new ObjectOutputStream(request);
+                objectOut.writeObject(requestId);
+                objectOut.flush();
+            }
+            catch (IOException e)
+            {
+                CompletableFuture<ResponseMessage> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+            CallFormat format = super.formatFor(method);
+            return this.callAsync(format.compresses(compress), format);
+        }
+
+        private CompletableFuture<ResponseMessage> callAsync(boolean compress, CallFormat format)
+        {
+            ByteArrayOutputStream request = this.request;
+            this.request = null;
+            CompletableFuture<byte[]> response = this.connection.callAsync(request, this.timeout);
+            response.whenComplete((result, failure) ->
+            {
+                if (failure != null)
+                {
+                    this.returnThankYous();
+                }
+            });
+            return response.thenApplyAsync((result) ->
+            {
+                try
+                {
+                    return this.readResponse(new ByteArrayInputStream(result), compress, format);
+                }
+                catch (IOException | ClassNotFoundException e)
+                {
+                    throw new CompletionException(e);
+                }
+            }, AsyncSupport.getExecutor());
+        }
+
+        private ResponseMessage readResponse(InputStream in, boolean compress, CallFormat format) throws IOException, ClassNotFoundException
+        {
+            super.readResponseOptions(in);
+            byte status = readByte(in);
+            if (status == StreamBasedInvocator.AUTH_FAILED)
+            {
+                return ResponseMessage.forTransportErrorCode(401, "Bad or missing credentials");
+            }
+            if (status == StreamBasedInvocator.REQUEST_TOO_LARGE)
+            {
+                return ResponseMessage.forTransportErrorCode(413, "The request is larger than the server accepts");
+            }
+            Object returned = null;
+            if (StreamBasedInvocator.hasResult(status))
+            {
+                returned = super.getResult(in, compress, format, status);
+            }
+            return ResponseMessage.forSuccess(status, returned);
+        }
+    }
+
+    /**
+     * One connection per server shared by concurrent calls. Each conversation starts with a stream id; the
+     * reader thread matches responses, which can arrive in any order, to the waiting callers.
+     */
+    private static class MultiplexedConnection extends Thread
+    {
+        private static final long RETRY_REFUSED_AFTER = 60000L;
+
+        private final Socket socket;
+        private final BlockInputStream in;
+        private final BlockOutputStream out;
+        private final boolean multiplexed;
+        private final int serverShutdownTime;
+        private final MethodIdTable methodIds;
+        private final Map<String, Integer> codecIds;
+        private final long createdTime = System.currentTimeMillis();
+        private final AtomicInteger nextStreamId = new AtomicInteger();
+        private final ConcurrentHashMap<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean closed;
+        private volatile boolean closeNoticed;
+
+        private MultiplexedConnection(JrpipClientSocket handshake, boolean multiplexed)
+        {
+            super("JrpipMultiplexReader " + handshake.getData().getUrl());
+            this.setDaemon(true);
+            this.socket = handshake.socket;
+            this.in = handshake.in;
+            this.out = handshake.out;
+            this.serverShutdownTime = handshake.serverShutdownTime;
+            this.methodIds = handshake.methodIds;
+            this.codecIds = handshake.codecIds;
+            this.multiplexed = multiplexed;
+        }
+
+        public static MultiplexedConnection connect(SocketMessageTransportData data) throws IOException
+        {
+            JrpipClientSocket handshake = new JrpipClientSocket(data, serverInitialized.get(data.getUrl()));
+            try
+            {
+                handshake.initRequest((int) data.getTimeoutMillis(),
+                        StreamBasedInvocator.MULTIPLEX_CAPABILITY | StreamBasedInvocator.CLOSE_NOTICE_CAPABILITY
+                                | StreamBasedInvocator.THANK_YOU_OPTION_CAPABILITY | StreamBasedInvocator.BATCH_CAPABILITY
+                                | StreamBasedInvocator.METHOD_ID_CAPABILITY | StreamBasedInvocator.CODEC_CAPABILITY
+                                | StreamBasedInvocator.PRIMITIVE_CALL_CAPABILITY | StreamBasedInvocator.RAW_BYTES_CAPABILITY
+                                | StreamBasedInvocator.STREAMED_RESULT_CAPABILITY | StreamBasedInvocator.STREAMED_ARGUMENT_CAPABILITY
+                                | StreamBasedInvocator.SERVER_INSTANCE_CAPABILITY);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                handshake.forceClose();
+                throw e;
+            }
+            if ((handshake.capabilities & StreamBasedInvocator.MULTIPLEX_CAPABILITY) == 0)
+            {
+                LOGGER.info("Server at {} does not support multiplexing, using a connection per call", data.getUrl());
+                SOCKET_POOL.offer(handshake);
+                return new MultiplexedConnection(handshake, false);
+            }
+            handshake.socket.setSoTimeout(0);
+            MultiplexedConnection connection = new MultiplexedConnection(handshake, true);
+            connection.start();
+            return connection;
+        }
 
-                    Cipher dec = Cipher.getInstance("AES/CBC/NoPadding");
-                    dec.init(Cipher.DECRYPT_MODE, key, iv);
+        public boolean isMultiplexed()
+        {
+            return multiplexed;
+        }
 
-                    this.cos = new CipherOutputStream128(null, enc);
-                    this.cis = new CipherInputStream128(null, dec);
-                }
-                catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e)
-                {
-                    throw new RuntimeException("Shouldn't get here", e);
-                }
+        public boolean isUsable()
+        {
+            if (!this.multiplexed)
+            {
+                return System.currentTimeMillis() < this.createdTime + RETRY_REFUSED_AFTER;
+            }
+            if (!this.closed && this.pending.isEmpty() && System.currentTimeMillis() > this.lastUsed + this.serverShutdownTime - 250)
+            {
+                this.close(new IOException("idle connection closed"));
             }
+            return !this.closed && !this.closeNoticed;
         }
 
-        public ResponseMessage sendParameters(RequestId requestId, int timeout, String serviceClass, String mangledMethodName,
-                Object[] args, boolean compress) throws IOException, ClassNotFoundException
+        public byte[] call(ByteArrayOutputStream request, int timeout) throws IOException
         {
-            this.socket.setSoTimeout(timeout);
-            boolean needAuth = this.data.requiresAuth() && !this.authenticated;
-            byte type = StreamBasedInvocator.INVOKE_REQUEST;
-            type = compress ? StreamBasedInvocator.withCompression(type) : type;
-            if (this.data.requiresEncryption())
+            CompletableFuture<byte[]> response = this.callAsync(request, timeout);
+            try
             {
-                type = StreamBasedInvocator.withEncryption(type);
+                return response.get();
             }
-            if (needAuth)
+            catch (InterruptedException e)
             {
-                type = StreamBasedInvocator.withAuth(type);
+                InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting for response");
+                response.completeExceptionally(interrupted);
+                throw interrupted;
             }
-            this.out.beginConversation();
-            this.out.write(type);
-            if (needAuth)
+            catch (ExecutionException e)
             {
-                writeAuthHeader(new DataOutputStream(this.out));
+                if (e.getCause() instanceof IOException)
+                {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Multiplexed connection failed", e.getCause());
             }
-            OutputStream out = this.out;
-            FixedDeflaterOutputStream zipped = null;
-            CipherOutputStream128 cos = null;
-            try
+        }
+
+        /**
+         * Sends the request and returns without waiting for the response. A timeout completes the future with
+         * a SocketTimeoutException.
+         */
+        public CompletableFuture<byte[]> callAsync(ByteArrayOutputStream request, int timeout)
+        {
+            int streamId = this.nextStreamId.incrementAndGet();
+            CompletableFuture<byte[]> response = new CompletableFuture<>();
+            this.pending.put(streamId, response);
+            ScheduledFuture<?> timer = timeout == 0 ? null : AsyncSupport.schedule(
+                    () -> response.completeExceptionally(new SocketTimeoutException("Read timed out")), timeout);
+            response.whenComplete((result, failure) ->
             {
-                if (this.data.requiresEncryption())
+                this.pending.remove(streamId);
+                if (timer != null)
                 {
-                    cos = this.cos;
-                    cos.reset(out);
-                    out = cos;
+                    timer.cancel(false);
                 }
-                if (compress)
+            });
+            try
+            {
+                if (this.closed)
                 {
-                    zipped = new FixedDeflaterOutputStream(out);
-                    out = zipped;
+                    throw new IOException("connection closed");
                 }
-                ObjectOutput objectOut = new ObjectOutputStream(out);
-                objectOut.writeObject(requestId);
-                objectOut.writeObject(serviceClass);
-                objectOut.writeObject(mangledMethodName);
-                if (args != null)
+                synchronized (this.out)
                 {
-                    for (Object o : args)
-                    {
-                        objectOut.writeObject(o);
-                    }
+                    this.out.beginConversation();
+                    this.out.writeInt(streamId);
+                    request.writeTo(this.out);
+                    this.out.endConversation();
                 }
-                objectOut.flush();
+                this.lastUsed = System.currentTimeMillis();
             }
-            finally
+            catch (IOException e)
             {
-                if (zipped != null)
-                {
-                    zipped.finish();
-                }
-                if (cos != null)
-                {
-                    cos.finish();
-                }
+                this.close(e);
+                response.completeExceptionally(e);
             }
-            this.out.endConversation();
-            this.in.beginConversation();
-            byte status = this.in.readByte();
-            Object returned = null;
-            if (status == StreamBasedInvocator.AUTH_FAILED)
+            return response;
+        }
+
+        @Override
+        public void run()
+        {
+            try
             {
-                return ResponseMessage.forTransportErrorCode(401, "Bad or missing credentials");
+                byte[] buf = new byte[1024];
+                while (!this.closed)
+                {
+                    this.in.beginConversation();
+                    int streamId = new DataInputStream(this.in).readInt();
+                    ByteArrayOutputStream response = new ByteArrayOutputStream(256);
+                    int read;
+                    while ((read = this.in.read(buf, 0, buf.length)) >= 0)
+                    {
+                        response.write(buf, 0, read);
+                    }
+                    this.in.endConversation();
+                    this.lastUsed = System.currentTimeMillis();
+                    CompletableFuture<byte[]> waiting = this.pending.get(streamId);
+                    if (waiting != null)
+                    {
+                        waiting.complete(response.toByteArray());
+                    }
+                }
             }
-            else if (status != StreamBasedInvocator.REQUEST_NEVER_ARRVIED_STATUS)
+            catch (IOException e)
             {
-                returned = this.getResult(this.in, compress);
+                this.close(e);
             }
-            if (needAuth)
+            catch (Throwable t)
             {
-                this.authenticated = true;
+                LOGGER.error("Unexpected exception in multiplexed connection reader", t);
+                this.close(new IOException("Unexpected exception", t));
             }
-            in.endConversation();
-            this.lastUsed = System.currentTimeMillis();
-            return ResponseMessage.forSuccess(status, returned);
         }
 
-        private Object getResult(InputStream in, boolean compress)
-                throws IOException, ClassNotFoundException
+        private void close(IOException cause)
         {
-            if (this.data.requiresEncryption())
+            this.closed = true;
+            quietlyClose(this.socket);
+            for (CompletableFuture<byte[]> waiting : this.pending.values())
             {
-                this.cis.reset(in);
-                in = this.cis;
+                waiting.completeExceptionally(cause);
             }
+        }
+    }
 
-            FixedInflaterInputStream zipped = null;
+    /**
+     * Idle connections per server, reused most recently returned first. With a maximum, borrowers wait
+     * (first come, first served) for a connection to be returned, up to the borrow timeout.
+     */
+    private static class SocketPool
+    {
+        private ConcurrentHashMap<SocketMessageTransportData, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+        public SocketPool()
+        {
+            IdleConnectionCloser idleConnectionCloser = new IdleConnectionCloser(this);
+            idleConnectionCloser.start();
+        }
+
+        public JrpipClientSocket borrow(SocketMessageTransportData data) throws IOException
+        {
+            Endpoint endpoint = endpoints.computeIfAbsent(data, Endpoint::new);
+            endpoint.acquire();
+            JrpipClientSocket result = null;
             try
             {
-                if (compress)
+                long now = System.currentTimeMillis();
+                while ((result = endpoint.idle.pollLast()) != null && result.isClosed(now))
                 {
-                    zipped = new FixedInflaterInputStream(in);
-                    in = zipped;
+                    // timed out while idle
+                }
+                if (result == null)
+                {
+                    result = this.connect(data, endpoint);
                 }
-                ObjectInput objectInput = new ObjectInputStream(in);
-                return objectInput.readObject();
             }
             finally
             {
-                if (zipped != null)
+                if (result == null)
                 {
-                    zipped.finish();
+                    endpoint.release();
                 }
             }
+            result.borrowedFrom = endpoint;
+            return result;
         }
 
-        public ResponseMessage requestResend(RequestId requestId, int timeout, boolean compress)
-                throws IOException, ClassNotFoundException
+        /**
+         * Gives back a borrowed socket, which is kept for reuse unless it's closed.
+         */
+        public void putBackIntoPool(JrpipClientSocket socket)
         {
-            this.socket.setSoTimeout(timeout);
-            boolean needAuth = this.data.requiresAuth() && !this.initialized;
-            byte type = StreamBasedInvocator.RESEND_REQUEST;
-            if (needAuth)
+            if (socket == null)
             {
-                type = StreamBasedInvocator.withAuth(type);
+                return;
             }
-            this.out.beginConversation();
-            this.out.write(type);
-            if (needAuth)
+            Endpoint borrowedFrom = socket.borrowedFrom;
+            socket.borrowedFrom = null;
+            if (socket.isPooled() && !socket.isClosed())
             {
-                writeAuthHeader(new DataOutputStream(this.out));
+                endpoints.computeIfAbsent(socket.getData(), Endpoint::new).idle.addLast(socket);
             }
-            ObjectOutput objectOut = new ObjectOutputStream(out);
-            objectOut.writeObject(requestId);
-            objectOut.flush();
-            this.out.endConversation();
-            this.in.beginConversation();
-            byte status = this.in.readByte();
-            Object returned = null;
-            if (status == StreamBasedInvocator.AUTH_FAILED)
+            // idle first, so a waiting borrower finds the socket rather than opening another one
+            if (borrowedFrom != null)
             {
-                return ResponseMessage.forTransportErrorCode(401, "Bad or missing credentials");
+                borrowedFrom.release();
             }
-            else if (status != StreamBasedInvocator.REQUEST_NEVER_ARRVIED_STATUS)
+        }
+
+        /**
+         * Keeps a socket that was opened outside the pool, if the endpoint has room for it; closes it otherwise.
+         */
+        public void offer(JrpipClientSocket socket)
+        {
+            Endpoint endpoint = endpoints.computeIfAbsent(socket.getData(), Endpoint::new);
+            if (socket.isPooled() && !socket.isClosed() && endpoint.hasRoom())
             {
-                returned = this.getResult(this.in, compress);
+                endpoint.created.incrementAndGet();
+                endpoint.idle.addLast(socket);
+            }
+            else
+            {
+                socket.forceClose();
             }
-            this.in.endConversation();
-            this.lastUsed = System.currentTimeMillis();
-            return ResponseMessage.forSuccess(status, returned);
         }
 
-        public boolean sendThanks(List<ThankYouWriter.ThankYouRequest> requestList)
-                throws IOException
+        public void prewarm(SocketMessageTransportData data, int connections) throws IOException
         {
-            this.socket.setSoTimeout(0);
-            this.out.beginConversation();
-            this.out.write(StreamBasedInvocator.THANK_YOU_REQUEST);
-            OutputStream out = this.out;
-            FixedDeflaterOutputStream zipped = null;
+            Endpoint endpoint = endpoints.computeIfAbsent(data, Endpoint::new);
+            for (int i = 0; i < connections && endpoint.hasRoom(); i++)
+            {
+                endpoint.idle.addLast(this.connect(data, endpoint));
+            }
+        }
+
+        private JrpipClientSocket connect(SocketMessageTransportData data, Endpoint endpoint) throws IOException
+        {
+            JrpipClientSocket socket = new JrpipClientSocket(data, serverInitialized.get(data.getUrl()));
+            endpoint.created.incrementAndGet();
             try
             {
-                zipped = new FixedDeflaterOutputStream(out);
-                out = zipped;
-                ObjectOutput objectOut = new ObjectOutputStream(out);
-                objectOut.writeInt(requestList.size());
-                for (ThankYouWriter.ThankYouRequest request : requestList)
+                // sets up the class table of the connection, and only confirms the server instance whose method ids
+                // and codec ids the client already has
+                socket.initRequest((int) data.getTimeoutMillis());
+            }
+            catch (IOException | RuntimeException e)
+            {
+                socket.forceClose();
+                throw e;
+            }
+            serverInitialized.putIfAbsent(data.getUrl(), socket.serverShutdownTime);
+            return socket;
+        }
+
+        public void closeOldSockets()
+        {
+            long now = System.currentTimeMillis();
+            for (Endpoint endpoint : endpoints.values())
+            {
+                for (JrpipClientSocket socket : endpoint.idle)
                 {
-                    //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
-                    objectOut.writeObject(request.getRequestId());
+                    // only close what a borrower hasn't taken in the meantime
+                    if (socket.isTimedOut(now) && endpoint.idle.removeFirstOccurrence(socket))
+                    {
+                        socket.forceClose();
+                    }
                 }
-                objectOut.flush();
+                this.topUp(endpoint);
             }
-            finally
+        }
+
+        private void topUp(Endpoint endpoint)
+        {
+            int minIdle = minIdleConnections;
+            if (minIdle <= 0 || !serverInitialized.containsKey(endpoint.data.getUrl()))
             {
-                if (zipped != null)
+                return;
+            }
+            try
+            {
+                while (endpoint.idle.size() < minIdle && endpoint.hasRoom())
                 {
-                    zipped.finish();
+                    endpoint.idle.addLast(this.connect(endpoint.data, endpoint));
                 }
             }
-            this.out.endConversation();
-            this.in.beginConversation();
-            byte status = this.in.readByte();
-            if (status != StreamBasedInvocator.THANK_YOU_REQUEST)
+            catch (IOException | RuntimeException e)
             {
-                throw new IOException("Incorrect return type "+status);
+                LOGGER.debug("Could not open idle connection to {}", endpoint.data.getUrl(), e);
             }
-            this.in.endConversation();
-            this.lastUsed = System.currentTimeMillis();
-            return true;
         }
 
-        public void forceClose()
+        public void clear()
         {
-            if (this.socket != null)
+            for (Endpoint endpoint : endpoints.values())
             {
-                quietlyClose(socket);
-                this.socket = null;
+                JrpipClientSocket socket;
+                while ((socket = endpoint.idle.pollFirst()) != null)
+                {
+                    socket.forceClose();
+                }
+            }
+            endpoints.clear();
+        }
+
+        public List<SocketPoolStats> getStats()
+        {
+            List<SocketPoolStats> result = new ArrayList<>(endpoints.size());
+            for (Endpoint endpoint : endpoints.values())
+            {
+                result.add(new SocketPoolStats(endpoint.data.getUrl(), endpoint.data.getUsername(),
+                        endpoint.borrowed.get(), endpoint.idle.size(), endpoint.created.get(), endpoint.waiters.get()));
             }
+            return result;
         }
     }
 
-    private static class SocketPool
+    private static class Endpoint
     {
-        private ConcurrentHashMap<SocketMessageTransportData, List<JrpipClientSocket>> poolByUrl = new ConcurrentHashMap<>();
+        private final SocketMessageTransportData data;
+        private final ConcurrentLinkedDeque<JrpipClientSocket> idle = new ConcurrentLinkedDeque<>();
+        private final int maxConnections = maxConnectionsPerServer;
+        private final Semaphore permits = maxConnections > 0 ? new Semaphore(maxConnections, true) : null;
+        private final AtomicInteger borrowed = new AtomicInteger();
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicInteger waiters = new AtomicInteger();
 
-        public SocketPool()
+        private Endpoint(SocketMessageTransportData data)
         {
-            IdleConnectionCloser idleConnectionCloser = new IdleConnectionCloser(this);
-            idleConnectionCloser.start();
+            this.data = data;
         }
 
-        public JrpipClientSocket borrow(SocketMessageTransportData data) throws IOException
+        private void acquire()
         {
-            List<JrpipClientSocket> sockets = poolByUrl.computeIfAbsent(data, (x) -> new ArrayList<>());
-            JrpipClientSocket result = null;
-            while(result == null)
+            if (this.permits != null && !this.permits.tryAcquire())
             {
-                synchronized (sockets)
+                this.waiters.incrementAndGet();
+                try
                 {
-                    if (!sockets.isEmpty())
+                    if (!this.permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS))
                     {
-                        result = sockets.remove(sockets.size() - 1);
+                        throw new JrpipTimeoutException("Timed out after " + borrowTimeout
+                                + " ms waiting for one of " + this.maxConnections + " connections to " + this.data.getUrl());
                     }
                 }
-                if (result == null)
+                catch (InterruptedException e)
                 {
-                    result = new JrpipClientSocket(data, serverInitialized.get(data.getUrl()));
+                    Thread.currentThread().interrupt();
+                    throw new JrpipRuntimeException("Interrupted while waiting for a connection to " + this.data.getUrl(), e);
                 }
-                else
+                finally
                 {
-                    if (result.isClosed())
-                    {
-                        result = null;
-                    }
+                    this.waiters.decrementAndGet();
                 }
             }
-            return result;
+            this.borrowed.incrementAndGet();
         }
 
-        public void putBackIntoPool(JrpipClientSocket socket)
+        private void release()
         {
-            if (socket == null || socket.isClosed())
-            {
-                return;
-            }
-            List<JrpipClientSocket> sockets = poolByUrl.get(socket.getData());
-            synchronized (sockets)
+            this.borrowed.decrementAndGet();
+            if (this.permits != null)
             {
-                sockets.add(socket);
+                this.permits.release();
             }
         }
 
-        public void closeOldSockets()
+        private boolean hasRoom()
         {
-            ArrayList<SocketMessageTransportData> keys = new ArrayList<>(poolByUrl.keySet());
-            for(SocketMessageTransportData key: keys)
-            {
-                List<JrpipClientSocket> sockets = poolByUrl.get(key);
-                synchronized (sockets)
-                {
-                    for(int i=sockets.size() -1;i>=0;i--)
-                    {
-                        JrpipClientSocket socket = sockets.get(i);
-                        socket.closeIfTimedOut();
-                        if (socket.isClosed() && i == sockets.size() - 1)
-                        {
-                            sockets.remove(i);
-                        }
-                    }
-                }
-            }
+            return this.maxConnections <= 0 || this.borrowed.get() + this.idle.size() < this.maxConnections;
         }
     }
 
@@ -817,11 +2334,121 @@ public class SocketMessageTransport implements MessageTransport
         }
     }
 
+    private static boolean serverSupports(SocketMessageTransportData data, int capability)
+    {
+        Integer capabilities = serverCapabilities.get(data.getUrl());
+        return capabilities != null && (capabilities & capability) != 0;
+    }
+
+    /**
+     * The server turned down the credentials of a connection at its init, which new pooled connections run before
+     * their first request. Calls report it like a request that was turned down.
+     */
+    private static class AuthorizationFailedException extends JrpipRuntimeException
+    {
+        private static final long serialVersionUID = 4069292202051164935L;
+
+        private AuthorizationFailedException()
+        {
+            super("Authorization failed!");
+        }
+    }
+
+    /**
+     * A server issued ticket that lets new connections resume the authenticated (and possibly encrypted) session
+     * instead of repeating the handshake.
+     */
+    /**
+     * The method ids and codec names a server instance sent, which later connections to it confirm instead of
+     * fetching again. A restarted server has a new start time, and another server process a new vm id.
+     */
+    private static final class ServerInstance
+    {
+        private static final int TABLE_CAPABILITIES = StreamBasedInvocator.METHOD_ID_CAPABILITY
+                | StreamBasedInvocator.CODEC_CAPABILITY;
+
+        private final long vmId;
+        private final long startTime;
+        private final int requestedCapabilities;
+        private final MethodIdTable methodIds;
+        private final Map<String, Integer> codecIds;
+
+        private ServerInstance(long proxyId, long startTime, int requestedCapabilities, MethodIdTable methodIds,
+                Map<String, Integer> codecIds)
+        {
+            this.vmId = proxyId & ~0xffffffffL;
+            this.startTime = startTime;
+            this.requestedCapabilities = requestedCapabilities;
+            this.methodIds = methodIds;
+            this.codecIds = codecIds;
+        }
+
+        /**
+         * @return false if the init asks for a table the one that fetched these didn't
+         */
+        public boolean hasTablesFor(int requestedCapabilities)
+        {
+            return (requestedCapabilities & ~this.requestedCapabilities & TABLE_CAPABILITIES) == 0;
+        }
+
+        public boolean isSame(long proxyId, long startTime)
+        {
+            return (proxyId & ~0xffffffffL) == this.vmId && startTime == this.startTime;
+        }
+    }
+
+    private static class SessionTicket
+    {
+        private static final int EXPIRY_MARGIN = 1000;
+
+        private final long id;
+        private final long expires;
+        private final AuthGenerator authGenerator;
+        private final byte[] keyIv;
+
+        private SessionTicket(long id, int lifetime, AuthGenerator authGenerator, byte[] keyIv)
+        {
+            this.id = id;
+            this.expires = System.currentTimeMillis() + lifetime - EXPIRY_MARGIN;
+            this.authGenerator = authGenerator;
+            this.keyIv = keyIv;
+        }
+
+        public boolean isUsable(SocketMessageTransportData data)
+        {
+            return System.currentTimeMillis() < this.expires && (this.keyIv != null) == data.requiresEncryption();
+        }
+
+        public synchronized int authCode(long challenge)
+        {
+            return this.authGenerator.authCode(challenge, this.id);
+        }
+    }
+
+    private static byte readByte(InputStream in) throws IOException
+    {
+        int read = in.read();
+        if (read < 0)
+        {
+            throw new EOFException();
+        }
+        return (byte) read;
+    }
+
     /**
      * Useful for tests. Do not call in production.
      */
     public static void clearServerStatus()
     {
         serverInitialized.clear();
+        serverCapabilities.clear();
+        SESSION_TICKETS.clear();
+        SERVER_INSTANCES.clear();
+        SOCKET_POOL.clear();
+        for (MultiplexedConnection connection : MULTIPLEXED_CONNECTIONS.values())
+        {
+            connection.close(new IOException("client reset"));
+        }
+        MULTIPLEXED_CONNECTIONS.clear();
     }
 }
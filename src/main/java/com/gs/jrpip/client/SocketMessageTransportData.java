@@ -8,6 +8,8 @@ import java.util.Objects;
 
 public class SocketMessageTransportData implements MessageTransportData
 {
+    public static final String UNIX_SCHEME = "jpunix://";
+
     private final String url;
     private final String host;
     private final int port;
@@ -25,6 +27,18 @@ public class SocketMessageTransportData implements MessageTransportData
         this.token = token;
         this.encrypt = encrypt;
         this.timeoutMillis = timeoutMillis;
+        this.proxyId = proxyId;
+        if (url.startsWith(UNIX_SCHEME))
+        {
+            this.host = url.substring(UNIX_SCHEME.length());
+            if (this.host.isEmpty())
+            {
+                throw new MalformedURLException("jpunix url must contain a path "+url);
+            }
+            this.port = -1;
+            this.hashcode = computeHashCode(this.host, this.port, username);
+            return;
+        }
         if (!url.startsWith("jpfs://"))
         {
             throw new MalformedURLException("jpfs url must start with 'jpfs://' "+url);
@@ -45,13 +59,25 @@ public class SocketMessageTransportData implements MessageTransportData
         {
             throw new MalformedURLException("jpfs url does not have a valid port "+url);
         }
-        this.proxyId = proxyId;
-        int hashcode = this.host.hashCode() * 31 + this.port;
+        this.hashcode = computeHashCode(this.host, this.port, username);
+    }
+
+    private static int computeHashCode(String host, int port, String username)
+    {
+        int hashcode = host.hashCode() * 31 + port;
         if (username != null)
         {
             hashcode = hashcode * 31 + username.hashCode();
         }
-        this.hashcode = hashcode;
+        return hashcode;
+    }
+
+    /**
+     * @return true for jpunix:///path urls, which connect over a unix domain socket; the host is the socket path
+     */
+    public boolean isUnixDomain()
+    {
+        return this.port < 0;
     }
 
     public boolean requiresEncryption()
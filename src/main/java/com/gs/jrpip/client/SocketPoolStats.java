@@ -0,0 +1,86 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.client;
+
+/**
+ * A snapshot of the pooled connections to one server.
+ */
+public class SocketPoolStats
+{
+    private final String url;
+    private final String username;
+    private final int borrowed;
+    private final int idle;
+    private final int created;
+    private final int waiters;
+
+    public SocketPoolStats(String url, String username, int borrowed, int idle, int created, int waiters)
+    {
+        this.url = url;
+        this.username = username;
+        this.borrowed = borrowed;
+        this.idle = idle;
+        this.created = created;
+        this.waiters = waiters;
+    }
+
+    public String getUrl()
+    {
+        return this.url;
+    }
+
+    public String getUsername()
+    {
+        return this.username;
+    }
+
+    /**
+     * @return connections in use by calls
+     */
+    public int getBorrowed()
+    {
+        return this.borrowed;
+    }
+
+    public int getIdle()
+    {
+        return this.idle;
+    }
+
+    /**
+     * @return connections opened since the pool was created
+     */
+    public int getCreated()
+    {
+        return this.created;
+    }
+
+    /**
+     * @return calls waiting for a connection
+     */
+    public int getWaiters()
+    {
+        return this.waiters;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.url + (this.username == null ? "" : " (" + this.username + ")") + ": borrowed " + this.borrowed
+                + ", idle " + this.idle + ", created " + this.created + ", waiting " + this.waiters;
+    }
+}
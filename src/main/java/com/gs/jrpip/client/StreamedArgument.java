@@ -0,0 +1,79 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutput;
+
+import com.gs.jrpip.util.stream.StreamedArgumentLayout;
+
+/**
+ * The InputStream argument of a call, in place of the stream in the arguments handed to the transports. They
+ * write it after the other arguments. The bytes are read from the caller's stream as they are sent, so a call
+ * can only be sent once: if it fails after that, its result can be asked for, but the call can't be repeated.
+ */
+final class StreamedArgument
+{
+    private final InputStream data;
+    private volatile boolean sent;
+
+    private StreamedArgument(InputStream data)
+    {
+        this.data = data;
+    }
+
+    /**
+     * @return a copy of the arguments with the stream, which is the last one, wrapped
+     */
+    static Object[] wrap(Object[] args)
+    {
+        Object[] result = args.clone();
+        result[result.length - 1] = new StreamedArgument((InputStream) args[args.length - 1]);
+        return result;
+    }
+
+    /**
+     * @return the wrapped stream in the arguments, or null if there is none
+     */
+    static StreamedArgument of(Object[] args)
+    {
+        if (args != null && args.length > 0 && args[args.length - 1] instanceof StreamedArgument)
+        {
+            return (StreamedArgument) args[args.length - 1];
+        }
+        return null;
+    }
+
+    /**
+     * @return true once the transport has started to send the bytes
+     */
+    boolean isSent()
+    {
+        return this.sent;
+    }
+
+    void writeTo(ObjectOutput out) throws IOException
+    {
+        if (this.sent)
+        {
+            throw new IOException("The stream argument was already sent");
+        }
+        this.sent = true;
+        StreamedArgumentLayout.write(out, this.data);
+    }
+}
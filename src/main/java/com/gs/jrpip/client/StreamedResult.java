@@ -0,0 +1,323 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.client;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.gs.jrpip.JrpipCursor;
+import com.gs.jrpip.util.stream.StreamedResultLayout;
+
+/**
+ * The client side of a streamed result: elements are read from the connection as the caller iterates. The
+ * connection is released when the last element is read or the cursor is closed. If it fails part way, the result
+ * is asked for again and the elements already returned are skipped.
+ */
+class StreamedResult implements JrpipCursor<Object>
+{
+    private static final int RESEND_COUNT = 4;
+
+    interface Connection
+    {
+        /**
+         * @param complete the whole response was read, so the connection can be reused
+         */
+        void release(boolean complete);
+    }
+
+    interface Resender
+    {
+        /**
+         * @return the result sent again from its start
+         */
+        StreamedResult resend() throws Throwable;
+    }
+
+    private ObjectInputStream in;
+    private Connection connection;
+    private byte pending;
+    private boolean hasPending;
+    private Object next;
+    private boolean fetched;
+    private Throwable fault;
+    private boolean finished;
+    private long delivered;
+    private long skip;
+    private int resends = RESEND_COUNT;
+    private Runnable onFinish;
+    private Runnable onClose;
+    private boolean closedEarly;
+    private Resender resender;
+
+    private StreamedResult(ObjectInputStream in, Connection connection, byte pending)
+    {
+        this.in = in;
+        this.connection = connection;
+        this.pending = pending;
+        this.hasPending = true;
+    }
+
+    /**
+     * Reads the first marker of a result.
+     *
+     * @return null for a null result, whose response is then complete
+     */
+    static StreamedResult open(ObjectInputStream in, Connection connection) throws IOException
+    {
+        byte marker = in.readByte();
+        if (marker == StreamedResultLayout.NULL_RESULT)
+        {
+            return null;
+        }
+        return new StreamedResult(in, connection, marker);
+    }
+
+    /**
+     * @param onFinish run once, when the result was read to its end or failed
+     * @param onClose run instead of onFinish if the caller closed the result before its end
+     * @param resender asks for the result again when the connection fails
+     */
+    void attach(Runnable onFinish, Runnable onClose, Resender resender)
+    {
+        this.onFinish = onFinish;
+        this.onClose = onClose;
+        this.resender = resender;
+        if (this.finished)
+        {
+            this.runOnFinish();
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        this.fetch();
+        if (this.fault != null)
+        {
+            Throwable fault = this.fault;
+            this.fault = null;
+            if (fault instanceof RuntimeException)
+            {
+                throw (RuntimeException) fault;
+            }
+            if (fault instanceof Error)
+            {
+                throw (Error) fault;
+            }
+            throw new JrpipRuntimeException("Streamed result failed", fault);
+        }
+        return this.fetched;
+    }
+
+    @Override
+    public Object next()
+    {
+        if (!this.hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        Object result = this.next;
+        this.next = null;
+        this.fetched = false;
+        this.delivered++;
+        return result;
+    }
+
+    @Override
+    public void close()
+    {
+        if (!this.finished)
+        {
+            this.next = null;
+            this.fetched = false;
+            this.closedEarly = true;
+            this.finish(false);
+        }
+    }
+
+    private void fetch()
+    {
+        while (!this.fetched && !this.finished)
+        {
+            try
+            {
+                byte marker = this.pending;
+                if (this.hasPending)
+                {
+                    this.hasPending = false;
+                }
+                else
+                {
+                    marker = this.in.readByte();
+                }
+                this.accept(marker);
+            }
+            catch (IOException e)
+            {
+                this.resume(e);
+            }
+            catch (ClassNotFoundException e)
+            {
+                this.finish(false);
+                throw new JrpipRuntimeException("Streamed result element class not found", e);
+            }
+        }
+    }
+
+    private void accept(byte marker) throws IOException, ClassNotFoundException
+    {
+        switch (marker)
+        {
+            case StreamedResultLayout.ELEMENT:
+                this.next = this.in.readObject();
+                if (this.skip > 0)
+                {
+                    this.skip--;
+                    this.next = null;
+                }
+                else
+                {
+                    this.fetched = true;
+                }
+                break;
+            case StreamedResultLayout.END:
+                this.finish(this.skip == 0);
+                if (this.skip > 0)
+                {
+                    throw new JrpipRuntimeException("The resent result is shorter than the one that failed");
+                }
+                break;
+            case StreamedResultLayout.FAULT:
+                this.fault = (Throwable) this.in.readObject();
+                this.finish(true);
+                break;
+            default:
+                throw new StreamCorruptedException("Unknown streamed result marker " + marker);
+        }
+    }
+
+    /**
+     * Continues with the result sent again, after the elements that were already returned.
+     */
+    private void resume(IOException failure)
+    {
+        this.connection.release(false);
+        this.connection = null;
+        StreamedResult resent = null;
+        while (resent == null)
+        {
+            if (this.resender == null || this.resends-- <= 0)
+            {
+                this.finish(false);
+                throw new JrpipRuntimeException("Could not read the streamed result", failure);
+            }
+            try
+            {
+                resent = this.resender.resend();
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+            catch (RuntimeException | Error e)
+            {
+                this.finish(false);
+                throw e;
+            }
+            catch (Throwable t)
+            {
+                this.finish(false);
+                throw new JrpipRuntimeException("Could not read the streamed result", t);
+            }
+        }
+        this.in = resent.in;
+        this.connection = resent.connection;
+        this.pending = resent.pending;
+        this.hasPending = true;
+        this.skip = this.delivered;
+    }
+
+    private void finish(boolean complete)
+    {
+        this.finished = true;
+        if (this.connection != null)
+        {
+            Connection connection = this.connection;
+            this.connection = null;
+            connection.release(complete);
+        }
+        this.in = null;
+        this.runOnFinish();
+    }
+
+    private void runOnFinish()
+    {
+        if (this.onFinish != null)
+        {
+            Runnable onFinish = this.closedEarly ? this.onClose : this.onFinish;
+            this.onFinish = null;
+            this.onClose = null;
+            onFinish.run();
+        }
+    }
+
+    /**
+     * Turns a streamed result, or the list a transport that can't stream sent instead, into the return type of
+     * the method.
+     */
+    static Object adapt(Method method, Object result)
+    {
+        if (result == null)
+        {
+            return null;
+        }
+        JrpipCursor<?> cursor;
+        if (result instanceof JrpipCursor)
+        {
+            cursor = (JrpipCursor<?>) result;
+        }
+        else
+        {
+            cursor = JrpipCursor.of(((Collection<?>) result).iterator());
+        }
+        Class<?> type = method.getReturnType();
+        if (type == Stream.class)
+        {
+            if (result instanceof List)
+            {
+                return ((List<?>) result).stream();
+            }
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+                    .onClose(cursor::close);
+        }
+        if (type == Iterator.class && result instanceof List)
+        {
+            return ((List<?>) result).iterator();
+        }
+        return cursor;
+    }
+}
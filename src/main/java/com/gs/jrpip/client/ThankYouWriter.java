@@ -21,15 +21,28 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public final class ThankYouWriter implements Runnable
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(ThankYouWriter.class);
+    public static final String MAX_PENDING_PER_ENDPOINT = "jrpip.thankYou.maxPendingPerEndpoint";
     private static final ThankYouWriter INSTANCE;
     private static final int SLEEP_TIME = 500; // so multiple requests get coalesced
-    private boolean done = true;
+    private static volatile int maxPendingPerEndpoint = Integer.parseInt(System.getProperty(MAX_PENDING_PER_ENDPOINT, "10000"));
+    private volatile boolean done = true;
+    private volatile Thread thankYouThread;
+    private volatile boolean urgent;
+    private final AtomicBoolean idle = new AtomicBoolean();
+    private final AtomicLong droppedRequests = new AtomicLong();
 
-    private final Map<Object, List<ThankYouRequest>> requestMap = new HashMap<>();
+    private final ConcurrentHashMap<Object, Endpoint> endpoints = new ConcurrentHashMap<>();
 
     // singelton
     private ThankYouWriter()
@@ -46,22 +59,43 @@ public final class ThankYouWriter implements Runnable
         INSTANCE = new ThankYouWriter();
     }
 
-    private synchronized void startThankYouThread()
+    /**
+     * Notes beyond this many per endpoint push out the oldest ones; a server that is away for long would
+     * otherwise make them pile up. Dropped notes only mean the server keeps those results until they expire.
+     */
+    public static void setMaxPendingPerEndpoint(int maxPending)
+    {
+        maxPendingPerEndpoint = maxPending;
+    }
+
+    private void startThankYouThread()
     {
         if (this.done)
         {
-            this.done = false;
-            Thread thankYouThread = new Thread(INSTANCE);
-            thankYouThread.setName("JRPIP Thank You Thread");
-            thankYouThread.setDaemon(true);
-            thankYouThread.start();
+            synchronized (this)
+            {
+                if (this.done)
+                {
+                    this.done = false;
+                    Thread thankYouThread = new Thread(INSTANCE);
+                    thankYouThread.setName("JRPIP Thank You Thread");
+                    thankYouThread.setDaemon(true);
+                    this.thankYouThread = thankYouThread;
+                    thankYouThread.start();
+                }
+            }
         }
     }
 
     public synchronized void stopThankYouThread()
     {
         this.done = true;
-        this.requestMap.clear();
+        this.endpoints.clear();
+        Thread thankYouThread = this.thankYouThread;
+        if (thankYouThread != null)
+        {
+            LockSupport.unpark(thankYouThread);
+        }
     }
 
     public static Logger getLogger()
@@ -69,12 +103,56 @@ public final class ThankYouWriter implements Runnable
         return LOGGER;
     }
 
-    public synchronized int getPendingRequests()
+    /**
+     * @return the number of endpoints with notes waiting to be sent
+     */
+    public int getPendingRequests()
+    {
+        int result = 0;
+        for (Endpoint endpoint : this.endpoints.values())
+        {
+            if (endpoint.size.get() > 0)
+            {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of endpoints the writer holds on to, including those with nothing to send
+     */
+    int getEndpointCount()
     {
-        return this.requestMap.size();
+        return this.endpoints.size();
     }
 
-    public synchronized void addRequest(MessageTransport transport, MessageTransportData data, RequestId requestId)
+    /**
+     * @return the number of notes waiting to be sent, per endpoint
+     */
+    public Map<Object, Integer> getPendingRequestsPerEndpoint()
+    {
+        Map<Object, Integer> result = new HashMap<>();
+        for (Endpoint endpoint : this.endpoints.values())
+        {
+            int pending = endpoint.size.get();
+            if (pending > 0)
+            {
+                result.put(endpoint.key, pending);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of notes pushed out by newer ones because an endpoint had too many waiting
+     */
+    public long getDroppedRequests()
+    {
+        return this.droppedRequests.get();
+    }
+
+    public void addRequest(MessageTransport transport, MessageTransportData data, RequestId requestId)
     {
         this.startThankYouThread();
         if (LOGGER.isDebugEnabled())
@@ -83,52 +161,153 @@ public final class ThankYouWriter implements Runnable
         }
         requestId.setFinishedTime(System.currentTimeMillis());
 
-        Object key = data.createThankYouKey();
-        List<ThankYouRequest> list = this.requestMap.get(key);
-        if (list == null)
+        this.enqueue(data.createThankYouKey(), transport, data, requestId);
+        this.wakeUp();
+    }
+
+    private void enqueue(Object key, MessageTransport transport, MessageTransportData data, RequestId requestId)
+    {
+        Endpoint endpoint = this.endpoints.get(key);
+        if (endpoint == null)
+        {
+            endpoint = this.endpoints.computeIfAbsent(key, (k) -> new Endpoint(k, transport, data));
+        }
+        endpoint.add(requestId);
+        if (endpoint.removed)
+        {
+            this.moveToCurrent(endpoint);
+        }
+    }
+
+    /**
+     * An endpoint that was removed while notes were added to it hands them to the endpoint now in the map.
+     */
+    private void moveToCurrent(Endpoint removed)
+    {
+        List<RequestId> requestList = removed.drain();
+        if (requestList != null)
+        {
+            for (int i = 0; i < requestList.size(); i++)
+            {
+                this.enqueue(removed.key, removed.transport, removed.data, requestList.get(i));
+            }
+        }
+    }
+
+    /**
+     * Drops an endpoint with nothing left to send, so servers that are no longer called don't keep their
+     * transport reachable. Notes taken by a request and not yet delivered keep the endpoint.
+     */
+    private void removeIfDrained(Endpoint endpoint)
+    {
+        synchronized (endpoint)
+        {
+            if (endpoint.size.get() > 0 || endpoint.lent > 0)
+            {
+                return;
+            }
+            endpoint.removed = true;
+        }
+        this.endpoints.remove(endpoint.key, endpoint);
+        if (endpoint.size.get() > 0)
+        {
+            this.moveToCurrent(endpoint);
+        }
+    }
+
+    /**
+     * Sends the note without waiting for others to go with it. For a result the caller stopped reading part way,
+     * which the server keeps producing until it is thanked for.
+     */
+    public void addUrgentRequest(MessageTransport transport, MessageTransportData data, RequestId requestId)
+    {
+        this.urgent = true;
+        this.addRequest(transport, data, requestId);
+        Thread thankYouThread = this.thankYouThread;
+        if (thankYouThread != null)
+        {
+            LockSupport.unpark(thankYouThread);
+        }
+    }
+
+    private void wakeUp()
+    {
+        if (this.idle.get() && this.idle.compareAndSet(true, false))
+        {
+            LockSupport.unpark(this.thankYouThread);
+        }
+    }
+
+    /**
+     * Takes the pending notes for an endpoint so they can go with a request that is being sent there anyway.
+     * If that request fails, the notes are handed back with {@link #readdList}.
+     */
+    List<RequestId> takeRequests(Object key)
+    {
+        Endpoint endpoint = this.endpoints.get(key);
+        if (endpoint == null)
+        {
+            return null;
+        }
+        synchronized (endpoint)
         {
-            list = new ArrayList<>(6);
-            this.requestMap.put(key, list);
+            if (endpoint.removed)
+            {
+                return null;
+            }
+            List<RequestId> result = endpoint.drain();
+            if (result != null)
+            {
+                endpoint.lent++;
+            }
+            return result;
         }
-        list.add(new ThankYouRequest(transport, data, requestId));
-        this.notifyAll();
     }
 
-    private synchronized List<ThankYouRequest> removeRequestList(Object url)
+    /**
+     * The notes taken with {@link #takeRequests} reached the server.
+     */
+    void requestsDelivered(Object key)
     {
-        return this.requestMap.remove(url);
+        Endpoint endpoint = this.endpoints.get(key);
+        if (endpoint != null)
+        {
+            synchronized (endpoint)
+            {
+                if (endpoint.lent > 0)
+                {
+                    endpoint.lent--;
+                }
+            }
+        }
     }
 
     @Override
     public void run()
     {
-        ArrayList<Object> urlsToSend = new ArrayList<>(6);
         while (!this.done)
         {
             try
             {
-                synchronized (this)
+                if (!this.hasPendingRequests())
                 {
-                    if (this.requestMap.isEmpty())
+                    this.idle.set(true);
+                    if (!this.hasPendingRequests())
                     {
-                        this.wait();
+                        LockSupport.park(this);
                     }
+                    this.idle.set(false);
+                    continue;
                 }
-                Thread.sleep(SLEEP_TIME);
-                this.getUrlsToSend(urlsToSend);
-                for (int i = 0; i < urlsToSend.size(); i++)
+                this.coalesce();
+                for (Endpoint endpoint : this.endpoints.values())
                 {
-                    Object key = urlsToSend.get(i);
-                    if (!this.done)
+                    if (!this.done && endpoint.size.get() > 0)
                     {
-                        this.sendThankYouRequest(key);
+                        this.sendThankYouRequest(endpoint);
                     }
+                    this.removeIfDrained(endpoint);
                 }
-                urlsToSend.clear();
-            }
-            catch (InterruptedException e)
-            {
-                // ok, nothing to do
             }
             catch (Throwable t)
             {
@@ -138,11 +317,37 @@ public final class ThankYouWriter implements Runnable
         }
     }
 
-    void sendThankYouRequest(Object key)
+    /**
+     * Waits for more notes to send with the pending ones, unless one of them is urgent.
+     */
+    private void coalesce()
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SLEEP_TIME);
+        long remaining;
+        while (!this.urgent && !this.done && (remaining = deadline - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(this, remaining);
+        }
+        this.urgent = false;
+    }
+
+    private boolean hasPendingRequests()
+    {
+        for (Endpoint endpoint : this.endpoints.values())
+        {
+            if (endpoint.size.get() > 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendThankYouRequest(Endpoint endpoint)
     {
         boolean success = false;
-        List<ThankYouRequest> requestList = this.removeRequestList(key);
-        if (done || requestList == null || requestList.isEmpty())
+        List<RequestId> requestList = endpoint.drain();
+        if (done || requestList == null)
         {
             return;
         }
@@ -152,62 +357,110 @@ public final class ThankYouWriter implements Runnable
             {
                 LOGGER.debug("Sending thank you for {}", requestList.size());
             }
-            ThankYouRequest thankYouRequest = requestList.get(0);
-            success = thankYouRequest.transport.sendThanks(key, requestList);
+            success = endpoint.transport.sendThanks(endpoint.key, endpoint.data, requestList);
         }
         catch (Exception e)
         {
-            LOGGER.warn("Exception in JRPIP thank you note for URL: {} Retrying.", key.toString(), e);
+            LOGGER.warn("Exception in JRPIP thank you note for URL: {} Retrying.", endpoint.key.toString(), e);
         }
         if (!success)
         {
-            this.readdList(key, requestList);
+            this.readd(endpoint, requestList);
         }
     }
 
-    void readdList(Object urlPair, List<ThankYouRequest> requestList)
+    /**
+     * Hands back the notes taken with {@link #takeRequests} by a request that failed.
+     */
+    void readdList(Object key, List<RequestId> requestList)
     {
-        // technically requestList cannot be null, but in rear conditions, where JVM runs
-        // out of memory, it can be null. Here is an example:
-        if (!this.done && requestList != null)
+        Endpoint endpoint = this.endpoints.get(key);
+        if (endpoint != null)
         {
-            for (int i = 0; i < requestList.size(); )
+            this.readd(endpoint, requestList);
+            this.requestsDelivered(key);
+        }
+    }
+
+    private void readd(Endpoint endpoint, List<RequestId> requestList)
+    {
+        if (!this.done)
+        {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < requestList.size(); i++)
             {
-                RequestId requestId = requestList.get(i).requestId;
-                if (requestId.isExpired())
-                {
-                    requestList.remove(i);
-                }
-                else
+                RequestId requestId = requestList.get(i);
+                if (!requestId.isExpired(now))
                 {
-                    i++;
+                    this.enqueue(endpoint.key, endpoint.transport, endpoint.data, requestId);
                 }
             }
-            if (requestList.isEmpty())
+            this.wakeUp();
+        }
+    }
+
+    /**
+     * The notes waiting for one server. Callers add without locking; the notes are taken in batches by the
+     * thank you thread or by a request going to the same server.
+     */
+    private final class Endpoint
+    {
+        private final Object key;
+        private final MessageTransport transport;
+        private final MessageTransportData data;
+        private final ConcurrentLinkedQueue<RequestId> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private int lent; // requests carrying notes of this endpoint, guarded by the endpoint
+        private volatile boolean removed;
+
+        private Endpoint(Object key, MessageTransport transport, MessageTransportData data)
+        {
+            this.key = key;
+            this.transport = transport;
+            this.data = data;
+        }
+
+        private void add(RequestId requestId)
+        {
+            this.queue.offer(requestId);
+            if (this.size.incrementAndGet() > maxPendingPerEndpoint && this.queue.poll() != null)
             {
-                return;
+                this.size.decrementAndGet();
+                droppedRequests.incrementAndGet();
             }
-            synchronized (this)
+        }
+
+        /**
+         * @return the notes that haven't expired yet, or null if there are none
+         */
+        private List<RequestId> drain()
+        {
+            if (this.size.get() == 0)
             {
-                List<ThankYouRequest> list = this.requestMap.get(urlPair);
-                if (list == null)
-                {
-                    this.requestMap.put(urlPair, requestList);
-                    this.notifyAll();
-                }
-                else
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            List<RequestId> result = null;
+            RequestId requestId;
+            while ((requestId = this.queue.poll()) != null)
+            {
+                this.size.decrementAndGet();
+                if (!requestId.isExpired(now))
                 {
-                    list.addAll(requestList);
+                    if (result == null)
+                    {
+                        result = new ArrayList<>(Math.max(6, this.size.get() + 1));
+                    }
+                    result.add(requestId);
                 }
             }
+            return result;
         }
     }
 
-    synchronized void getUrlsToSend(List<Object> listToSend)
-    {
-        listToSend.addAll(this.requestMap.keySet());
-    }
-
+    /**
+     * A note as handed to {@link MessageTransport#sendThanks(Object, List)}.
+     */
     public static class ThankYouRequest
     {
         private final MessageTransport transport;
@@ -225,6 +478,15 @@ public final class ThankYouWriter implements Runnable
         {
             return requestId;
         }
-    }
 
+        static List<RequestId> requestIds(List<ThankYouRequest> requestList)
+        {
+            List<RequestId> result = new ArrayList<>(requestList.size());
+            for (int i = 0; i < requestList.size(); i++)
+            {
+                result.add(requestList.get(i).requestId);
+            }
+            return result;
+        }
+    }
 }
@@ -0,0 +1,246 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.client;
+
+import com.gs.jrpip.util.UnixDomainSockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A unix domain socket channel behind the {@link Socket} methods the client uses, including read timeouts,
+ * which channel streams don't support. Reads and writes may happen on different threads.
+ */
+class UnixDomainSocket extends Socket
+{
+    private final String path;
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final InputStream in = new ChannelInputStream();
+    private final OutputStream out = new ChannelOutputStream();
+    private volatile int soTimeout;
+    private volatile boolean closed;
+
+    UnixDomainSocket(String path) throws IOException
+    {
+        super((SocketImpl) null);
+        this.path = path;
+        this.channel = UnixDomainSockets.open(path);
+        try
+        {
+            this.channel.configureBlocking(false);
+            this.readSelector = Selector.open();
+            this.writeSelector = Selector.open();
+            this.channel.register(this.readSelector, SelectionKey.OP_READ);
+            this.channel.register(this.writeSelector, SelectionKey.OP_WRITE);
+        }
+        catch (IOException e)
+        {
+            this.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return this.out;
+    }
+
+    @Override
+    public void setSoTimeout(int timeout)
+    {
+        this.soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout()
+    {
+        return this.soTimeout;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on)
+    {
+    }
+
+    @Override
+    public void setKeepAlive(boolean on)
+    {
+    }
+
+    @Override
+    public void setSoLinger(boolean on, int linger)
+    {
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress()
+    {
+        try
+        {
+            return this.channel.getRemoteAddress();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return this.closed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        this.closed = true;
+        try
+        {
+            this.channel.close();
+        }
+        finally
+        {
+            if (this.readSelector != null)
+            {
+                this.readSelector.close();
+            }
+            if (this.writeSelector != null)
+            {
+                this.writeSelector.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "UnixDomainSocket[" + this.path + "]";
+    }
+
+    private void awaitReady(Selector selector, long timeout) throws IOException
+    {
+        try
+        {
+            selector.selectedKeys().clear();
+            selector.select(timeout);
+        }
+        catch (ClosedSelectorException e)
+        {
+            throw new SocketException("Socket closed");
+        }
+    }
+
+    private class ChannelInputStream extends InputStream
+    {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException
+        {
+            int read = this.read(this.single, 0, 1);
+            return read < 0 ? -1 : this.single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            long deadline = 0;
+            while (true)
+            {
+                int read = channel.read(buffer);
+                if (read != 0)
+                {
+                    return read;
+                }
+                long wait = 0;
+                int timeout = soTimeout;
+                if (timeout > 0)
+                {
+                    long now = System.currentTimeMillis();
+                    if (deadline == 0)
+                    {
+                        deadline = now + timeout;
+                    }
+                    wait = deadline - now;
+                    if (wait <= 0)
+                    {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                }
+                awaitReady(readSelector, wait);
+            }
+        }
+    }
+
+    private class ChannelOutputStream extends OutputStream
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining())
+            {
+                if (channel.write(buffer) == 0)
+                {
+                    awaitReady(writeSelector, 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,778 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A codec for the common value types: primitives and their boxes, strings, primitive arrays, Object and String
+ * arrays, ArrayList, LinkedList, HashMap, LinkedHashMap, enums and serializable records. Anything else, including
+ * subclasses of those collections, is written with java serialization inside the stream, so the codec never
+ * instantiates a class java serialization wouldn't. Collections and arrays keep their identity within a stream.
+ * <p/>
+ * Records are written by position, so both sides need the same record components.
+ */
+public class CompactCodec implements JrpipCodec
+{
+    public static final String NAME = "compact";
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte BYTE = 3;
+    private static final byte SHORT = 4;
+    private static final byte CHAR = 5;
+    private static final byte INT = 6;
+    private static final byte LONG = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DOUBLE = 9;
+    private static final byte STRING = 10;
+    private static final byte LONG_STRING = 11;
+    private static final byte BOOLEAN_ARRAY = 12;
+    private static final byte BYTE_ARRAY = 13;
+    private static final byte SHORT_ARRAY = 14;
+    private static final byte CHAR_ARRAY = 15;
+    private static final byte INT_ARRAY = 16;
+    private static final byte LONG_ARRAY = 17;
+    private static final byte FLOAT_ARRAY = 18;
+    private static final byte DOUBLE_ARRAY = 19;
+    private static final byte OBJECT_ARRAY = 20;
+    private static final byte STRING_ARRAY = 21;
+    private static final byte ARRAY_LIST = 22;
+    private static final byte LINKED_LIST = 23;
+    private static final byte HASH_MAP = 24;
+    private static final byte LINKED_HASH_MAP = 25;
+    private static final byte ENUM = 26;
+    private static final byte RECORD = 27;
+    private static final byte REFERENCE = 28;
+    private static final byte SERIALIZED = 29;
+
+    // writeUTF takes at most 65535 bytes, which holds any string of up to a third of that
+    private static final int MAX_UTF_LENGTH = 65535 / 3;
+    // collections read from the wire start no larger than this and grow as their elements arrive
+    private static final int MAX_INITIAL_CAPACITY = 1024;
+
+    private static final RecordTypes RECORD_TYPES = new RecordTypes();
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public ObjectOutput createOutput(OutputStream out)
+    {
+        return new CompactOutput(out);
+    }
+
+    @Override
+    public ObjectInput createInput(InputStream in)
+    {
+        return new CompactInput(in);
+    }
+
+    private static final class CompactOutput extends DataOutputStream implements ObjectOutput
+    {
+        private final IdentityHashMap<Object, Integer> handles = new IdentityHashMap<>();
+        private SerializedOutput serialized;
+
+        private CompactOutput(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void writeObject(Object obj) throws IOException
+        {
+            if (obj == null)
+            {
+                this.writeByte(NULL);
+                return;
+            }
+            Class<?> type = obj.getClass();
+            if (type == String.class)
+            {
+                this.writeString((String) obj);
+            }
+            else if (type == Integer.class)
+            {
+                this.writeByte(INT);
+                this.writeInt((Integer) obj);
+            }
+            else if (type == Long.class)
+            {
+                this.writeByte(LONG);
+                this.writeLong((Long) obj);
+            }
+            else if (type == Boolean.class)
+            {
+                this.writeByte((Boolean) obj ? TRUE : FALSE);
+            }
+            else if (type == Double.class)
+            {
+                this.writeByte(DOUBLE);
+                this.writeDouble((Double) obj);
+            }
+            else if (type == Byte.class)
+            {
+                this.writeByte(BYTE);
+                this.writeByte((Byte) obj);
+            }
+            else if (type == Short.class)
+            {
+                this.writeByte(SHORT);
+                this.writeShort((Short) obj);
+            }
+            else if (type == Character.class)
+            {
+                this.writeByte(CHAR);
+                this.writeChar((Character) obj);
+            }
+            else if (type == Float.class)
+            {
+                this.writeByte(FLOAT);
+                this.writeFloat((Float) obj);
+            }
+            else if (obj instanceof Enum)
+            {
+                this.writeByte(ENUM);
+                this.writeUTF(((Enum<?>) obj).getDeclaringClass().getName());
+                this.writeUTF(((Enum<?>) obj).name());
+            }
+            else if (!this.writeReference(obj))
+            {
+                this.writeSerialized(obj);
+            }
+        }
+
+        private void writeString(String value) throws IOException
+        {
+            if (value.length() <= MAX_UTF_LENGTH)
+            {
+                this.writeByte(STRING);
+                this.writeUTF(value);
+            }
+            else
+            {
+                this.writeByte(LONG_STRING);
+                this.writeInt(value.length());
+                this.writeChars(value);
+            }
+        }
+
+        /**
+         * @return false if the codec doesn't handle the type
+         */
+        private boolean writeReference(Object obj) throws IOException
+        {
+            Class<?> type = obj.getClass();
+            RecordType recordType = null;
+            if (!type.isArray() && type != ArrayList.class && type != LinkedList.class && type != HashMap.class
+                    && type != LinkedHashMap.class)
+            {
+                recordType = obj instanceof Serializable ? RECORD_TYPES.get(type) : null;
+                if (recordType == null)
+                {
+                    return false;
+                }
+            }
+            else if (type.isArray() && !type.getComponentType().isPrimitive() && type != Object[].class && type != String[].class)
+            {
+                return false;
+            }
+            Integer handle = this.handles.get(obj);
+            if (handle != null)
+            {
+                this.writeByte(REFERENCE);
+                this.writeInt(handle);
+                return true;
+            }
+            this.handles.put(obj, this.handles.size());
+            if (recordType != null)
+            {
+                this.writeRecord(recordType, obj);
+            }
+            else if (type.isArray())
+            {
+                this.writeArray(obj);
+            }
+            else if (obj instanceof List)
+            {
+                this.writeByte(type == ArrayList.class ? ARRAY_LIST : LINKED_LIST);
+                List<?> list = (List<?>) obj;
+                this.writeInt(list.size());
+                for (Object element : list)
+                {
+                    this.writeObject(element);
+                }
+            }
+            else
+            {
+                this.writeByte(type == HashMap.class ? HASH_MAP : LINKED_HASH_MAP);
+                Map<?, ?> map = (Map<?, ?>) obj;
+                this.writeInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet())
+                {
+                    this.writeObject(entry.getKey());
+                    this.writeObject(entry.getValue());
+                }
+            }
+            return true;
+        }
+
+        private void writeArray(Object array) throws IOException
+        {
+            Class<?> type = array.getClass();
+            if (type == byte[].class)
+            {
+                byte[] bytes = (byte[]) array;
+                this.writeByte(BYTE_ARRAY);
+                this.writeInt(bytes.length);
+                this.write(bytes);
+            }
+            else if (type == int[].class)
+            {
+                int[] ints = (int[]) array;
+                this.writeByte(INT_ARRAY);
+                this.writeInt(ints.length);
+                for (int value : ints)
+                {
+                    this.writeInt(value);
+                }
+            }
+            else if (type == long[].class)
+            {
+                long[] longs = (long[]) array;
+                this.writeByte(LONG_ARRAY);
+                this.writeInt(longs.length);
+                for (long value : longs)
+                {
+                    this.writeLong(value);
+                }
+            }
+            else if (type == double[].class)
+            {
+                double[] doubles = (double[]) array;
+                this.writeByte(DOUBLE_ARRAY);
+                this.writeInt(doubles.length);
+                for (double value : doubles)
+                {
+                    this.writeDouble(value);
+                }
+            }
+            else if (type == boolean[].class)
+            {
+                boolean[] booleans = (boolean[]) array;
+                this.writeByte(BOOLEAN_ARRAY);
+                this.writeInt(booleans.length);
+                for (boolean value : booleans)
+                {
+                    this.writeBoolean(value);
+                }
+            }
+            else if (type == short[].class)
+            {
+                short[] shorts = (short[]) array;
+                this.writeByte(SHORT_ARRAY);
+                this.writeInt(shorts.length);
+                for (short value : shorts)
+                {
+                    this.writeShort(value);
+                }
+            }
+            else if (type == char[].class)
+            {
+                char[] chars = (char[]) array;
+                this.writeByte(CHAR_ARRAY);
+                this.writeInt(chars.length);
+                for (char value : chars)
+                {
+                    this.writeChar(value);
+                }
+            }
+            else if (type == float[].class)
+            {
+                float[] floats = (float[]) array;
+                this.writeByte(FLOAT_ARRAY);
+                this.writeInt(floats.length);
+                for (float value : floats)
+                {
+                    this.writeFloat(value);
+                }
+            }
+            else
+            {
+                Object[] objects = (Object[]) array;
+                this.writeByte(type == String[].class ? STRING_ARRAY : OBJECT_ARRAY);
+                this.writeInt(objects.length);
+                for (Object value : objects)
+                {
+                    this.writeObject(value);
+                }
+            }
+        }
+
+        private void writeRecord(RecordType recordType, Object record) throws IOException
+        {
+            this.writeByte(RECORD);
+            this.writeUTF(record.getClass().getName());
+            Object[] values = recordType.getValues(record);
+            this.writeShort(values.length);
+            for (Object value : values)
+            {
+                this.writeObject(value);
+            }
+        }
+
+        private void writeSerialized(Object obj) throws IOException
+        {
+            this.writeByte(SERIALIZED);
+            if (this.serialized == null)
+            {
+                this.serialized = new SerializedOutput(this.out);
+            }
+            this.serialized.writeSerialized(obj);
+        }
+    }
+
+    /**
+     * Java serialization for the types the codec doesn't handle, sharing the codec's stream. The objects written
+     * through it share one handle table.
+     */
+    private static final class SerializedOutput extends ObjectOutputStream
+    {
+        private SerializedOutput(OutputStream out) throws IOException
+        {
+            super(out);
+        }
+
+        private void writeSerialized(Object obj) throws IOException
+        {
+            this.writeObject(obj);
+            this.drain();
+        }
+    }
+
+    private static final class CompactInput extends DataInputStream implements ObjectInput
+    {
+        private final List<Object> handles = new ArrayList<>();
+        private ObjectInputStream serialized;
+
+        private CompactInput(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public Object readObject() throws ClassNotFoundException, IOException
+        {
+            byte tag = this.readByte();
+            switch (tag)
+            {
+                case NULL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case BYTE:
+                    return this.readByte();
+                case SHORT:
+                    return this.readShort();
+                case CHAR:
+                    return this.readChar();
+                case INT:
+                    return this.readInt();
+                case LONG:
+                    return this.readLong();
+                case FLOAT:
+                    return this.readFloat();
+                case DOUBLE:
+                    return this.readDouble();
+                case STRING:
+                    return this.readUTF();
+                case LONG_STRING:
+                    return this.readLongString();
+                case ENUM:
+                    return this.readEnum();
+                case RECORD:
+                    return this.readRecord();
+                case REFERENCE:
+                    return this.readReference();
+                case SERIALIZED:
+                    if (this.serialized == null)
+                    {
+                        this.serialized = new ObjectInputStream(this.in);
+                    }
+                    return this.serialized.readObject();
+                case ARRAY_LIST:
+                case LINKED_LIST:
+                    return this.readList(tag);
+                case HASH_MAP:
+                case LINKED_HASH_MAP:
+                    return this.readMap(tag);
+                default:
+                    return this.readArray(tag);
+            }
+        }
+
+        private int readLength() throws IOException
+        {
+            int length = this.readInt();
+            if (length < 0)
+            {
+                throw new StreamCorruptedException("Negative length " + length);
+            }
+            return length;
+        }
+
+        private String readLongString() throws IOException
+        {
+            char[] chars = new char[this.readLength()];
+            for (int i = 0; i < chars.length; i++)
+            {
+                chars[i] = this.readChar();
+            }
+            return new String(chars);
+        }
+
+        private Object readEnum() throws IOException, ClassNotFoundException
+        {
+            String className = this.readUTF();
+            Class<?> type = resolveClass(className);
+            if (!type.isEnum())
+            {
+                throw new InvalidClassException(className, "not an enum");
+            }
+            String name = this.readUTF();
+            try
+            {
+                return Enum.valueOf(type.asSubclass(Enum.class), name);
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new InvalidObjectException("No constant " + name + " in " + className);
+            }
+        }
+
+        private Object readRecord() throws IOException, ClassNotFoundException
+        {
+            String className = this.readUTF();
+            Class<?> type = resolveClass(className);
+            RecordType recordType = Serializable.class.isAssignableFrom(type) ? RECORD_TYPES.get(type) : null;
+            if (recordType == null)
+            {
+                throw new InvalidClassException(className, "not a serializable record");
+            }
+            int count = this.readShort();
+            if (count != recordType.size())
+            {
+                throw new InvalidClassException(className, "has " + recordType.size() + " components, not " + count);
+            }
+            // reserves the handle; a reference back to the record from its own components reads as null
+            int handle = this.handles.size();
+            this.handles.add(null);
+            Object[] values = new Object[count];
+            for (int i = 0; i < count; i++)
+            {
+                values[i] = this.readObject();
+            }
+            Object record = recordType.create(values);
+            this.handles.set(handle, record);
+            return record;
+        }
+
+        private Object readReference() throws IOException
+        {
+            int handle = this.readInt();
+            if (handle < 0 || handle >= this.handles.size())
+            {
+                throw new StreamCorruptedException("Unknown handle " + handle);
+            }
+            return this.handles.get(handle);
+        }
+
+        private List<Object> readList(byte tag) throws IOException, ClassNotFoundException
+        {
+            int size = this.readLength();
+            List<Object> list = tag == ARRAY_LIST ? new ArrayList<>(Math.min(size, MAX_INITIAL_CAPACITY)) : new LinkedList<>();
+            this.handles.add(list);
+            for (int i = 0; i < size; i++)
+            {
+                list.add(this.readObject());
+            }
+            return list;
+        }
+
+        private Map<Object, Object> readMap(byte tag) throws IOException, ClassNotFoundException
+        {
+            int size = this.readLength();
+            int capacity = Math.max(16, (int) (Math.min(size, MAX_INITIAL_CAPACITY) / 0.75f) + 1);
+            Map<Object, Object> map = tag == HASH_MAP ? new HashMap<>(capacity) : new LinkedHashMap<>(capacity);
+            this.handles.add(map);
+            for (int i = 0; i < size; i++)
+            {
+                Object key = this.readObject();
+                map.put(key, this.readObject());
+            }
+            return map;
+        }
+
+        private Object readArray(byte tag) throws IOException, ClassNotFoundException
+        {
+            switch (tag)
+            {
+                case BYTE_ARRAY:
+                {
+                    byte[] bytes = new byte[this.readLength()];
+                    this.handles.add(bytes);
+                    this.readFully(bytes);
+                    return bytes;
+                }
+                case INT_ARRAY:
+                {
+                    int[] ints = new int[this.readLength()];
+                    this.handles.add(ints);
+                    for (int i = 0; i < ints.length; i++)
+                    {
+                        ints[i] = this.readInt();
+                    }
+                    return ints;
+                }
+                case LONG_ARRAY:
+                {
+                    long[] longs = new long[this.readLength()];
+                    this.handles.add(longs);
+                    for (int i = 0; i < longs.length; i++)
+                    {
+                        longs[i] = this.readLong();
+                    }
+                    return longs;
+                }
+                case DOUBLE_ARRAY:
+                {
+                    double[] doubles = new double[this.readLength()];
+                    this.handles.add(doubles);
+                    for (int i = 0; i < doubles.length; i++)
+                    {
+                        doubles[i] = this.readDouble();
+                    }
+                    return doubles;
+                }
+                case BOOLEAN_ARRAY:
+                {
+                    boolean[] booleans = new boolean[this.readLength()];
+                    this.handles.add(booleans);
+                    for (int i = 0; i < booleans.length; i++)
+                    {
+                        booleans[i] = this.readBoolean();
+                    }
+                    return booleans;
+                }
+                case SHORT_ARRAY:
+                {
+                    short[] shorts = new short[this.readLength()];
+                    this.handles.add(shorts);
+                    for (int i = 0; i < shorts.length; i++)
+                    {
+                        shorts[i] = this.readShort();
+                    }
+                    return shorts;
+                }
+                case CHAR_ARRAY:
+                {
+                    char[] chars = new char[this.readLength()];
+                    this.handles.add(chars);
+                    for (int i = 0; i < chars.length; i++)
+                    {
+                        chars[i] = this.readChar();
+                    }
+                    return chars;
+                }
+                case FLOAT_ARRAY:
+                {
+                    float[] floats = new float[this.readLength()];
+                    this.handles.add(floats);
+                    for (int i = 0; i < floats.length; i++)
+                    {
+                        floats[i] = this.readFloat();
+                    }
+                    return floats;
+                }
+                case OBJECT_ARRAY:
+                case STRING_ARRAY:
+                {
+                    int length = this.readLength();
+                    Object[] objects = tag == STRING_ARRAY ? new String[length] : new Object[length];
+                    this.handles.add(objects);
+                    for (int i = 0; i < length; i++)
+                    {
+                        objects[i] = this.readObject();
+                    }
+                    return objects;
+                }
+                default:
+                    throw new StreamCorruptedException("Unknown tag " + tag);
+            }
+        }
+    }
+
+    private static Class<?> resolveClass(String className) throws ClassNotFoundException
+    {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null)
+        {
+            loader = CompactCodec.class.getClassLoader();
+        }
+        return Class.forName(className, false, loader);
+    }
+
+    /**
+     * Reads the components of records and calls their canonical constructor. Found by reflection, as the code is
+     * compiled for vms without records.
+     */
+    private static final class RecordType
+    {
+        private final Method[] accessors;
+        private final Constructor<?> constructor;
+
+        private RecordType(Method[] accessors, Constructor<?> constructor)
+        {
+            this.accessors = accessors;
+            this.constructor = constructor;
+        }
+
+        public int size()
+        {
+            return this.accessors.length;
+        }
+
+        public Object[] getValues(Object record) throws IOException
+        {
+            Object[] values = new Object[this.accessors.length];
+            try
+            {
+                for (int i = 0; i < values.length; i++)
+                {
+                    values[i] = this.accessors[i].invoke(record);
+                }
+            }
+            catch (IllegalAccessException | InvocationTargetException e)
+            {
+                throw new InvalidObjectException("Could not read the components of " + record.getClass().getName() + ": " + e);
+            }
+            return values;
+        }
+
+        public Object create(Object[] values) throws IOException
+        {
+            try
+            {
+                return this.constructor.newInstance(values);
+            }
+            catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e)
+            {
+                throw new InvalidObjectException("Could not create " + this.constructor.getDeclaringClass().getName() + ": " + e);
+            }
+        }
+    }
+
+    private static final class RecordTypes extends ClassValue<Object>
+    {
+        private static final Object NOT_A_RECORD = new Object();
+        private static final Method IS_RECORD = findMethod(Class.class, "isRecord");
+        private static final Method GET_RECORD_COMPONENTS = findMethod(Class.class, "getRecordComponents");
+
+        private static Method findMethod(Class<?> type, String name)
+        {
+            try
+            {
+                return type.getMethod(name);
+            }
+            catch (NoSuchMethodException e)
+            {
+                return null;
+            }
+        }
+
+        /**
+         * @return the record type, or null if the class is not a record the codec can create
+         */
+        public RecordType get(Class<?> type)
+        {
+            Object recordType = super.get(type);
+            return recordType == NOT_A_RECORD ? null : (RecordType) recordType;
+        }
+
+        @Override
+        protected Object computeValue(Class<?> type)
+        {
+            if (IS_RECORD == null)
+            {
+                return NOT_A_RECORD;
+            }
+            try
+            {
+                if (!(Boolean) IS_RECORD.invoke(type))
+                {
+                    return NOT_A_RECORD;
+                }
+                Object[] components = (Object[]) GET_RECORD_COMPONENTS.invoke(type);
+                Method[] accessors = new Method[components.length];
+                Class<?>[] types = new Class<?>[components.length];
+                for (int i = 0; i < components.length; i++)
+                {
+                    Class<?> componentClass = components[i].getClass();
+                    accessors[i] = (Method) componentClass.getMethod("getAccessor").invoke(components[i]);
+                    accessors[i].setAccessible(true);
+                    types[i] = (Class<?>) componentClass.getMethod("getType").invoke(components[i]);
+                }
+                Constructor<?> constructor = type.getDeclaredConstructor(types);
+                constructor.setAccessible(true);
+                return new RecordType(accessors, constructor);
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                // not accessible to the codec; java serialization takes it
+                return NOT_A_RECORD;
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+
+/**
+ * Writes and reads the arguments and results of calls in place of java serialization. The client and the server
+ * must both have the codec registered under the same name; the server lists its codecs when a socket connection
+ * is set up and the client falls back to java serialization for any other codec.
+ * <p/>
+ * The streams may be handed primitives as well as objects, and must not read past the end of what was written.
+ *
+ * @see com.gs.jrpip.Codec
+ * @see JrpipCodecs
+ */
+public interface JrpipCodec
+{
+    String getName();
+
+    ObjectOutput createOutput(OutputStream out) throws IOException;
+
+    ObjectInput createInput(InputStream in) throws IOException;
+}
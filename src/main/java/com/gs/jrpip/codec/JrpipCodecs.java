@@ -0,0 +1,72 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.codec;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.gs.jrpip.Codec;
+
+/**
+ * The codecs known to the clients of this vm. {@link CompactCodec} is always registered.
+ */
+public final class JrpipCodecs
+{
+    private static final ConcurrentHashMap<String, JrpipCodec> CODECS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Method, Optional<String>> METHOD_CODECS = new ConcurrentHashMap<>();
+
+    static
+    {
+        register(new CompactCodec());
+    }
+
+    private JrpipCodecs()
+    {
+    }
+
+    public static void register(JrpipCodec codec)
+    {
+        CODECS.put(codec.getName(), codec);
+    }
+
+    /**
+     * @return the codec, or null if none is registered under the name
+     */
+    public static JrpipCodec get(String name)
+    {
+        return CODECS.get(name);
+    }
+
+    /**
+     * @return the name of the codec the {@link Codec} annotation picks for the method, or null for java serialization
+     */
+    public static String getCodecName(Method method)
+    {
+        return METHOD_CODECS.computeIfAbsent(method, JrpipCodecs::findCodecName).orElse(null);
+    }
+
+    private static Optional<String> findCodecName(Method method)
+    {
+        Codec codec = method.getAnnotation(Codec.class);
+        if (codec == null)
+        {
+            codec = method.getDeclaringClass().getAnnotation(Codec.class);
+        }
+        return codec == null ? Optional.empty() : Optional.of(codec.value());
+    }
+}
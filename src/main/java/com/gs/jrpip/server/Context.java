@@ -21,9 +21,13 @@ import java.util.ArrayList;
 
 import com.gs.jrpip.FixedDeflaterOutputStream;
 import com.gs.jrpip.RequestId;
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.codec.JrpipCodec;
 import com.gs.jrpip.util.CipherOutputStream128;
 import com.gs.jrpip.util.stream.CopyOnWriteOutputStream;
 import com.gs.jrpip.util.stream.OutputStreamBuilder;
+import com.gs.jrpip.util.stream.PrimitiveLayout;
+import com.gs.jrpip.util.stream.StreamedResultLayout;
 import com.gs.jrpip.util.stream.VirtualOutputStream;
 
 public class Context
@@ -38,21 +42,59 @@ public class Context
     private static final int INVOKING_METHOD_STATE = 2;
     private static final int FINISHED_STATE = 3;
 
-    private static final long MAX_LIFE_TIME = 600000L; // 10 minutes
+    public static final long MAX_LIFE_TIME = 600000L; // 10 minutes
 
     private Object returnValue;
     private boolean exceptionThrown;
     private long lastSignOfLifeTime;
     private int state;
     private boolean compressed = true;
+    private JrpipCodec codec;
+    private Class<?> primitiveResultType;
+    private boolean streamedResult;
+    private boolean streaming;
+    private boolean streamConsumed;
+    private boolean retainResponseBytes;
+    private byte[] responseBytes;
+    private File spillFile;
+    private long spilledLength;
+    private boolean released;
+    private String serviceName;
     private ArrayList<StreamBasedInvocator> invocators = new ArrayList<>(2);
     private OutputStreamBuilder outputStreamBuilder = VirtualOutputStream.NULL_OUTPUT_STREAM_BUILDER;
+    private final RequestId requestId;
+    private final long maxLifeTime;
+    private final long maxLifeTimeFromFinished;
+    private long scheduledExpiry;
+    ContextCache.ExpiryNode expiryNode; // guarded by the cache's wheel
+
+    public Context()
+    {
+        this(null, MAX_LIFE_TIME, MAX_LIFE_TIME_FROM_FINISHED);
+    }
+
+    /**
+     * @param maxLifeTime how long an unfinished request lives without a sign of life
+     * @param maxLifeTimeFromFinished how long a finished result waits for the client's thank you
+     */
+    Context(RequestId requestId, long maxLifeTime, long maxLifeTimeFromFinished)
+    {
+        this.requestId = requestId;
+        this.maxLifeTime = maxLifeTime;
+        this.maxLifeTimeFromFinished = maxLifeTimeFromFinished;
+        this.lastSignOfLifeTime = System.currentTimeMillis();
+    }
 
     public Object getReturnValue()
     {
         return this.returnValue;
     }
 
+    public synchronized boolean isExceptionThrown()
+    {
+        return this.exceptionThrown;
+    }
+
     public synchronized boolean isCreatedState()
     {
         return this.state == CREATED_STATE;
@@ -68,6 +110,7 @@ public class Context
         this.invocators.add(invocator);
         this.state = READING_PARAMETERS_STATE;
         this.lastSignOfLifeTime = System.currentTimeMillis();
+        this.scheduleExpiry(false);
     }
 
     public void setCompressed(boolean compressed)
@@ -75,6 +118,55 @@ public class Context
         this.compressed = compressed;
     }
 
+    /**
+     * @param codec the codec that writes the response, or null for java serialization
+     */
+    public void setCodec(JrpipCodec codec)
+    {
+        this.codec = codec;
+    }
+
+    /**
+     * The result is written in the {@link PrimitiveLayout} of the type, unless the method threw an exception.
+     */
+    public void setPrimitiveResultType(Class<?> primitiveResultType)
+    {
+        this.primitiveResultType = primitiveResultType;
+    }
+
+    /**
+     * The result is written in the {@link StreamedResultLayout} as it is iterated, unless the method threw an
+     * exception. The first write sends it and keeps it in a file for resends.
+     */
+    public void setStreamedResult(boolean streamedResult)
+    {
+        this.streamedResult = streamedResult;
+    }
+
+    public boolean isStreamedResult()
+    {
+        return this.streamedResult;
+    }
+
+    /**
+     * Keep the serialized (and compressed) response from the first write instead of the return value,
+     * so resends copy bytes rather than serializing the object graph again.
+     */
+    public void setRetainResponseBytes(boolean retainResponseBytes)
+    {
+        this.retainResponseBytes = retainResponseBytes;
+    }
+
+    public void setServiceName(String serviceName)
+    {
+        this.serviceName = serviceName;
+    }
+
+    public String getServiceName()
+    {
+        return this.serviceName;
+    }
+
     public synchronized void waitForInvocationToFinish()
     {
         if (this.isInvocationFinished())
@@ -95,6 +187,7 @@ public class Context
                 }
                 this.state = INVOKING_METHOD_STATE;
                 this.lastSignOfLifeTime = System.currentTimeMillis();
+                this.scheduleExpiry(false);
                 break;
             case INVOKING_METHOD_STATE:
                 this.safeWait();  // fall through!
@@ -142,6 +235,7 @@ public class Context
         this.lastSignOfLifeTime = System.currentTimeMillis();
         this.returnValue = returnValue;
         this.invocators = null;
+        this.scheduleExpiry(false);
         this.notifyAll();
     }
 
@@ -162,9 +256,36 @@ public class Context
 
     public synchronized boolean isExpired()
     {
-        long elapsedTime = System.currentTimeMillis() - this.lastSignOfLifeTime;
-        return this.isInvocationFinished() && elapsedTime > MAX_LIFE_TIME_FROM_FINISHED
-                || elapsedTime > MAX_LIFE_TIME;
+        return System.currentTimeMillis() > this.getExpiryTime();
+    }
+
+    synchronized long getExpiryTime()
+    {
+        return this.lastSignOfLifeTime + (this.isInvocationFinished() ? this.maxLifeTimeFromFinished : this.maxLifeTime);
+    }
+
+    RequestId getRequestId()
+    {
+        return this.requestId;
+    }
+
+    /**
+     * Moves the context on the cache's expiry wheel when its expiry moved earlier than the scheduled one. A later
+     * expiry is picked up when the scheduled one comes due.
+     * @param force schedule the current expiry regardless, when the scheduled one is due
+     */
+    synchronized void scheduleExpiry(boolean force)
+    {
+        if (this.requestId == null || this.released)
+        {
+            return;
+        }
+        long expiry = this.getExpiryTime();
+        if (force || this.scheduledExpiry == 0 || expiry < this.scheduledExpiry)
+        {
+            this.scheduledExpiry = expiry;
+            ContextCache.getInstance().scheduleExpiry(this, expiry);
+        }
     }
 
     public void writeAndLogResponse(OutputStream outputStream, RequestId requestId) throws IOException
@@ -174,6 +295,7 @@ public class Context
 
     public void writeAndLogResponse(OutputStream outputStream, RequestId requestId, CipherOutputStream128 cos) throws IOException
     {
+        boolean stream = this.claimStream();
         try
         {
             writeHeader(outputStream);
@@ -184,7 +306,7 @@ public class Context
                     cos.reset(outputStream);
                     outputStream = cos;
                 }
-                this.writeResponse(outputStream);
+                this.writeResponse(outputStream, stream);
             }
             else
             {
@@ -201,7 +323,7 @@ public class Context
                         cos.reset(outputStream);
                         outputStream = cos;
                     }
-                    this.writeResponse(new CopyOnWriteOutputStream(outputStream, binaryLogger));
+                    this.writeResponse(new CopyOnWriteOutputStream(outputStream, binaryLogger), stream);
                 }
                 finally
                 {
@@ -214,6 +336,10 @@ public class Context
         }
         finally
         {
+            if (stream)
+            {
+                this.releaseStream();
+            }
             if (cos != null)
             {
                 cos.finish();
@@ -221,9 +347,284 @@ public class Context
         }
     }
 
-    private void writeResponse(OutputStream outputStream) throws IOException
+    /**
+     * A streamed result is written once, by the first writer. Writers that come while it is being written wait for
+     * it, then copy its file.
+     * @return true if this writer streams the result
+     */
+    private synchronized boolean claimStream()
+    {
+        while (this.streaming)
+        {
+            this.safeWait();
+        }
+        if (!this.streamedResult || this.exceptionThrown || this.streamConsumed)
+        {
+            return false;
+        }
+        this.streaming = true;
+        this.streamConsumed = true;
+        return true;
+    }
+
+    /**
+     * Lets the next writer stream the result if this one failed before it started.
+     */
+    private synchronized void releaseStream()
+    {
+        if (this.streaming)
+        {
+            this.streaming = false;
+            this.streamConsumed = false;
+            this.notifyAll();
+        }
+    }
+
+    private void writeResponse(OutputStream outputStream, boolean stream) throws IOException
     {
         //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
+        if (stream)
+        {
+            this.streamResponse(outputStream);
+            return;
+        }
+        Object toWrite;
+        byte[] cached;
+        File spilled;
+        synchronized (this)
+        {
+            toWrite = this.returnValue;
+            cached = this.responseBytes;
+            spilled = this.spillFile;
+        }
+        if (cached != null)
+        {
+            outputStream.write(cached);
+            return;
+        }
+        if (spilled != null)
+        {
+            copySpilledResponse(spilled, outputStream);
+            return;
+        }
+        ByteArrayOutputStream retained = null;
+        if (this.retainResponseBytes || ContextCache.getInstance().getRetainedBytesBudget() > 0)
+        {
+            retained = new ByteArrayOutputStream();
+            outputStream = new CopyOnWriteOutputStream(outputStream, retained);
+        }
+        this.serializeResponse(outputStream, toWrite);
+        if (retained != null && this.retainResponseBytes(retained.toByteArray()))
+        {
+            ContextCache.getInstance().spillOverBudget();
+        }
+    }
+
+    /**
+     * Writes the result to the client and its spill file as it is iterated. Losing the client doesn't stop the
+     * iteration, so a resend finds the whole result in the file, unless the thank you comes first or the result
+     * outgrows the file.
+     */
+    private void streamResponse(OutputStream outputStream) throws IOException
+    {
+        Object toWrite;
+        synchronized (this)
+        {
+            toWrite = this.returnValue;
+            this.returnValue = null;
+        }
+        File file = null;
+        OutputStream fileOut = null;
+        IOException failure = null;
+        try
+        {
+            file = File.createTempFile("jrpip", ".response", ContextCache.getInstance().getSpillDirectory());
+            fileOut = new BufferedOutputStream(new FileOutputStream(file));
+        }
+        catch (IOException e)
+        {
+            failure = e;
+        }
+        ResponseTee tee = new ResponseTee(outputStream, fileOut, ContextCache.getInstance().getMaxStreamedResultBytes());
+        IOException thrown = null;
+        try
+        {
+            this.serializeResponse(tee, toWrite);
+        }
+        catch (IOException e)
+        {
+            thrown = e;
+        }
+        finally
+        {
+            if (fileOut != null)
+            {
+                try
+                {
+                    fileOut.close();
+                }
+                catch (IOException e)
+                {
+                    tee.fileFailure = e;
+                }
+            }
+            if (tee.fileFailure != null)
+            {
+                failure = tee.fileFailure;
+            }
+            else if (thrown != null && thrown != tee.clientFailure)
+            {
+                failure = thrown;
+            }
+            this.finishStreaming(file, tee.length, failure);
+        }
+        if (thrown != null)
+        {
+            throw thrown;
+        }
+        if (tee.clientFailure != null)
+        {
+            throw tee.clientFailure;
+        }
+    }
+
+    private synchronized void finishStreaming(File file, long length, IOException failure)
+    {
+        this.streaming = false;
+        this.notifyAll();
+        if (failure == null && !this.released)
+        {
+            this.spillFile = file;
+            this.spilledLength = length;
+            ContextCache.getInstance().responseStreamed(length);
+            return;
+        }
+        if (file != null && !file.delete())
+        {
+            ContextCache.getLogger().warn("Could not delete " + file);
+        }
+        if (!this.released)
+        {
+            this.returnValue = new JrpipRuntimeException("The streamed result could not be kept for a resend", failure);
+            this.exceptionThrown = true;
+        }
+    }
+
+    private synchronized boolean isReleased()
+    {
+        return this.released;
+    }
+
+    private static void copySpilledResponse(File spilled, OutputStream outputStream) throws IOException
+    {
+        byte[] buffer = new byte[8192];
+        FileInputStream in = new FileInputStream(spilled);
+        try
+        {
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+            {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private synchronized boolean retainResponseBytes(byte[] bytes)
+    {
+        if (this.released || this.responseBytes != null || this.spillFile != null)
+        {
+            return false;
+        }
+        this.responseBytes = bytes;
+        this.returnValue = null;
+        ContextCache.getInstance().responseRetained(bytes.length);
+        return true;
+    }
+
+    synchronized boolean hasResponseInMemory()
+    {
+        return this.responseBytes != null;
+    }
+
+    synchronized long getFinishedTime()
+    {
+        return this.lastSignOfLifeTime;
+    }
+
+    synchronized int getRetainedLength()
+    {
+        return this.responseBytes == null ? 0 : this.responseBytes.length;
+    }
+
+    synchronized long getSpilledLength()
+    {
+        return this.spillFile == null ? 0 : this.spilledLength;
+    }
+
+    /**
+     * Moves the retained response bytes to a file in the directory.
+     * @return the number of bytes moved out of memory
+     */
+    synchronized int spill(File directory) throws IOException
+    {
+        if (this.responseBytes == null)
+        {
+            return 0;
+        }
+        File file = File.createTempFile("jrpip", ".response", directory);
+        try
+        {
+            FileOutputStream out = new FileOutputStream(file);
+            try
+            {
+                out.write(this.responseBytes);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            file.delete();
+            throw e;
+        }
+        int length = this.responseBytes.length;
+        this.spillFile = file;
+        this.spilledLength = length;
+        this.responseBytes = null;
+        ContextCache.getInstance().responseSpilled(length);
+        return length;
+    }
+
+    /**
+     * Called once the context has left the cache. Frees the retained response, in memory or on disk.
+     */
+    synchronized void release()
+    {
+        this.released = true;
+        this.returnValue = null;
+        if (this.responseBytes != null || this.spillFile != null)
+        {
+            ContextCache.getInstance().responseReleased(this.getRetainedLength(), this.getSpilledLength());
+        }
+        this.responseBytes = null;
+        if (this.spillFile != null)
+        {
+            if (!this.spillFile.delete())
+            {
+                ContextCache.getLogger().warn("Could not delete " + this.spillFile);
+            }
+            this.spillFile = null;
+        }
+    }
+
+    private void serializeResponse(OutputStream outputStream, Object toWrite) throws IOException
+    {
         FixedDeflaterOutputStream zipped = null;
         if (this.compressed)
         {
@@ -232,9 +633,23 @@ public class Context
         }
         try
         {
-            ObjectOutputStream out = new ObjectOutputStream(outputStream);
+            if (this.streamedResult && !this.exceptionThrown)
+            {
+                ObjectOutputStream out = new ObjectOutputStream(outputStream);
+                StreamedResultLayout.write(out, toWrite);
+                out.flush();
+                return;
+            }
+            if (this.primitiveResultType != null && !this.exceptionThrown)
+            {
+                PrimitiveLayout.Output out = new PrimitiveLayout.Output(outputStream);
+                out.writeValue(this.primitiveResultType, toWrite);
+                out.flush();
+                return;
+            }
+            ObjectOutput out = this.codec == null ? new ObjectOutputStream(outputStream) : this.codec.createOutput(outputStream);
             //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
-            out.writeObject(this.returnValue);
+            out.writeObject(toWrite);
             out.flush();
         }
         finally
@@ -246,6 +661,100 @@ public class Context
         }
     }
 
+    /**
+     * Sends a streamed response to the client and its file. The client's failure is reported once the file can't
+     * take the rest either, or once nobody can ask for it anymore. The file is given up past its size limit and
+     * once the result was thanked for.
+     */
+    private final class ResponseTee extends OutputStream
+    {
+        private final OutputStream client;
+        private final OutputStream file;
+        private final long maxFileLength;
+        private IOException clientFailure;
+        private IOException fileFailure;
+        private long length;
+
+        private ResponseTee(OutputStream client, OutputStream file, long maxFileLength)
+        {
+            this.client = client;
+            this.file = file;
+            this.maxFileLength = maxFileLength;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (this.clientFailure == null)
+            {
+                try
+                {
+                    this.client.write(b, off, len);
+                }
+                catch (IOException e)
+                {
+                    this.clientFailure = e;
+                }
+            }
+            if (this.file != null && this.fileFailure == null)
+            {
+                if (this.maxFileLength > 0 && this.length + len > this.maxFileLength)
+                {
+                    this.fileFailure = new IOException("The streamed result is larger than the "
+                            + this.maxFileLength + " bytes kept for a resend");
+                }
+                else if (Context.this.isReleased())
+                {
+                    this.fileFailure = new IOException("The streamed result was thanked for while it was sent");
+                }
+                else
+                {
+                    try
+                    {
+                        this.file.write(b, off, len);
+                        this.length += len;
+                    }
+                    catch (IOException e)
+                    {
+                        this.fileFailure = e;
+                    }
+                }
+            }
+            this.checkFailures();
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (this.clientFailure == null)
+            {
+                try
+                {
+                    this.client.flush();
+                }
+                catch (IOException e)
+                {
+                    this.clientFailure = e;
+                }
+            }
+            this.checkFailures();
+        }
+
+        private void checkFailures() throws IOException
+        {
+            if (this.clientFailure != null && (this.file == null || this.fileFailure != null || Context.this.isReleased()))
+            {
+                throw this.clientFailure;
+            }
+        }
+    }
+
     private void writeHeader(OutputStream outputStream) throws IOException
     {
         if (this.exceptionThrown)
@@ -16,8 +16,16 @@
 
 package com.gs.jrpip.server;
 
-import java.util.Iterator;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.gs.jrpip.RequestId;
 import org.slf4j.Logger;
@@ -28,9 +36,23 @@ public final class ContextCache implements Runnable
     private static final Logger LOGGER = LoggerFactory.getLogger(ContextCache.class.getName());
 
     private static final ContextCache INSTANCE;
-    private static final int SLEEP_TIME = 30000; // every 30 seconds
+    private static final long TICK_MILLIS = 100L;
+    private static final int WHEEL_SIZE = 1024; // about 100 seconds per turn
 
     private final ConcurrentHashMap<RequestId, Context> cache = new ConcurrentHashMap<RequestId, Context>();
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicBoolean spilling = new AtomicBoolean();
+    private volatile long retainedBytesBudget = Long.parseLong(System.getProperty("jrpip.retainedBytesBudget", "0"));
+    private volatile long maxStreamedResultBytes = Long.parseLong(System.getProperty("jrpip.maxStreamedResultBytes",
+            "268435456"));
+    private volatile File spillDirectory = new File(System.getProperty("jrpip.spillDirectory",
+            System.getProperty("java.io.tmpdir")));
+
+    // hashed timing wheel: expiries are bucketed by tick, contexts further out than a turn wait for their round.
+    // Each bucket is a ring of the contexts' nodes, so a context is moved or taken off without a search.
+    private final ExpiryNode[] wheel = new ExpiryNode[WHEEL_SIZE];
+    private long currentTick = System.currentTimeMillis() / TICK_MILLIS;
 
     static
     {
@@ -44,6 +66,10 @@ public final class ContextCache implements Runnable
     // singleton
     private ContextCache()
     {
+        for (int i = 0; i < WHEEL_SIZE; i++)
+        {
+            this.wheel[i] = new ExpiryNode(null);
+        }
     }
 
     public static ContextCache getInstance()
@@ -56,9 +82,164 @@ public final class ContextCache implements Runnable
         return LOGGER;
     }
 
+    public long getRetainedBytesBudget()
+    {
+        return this.retainedBytesBudget;
+    }
+
+    /**
+     * Finished results wait here for the client's thank you. With a budget, results are kept as their serialized
+     * (compressed) bytes, and past the budget the oldest ones are moved to files in the spill directory, from
+     * where resends still work. Applies to all servers in the JVM. Default: 0 (no budget), or the
+     * jrpip.retainedBytesBudget system property.
+     * @param retainedBytesBudget bytes of finished results to keep in memory, 0 for no limit
+     */
+    public void setRetainedBytesBudget(long retainedBytesBudget)
+    {
+        this.retainedBytesBudget = retainedBytesBudget;
+    }
+
+    public long getMaxStreamedResultBytes()
+    {
+        return this.maxStreamedResultBytes;
+    }
+
+    /**
+     * A streamed result is copied to the spill directory as it is sent, so it can be resent. A result larger than
+     * this isn't kept, and a resend gets an error instead. Default: 256 MB, or the jrpip.maxStreamedResultBytes
+     * system property.
+     * @param maxStreamedResultBytes bytes of one streamed result to keep on disk, 0 for no limit
+     */
+    public void setMaxStreamedResultBytes(long maxStreamedResultBytes)
+    {
+        this.maxStreamedResultBytes = maxStreamedResultBytes;
+    }
+
+    public File getSpillDirectory()
+    {
+        return this.spillDirectory;
+    }
+
+    /**
+     * Default: the jrpip.spillDirectory system property, or java.io.tmpdir
+     */
+    public void setSpillDirectory(File spillDirectory)
+    {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @return bytes of finished results held in memory
+     */
+    public long getRetainedBytes()
+    {
+        return this.retainedBytes.get();
+    }
+
+    /**
+     * @return bytes of finished results spilled to disk
+     */
+    public long getSpilledBytes()
+    {
+        return this.spilledBytes.get();
+    }
+
+    /**
+     * @return retained results by service interface. Only results kept as bytes are counted.
+     */
+    public Map<String, RetainedResponseStats> getRetainedResponseStats()
+    {
+        Map<String, RetainedResponseStats> result = new HashMap<String, RetainedResponseStats>();
+        for (Context context : this.cache.values())
+        {
+            int inMemory = context.getRetainedLength();
+            long spilled = context.getSpilledLength();
+            if (inMemory > 0 || spilled > 0)
+            {
+                String serviceName = String.valueOf(context.getServiceName());
+                RetainedResponseStats stats = result.get(serviceName);
+                if (stats == null)
+                {
+                    stats = new RetainedResponseStats(serviceName);
+                    result.put(serviceName, stats);
+                }
+                stats.add(inMemory, spilled);
+            }
+        }
+        return result;
+    }
+
     public void removeContext(RequestId requestId)
     {
-        this.cache.remove(requestId);
+        Context removed = this.cache.remove(requestId);
+        if (removed != null)
+        {
+            removed.release();
+            this.unschedule(removed);
+        }
+    }
+
+    void responseRetained(int length)
+    {
+        this.retainedBytes.addAndGet(length);
+    }
+
+    void responseSpilled(int length)
+    {
+        this.retainedBytes.addAndGet(-length);
+        this.spilledBytes.addAndGet(length);
+    }
+
+    /**
+     * A streamed result is written to its file as it is sent, without being retained in memory first.
+     */
+    void responseStreamed(long length)
+    {
+        this.spilledBytes.addAndGet(length);
+    }
+
+    void responseReleased(int inMemory, long spilled)
+    {
+        this.retainedBytes.addAndGet(-inMemory);
+        this.spilledBytes.addAndGet(-spilled);
+    }
+
+    /**
+     * Spills the oldest results until a quarter of the budget is free, so a busy server doesn't spill on every
+     * response. Only one thread spills at a time; the others carry on.
+     */
+    void spillOverBudget()
+    {
+        long budget = this.retainedBytesBudget;
+        if (budget <= 0 || this.retainedBytes.get() <= budget || !this.spilling.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            List<Context> inMemory = new ArrayList<Context>();
+            for (Context context : this.cache.values())
+            {
+                if (context.hasResponseInMemory())
+                {
+                    inMemory.add(context);
+                }
+            }
+            Collections.sort(inMemory, (left, right) -> Long.compare(left.getFinishedTime(), right.getFinishedTime()));
+            long target = budget - budget / 4;
+            for (int i = 0; i < inMemory.size() && this.retainedBytes.get() > target; i++)
+            {
+                inMemory.get(i).spill(this.spillDirectory);
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Could not spill finished results to " + this.spillDirectory, e);
+        }
+        finally
+        {
+            this.spilling.set(false);
+        }
     }
 
     public Context getContext(RequestId requestId)
@@ -68,36 +249,136 @@ public final class ContextCache implements Runnable
 
     public Context getOrCreateContext(RequestId requestId)
     {
-        Context result = new Context();
+        return this.getOrCreateContext(requestId, Context.MAX_LIFE_TIME, Context.MAX_LIFE_TIME_FROM_FINISHED);
+    }
+
+    /**
+     * @param maxLifeTime how long an unfinished request lives without a sign of life
+     * @param maxLifeTimeFromFinished how long a finished result waits for the client's thank you
+     */
+    public Context getOrCreateContext(RequestId requestId, long maxLifeTime, long maxLifeTimeFromFinished)
+    {
+        Context result = new Context(requestId, maxLifeTime, maxLifeTimeFromFinished);
         Context existing = this.cache.putIfAbsent(requestId, result);
         if (existing == null)
         {
             existing = result;
+            result.scheduleExpiry(false);
         }
         return existing;
     }
 
-    private void removeExpiredContexts()
+    /**
+     * Puts the context in the bucket of its expiry, moving it from the one it was in.
+     */
+    void scheduleExpiry(Context context, long expiry)
     {
-        if (this.cache.isEmpty())
+        long tick = (expiry + TICK_MILLIS - 1) / TICK_MILLIS;
+        synchronized (this.wheel)
         {
-            return;
+            ExpiryNode node = context.expiryNode;
+            if (node == null)
+            {
+                node = new ExpiryNode(context);
+                context.expiryNode = node;
+            }
+            node.unlink();
+            node.tick = Math.max(tick, this.currentTick + 1);
+            node.linkBefore(this.wheel[(int) (node.tick & (WHEEL_SIZE - 1))]);
         }
-        Iterator it = this.cache.values().iterator();
-        while (it.hasNext())
+    }
+
+    /**
+     * @return the number of contexts on the wheel
+     */
+    int getScheduledCount()
+    {
+        int count = 0;
+        synchronized (this.wheel)
         {
-            Context context = (Context) it.next();
-            if (context.isExpired())
+            for (ExpiryNode head : this.wheel)
             {
-                if (LOGGER.isDebugEnabled())
+                for (ExpiryNode node = head.next; node != head; node = node.next)
                 {
-                    LOGGER.debug("removing stale context");
+                    count++;
                 }
-                it.remove();
+            }
+        }
+        return count;
+    }
+
+    private void unschedule(Context context)
+    {
+        synchronized (this.wheel)
+        {
+            if (context.expiryNode != null)
+            {
+                context.expiryNode.unlink();
             }
         }
     }
 
+    private void advanceTo(long tick)
+    {
+        while (true)
+        {
+            List<Context> due = null;
+            synchronized (this.wheel)
+            {
+                if (this.currentTick >= tick)
+                {
+                    return;
+                }
+                long processing = ++this.currentTick;
+                ExpiryNode head = this.wheel[(int) (processing & (WHEEL_SIZE - 1))];
+                ExpiryNode node = head.next;
+                while (node != head)
+                {
+                    ExpiryNode next = node.next;
+                    if (node.tick <= processing)
+                    {
+                        node.unlink();
+                        if (due == null)
+                        {
+                            due = new ArrayList<Context>();
+                        }
+                        due.add(node.context);
+                    }
+                    node = next;
+                }
+            }
+            if (due != null)
+            {
+                for (int i = 0; i < due.size(); i++)
+                {
+                    this.expire(due.get(i));
+                }
+            }
+        }
+    }
+
+    private void expire(Context context)
+    {
+        RequestId requestId = context.getRequestId();
+        if (this.cache.get(requestId) != context)
+        {
+            return; // thanked in the meantime
+        }
+        if (context.getExpiryTime() > System.currentTimeMillis())
+        {
+            context.scheduleExpiry(true);
+        }
+        else if (this.cache.remove(requestId, context))
+        {
+            if (LOGGER.isDebugEnabled())
+            {
+                LOGGER.debug("removing stale context");
+            }
+            context.release();
+            this.unschedule(context);
+        }
+    }
+
     @Override
     public void run()
     {
@@ -105,8 +386,18 @@ public final class ContextCache implements Runnable
         {
             try
             {
-                Thread.sleep(SLEEP_TIME);
-                this.removeExpiredContexts();
+                long now = System.currentTimeMillis();
+                long nextTick;
+                synchronized (this.wheel)
+                {
+                    nextTick = this.currentTick + 1;
+                }
+                long sleep = nextTick * TICK_MILLIS - now;
+                if (sleep > 0)
+                {
+                    Thread.sleep(sleep);
+                }
+                this.advanceTo(System.currentTimeMillis() / TICK_MILLIS);
             }
             catch (InterruptedException e)
             {
@@ -119,4 +410,37 @@ public final class ContextCache implements Runnable
             }
         }
     }
+
+    /**
+     * The place of a context in a bucket of the wheel, or the head of a bucket, whose context is null. Guarded by
+     * the wheel.
+     */
+    static final class ExpiryNode
+    {
+        private final Context context;
+        private long tick;
+        private ExpiryNode previous = this;
+        private ExpiryNode next = this;
+
+        private ExpiryNode(Context context)
+        {
+            this.context = context;
+        }
+
+        private void linkBefore(ExpiryNode head)
+        {
+            this.previous = head.previous;
+            this.next = head;
+            head.previous.next = this;
+            head.previous = this;
+        }
+
+        private void unlink()
+        {
+            this.previous.next = this.next;
+            this.next.previous = this.previous;
+            this.previous = this;
+            this.next = this;
+        }
+    }
 }
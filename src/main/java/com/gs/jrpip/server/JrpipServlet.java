@@ -62,10 +62,14 @@ public class JrpipServlet implements Servlet
     private int methodInvocations;
     private int thankYous;
     private int resendRequests;
+    private int busyRequests;
     private String webapp;
     private long startTime;
     private final HashSet<String> registeredUrls = new HashSet<String>();
     private boolean binaryLoggingEnabled;
+    private boolean retainResponseBytes;
+    private long maxLifeTime = Context.MAX_LIFE_TIME;
+    private long maxLifeTimeFromFinished = Context.MAX_LIFE_TIME_FROM_FINISHED;
     private MethodInterceptor methodInterceptor;
 
     /**
@@ -122,6 +126,21 @@ public class JrpipServlet implements Servlet
         {
             useServiceMap = useServiceMapString.toUpperCase().startsWith("T");
         }
+        String retainResponseBytesString = this.getInitParameter("retainResponseBytes");
+        if (retainResponseBytesString != null)
+        {
+            this.retainResponseBytes = retainResponseBytesString.toUpperCase().startsWith("T");
+        }
+        String maxLifeTimeString = this.getInitParameter("maxLifeTime");
+        if (maxLifeTimeString != null)
+        {
+            this.maxLifeTime = Long.parseLong(maxLifeTimeString.trim());
+        }
+        String maxLifeTimeFromFinishedString = this.getInitParameter("maxLifeTimeFromFinished");
+        if (maxLifeTimeFromFinishedString != null)
+        {
+            this.maxLifeTimeFromFinished = Long.parseLong(maxLifeTimeFromFinishedString.trim());
+        }
 
         Enumeration parameterNameEnum = this.config.getInitParameterNames();
         boolean foundConfig = false;
@@ -197,7 +216,17 @@ public class JrpipServlet implements Servlet
                     }
                 }
                 MethodResolver methodResolver = new MethodResolver(serviceClass);
-                this.serviceMap.put(interfaceName, new ServiceDefinition(service, methodResolver, this.initializeOutputStreamBuilder(interfaceClass), vmBound));
+                ServiceDefinition serviceDefinition = new ServiceDefinition(service, methodResolver, this.initializeOutputStreamBuilder(interfaceClass), vmBound);
+                String maxConcurrency = this.getInitParameter("maxConcurrency" + definitionName);
+                if (maxConcurrency != null)
+                {
+                    String maxQueued = this.getInitParameter("maxQueued" + definitionName);
+                    String maxQueueWait = this.getInitParameter("maxQueueWait" + definitionName);
+                    serviceDefinition.setConcurrencyLimit(Integer.parseInt(maxConcurrency.trim()),
+                            maxQueued == null ? 0 : Integer.parseInt(maxQueued.trim()),
+                            maxQueueWait == null ? ServiceDefinition.DEFAULT_MAX_QUEUE_WAIT : Long.parseLong(maxQueueWait.trim()));
+                }
+                this.serviceMap.put(interfaceName, serviceDefinition);
                 foundConfig = true;
             }
         }
@@ -443,50 +472,70 @@ public class JrpipServlet implements Servlet
         this.methodInvocations++;
         //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
         RequestId requestId = (RequestId) in.readObject();
-        Context invokeContext = ContextCache.getInstance().getOrCreateContext(requestId);
         String serviceInterface = (String) in.readObject();
         ServiceDefinition serviceDefinition = (ServiceDefinition) this.serviceMap.get(serviceInterface);
-        if (serviceDefinition == null)
+        if (serviceDefinition != null && !serviceDefinition.admit())
         {
-            invokeContext.setReturnValue(new JrpipRuntimeException("JrpipServlet is not servicing "
-                    + serviceInterface), true);
+            this.busyRequests++;
+            response.getOutputStream().write(StreamBasedInvocator.SERVER_BUSY_STATUS);
+            return;
         }
-        else
+        Context invokeContext;
+        try
         {
-            OutputStreamBuilder outputStreamBuilder = serviceDefinition.getOutputStreamBuilder();
-            DataOutputStream copyTo = outputStreamBuilder.newOutputStream();
-            copyTo.writeByte(OutputStreamBuilder.REQUEST_HEADER);
-            try
+            invokeContext = ContextCache.getInstance().getOrCreateContext(requestId,
+                    this.maxLifeTime, this.maxLifeTimeFromFinished);
+            invokeContext.setRetainResponseBytes(this.retainResponseBytes);
+            invokeContext.setServiceName(serviceInterface);
+            if (serviceDefinition == null)
             {
-                if (copyOnReadInputStream != null)
-                {
-                    copyOnReadInputStream.startCopyingInto(copyTo);
-                }
-                invokeContext.setOutputStreamBuilder(outputStreamBuilder);
-                boolean serviceRequest = true;
-                if (serviceDefinition.isVmBound())
+                invokeContext.setReturnValue(new JrpipRuntimeException("JrpipServlet is not servicing "
+                        + serviceInterface), true);
+            }
+            else
+            {
+                OutputStreamBuilder outputStreamBuilder = serviceDefinition.getOutputStreamBuilder();
+                DataOutputStream copyTo = outputStreamBuilder.newOutputStream();
+                try
                 {
-                    serviceRequest = this.checkVmBoundCall(requestId, invokeContext, serviceInterface, serviceRequest);
+                    copyTo.writeByte(OutputStreamBuilder.REQUEST_HEADER);
+                    if (copyOnReadInputStream != null)
+                    {
+                        copyOnReadInputStream.startCopyingInto(copyTo);
+                    }
+                    invokeContext.setOutputStreamBuilder(outputStreamBuilder);
+                    boolean serviceRequest = true;
+                    if (serviceDefinition.isVmBound())
+                    {
+                        serviceRequest = this.checkVmBoundCall(requestId, invokeContext, serviceInterface, serviceRequest);
+                    }
+                    if (serviceRequest)
+                    {
+                        JrpipRequestContext requestContext = getJrpipRequestContext(request, requestId);
+
+                        new StreamBasedInvocator().invoke(in,
+                                invokeContext,
+                                serviceDefinition.getService(),
+                                serviceDefinition.getMethodResolver(),
+                                request.getRemoteAddr(),
+                                requestId,
+                                this.listeners,
+                                copyTo,
+                                this.methodInterceptor,
+                                requestContext);
+                    }
                 }
-                if (serviceRequest)
+                finally
                 {
-                    JrpipRequestContext requestContext = getJrpipRequestContext(request, requestId);
-
-                    new StreamBasedInvocator().invoke(in,
-                            invokeContext,
-                            serviceDefinition.getService(),
-                            serviceDefinition.getMethodResolver(),
-                            request.getRemoteAddr(),
-                            requestId,
-                            this.listeners,
-                            copyTo,
-                            this.methodInterceptor,
-                            requestContext);
+                    copyTo.close();
                 }
             }
-            finally
+        }
+        finally
+        {
+            if (serviceDefinition != null)
             {
-                copyTo.close();
+                serviceDefinition.release();
             }
         }
         invokeContext.writeAndLogResponse(response.getOutputStream(), requestId);
@@ -538,6 +587,7 @@ public class JrpipServlet implements Servlet
         }
         res.getWriter().print("<br>Total Method Invocations: " + this.methodInvocations + "<br>");
         res.getWriter().print("<br>Total Resend Requests: " + this.resendRequests + "<br>");
+        res.getWriter().print("<br>Total Busy Responses: " + this.busyRequests + "<br>");
         res.getWriter().print("<br>Total Coalesced Thank You Requests: " + this.thankYous + "<br>");
         res.getWriter().print("<br>Total Pings: " + this.pings + "<br>");
         long seconds = (System.currentTimeMillis() - this.startTime) / 1000L;
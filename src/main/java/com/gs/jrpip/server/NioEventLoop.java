@@ -0,0 +1,733 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.server;
+
+import com.gs.jrpip.util.BlockInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector thread that frames the block protocol (MAGIC + length + payload) for many connections
+ * without blocking. Complete conversations are handed to a {@link ConversationHandler}; responses are
+ * framed in place and written with gathering writes. A large response is handed over in parts while it's being
+ * written, and its writer waits while the client is behind on reading.
+ */
+class NioEventLoop extends Thread
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioEventLoop.class.getName());
+
+    private static final int HEADER_LENGTH = 6;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+    private final Selector selector;
+    private final ConversationHandler handler;
+    private final int idleCloseTime;
+    private final int maxRequestSize;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<NioConnection, Object> connections = new ConcurrentHashMap<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final byte[] readArray = new byte[READ_BUFFER_SIZE];
+    private volatile boolean shutdown;
+    private volatile boolean closeWhenIdle;
+
+    interface ConversationHandler
+    {
+        /**
+         * Called on the selector thread once a conversation has been fully read. Must not block.
+         *
+         * @param tooLarge the conversation was larger than the limit; the payload has only its first bytes
+         */
+        void conversationReceived(NioConnection connection, byte[] payload, int length, boolean tooLarge);
+
+        void connectionClosed(NioConnection connection);
+    }
+
+    NioEventLoop(String name, ConversationHandler handler, int idleCloseTime, int maxRequestSize) throws IOException
+    {
+        super(name);
+        this.setDaemon(true);
+        this.selector = Selector.open();
+        this.handler = handler;
+        this.idleCloseTime = idleCloseTime;
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    public void register(final SocketChannel channel)
+    {
+        this.tasks.add(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    channel.configureBlocking(false);
+                    NioConnection connection = new NioConnection(channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connections.put(connection, "1");
+                }
+                catch (IOException e)
+                {
+                    LOGGER.warn("Could not register incoming socket", e);
+                    quietlyClose(channel);
+                }
+            }
+        });
+        this.selector.wakeup();
+    }
+
+    public int getConnectionCount()
+    {
+        return this.connections.size();
+    }
+
+    public void shutdown()
+    {
+        this.shutdown = true;
+        this.selector.wakeup();
+    }
+
+    /**
+     * From now on, connections are closed as soon as they have no conversation in progress and nothing left to write.
+     */
+    public void closeWhenIdle()
+    {
+        this.closeWhenIdle = true;
+        this.selector.wakeup();
+    }
+
+    public void closeAllConnections()
+    {
+        for (NioConnection connection : this.connections.keySet())
+        {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        long lastIdleCheck = System.currentTimeMillis();
+        try
+        {
+            while (!shutdown)
+            {
+                this.selector.select(Math.max(10, Math.min(1000, idleCloseTime / 4)));
+                this.runTasks();
+                Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                while (it.hasNext())
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try
+                    {
+                        if (key.isReadable())
+                        {
+                            connection.readAvailable();
+                        }
+                        if (key.isValid() && key.isWritable())
+                        {
+                            connection.writeQueued();
+                        }
+                    }
+                    catch (CancelledKeyException e)
+                    {
+                        connection.close();
+                    }
+                    catch (IOException e)
+                    {
+                        LOGGER.debug("IOException while handling incoming socket", e);
+                        connection.close();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (this.closeWhenIdle)
+                {
+                    this.closeIdleConnections(Long.MAX_VALUE);
+                }
+                else if (now - lastIdleCheck >= Math.min(1000, idleCloseTime / 4))
+                {
+                    this.closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+            }
+        }
+        catch (Throwable t)
+        {
+            LOGGER.error("Unexpected exception in selector loop", t);
+        }
+        finally
+        {
+            this.closeAllConnections();
+            try
+            {
+                this.selector.close();
+            }
+            catch (IOException e)
+            {
+                LOGGER.debug("Could not close selector", e);
+            }
+        }
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null)
+        {
+            task.run();
+        }
+    }
+
+    private void closeIdleConnections(long now)
+    {
+        for (NioConnection connection : this.connections.keySet())
+        {
+            if (connection.isIdleSince(now - this.idleCloseTime))
+            {
+                connection.close();
+            }
+        }
+    }
+
+    private static void quietlyClose(SocketChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.debug("Could not close channel", e);
+        }
+    }
+
+    class NioConnection
+    {
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        private SelectionKey key;
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private int headerPos;
+        private int blockRemaining;
+        private boolean lastBlock;
+        private byte[] payload;
+        private int payloadLength;
+        private boolean tooLarge;
+        private final ArrayDeque<ByteBuffer[]> writeQueue = new ArrayDeque<>(2);
+        private long queuedBytes;
+        private FramedOutputStream partialResponse; // has queued some of its blocks; other responses wait for it
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile int conversationsInProgress;
+        private volatile boolean closed;
+        private Object attachment;
+
+        NioConnection(SocketChannel channel) throws IOException
+        {
+            this.channel = channel;
+            this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+            if (channel.getLocalAddress() instanceof InetSocketAddress)
+            {
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+            }
+        }
+
+        public String getRemoteAddress()
+        {
+            return remoteAddress;
+        }
+
+        public Object getAttachment()
+        {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment)
+        {
+            this.attachment = attachment;
+        }
+
+        public boolean isClosed()
+        {
+            return closed;
+        }
+
+        private boolean isIdleSince(long time)
+        {
+            return this.conversationsInProgress == 0 && this.headerPos == 0 && this.payload == null
+                    && this.lastActivity < time && !this.hasQueuedWrites();
+        }
+
+        private synchronized boolean hasQueuedWrites()
+        {
+            return !this.writeQueue.isEmpty();
+        }
+
+        private void readAvailable() throws IOException
+        {
+            while (true)
+            {
+                readBuffer.clear();
+                int read = this.channel.read(readBuffer);
+                if (read < 0)
+                {
+                    this.close();
+                    return;
+                }
+                if (read == 0)
+                {
+                    return;
+                }
+                this.lastActivity = System.currentTimeMillis();
+                readBuffer.flip();
+                readBuffer.get(readArray, 0, read);
+                this.consume(readArray, 0, read);
+                if (read < READ_BUFFER_SIZE)
+                {
+                    return;
+                }
+            }
+        }
+
+        private void consume(byte[] buf, int off, int len) throws IOException
+        {
+            int end = off + len;
+            while (off < end && !closed)
+            {
+                if (this.headerPos < HEADER_LENGTH)
+                {
+                    int toCopy = Math.min(HEADER_LENGTH - this.headerPos, end - off);
+                    System.arraycopy(buf, off, this.header, this.headerPos, toCopy);
+                    this.headerPos += toCopy;
+                    off += toCopy;
+                    if (this.headerPos == HEADER_LENGTH)
+                    {
+                        this.startBlock();
+                    }
+                    continue;
+                }
+                int toConsume = Math.min(this.blockRemaining, end - off);
+                int toCopy = this.tooLarge ? Math.min(toConsume, this.payload.length - this.payloadLength) : toConsume;
+                System.arraycopy(buf, off, this.payload, this.payloadLength, toCopy);
+                this.payloadLength += toCopy;
+                this.blockRemaining -= toConsume;
+                off += toConsume;
+                if (this.blockRemaining == 0)
+                {
+                    this.endBlock();
+                }
+            }
+        }
+
+        private void startBlock() throws IOException
+        {
+            for (int i = 0; i < BlockInputStream.MAGIC.length; i++)
+            {
+                if (this.header[i] != BlockInputStream.MAGIC[i])
+                {
+                    throw new IOException("Bad magic value " + this.header[i]);
+                }
+            }
+            int high = this.header[4] & 0xFF;
+            this.lastBlock = (high & (1 << 7)) != 0;
+            this.blockRemaining = ((high & ~(1 << 7)) << 8) | (this.header[5] & 0xFF);
+            if (this.blockRemaining > BlockInputStream.MAX_LENGTH)
+            {
+                throw new IOException("Block too large " + this.blockRemaining);
+            }
+            if (!this.tooLarge && (long) this.payloadLength + this.blockRemaining > maxRequestSize)
+            {
+                // the rest is skipped; what was kept is enough to answer it
+                this.tooLarge = true;
+            }
+            if (this.tooLarge)
+            {
+                if (this.payload == null)
+                {
+                    this.payload = new byte[16];
+                }
+            }
+            else if (this.payload == null)
+            {
+                this.payload = new byte[Math.max(this.blockRemaining, 16)];
+            }
+            else if (this.payload.length - this.payloadLength < this.blockRemaining)
+            {
+                byte[] newPayload = new byte[Math.max(this.payload.length * 2, this.payloadLength + this.blockRemaining)];
+                System.arraycopy(this.payload, 0, newPayload, 0, this.payloadLength);
+                this.payload = newPayload;
+            }
+            if (this.blockRemaining == 0)
+            {
+                this.endBlock();
+            }
+        }
+
+        private void endBlock()
+        {
+            this.headerPos = 0;
+            if (this.lastBlock)
+            {
+                byte[] conversation = this.payload;
+                int length = this.payloadLength;
+                boolean skipped = this.tooLarge;
+                this.payload = null;
+                this.payloadLength = 0;
+                this.lastBlock = false;
+                this.tooLarge = false;
+                handler.conversationReceived(this, conversation, length, skipped);
+            }
+        }
+
+        public synchronized void beginConversation()
+        {
+            this.conversationsInProgress++;
+        }
+
+        /**
+         * Queues the framed response. Can be called from any thread.
+         */
+        public void send(FramedOutputStream response) throws IOException
+        {
+            ByteBuffer[] buffers = response.toByteBuffers();
+            boolean needsWriteInterest;
+            synchronized (this)
+            {
+                this.conversationsInProgress--;
+                this.awaitTurn(response);
+                this.partialResponse = null;
+                needsWriteInterest = this.enqueue(buffers);
+                this.notifyAll();
+            }
+            if (closeWhenIdle && !needsWriteInterest)
+            {
+                selector.wakeup();
+            }
+            if (needsWriteInterest)
+            {
+                this.requestWriteInterest();
+            }
+        }
+
+        /**
+         * Queues the finished blocks of a response that is still being written, then waits while the client is
+         * behind on reading. Other responses wait until this one is sent.
+         */
+        private void sendPart(FramedOutputStream response, ByteBuffer[] buffers) throws IOException
+        {
+            boolean needsWriteInterest;
+            synchronized (this)
+            {
+                this.awaitTurn(response);
+                this.partialResponse = response;
+                needsWriteInterest = this.enqueue(buffers);
+            }
+            if (needsWriteInterest)
+            {
+                this.requestWriteInterest();
+            }
+            synchronized (this)
+            {
+                while (this.queuedBytes > MAX_QUEUED_BYTES)
+                {
+                    this.awaitProgress();
+                }
+            }
+        }
+
+        private void awaitTurn(FramedOutputStream response) throws IOException
+        {
+            while (this.partialResponse != null && this.partialResponse != response)
+            {
+                this.awaitProgress();
+            }
+            if (this.closed)
+            {
+                throw new IOException("connection closed");
+            }
+        }
+
+        /**
+         * Must hold the lock. Gives up if nothing was written for the idle close time.
+         */
+        private void awaitProgress() throws IOException
+        {
+            if (this.closed)
+            {
+                throw new IOException("connection closed");
+            }
+            long waitTime = this.lastActivity + idleCloseTime - System.currentTimeMillis();
+            if (waitTime <= 0)
+            {
+                throw new IOException("No progress writing to " + this.remoteAddress + " in " + idleCloseTime + " ms");
+            }
+            try
+            {
+                this.wait(waitTime);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing to " + this.remoteAddress);
+            }
+        }
+
+        /**
+         * Must hold the lock.
+         *
+         * @return true if the buffers couldn't be written right away and the key needs write interest
+         */
+        private boolean enqueue(ByteBuffer[] buffers) throws IOException
+        {
+            boolean needsWriteInterest = false;
+            if (this.writeQueue.isEmpty())
+            {
+                this.channel.write(buffers);
+                if (remaining(buffers))
+                {
+                    this.writeQueue.add(buffers);
+                    this.queuedBytes += remainingBytes(buffers);
+                    needsWriteInterest = true;
+                }
+            }
+            else
+            {
+                this.writeQueue.add(buffers);
+                this.queuedBytes += remainingBytes(buffers);
+            }
+            this.lastActivity = System.currentTimeMillis();
+            return needsWriteInterest;
+        }
+
+        private void requestWriteInterest()
+        {
+            tasks.add(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (key.isValid())
+                    {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+            selector.wakeup();
+        }
+
+        public synchronized void abortConversation()
+        {
+            this.conversationsInProgress--;
+        }
+
+        private synchronized void writeQueued() throws IOException
+        {
+            while (!this.writeQueue.isEmpty())
+            {
+                ByteBuffer[] buffers = this.writeQueue.peek();
+                long written = this.channel.write(buffers);
+                if (written > 0)
+                {
+                    this.queuedBytes -= written;
+                    this.lastActivity = System.currentTimeMillis();
+                    this.notifyAll();
+                }
+                if (remaining(buffers))
+                {
+                    return;
+                }
+                this.writeQueue.poll();
+            }
+            this.lastActivity = System.currentTimeMillis();
+            this.key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private boolean remaining(ByteBuffer[] buffers)
+        {
+            return buffers[buffers.length - 1].hasRemaining();
+        }
+
+        private long remainingBytes(ByteBuffer[] buffers)
+        {
+            long result = 0;
+            for (ByteBuffer buffer : buffers)
+            {
+                result += buffer.remaining();
+            }
+            return result;
+        }
+
+        public void close()
+        {
+            synchronized (this)
+            {
+                if (this.closed)
+                {
+                    return;
+                }
+                this.closed = true;
+                this.writeQueue.clear();
+                this.queuedBytes = 0;
+                this.notifyAll();
+            }
+            connections.remove(this);
+            if (this.key != null)
+            {
+                this.key.cancel();
+            }
+            quietlyClose(this.channel);
+            handler.connectionClosed(this);
+        }
+    }
+
+    /**
+     * Collects a response and frames it into blocks in place, so the result can be written with a single
+     * gathering write and no further copying. Once enough full blocks pile up, they're handed to the connection
+     * ahead of the rest.
+     */
+    static class FramedOutputStream extends OutputStream
+    {
+        private static final int FIRST_BLOCK_SIZE = 256;
+        private static final int BLOCKS_PER_PART = 8;
+
+        private final NioConnection connection;
+        private final List<byte[]> blocks = new ArrayList<>(2);
+        private byte[] current;
+        private int currentPos;
+
+        FramedOutputStream(NioConnection connection)
+        {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.ensureSpace();
+            this.current[this.currentPos++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                this.ensureSpace();
+                int toCopy = Math.min(len, this.current.length - this.currentPos);
+                System.arraycopy(b, off, this.current, this.currentPos, toCopy);
+                this.currentPos += toCopy;
+                off += toCopy;
+                len -= toCopy;
+            }
+        }
+
+        private void ensureSpace() throws IOException
+        {
+            if (this.current == null)
+            {
+                this.current = new byte[this.blocks.isEmpty() ? FIRST_BLOCK_SIZE : HEADER_LENGTH + BlockInputStream.MAX_LENGTH];
+                this.currentPos = HEADER_LENGTH;
+            }
+            else if (this.currentPos == this.current.length)
+            {
+                if (this.current.length < HEADER_LENGTH + BlockInputStream.MAX_LENGTH)
+                {
+                    // small responses are common, so the first block grows instead of starting at full size
+                    this.current = Arrays.copyOf(this.current, Math.min(this.current.length * 2, HEADER_LENGTH + BlockInputStream.MAX_LENGTH));
+                }
+                else
+                {
+                    this.closeBlock(false);
+                    if (this.blocks.size() >= BLOCKS_PER_PART)
+                    {
+                        this.sendPart();
+                    }
+                    this.current = new byte[HEADER_LENGTH + BlockInputStream.MAX_LENGTH];
+                    this.currentPos = HEADER_LENGTH;
+                }
+            }
+        }
+
+        private void sendPart() throws IOException
+        {
+            ByteBuffer[] part = new ByteBuffer[this.blocks.size()];
+            for (int i = 0; i < part.length; i++)
+            {
+                part[i] = ByteBuffer.wrap(this.blocks.get(i));
+            }
+            this.blocks.clear();
+            this.connection.sendPart(this, part);
+        }
+
+        private void closeBlock(boolean last)
+        {
+            if (this.current != null)
+            {
+                int length = this.currentPos - HEADER_LENGTH;
+                System.arraycopy(BlockInputStream.MAGIC, 0, this.current, 0, BlockInputStream.MAGIC.length);
+                int high = length >> 8;
+                if (last)
+                {
+                    high |= (1 << 7);
+                }
+                this.current[4] = (byte) high;
+                this.current[5] = (byte) (length & 0xFF);
+                this.blocks.add(this.current);
+                this.current = null;
+            }
+        }
+
+        ByteBuffer[] toByteBuffers()
+        {
+            if (this.current == null)
+            {
+                this.current = new byte[HEADER_LENGTH];
+                this.currentPos = HEADER_LENGTH;
+            }
+            byte[] last = this.current;
+            int lastLength = this.currentPos;
+            this.closeBlock(true);
+            ByteBuffer[] result = new ByteBuffer[this.blocks.size()];
+            for (int i = 0; i < result.length - 1; i++)
+            {
+                result[i] = ByteBuffer.wrap(this.blocks.get(i));
+            }
+            result[result.length - 1] = ByteBuffer.wrap(last, 0, lastLength);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.server;
+
+/**
+ * Finished results of one service that are waiting for a thank you, kept as bytes in memory or on disk.
+ */
+public class RetainedResponseStats
+{
+    private final String serviceName;
+    private int count;
+    private long retainedBytes;
+    private long spilledBytes;
+
+    public RetainedResponseStats(String serviceName)
+    {
+        this.serviceName = serviceName;
+    }
+
+    void add(int inMemory, long spilled)
+    {
+        this.count++;
+        this.retainedBytes += inMemory;
+        this.spilledBytes += spilled;
+    }
+
+    public String getServiceName()
+    {
+        return this.serviceName;
+    }
+
+    public int getCount()
+    {
+        return this.count;
+    }
+
+    public long getRetainedBytes()
+    {
+        return this.retainedBytes;
+    }
+
+    public long getSpilledBytes()
+    {
+        return this.spilledBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.serviceName + ": " + this.count + " results, " + this.retainedBytes + " bytes in memory, "
+                + this.spilledBytes + " bytes spilled";
+    }
+}
@@ -3,13 +3,24 @@ package com.gs.jrpip.server;
 import com.gs.jrpip.MethodResolver;
 import com.gs.jrpip.util.stream.OutputStreamBuilder;
 
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 class ServiceDefinition
 {
+    public static final long DEFAULT_MAX_QUEUE_WAIT = 10000L;
+
     private final Object service;
     private Class serviceInterface;
     private final MethodResolver methodResolver;
     private final boolean isVmBound;
     private final OutputStreamBuilder outputStreamBuilder;
+    private Semaphore permits;
+    private int maxQueued;
+    private long maxQueueWaitMillis = DEFAULT_MAX_QUEUE_WAIT;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
 
     protected ServiceDefinition(
             Object service,
@@ -52,4 +63,68 @@ class ServiceDefinition
     {
         return this.isVmBound;
     }
+
+    /**
+     * @param maxConcurrent the maximum number of concurrent invocations. 0 means no limit.
+     * @param maxQueued the number of requests that may wait for an invocation slot. Requests beyond that are rejected.
+     * @param maxQueueWaitMillis how long a request waits for a slot before it's rejected
+     */
+    public void setConcurrencyLimit(int maxConcurrent, int maxQueued, long maxQueueWaitMillis)
+    {
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        this.maxQueued = maxQueued;
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+    }
+
+    /**
+     * Takes an invocation slot, waiting for one if the queue isn't full. Must be followed by {@link #release()}
+     * if it returns true.
+     *
+     * @return false if the request should be rejected: the queue is full, no slot freed up in time, or the thread
+     * was interrupted while waiting (the interrupt flag is kept)
+     */
+    public boolean admit()
+    {
+        if (this.permits == null || this.permits.tryAcquire())
+        {
+            return true;
+        }
+        if (this.queued.incrementAndGet() > this.maxQueued)
+        {
+            this.queued.decrementAndGet();
+            this.rejected.incrementAndGet();
+            return false;
+        }
+        boolean admitted = false;
+        try
+        {
+            admitted = this.permits.tryAcquire(this.maxQueueWaitMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            this.queued.decrementAndGet();
+        }
+        if (!admitted)
+        {
+            this.rejected.incrementAndGet();
+        }
+        return admitted;
+    }
+
+    public void release()
+    {
+        if (this.permits != null)
+        {
+            this.permits.release();
+        }
+    }
+
+    public int getRejectedCount()
+    {
+        return this.rejected.get();
+    }
 }
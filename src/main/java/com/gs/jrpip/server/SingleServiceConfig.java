@@ -8,6 +8,9 @@ public class SingleServiceConfig
     private final Class serviceClass;
     private Object serviceInstance;
     private final boolean isVmBound;
+    private int maxConcurrent;
+    private int maxQueued;
+    private long maxQueueWaitMillis = ServiceDefinition.DEFAULT_MAX_QUEUE_WAIT;
 
     public SingleServiceConfig(Class serviceInterface, Class serviceClass, boolean isVmBound)
     {
@@ -39,6 +42,33 @@ public class SingleServiceConfig
         return isVmBound;
     }
 
+    public int getMaxConcurrent()
+    {
+        return maxConcurrent;
+    }
+
+    public int getMaxQueued()
+    {
+        return maxQueued;
+    }
+
+    public long getMaxQueueWaitMillis()
+    {
+        return maxQueueWaitMillis;
+    }
+
+    public void setConcurrencyLimit(int maxConcurrent, int maxQueued)
+    {
+        this.setConcurrencyLimit(maxConcurrent, maxQueued, ServiceDefinition.DEFAULT_MAX_QUEUE_WAIT);
+    }
+
+    public void setConcurrencyLimit(int maxConcurrent, int maxQueued, long maxQueueWaitMillis)
+    {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+    }
+
     public synchronized Object getOrConstructService()
     {
         if (this.serviceInstance == null)
@@ -23,9 +23,12 @@ import com.gs.jrpip.MethodResolver;
 import com.gs.jrpip.RequestId;
 import com.gs.jrpip.client.JrpipRuntimeException;
 import com.gs.jrpip.client.JrpipVmBoundException;
+import com.gs.jrpip.codec.JrpipCodec;
 import com.gs.jrpip.util.*;
+import com.gs.jrpip.util.stream.ClassDescriptorTableInput;
 import com.gs.jrpip.util.stream.CopyOnReadInputStream;
 import com.gs.jrpip.util.stream.OutputStreamBuilder;
+import com.gs.jrpip.util.stream.PrimitiveLayout;
 import com.gs.jrpip.util.stream.VirtualOutputStream;
 import com.gs.jrpip.util.stream.VirtualOutputStreamFactory;
 import org.slf4j.Logger;
@@ -37,17 +40,36 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SocketServer
 {
@@ -55,24 +77,48 @@ public class SocketServer
 
     private static final AtomicInteger CLIENT_ID = new AtomicInteger((int) (Math.random() * 20000.0) * 100000);
     private static final AtomicInteger SOCKET_COUNT = new AtomicInteger();
+    private static final AtomicLong LAST_START_TIME = new AtomicLong();
     private static long vmId;
 
     private SocketServerConfig config;
 
     private final HashMap<String, ServiceDefinition> serviceMap = new HashMap<>();
+    private final ArrayList<ServiceDefinition> servicesById = new ArrayList<>();
     private final ListenerRegistry listeners = new ListenerRegistry();
 
     private AtomicInteger pings = new AtomicInteger();
     private AtomicInteger methodInvocations = new AtomicInteger();
+    private AtomicInteger batchRequests = new AtomicInteger();
+    private AtomicInteger invocationsById = new AtomicInteger();
+    private AtomicInteger methodTables = new AtomicInteger();
+    private AtomicInteger codecInvocations = new AtomicInteger();
+    private AtomicInteger classTableInvocations = new AtomicInteger();
+    private AtomicInteger primitiveInvocations = new AtomicInteger();
+    private AtomicInteger streamedInvocations = new AtomicInteger();
     private AtomicInteger thankYous = new AtomicInteger();
+    private AtomicInteger piggybackedThankYous = new AtomicInteger();
     private AtomicInteger resendRequests = new AtomicInteger();
+    private AtomicInteger busyRequests = new AtomicInteger();
+    private AtomicInteger tooLargeRequests = new AtomicInteger();
+    private AtomicInteger activeRequests = new AtomicInteger();
     private long startTime;
     private final HashSet<String> registeredUrls = new HashSet<>();
     private boolean binaryLoggingEnabled;
     private volatile boolean listening;
+    private volatile boolean draining;
     private int port;
-    private SocketServerThread socketServerThread;
+    private Thread socketServerThread;
+    private NioSocketServerThread unixSocketServerThread;
+    private NioEventLoop[] eventLoops;
+    private Executor workers;
+    private ExecutorService ownedWorkers;
+    private Executor invocationExecutor;
+    private ExecutorService ownedInvocationPool;
     private ConcurrentHashMap<String, UserNonces> userNonces = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<Long, SessionTicket> sessionTickets = new ConcurrentHashMap<>();
+    private AtomicInteger issuedTickets = new AtomicInteger();
+    private AtomicInteger resumedSessions = new AtomicInteger();
+    private final SecureRandom ticketIds = new SecureRandom();
 
     private ConcurrentHashMap<ServerSocketHandler, Object> hanlders = new ConcurrentHashMap();
 
@@ -100,7 +146,8 @@ public class SocketServer
      */
     public void start() throws IOException
     {
-        this.startTime = System.currentTimeMillis();
+        // clients tell server instances apart by the vm id and start time, so no two servers of a vm share one
+        this.startTime = LAST_START_TIME.accumulateAndGet(System.currentTimeMillis(), (last, now) -> Math.max(last + 1, now));
 
         initConfig();
 
@@ -114,8 +161,14 @@ public class SocketServer
 
     private void initSocketServer() throws IOException
     {
+        if (this.config.isNonBlockingIo())
+        {
+            this.initNioSocketServer();
+            return;
+        }
         this.port = this.config.getPort();
         ServerSocket socket;
+        ServerSocketChannel unixChannel;
         synchronized (this)
         {
             socket = new ServerSocket(port);
@@ -127,18 +180,102 @@ public class SocketServer
             {
                 port = socket.getLocalPort();
             }
+            unixChannel = this.bindUnixSocket();
+            this.initWorkers();
+            if (unixChannel != null)
+            {
+                // only the unix domain connections go through the event loops
+                this.initEventLoops();
+            }
             listening = true;
             this.notifyAll();
         }
         this.socketServerThread = new SocketServerThread(socket);
         socketServerThread.start();
+        if (unixChannel != null)
+        {
+            this.unixSocketServerThread = new NioSocketServerThread(null, unixChannel);
+            this.unixSocketServerThread.start();
+        }
+    }
+
+    private ServerSocketChannel bindUnixSocket() throws IOException
+    {
+        if (this.config.getUnixSocketPath() == null)
+        {
+            return null;
+        }
+        Files.deleteIfExists(Paths.get(this.config.getUnixSocketPath()));
+        return UnixDomainSockets.bind(this.config.getUnixSocketPath());
+    }
+
+    private void initEventLoops() throws IOException
+    {
+        NioConversationHandler handler = new NioConversationHandler();
+        this.eventLoops = new NioEventLoop[this.config.getSelectorThreads()];
+        for (int i = 0; i < this.eventLoops.length; i++)
+        {
+            this.eventLoops[i] = new NioEventLoop("JrpipSelector-" + i + " Port " + port, handler, config.getIdleSocketCloseTime(),
+                    config.getMaxRequestSize());
+            this.eventLoops[i].start();
+        }
+    }
+
+    private void initNioSocketServer() throws IOException
+    {
+        this.port = this.config.getPort();
+        ServerSocketChannel serverChannel;
+        ServerSocketChannel unixChannel;
+        synchronized (this)
+        {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            if (port == 0)
+            {
+                port = serverChannel.socket().getLocalPort();
+            }
+            unixChannel = this.bindUnixSocket();
+            this.initWorkers();
+            this.initEventLoops();
+            listening = true;
+            this.notifyAll();
+        }
+        this.socketServerThread = new NioSocketServerThread(serverChannel, unixChannel);
+        socketServerThread.start();
+    }
+
+    /**
+     * Called once the port is known, which names the threads.
+     */
+    private void initWorkers()
+    {
+        this.invocationExecutor = this.config.getInvocationExecutor();
+        if (this.invocationExecutor == null && this.config.getInvocationThreads() > 0)
+        {
+            this.ownedInvocationPool = Executors.newFixedThreadPool(this.config.getInvocationThreads(),
+                    new JrpipThreadFactory("JrpipInvoker Port " + port));
+            this.invocationExecutor = this.ownedInvocationPool;
+        }
+        this.workers = this.invocationExecutor;
+        if (this.workers == null)
+        {
+            this.ownedWorkers = Executors.newCachedThreadPool(new JrpipThreadFactory("JrpipSocketWorker Port " + port));
+            this.workers = this.ownedWorkers;
+        }
     }
 
     public void stop()
     {
         if (this.socketServerThread != null)
         {
-            this.socketServerThread.shutdown();
+            if (this.socketServerThread instanceof NioSocketServerThread)
+            {
+                ((NioSocketServerThread) this.socketServerThread).shutdown();
+            }
+            else
+            {
+                ((SocketServerThread) this.socketServerThread).shutdown();
+            }
             try
             {
                 this.socketServerThread.join();
@@ -148,12 +285,122 @@ public class SocketServer
                 //ignore
             }
         }
+        if (this.unixSocketServerThread != null)
+        {
+            this.unixSocketServerThread.shutdown();
+            try
+            {
+                this.unixSocketServerThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                //ignore
+            }
+        }
+        if (!this.draining)
+        {
+            this.shutdownInvocationPool();
+        }
+    }
+
+    /**
+     * Lets the methods already handed to the pool finish.
+     */
+    private void shutdownInvocationPool()
+    {
+        if (this.ownedInvocationPool != null)
+        {
+            this.ownedInvocationPool.shutdown();
+        }
+    }
+
+    /**
+     * Stops accepting connections and lets the requests in progress finish. Idle connections are closed right away;
+     * busy ones are closed after their response, which tells newer clients not to reuse the connection.
+     * Connections still open at the deadline are terminated.
+     * @param timeoutMillis how long to wait for the requests in progress
+     * @return true if all connections were closed before the deadline
+     */
+    public boolean drain(long timeoutMillis)
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        this.draining = true;
+        this.stop();
+        if (this.eventLoops != null)
+        {
+            for (NioEventLoop eventLoop : this.eventLoops)
+            {
+                eventLoop.closeWhenIdle();
+            }
+        }
+        long lastLogTime = 0;
+        while (true)
+        {
+            this.closeIdleConnections();
+            int connections = this.getConnectionCount();
+            if (connections == 0)
+            {
+                LOGGER.info("Drained port " + port);
+                this.shutdownInvocationPool();
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now >= deadline)
+            {
+                LOGGER.warn("Could not drain port " + port + " in " + timeoutMillis + " ms. Terminating " + connections
+                        + " connections with " + this.getActiveRequests() + " requests in progress");
+                this.terminateConnections();
+                this.shutdownInvocationPool();
+                return false;
+            }
+            if (now - lastLogTime >= 1000)
+            {
+                LOGGER.info("Draining port " + port + ": " + connections + " connections, "
+                        + this.getActiveRequests() + " requests in progress");
+                lastLogTime = now;
+            }
+            try
+            {
+                Thread.sleep(Math.min(50, deadline - now));
+            }
+            catch (InterruptedException e)
+            {
+                //ignore
+            }
+        }
+    }
+
+    private void closeIdleConnections()
+    {
+        for (ServerSocketHandler ssh: this.hanlders.keySet())
+        {
+            if (ssh.isIdle())
+            {
+                quietlyClose(ssh.socket);
+            }
+        }
+    }
+
+    public boolean isDraining()
+    {
+        return this.draining;
     }
 
     public void stopAndTerminateConnections()
     {
         this.stop();
         this.terminateConnections();
+        if (this.eventLoops != null)
+        {
+            for (NioEventLoop eventLoop : this.eventLoops)
+            {
+                eventLoop.shutdown();
+            }
+        }
+        if (this.ownedWorkers != null)
+        {
+            this.ownedWorkers.shutdown();
+        }
     }
 
     public void terminateConnections()
@@ -169,6 +416,13 @@ public class SocketServer
 
             }
         }
+        if (this.eventLoops != null)
+        {
+            for (NioEventLoop eventLoop : this.eventLoops)
+            {
+                eventLoop.closeAllConnections();
+            }
+        }
     }
 
     public synchronized void waitForStartup()
@@ -207,6 +461,7 @@ public class SocketServer
             ServiceDefinition value = new ServiceDefinition(service, methodResolver,
                     this.initializeOutputStreamBuilder(interfaceClass), cfg.isVmBound());
             value.setServiceInterface(interfaceClass);
+            value.setConcurrencyLimit(cfg.getMaxConcurrent(), cfg.getMaxQueued(), cfg.getMaxQueueWaitMillis());
             this.serviceMap.put(interfaceClass.getName(), value);
         }
         if (this.serviceMap.isEmpty())
@@ -214,6 +469,7 @@ public class SocketServer
             throw new JrpipRuntimeException(
                     "No configuration found!");
         }
+        this.servicesById.addAll(this.serviceMap.values());
     }
 
     private OutputStreamBuilder initializeOutputStreamBuilder(Class interfaceClass)
@@ -291,6 +547,197 @@ public class SocketServer
         }
     }
 
+    private class NioSocketServerThread extends Thread
+    {
+        private final ServerSocketChannel serverChannel;
+        private final ServerSocketChannel unixChannel;
+        private volatile boolean shutdown;
+
+        /**
+         * @param serverChannel the tcp channel, null if tcp connections are served by a blocking listener
+         */
+        public NioSocketServerThread(ServerSocketChannel serverChannel, ServerSocketChannel unixChannel)
+        {
+            super(serverChannel == null ? "JrpipSockerServer NIO " + config.getUnixSocketPath() : "JrpipSockerServer NIO Port "+port);
+            this.serverChannel = serverChannel;
+            this.unixChannel = unixChannel;
+        }
+
+        public void shutdown()
+        {
+            this.shutdown = true;
+        }
+
+        @Override
+        public void run()
+        {
+            long lastLogTime = System.currentTimeMillis();
+            String interfaces = "";
+            for (Object o : serviceMap.keySet())
+            {
+                interfaces += o + " ; ";
+            }
+            LOGGER.info("Waiting for connections (non-blocking) on "
+                    + (serverChannel == null ? "" : "port " + port + (unixChannel == null ? "" : " and "))
+                    + (unixChannel == null ? "" : config.getUnixSocketPath())
+                    + " server id is: " + vmId + " Servicing interfaces: "+interfaces);
+            Selector acceptSelector = null;
+            int next = 0;
+            try
+            {
+                acceptSelector = Selector.open();
+                if (this.serverChannel != null)
+                {
+                    this.serverChannel.configureBlocking(false);
+                    this.serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+                }
+                if (this.unixChannel != null)
+                {
+                    this.unixChannel.configureBlocking(false);
+                    this.unixChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+                }
+                while (!shutdown)
+                {
+                    acceptSelector.select(config.getServerSocketTimeout());
+                    for (SelectionKey key : acceptSelector.selectedKeys())
+                    {
+                        ServerSocketChannel acceptingChannel = (ServerSocketChannel) key.channel();
+                        SocketChannel incoming;
+                        while ((incoming = acceptingChannel.accept()) != null)
+                        {
+                            eventLoops[next].register(incoming);
+                            next = (next + 1) % eventLoops.length;
+                        }
+                    }
+                    acceptSelector.selectedKeys().clear();
+                    if (this.serverChannel != null && config.getLogStatsInterval() > 0
+                            && System.currentTimeMillis() > lastLogTime + config.getLogStatsInterval())
+                    {
+                        logStats();
+                        lastLogTime = System.currentTimeMillis();
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                LOGGER.error("Could not accept incoming socket. Quitting!", e);
+            }
+            finally
+            {
+                quietlyClose(acceptSelector);
+                quietlyClose(serverChannel);
+                if (this.unixChannel != null)
+                {
+                    quietlyClose(this.unixChannel);
+                    try
+                    {
+                        Files.deleteIfExists(Paths.get(config.getUnixSocketPath()));
+                    }
+                    catch (IOException e)
+                    {
+                        LOGGER.debug("Could not delete " + config.getUnixSocketPath(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands complete conversations from the selector threads to the worker pool. Conversations on a single
+     * connection are processed one at a time, in the order they arrived, unless the connection is multiplexed.
+     */
+    private class NioConversationHandler implements NioEventLoop.ConversationHandler
+    {
+        @Override
+        public void conversationReceived(final NioEventLoop.NioConnection connection, final byte[] payload, final int length,
+                final boolean tooLarge)
+        {
+            connection.beginConversation();
+            final ConnectionProcessor processor = getOrCreateProcessor(connection);
+            Runnable task = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    processNioConversation(connection, processor, payload, length, tooLarge);
+                }
+            };
+            if (processor.multiplexed)
+            {
+                workers.execute(task);
+            }
+            else
+            {
+                processor.enqueue(task);
+            }
+        }
+
+        @Override
+        public void connectionClosed(NioEventLoop.NioConnection connection)
+        {
+        }
+
+        private ConnectionProcessor getOrCreateProcessor(NioEventLoop.NioConnection connection)
+        {
+            ConnectionProcessor processor = (ConnectionProcessor) connection.getAttachment();
+            if (processor == null)
+            {
+                processor = new ConnectionProcessor(connection.getRemoteAddress());
+                connection.setAttachment(processor);
+            }
+            return processor;
+        }
+    }
+
+    private void processNioConversation(NioEventLoop.NioConnection connection, ConnectionProcessor processor, byte[] payload, int length,
+            boolean tooLarge)
+    {
+        boolean sent = false;
+        try
+        {
+            NioEventLoop.FramedOutputStream response = new NioEventLoop.FramedOutputStream(connection);
+            if (tooLarge)
+            {
+                processor.rejectTooLarge(payload, length, response);
+            }
+            else if (processor.multiplexed)
+            {
+                processor.processMultiplexed(payload, length, response);
+            }
+            else
+            {
+                if (length == 0)
+                {
+                    throw new EOFException();
+                }
+                processor.processRequest(payload[0], new ByteArrayInputStream(payload, 1, length - 1), response);
+            }
+            connection.send(response);
+            sent = true;
+        }
+        catch (Throwable t)
+        {
+            if (t instanceof IOException || t instanceof ClassNotFoundException)
+            {
+                LOGGER.warn("Exception while handling incoming socket. Turn on debug to see stack trace " +
+                        t.getClass().getName() + ": " + t.getMessage());
+                LOGGER.debug("Exception while handling incoming socket", t);
+            }
+            else
+            {
+                LOGGER.error("Unexpected exception: ", t);
+            }
+        }
+        finally
+        {
+            if (!sent)
+            {
+                connection.abortConversation();
+                connection.close();
+            }
+        }
+    }
+
     private class ServerSocketHandler extends Thread
     {
         private static final int WAITING_FOR_TYPE = 2;
@@ -298,11 +745,8 @@ public class SocketServer
         private final Socket socket;
         private BlockInputStream inputStream;
         private BlockOutputStream outputStream;
-        private boolean authorized = false;
-        private String username;
-        private AuthGenerator authGenerator;
-        private CipherOutputStream128 cos;
-        private CipherInputStream128 cis;
+        private ConnectionProcessor processor;
+        private volatile boolean idle = true;
 
         public ServerSocketHandler(Socket socket)
         {
@@ -310,6 +754,11 @@ public class SocketServer
             this.socket = socket;
         }
 
+        public boolean isIdle()
+        {
+            return this.idle && (this.processor == null || this.processor.inFlight.get() == 0);
+        }
+
         @Override
         public void run()
         {
@@ -322,16 +771,33 @@ public class SocketServer
                 this.socket.setSoTimeout(config.getIdleSocketCloseTime());
                 inputStream = new BlockInputStream(socket.getInputStream());
                 outputStream = new BlockOutputStream(socket.getOutputStream());
+                processor = new ConnectionProcessor(socket.getRemoteSocketAddress().toString());
+                processor.invocationExecutor = SocketServer.this.invocationExecutor;
                 while(true)
                 {
                     state = WAITING_FOR_TYPE;
                     inputStream.beginConversation();
+                    if (processor.multiplexed)
+                    {
+                        if (this.readMultiplexed())
+                        {
+                            state = READING_REQUEST;
+                            this.inputStream.endConversation();
+                        }
+                        continue;
+                    }
                     outputStream.beginConversation();
+                    this.idle = true;
                     byte requestType = inputStream.readByte();
+                    this.idle = false;
                     state = READING_REQUEST;
-                    processRequest(requestType);
+                    processor.processRequest(requestType, inputStream, outputStream);
                     this.inputStream.endConversation();
                     this.outputStream.endConversation();
+                    if (draining)
+                    {
+                        break;
+                    }
                 }
             }
             catch(ClassNotFoundException cnfe)
@@ -361,25 +827,402 @@ public class SocketServer
                     LOGGER.debug("IOException while handling incoming socket", ioe);
                 }
             }
-            catch (Throwable t)
+            catch (Throwable t)
+            {
+                LOGGER.error("Unexpected exception: ", t);
+            }
+            finally
+            {
+                quietlyClose(socket);
+                try
+                {
+                    SocketServer.this.hanlders.remove(this);
+                }
+                catch (Throwable ignore)
+                {
+
+                }
+            }
+        }
+
+        /**
+         * Reads a whole multiplexed conversation and hands it to a worker, so the next one can be read while
+         * this one is being processed.
+         * @return false if the read timed out while other conversations were still in progress
+         */
+        private boolean readMultiplexed() throws IOException
+        {
+            int first;
+            try
+            {
+                this.idle = true;
+                first = this.inputStream.read();
+                this.idle = false;
+            }
+            catch (SocketTimeoutException e)
+            {
+                if (this.processor.inFlight.get() > 0)
+                {
+                    return false;
+                }
+                throw e;
+            }
+            if (first < 0)
+            {
+                throw new EOFException();
+            }
+            int maxRequestSize = config.getMaxRequestSize();
+            byte[] conversation = new byte[Math.min(256, maxRequestSize)];
+            conversation[0] = (byte) first;
+            int length = 1;
+            boolean tooLarge = false;
+            while (true)
+            {
+                if (length == conversation.length)
+                {
+                    if (length == maxRequestSize)
+                    {
+                        tooLarge = this.skipConversation() > 0;
+                        break;
+                    }
+                    conversation = Arrays.copyOf(conversation, (int) Math.min((long) length << 1, maxRequestSize));
+                }
+                int read = this.inputStream.read(conversation, length, conversation.length - length);
+                if (read < 0)
+                {
+                    break;
+                }
+                length += read;
+            }
+            final byte[] request = conversation;
+            final int requestLength = length;
+            final boolean rejected = tooLarge;
+            this.processor.inFlight.incrementAndGet();
+            workers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    writeMultiplexed(request, requestLength, rejected);
+                }
+            });
+            return true;
+        }
+
+        /**
+         * reads the rest of a conversation that is too large to keep.
+         * @return the number of bytes skipped
+         */
+        private long skipConversation() throws IOException
+        {
+            byte[] scratch = new byte[8192];
+            long skipped = 0;
+            int read;
+            while ((read = this.inputStream.read(scratch)) >= 0)
+            {
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        private void writeMultiplexed(byte[] request, int length, boolean tooLarge)
+        {
+            try
+            {
+                ByteArrayOutputStream response = new ByteArrayOutputStream(256);
+                if (tooLarge)
+                {
+                    this.processor.rejectTooLarge(request, length, response);
+                }
+                else
+                {
+                    this.processor.processMultiplexed(request, length, response);
+                }
+                synchronized (this.outputStream)
+                {
+                    this.outputStream.beginConversation();
+                    response.writeTo(this.outputStream);
+                    this.outputStream.endConversation();
+                }
+            }
+            catch (Throwable t)
+            {
+                LOGGER.warn("Exception while handling multiplexed request. Turn on debug to see stack trace " +
+                        t.getClass().getName() + ": " + t.getMessage());
+                LOGGER.debug("Exception while handling multiplexed request", t);
+                quietlyClose(this.socket);
+            }
+            finally
+            {
+                if (this.processor.inFlight.decrementAndGet() == 0 && draining)
+                {
+                    quietlyClose(this.socket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Protocol state for a single client connection: authentication, encryption and the handling of each
+     * request type. The streams are set by the owner for each conversation.
+     */
+    private class ConnectionProcessor
+    {
+        private final String remoteAddress;
+        private boolean authorized = false;
+        private String username;
+        private AuthGenerator authGenerator;
+        private byte[] keyIv;
+        private CipherOutputStream128 cos;
+        private CipherInputStream128 cis;
+        private ClassDescriptorTableInput classTable;
+        private List<JrpipCodec> codecs;
+        private Executor invocationExecutor;
+        private volatile boolean multiplexed;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final ArrayDeque<Runnable> pending = new ArrayDeque<Runnable>();
+        private boolean running;
+
+        public ConnectionProcessor(String remoteAddress)
+        {
+            this.remoteAddress = remoteAddress;
+        }
+
+        /**
+         * runs the task on the worker pool, after any task already queued for this connection.
+         */
+        public void enqueue(Runnable task)
+        {
+            synchronized (this.pending)
+            {
+                this.pending.add(task);
+                if (this.running)
+                {
+                    return;
+                }
+                this.running = true;
+            }
+            workers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runPending();
+                }
+            });
+        }
+
+        private void runPending()
+        {
+            while (true)
+            {
+                Runnable task;
+                synchronized (this.pending)
+                {
+                    task = this.pending.poll();
+                    if (task == null)
+                    {
+                        this.running = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+
+        /**
+         * Answers a request that was larger than the server accepts. Only its first bytes were kept: enough for the
+         * stream id of a multiplexed request and the request type.
+         */
+        private void rejectTooLarge(byte[] head, int length, OutputStream outputStream) throws IOException
+        {
+            int typeOffset = this.multiplexed ? 4 : 0;
+            if (length <= typeOffset)
+            {
+                throw new EOFException();
+            }
+            tooLargeRequests.incrementAndGet();
+            LOGGER.warn("Rejected a request larger than " + config.getMaxRequestSize() + " bytes from " + this.remoteAddress);
+            outputStream.write(head, 0, typeOffset);
+            if (StreamBasedInvocator.hasOptions(head[typeOffset]))
+            {
+                outputStream.write(draining ? StreamBasedInvocator.CLOSE_NOTICE : 0);
+            }
+            outputStream.write(StreamBasedInvocator.REQUEST_TOO_LARGE);
+        }
+
+        /**
+         * A multiplexed conversation is a stream id followed by a regular request. The response starts with the same id.
+         */
+        private void processMultiplexed(byte[] conversation, int length, OutputStream outputStream) throws IOException, ClassNotFoundException
+        {
+            if (length <= 4)
+            {
+                throw new EOFException();
+            }
+            outputStream.write(conversation, 0, 4);
+            this.processRequest(conversation[4], new ByteArrayInputStream(conversation, 5, length - 5), outputStream);
+        }
+
+        private void processRequest(byte requestType, InputStream inputStream, OutputStream outputStream) throws IOException, ClassNotFoundException
+        {
+            activeRequests.incrementAndGet();
+            try
+            {
+                JrpipCodec codec = null;
+                boolean primitive = false;
+                boolean streamed = false;
+                boolean knownInstance = false;
+                if (StreamBasedInvocator.hasOptions(requestType))
+                {
+                    int requestOptions = this.readOptions(inputStream, outputStream);
+                    requestType = StreamBasedInvocator.withoutOptions(requestType);
+                    if ((requestOptions & StreamBasedInvocator.THANK_YOU_OPTION) != 0)
+                    {
+                        this.readThankYouOption(new DataInputStream(inputStream));
+                    }
+                    if ((requestOptions & StreamBasedInvocator.CODEC_OPTION) != 0)
+                    {
+                        codec = this.readCodec(inputStream);
+                    }
+                    if ((requestOptions & StreamBasedInvocator.PRIMITIVE_OPTION) != 0)
+                    {
+                        // granted to any connection of a client that learned of it, so resends on new sockets match
+                        if (binaryLoggingEnabled)
+                        {
+                            throw new IOException("Primitive calls are not accepted with binary logging");
+                        }
+                        primitive = true;
+                    }
+                    if ((requestOptions & StreamBasedInvocator.STREAMED_RESULT_OPTION) != 0)
+                    {
+                        if (binaryLoggingEnabled)
+                        {
+                            throw new IOException("Streamed results are not accepted with binary logging");
+                        }
+                        streamed = true;
+                    }
+                    if ((requestOptions & StreamBasedInvocator.KNOWN_INSTANCE_OPTION) != 0)
+                    {
+                        DataInputStream dis = new DataInputStream(inputStream);
+                        long requestVmId = dis.readLong();
+                        long requestStartTime = dis.readLong();
+                        knownInstance = requestVmId == vmId && requestStartTime == startTime;
+                    }
+                    if ((requestOptions & StreamBasedInvocator.RESUME_SESSION_OPTION) != 0
+                            && !this.resumeSession(new DataInputStream(inputStream), StreamBasedInvocator.hasEncryption(requestType)))
+                    {
+                        outputStream.write(StreamBasedInvocator.SESSION_EXPIRED);
+                        return;
+                    }
+                }
+                this.serviceRequest(requestType, codec, primitive, streamed, knownInstance, inputStream, outputStream);
+            }
+            finally
+            {
+                activeRequests.decrementAndGet();
+            }
+        }
+
+        /**
+         * The response options tell the client whether it can keep the connection.
+         * @return the request options
+         */
+        private int readOptions(InputStream inputStream, OutputStream outputStream) throws IOException
+        {
+            int requestOptions = inputStream.read();
+            if (requestOptions < 0)
+            {
+                throw new EOFException();
+            }
+            outputStream.write(draining ? StreamBasedInvocator.CLOSE_NOTICE : 0);
+            return requestOptions;
+        }
+
+        private JrpipCodec readCodec(InputStream inputStream) throws IOException
+        {
+            int codecId = inputStream.read();
+            if (codecId < 0)
+            {
+                throw new EOFException();
+            }
+            if (this.codecs == null || codecId >= this.codecs.size())
+            {
+                throw new IOException("No codec with id:" + codecId);
+            }
+            return this.codecs.get(codecId);
+        }
+
+        /**
+         * Thank you notes that came along with another request; they don't get a response of their own.
+         */
+        private void readThankYouOption(DataInputStream dis) throws IOException
+        {
+            piggybackedThankYous.incrementAndGet();
+            int thankYouNotes = dis.readInt();
+            for (int i = 0; i < thankYouNotes; i++)
+            {
+                int clientIp = dis.readInt();
+                long proxyId = dis.readLong();
+                int transactionId = dis.readInt();
+                ContextCache.getInstance().removeContext(new RequestId(clientIp, proxyId, transactionId));
+            }
+        }
+
+        private boolean resumeSession(DataInputStream dis, boolean encrypt) throws IOException
+        {
+            long ticketId = dis.readLong();
+            long challenge = dis.readLong();
+            int encoded = dis.readInt();
+            SessionTicket ticket = sessionTickets.get(ticketId);
+            if (ticket == null || ticket.isExpired())
+            {
+                return false;
+            }
+            if (encrypt != (ticket.keyIv != null) || !ticket.verify(challenge, encoded))
+            {
+                return false;
+            }
+            this.authorized = true;
+            this.username = ticket.username;
+            this.authGenerator = ticket.authGenerator;
+            if (encrypt && this.cos == null)
             {
-                LOGGER.error("Unexpected exception: ", t);
+                this.initCiphers(AuthGenerator.deriveKeyIv(ticket.keyIv, challenge));
             }
-            finally
+            resumedSessions.incrementAndGet();
+            return true;
+        }
+
+        private void initCiphers(byte[] keyIv)
+        {
+            try
             {
-                quietlyClose(socket);
-                try
-                {
-                    SocketServer.this.hanlders.remove(this);
-                }
-                catch (Throwable ignore)
-                {
+                SecretKey key = new SecretKeySpec(keyIv, 0, 16, "AES");
+                IvParameterSpec iv = new IvParameterSpec(keyIv, 16, 16);
+                Cipher enc = Cipher.getInstance("AES/CBC/NoPadding");
+                enc.init(Cipher.ENCRYPT_MODE, key, iv);
 
-                }
+                Cipher dec = Cipher.getInstance("AES/CBC/NoPadding");
+                dec.init(Cipher.DECRYPT_MODE, key, iv);
+
+                this.cos = new CipherOutputStream128(null, enc);
+                this.cis = new CipherInputStream128(null, dec);
+            }
+            catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IOException e)
+            {
+                throw new RuntimeException("Shouldn't get here", e);
             }
         }
 
-        private void processRequest(byte requestType) throws IOException, ClassNotFoundException
+        /**
+         * @param codec     the codec of the invocation body and its result, or null for java serialization
+         * @param primitive the invocation is in the primitive layout
+         * @param streamed  the client reads a streamed result element by element
+         * @param knownInstance an init names this server instance, whose tables the client kept
+         */
+        private void serviceRequest(byte requestType, JrpipCodec codec, boolean primitive, boolean streamed, boolean knownInstance,
+                InputStream inputStream, OutputStream outputStream) throws IOException, ClassNotFoundException
         {
             if (requestType == StreamBasedInvocator.PING_REQUEST)
             {
@@ -392,12 +1235,12 @@ public class SocketServer
             boolean hasEncryption = StreamBasedInvocator.hasEncryption(requestType);
             if (reqTypeWithoutMasks == StreamBasedInvocator.INIT_REQUEST)
             {
-                this.serviceInitRequest(hasAuth, hasEncryption);
+                this.serviceInitRequest(hasAuth, hasEncryption, knownInstance, inputStream, outputStream);
                 return;
             }
             if (hasAuth)
             {
-                if (!verifyAuth(true, new DataInputStream(this.inputStream), hasEncryption))
+                if (!verifyAuth(true, new DataInputStream(inputStream), hasEncryption, outputStream))
                 {
                     return;
                 }
@@ -405,7 +1248,7 @@ public class SocketServer
             boolean compressed = StreamBasedInvocator.hasCompression(requestType) ||
                 requestType == StreamBasedInvocator.THANK_YOU_REQUEST;
             FixedInflaterInputStream zipped = null;
-            InputStream is = this.inputStream;
+            InputStream is = inputStream;
             if (hasEncryption)
             {
                 this.cis.reset(is);
@@ -424,33 +1267,51 @@ public class SocketServer
                     case StreamBasedInvocator.INVOKE_REQUEST:
                         if (config.requiresAuth() && !authorized)
                         {
-                            this.outputStream.write(StreamBasedInvocator.AUTH_FAILED);
+                            outputStream.write(StreamBasedInvocator.AUTH_FAILED);
                             return;
                         }
                         if (binaryLoggingEnabled)
                         {
                             CopyOnReadInputStream copyOnReadInputStream = new CopyOnReadInputStream(is);
                             in = new ObjectInputStream(copyOnReadInputStream);
-                            this.serviceInvokeRequest(in, copyOnReadInputStream, compressed);
+                            this.serviceInvokeRequest(in, copyOnReadInputStream, compressed, false, null, false, false, outputStream);
                         }
                         else
                         {
-                            in = new ObjectInputStream(is);
-                            this.serviceInvokeRequest(in, null, compressed);
+                            in = this.openInvocation(is, codec, primitive);
+                            this.serviceInvokeRequest(in, null, compressed, false, codec, primitive, streamed, outputStream);
+                        }
+                        break;
+                    case StreamBasedInvocator.INVOKE_BY_ID_REQUEST:
+                        if (config.requiresAuth() && !authorized)
+                        {
+                            outputStream.write(StreamBasedInvocator.AUTH_FAILED);
+                            return;
+                        }
+                        in = this.openInvocation(is, codec, primitive);
+                        this.serviceInvokeRequest(in, null, compressed, true, codec, primitive, streamed, outputStream);
+                        break;
+                    case StreamBasedInvocator.BATCH_REQUEST:
+                        if (config.requiresAuth() && !authorized)
+                        {
+                            outputStream.write(StreamBasedInvocator.AUTH_FAILED);
+                            return;
                         }
+                        in = this.openInvocation(is, codec, false);
+                        this.serviceBatchRequest(in, compressed, codec, outputStream);
                         break;
                     case StreamBasedInvocator.RESEND_REQUEST:
                         if (config.requiresAuth() && !authorized)
                         {
-                            this.outputStream.write(StreamBasedInvocator.AUTH_FAILED);
+                            outputStream.write(StreamBasedInvocator.AUTH_FAILED);
                             return;
                         }
                         in = new ObjectInputStream(is);
-                        this.serviceResendRequest(in);
+                        this.serviceResendRequest(in, outputStream);
                         break;
                     case StreamBasedInvocator.THANK_YOU_REQUEST:
                         in = new ObjectInputStream(is);
-                        this.serviceThankYou(in);
+                        this.serviceThankYou(in, outputStream);
                         break;
                 }
             }
@@ -464,9 +1325,33 @@ public class SocketServer
 
         }
 
-        private void serviceInitRequest(boolean auth, boolean encrypt) throws IOException
+        /**
+         * Invocation bodies sent over a class table start with the descriptors new to the connection, which are
+         * read before anything can turn the request away. Bodies written by a codec or in the primitive layout don't
+         * use the class table.
+         */
+        private ObjectInput openInvocation(InputStream is, JrpipCodec codec, boolean primitive) throws IOException, ClassNotFoundException
+        {
+            if (primitive)
+            {
+                return new PrimitiveLayout.Input(is);
+            }
+            if (codec != null)
+            {
+                return codec.createInput(is);
+            }
+            if (this.classTable != null)
+            {
+                classTableInvocations.incrementAndGet();
+                return this.classTable.startReading(is);
+            }
+            return new ObjectInputStream(is);
+        }
+
+        private void serviceInitRequest(boolean auth, boolean encrypt, boolean knownInstance, InputStream inputStream,
+                OutputStream outputStream) throws IOException
         {
-            DataInputStream dis = new DataInputStream(this.inputStream);
+            DataInputStream dis = new DataInputStream(inputStream);
             String url = dis.readUTF();
             synchronized (registeredUrls)
             {
@@ -480,15 +1365,103 @@ public class SocketServer
                     registeredUrls.add(url);
                 }
             }
-            if (!verifyAuth(auth, dis, encrypt)) return;
-            this.outputStream.write(StreamBasedInvocator.INIT_REQUEST);
+            if (!verifyAuth(auth, dis, encrypt, outputStream)) return;
+            int requestedCapabilities = StreamBasedInvocator.readCapabilities(inputStream);
+            int grantedCapabilities = 0;
+            if (!encrypt && (requestedCapabilities & StreamBasedInvocator.MULTIPLEX_CAPABILITY) != 0)
+            {
+                grantedCapabilities |= StreamBasedInvocator.MULTIPLEX_CAPABILITY;
+            }
+            grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.CLOSE_NOTICE_CAPABILITY;
+            grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.THANK_YOU_OPTION_CAPABILITY;
+            grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.BATCH_CAPABILITY;
+            grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.STREAMED_ARGUMENT_CAPABILITY;
+            grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.SERVER_INSTANCE_CAPABILITY;
+            if (!binaryLoggingEnabled)
+            {
+                // the binary logs record the method by name and the classes of every request
+                grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.METHOD_ID_CAPABILITY;
+                if ((grantedCapabilities & StreamBasedInvocator.MULTIPLEX_CAPABILITY) == 0)
+                {
+                    grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.CLASS_TABLE_CAPABILITY;
+                }
+                grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.CODEC_CAPABILITY;
+                grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.PRIMITIVE_CALL_CAPABILITY;
+                grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.RAW_BYTES_CAPABILITY;
+                grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.STREAMED_RESULT_CAPABILITY;
+            }
+            if (auth && config.getSessionTicketLifetime() > 0)
+            {
+                grantedCapabilities |= requestedCapabilities & StreamBasedInvocator.SESSION_TICKET_CAPABILITY;
+            }
+            DataOutputStream dos = new DataOutputStream(outputStream);
+            dos.writeByte(StreamBasedInvocator.INIT_REQUEST);
             int id = CLIENT_ID.incrementAndGet();
             long vmAndClientId = vmId | (long) id;
-            this.outputStream.writeLong(vmAndClientId);
-            this.outputStream.writeInt(config.getIdleSocketCloseTime());
+            dos.writeLong(vmAndClientId);
+            dos.writeInt(config.getIdleSocketCloseTime());
+            if (requestedCapabilities != 0)
+            {
+                dos.writeInt(grantedCapabilities);
+            }
+            if ((grantedCapabilities & StreamBasedInvocator.SESSION_TICKET_CAPABILITY) != 0)
+            {
+                SessionTicket ticket = issueTicket(this.username, this.authGenerator, this.keyIv);
+                dos.writeLong(ticket.id);
+                dos.writeInt(config.getSessionTicketLifetime());
+            }
+            boolean sendTables = true;
+            if ((grantedCapabilities & StreamBasedInvocator.SERVER_INSTANCE_CAPABILITY) != 0)
+            {
+                dos.writeLong(startTime);
+                // the client kept the tables this instance sent on an earlier connection
+                sendTables = !knownInstance;
+            }
+            if ((grantedCapabilities & StreamBasedInvocator.METHOD_ID_CAPABILITY) != 0 && sendTables)
+            {
+                methodTables.incrementAndGet();
+                writeMethodIds(dos);
+            }
+            this.codecs = null;
+            if ((grantedCapabilities & StreamBasedInvocator.CODEC_CAPABILITY) != 0)
+            {
+                this.codecs = new ArrayList<>(config.getCodecs());
+                if (sendTables)
+                {
+                    dos.writeInt(this.codecs.size());
+                    for (JrpipCodec codec : this.codecs)
+                    {
+                        dos.writeUTF(codec.getName());
+                    }
+                }
+            }
+            this.classTable = (grantedCapabilities & StreamBasedInvocator.CLASS_TABLE_CAPABILITY) != 0
+                    ? new ClassDescriptorTableInput() : null;
+            dos.flush();
+            if ((grantedCapabilities & StreamBasedInvocator.MULTIPLEX_CAPABILITY) != 0)
+            {
+                // conversations now run concurrently on the workers
+                this.invocationExecutor = null;
+                this.multiplexed = true;
+            }
         }
 
-        private boolean verifyAuth(boolean auth, DataInputStream dis, boolean encrypt) throws IOException
+        private void writeMethodIds(DataOutputStream dos) throws IOException
+        {
+            dos.writeInt(servicesById.size());
+            for (ServiceDefinition serviceDefinition : servicesById)
+            {
+                MethodResolver resolver = serviceDefinition.getMethodResolver();
+                dos.writeUTF(serviceDefinition.getServiceInterface().getName());
+                dos.writeInt(resolver.getMethodCount());
+                for (int i = 0; i < resolver.getMethodCount(); i++)
+                {
+                    dos.writeUTF(resolver.getMangledMethodName(resolver.getMethodFromId(i)));
+                }
+            }
+        }
+
+        private boolean verifyAuth(boolean auth, DataInputStream dis, boolean encrypt, OutputStream outputStream) throws IOException
         {
             boolean verified = false;
             String username = null;
@@ -521,9 +1494,9 @@ public class SocketServer
                     }
                 }
             }
-            else if (config.requiresAuth())
+            else if (config.requiresAuth() && !this.authorized)
             {
-                this.outputStream.write(StreamBasedInvocator.AUTH_FAILED);
+                outputStream.write(StreamBasedInvocator.AUTH_FAILED);
                 return false;
             }
             if (auth)
@@ -535,37 +1508,20 @@ public class SocketServer
                     this.authGenerator = generator;
                     if (encrypt)
                     {
-                        try
-                        {
-                            byte[] keyIv = this.authGenerator.generateKeyIv(challenge);
-                            SecretKey key = new SecretKeySpec(keyIv, 0, 16, "AES");
-                            IvParameterSpec iv = new IvParameterSpec(keyIv, 16, 16);
-                            Cipher enc = Cipher.getInstance("AES/CBC/NoPadding");
-                            enc.init(Cipher.ENCRYPT_MODE, key, iv);
-
-                            Cipher dec = Cipher.getInstance("AES/CBC/NoPadding");
-                            dec.init(Cipher.DECRYPT_MODE, key, iv);
-
-                            this.cos = new CipherOutputStream128(null, enc);
-                            this.cis = new CipherInputStream128(null, dec);
-                        }
-                        catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e)
-                        {
-                            throw new RuntimeException("Shouldn't get here", e);
-                        }
-
+                        this.keyIv = this.authGenerator.generateKeyIv(challenge);
+                        this.initCiphers(this.keyIv);
                     }
                 }
                 else
                 {
-                    this.outputStream.write(StreamBasedInvocator.AUTH_FAILED);
+                    outputStream.write(StreamBasedInvocator.AUTH_FAILED);
                     return false;
                 }
             }
             return true;
         }
 
-        private void serviceThankYou(ObjectInput in) throws IOException, ClassNotFoundException
+        private void serviceThankYou(ObjectInput in, OutputStream outputStream) throws IOException, ClassNotFoundException
         {
             thankYous.incrementAndGet();
             //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
@@ -578,7 +1534,7 @@ public class SocketServer
             outputStream.write(StreamBasedInvocator.THANK_YOU_REQUEST);
         }
 
-        private void serviceResendRequest(ObjectInput in) throws IOException, ClassNotFoundException
+        private void serviceResendRequest(ObjectInput in, OutputStream outputStream) throws IOException, ClassNotFoundException
         {
             resendRequests.incrementAndGet();
             //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
@@ -591,38 +1547,180 @@ public class SocketServer
             else
             {
                 resendContext.waitForInvocationToFinish();
-                resendContext.writeAndLogResponse(this.outputStream, resendRequestId, this.cos);
+                resendContext.writeAndLogResponse(outputStream, resendRequestId, this.cos);
+            }
+        }
+
+        /**
+         * Codecs and the primitive layout write the request id as its fields, so the body has nothing for java
+         * serialization.
+         */
+        private RequestId readRequestId(ObjectInput in, boolean asFields) throws IOException, ClassNotFoundException
+        {
+            if (!asFields)
+            {
+                return (RequestId) in.readObject();
             }
+            int clientIp = in.readInt();
+            long proxyId = in.readLong();
+            return new RequestId(clientIp, proxyId, in.readInt());
         }
 
         private void serviceInvokeRequest(
                 ObjectInput in,
-                CopyOnReadInputStream copyOnReadInputStream, boolean compressed) throws IOException, ClassNotFoundException
+                CopyOnReadInputStream copyOnReadInputStream, boolean compressed, boolean byId, JrpipCodec codec,
+                boolean primitive, boolean streamed, OutputStream outputStream) throws IOException, ClassNotFoundException
         {
             methodInvocations.incrementAndGet();
             //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
-            RequestId requestId = (RequestId) in.readObject();
-            Context invokeContext = ContextCache.getInstance().getOrCreateContext(requestId);
-            invokeContext.setCompressed(compressed);
-            String serviceInterface = (String) in.readObject();
-            ServiceDefinition serviceDefinition = serviceMap.get(serviceInterface);
-            if (serviceDefinition == null)
+            if (codec != null)
+            {
+                codecInvocations.incrementAndGet();
+            }
+            if (primitive)
+            {
+                primitiveInvocations.incrementAndGet();
+            }
+            if (streamed)
+            {
+                streamedInvocations.incrementAndGet();
+            }
+            RequestId requestId = readRequestId(in, codec != null || primitive);
+            String serviceInterface;
+            ServiceDefinition serviceDefinition;
+            if (byId)
             {
-                invokeContext.setReturnValue(new JrpipRuntimeException("Jrpip is not servicing "
-                        + serviceInterface), true);
+                invocationsById.incrementAndGet();
+                int serviceId = in.readInt();
+                serviceDefinition = serviceId >= 0 && serviceId < servicesById.size() ? servicesById.get(serviceId) : null;
+                serviceInterface = serviceDefinition == null ? "service id " + serviceId : serviceDefinition.getServiceInterface().getName();
             }
             else
             {
-                OutputStreamBuilder outputStreamBuilder = serviceDefinition.getOutputStreamBuilder();
-                DataOutputStream copyTo = outputStreamBuilder.newOutputStream();
-                copyTo.writeByte(OutputStreamBuilder.REQUEST_HEADER);
-                try
+                serviceInterface = (String) in.readObject();
+                serviceDefinition = serviceMap.get(serviceInterface);
+            }
+            if (serviceDefinition != null && !serviceDefinition.admit())
+            {
+                busyRequests.incrementAndGet();
+                outputStream.write(StreamBasedInvocator.SERVER_BUSY_STATUS);
+                return;
+            }
+            Context invokeContext;
+            try
+            {
+                invokeContext = ContextCache.getInstance().getOrCreateContext(requestId,
+                        config.getMaxLifeTime(), config.getMaxLifeTimeFromFinished());
+                invokeContext.setCompressed(compressed);
+                invokeContext.setCodec(codec);
+                invokeContext.setStreamedResult(streamed);
+                invokeContext.setRetainResponseBytes(config.isRetainResponseBytes());
+                invokeContext.setServiceName(serviceInterface);
+                if (serviceDefinition == null)
+                {
+                    invokeContext.setReturnValue(new JrpipRuntimeException("Jrpip is not servicing "
+                            + serviceInterface), true);
+                }
+                else
                 {
-                    if (copyOnReadInputStream != null)
+                    OutputStreamBuilder outputStreamBuilder = serviceDefinition.getOutputStreamBuilder();
+                    DataOutputStream copyTo = outputStreamBuilder.newOutputStream();
+                    try
+                    {
+                        copyTo.writeByte(OutputStreamBuilder.REQUEST_HEADER);
+                        if (copyOnReadInputStream != null)
+                        {
+                            copyOnReadInputStream.startCopyingInto(copyTo);
+                        }
+                        invokeContext.setOutputStreamBuilder(outputStreamBuilder);
+                        boolean serviceRequest = true;
+                        if (serviceDefinition.isVmBound())
+                        {
+                            serviceRequest = checkVmBoundCall(requestId, invokeContext, serviceInterface);
+                        }
+                        if (serviceRequest)
+                        {
+                            JrpipRequestContext requestContext = getJrpipRequestContext(remoteAddress, requestId, this.username);
+
+                            StreamBasedInvocator invocator = new StreamBasedInvocator();
+                            if (byId)
+                            {
+                                invocator.readParametersById(in, invokeContext, serviceDefinition.getMethodResolver());
+                            }
+                            else
+                            {
+                                invocator.readParameters(in, invokeContext, serviceDefinition.getMethodResolver());
+                            }
+                            if (this.invocationExecutor == null)
+                            {
+                                invocator.invokeMethod(invokeContext,
+                                        serviceDefinition.getService(),
+                                        remoteAddress,
+                                        requestId,
+                                        listeners,
+                                        copyTo,
+                                        config.getMethodInterceptor(),
+                                        requestContext);
+                            }
+                            else
+                            {
+                                this.invokeOnExecutor(invocator, invokeContext, serviceDefinition, requestId, copyTo, requestContext);
+                            }
+                        }
+                    }
+                    finally
                     {
-                        copyOnReadInputStream.startCopyingInto(copyTo);
+                        copyTo.close();
                     }
-                    invokeContext.setOutputStreamBuilder(outputStreamBuilder);
+                }
+            }
+            finally
+            {
+                if (serviceDefinition != null)
+                {
+                    serviceDefinition.release();
+                }
+            }
+            invokeContext.writeAndLogResponse(outputStream, requestId, this.cos);
+        }
+
+        /**
+         * The calls of a batch share one request id, so the batch is executed once and resent as a whole.
+         * Binary logging doesn't record batches.
+         */
+        private void serviceBatchRequest(ObjectInput in, boolean compressed, JrpipCodec codec, OutputStream outputStream) throws IOException, ClassNotFoundException
+        {
+            batchRequests.incrementAndGet();
+            if (codec != null)
+            {
+                codecInvocations.incrementAndGet();
+            }
+            RequestId requestId = readRequestId(in, codec != null);
+            String serviceInterface = (String) in.readObject();
+            final boolean parallel = in.readBoolean();
+            ServiceDefinition serviceDefinition = serviceMap.get(serviceInterface);
+            if (serviceDefinition != null && !serviceDefinition.admit())
+            {
+                busyRequests.incrementAndGet();
+                outputStream.write(StreamBasedInvocator.SERVER_BUSY_STATUS);
+                return;
+            }
+            Context invokeContext;
+            try
+            {
+                invokeContext = ContextCache.getInstance().getOrCreateContext(requestId,
+                        config.getMaxLifeTime(), config.getMaxLifeTimeFromFinished());
+                invokeContext.setCompressed(compressed);
+                invokeContext.setCodec(codec);
+                invokeContext.setRetainResponseBytes(config.isRetainResponseBytes());
+                invokeContext.setServiceName(serviceInterface);
+                if (serviceDefinition == null)
+                {
+                    invokeContext.setReturnValue(new JrpipRuntimeException("Jrpip is not servicing "
+                            + serviceInterface), true);
+                }
+                else
+                {
                     boolean serviceRequest = true;
                     if (serviceDefinition.isVmBound())
                     {
@@ -630,28 +1728,90 @@ public class SocketServer
                     }
                     if (serviceRequest)
                     {
-                        String remoteAddress = socket.getRemoteSocketAddress().toString();
-                        JrpipRequestContext requestContext = getJrpipRequestContext(remoteAddress, requestId, this.username);
-
-                        new StreamBasedInvocator().invoke(in,
-                                invokeContext,
-                                serviceDefinition.getService(),
-                                serviceDefinition.getMethodResolver(),
-                                remoteAddress,
-                                requestId,
-                                listeners,
-                                copyTo,
-                                config.getMethodInterceptor(),
-                                requestContext);
+                        final JrpipRequestContext requestContext = getJrpipRequestContext(remoteAddress, requestId, this.username);
+                        final StreamBasedInvocator invocator = new StreamBasedInvocator();
+                        invocator.readBatch(in, invokeContext, serviceDefinition.getMethodResolver());
+                        methodInvocations.addAndGet(invocator.getBatchSize());
+                        final Executor executor = this.invocationExecutor;
+                        if (executor == null || parallel)
+                        {
+                            invocator.invokeBatch(invokeContext, serviceDefinition.getService(), remoteAddress, requestId,
+                                    listeners, VirtualOutputStream.NULL_DATA_OUTPUT_STREAM, config.getMethodInterceptor(),
+                                    requestContext, executor);
+                        }
+                        else
+                        {
+                            this.runOnExecutor(() ->
+                            {
+                                invocator.invokeBatch(invokeContext, serviceDefinition.getService(), remoteAddress, requestId,
+                                        listeners, VirtualOutputStream.NULL_DATA_OUTPUT_STREAM, config.getMethodInterceptor(),
+                                        requestContext, null);
+                                return null;
+                            });
+                        }
                     }
                 }
-                finally
+            }
+            finally
+            {
+                if (serviceDefinition != null)
                 {
-                    copyTo.close();
+                    serviceDefinition.release();
                 }
             }
             invokeContext.writeAndLogResponse(outputStream, requestId, this.cos);
         }
+
+        private void invokeOnExecutor(
+                final StreamBasedInvocator invocator,
+                final Context invokeContext,
+                final ServiceDefinition serviceDefinition,
+                final RequestId requestId,
+                final DataOutputStream copyTo,
+                final JrpipRequestContext requestContext) throws IOException
+        {
+            this.runOnExecutor(new Callable<Object>()
+            {
+                @Override
+                public Object call() throws Exception
+                {
+                    invocator.invokeMethod(invokeContext,
+                            serviceDefinition.getService(),
+                            remoteAddress,
+                            requestId,
+                            listeners,
+                            copyTo,
+                            config.getMethodInterceptor(),
+                            requestContext);
+                    return null;
+                }
+            });
+        }
+
+        private void runOnExecutor(Callable<Object> invocation) throws IOException
+        {
+            FutureTask<Object> task = new FutureTask<Object>(invocation);
+            this.invocationExecutor.execute(task);
+            try
+            {
+                task.get();
+            }
+            catch (InterruptedException e)
+            {
+                // the response can't be written before the method is done, so the connection is given up.
+                // The method keeps running and the client gets its result when it asks again.
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the invocation to finish");
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof IOException)
+                {
+                    throw (IOException) e.getCause();
+                }
+                throw new JrpipRuntimeException("Unexpected exception during invocation", e.getCause());
+            }
+        }
     }
 
     private static void quietlyClose(Closeable closeable)
@@ -674,6 +1834,136 @@ public class SocketServer
         return this.thankYous.get();
     }
 
+    /**
+     * @return the number of requests that carried thank you notes for earlier requests
+     */
+    public int getPiggybackedThankYous()
+    {
+        return this.piggybackedThankYous.get();
+    }
+
+    /**
+     * @return the number of batch requests; their calls are also counted as method invocations
+     */
+    public int getBatchRequests()
+    {
+        return this.batchRequests.get();
+    }
+
+    /**
+     * @return the number of invocations that named their method by id; they are also counted as method invocations
+     */
+    public int getInvocationsById()
+    {
+        return this.invocationsById.get();
+    }
+
+    /**
+     * @return the number of init responses that listed the method ids; later connections of a client that already
+     * has them from this server don't count
+     */
+    public int getMethodTablesSent()
+    {
+        return this.methodTables.get();
+    }
+
+    /**
+     * @return the number of invoke and batch requests written by a codec
+     */
+    public int getCodecInvocations()
+    {
+        return this.codecInvocations.get();
+    }
+
+    /**
+     * @return the number of invoke and batch requests read with the class table of their connection
+     */
+    public int getClassTableInvocations()
+    {
+        return this.classTableInvocations.get();
+    }
+
+    /**
+     * @return the number of invocations in the primitive layout
+     */
+    public int getPrimitiveInvocations()
+    {
+        return this.primitiveInvocations.get();
+    }
+
+    /**
+     * @return the number of invocations whose result was streamed to the client
+     */
+    public int getStreamedInvocations()
+    {
+        return this.streamedInvocations.get();
+    }
+
+    /**
+     * @return the number of methods invoked, counting each call of a batch
+     */
+    public int getMethodInvocations()
+    {
+        return this.methodInvocations.get();
+    }
+
+    /**
+     * @return the number of requests for a result to be sent again
+     */
+    public int getResendRequests()
+    {
+        return this.resendRequests.get();
+    }
+
+    public int getBusyRequests()
+    {
+        return this.busyRequests.get();
+    }
+
+    public int getTooLargeRequests()
+    {
+        return this.tooLargeRequests.get();
+    }
+
+    public int getActiveRequests()
+    {
+        return this.activeRequests.get();
+    }
+
+    public int getResumedSessions()
+    {
+        return this.resumedSessions.get();
+    }
+
+    private SessionTicket issueTicket(String username, AuthGenerator authGenerator, byte[] keyIv)
+    {
+        if ((this.issuedTickets.incrementAndGet() & 63) == 0)
+        {
+            this.sessionTickets.values().removeIf(SessionTicket::isExpired);
+        }
+        SessionTicket ticket;
+        do
+        {
+            ticket = new SessionTicket(this.ticketIds.nextLong(), username, authGenerator, keyIv,
+                    System.currentTimeMillis() + this.config.getSessionTicketLifetime());
+        }
+        while (this.sessionTickets.putIfAbsent(ticket.id, ticket) != null);
+        return ticket;
+    }
+
+    public int getConnectionCount()
+    {
+        int count = this.hanlders.size();
+        if (this.eventLoops != null)
+        {
+            for (NioEventLoop eventLoop : this.eventLoops)
+            {
+                count += eventLoop.getConnectionCount();
+            }
+        }
+        return count;
+    }
+
 
     private JrpipRequestContext getJrpipRequestContext(String remoteAddr, RequestId requestId, String username)
     {
@@ -713,9 +2003,53 @@ public class SocketServer
     {
         long seconds = (System.currentTimeMillis() - this.startTime) / 1000L;
 
-        LOGGER.info("Invocations: "+methodInvocations.get()+" Resends: "+resendRequests.get()+
-                " ThankYous: "+thankYous.get()+" pings: "+pings.get()+" uptime: "+seconds
+        LOGGER.info("Invocations: "+methodInvocations.get()+" Batches: "+batchRequests.get()+" By id: "+invocationsById.get()+" With codec: "+codecInvocations.get()+" With class table: "+classTableInvocations.get()+" Primitive: "+primitiveInvocations.get()+" Streamed: "+streamedInvocations.get()+" Resends: "+resendRequests.get()+
+                " Busy: "+busyRequests.get()+" Too large: "+tooLargeRequests.get()+" ThankYous: "+thankYous.get()+" Piggybacked ThankYous: "+piggybackedThankYous.get()+" pings: "+pings.get()+" uptime: "+seconds
                 + " sec (about " + seconds / 3600L + " hours " + seconds / 60L % 60L + " minutes)");
+        ContextCache contextCache = ContextCache.getInstance();
+        if (contextCache.getRetainedBytes() > 0 || contextCache.getSpilledBytes() > 0)
+        {
+            LOGGER.info("Retained results: " + contextCache.getRetainedBytes() + " bytes in memory, "
+                    + contextCache.getSpilledBytes() + " bytes spilled " + contextCache.getRetainedResponseStats().values());
+        }
+    }
+
+    /**
+     * Lets a new connection resume an authenticated (and possibly encrypted) session without repeating the handshake.
+     * Resumption challenges are bound to the ticket and can't be replayed.
+     */
+    private static class SessionTicket
+    {
+        private final long id;
+        private final String username;
+        private final AuthGenerator authGenerator;
+        private final byte[] keyIv;
+        private final long expires;
+        private final UserNonces nonces = new UserNonces();
+
+        private SessionTicket(long id, String username, AuthGenerator authGenerator, byte[] keyIv, long expires)
+        {
+            this.id = id;
+            this.username = username;
+            this.authGenerator = authGenerator;
+            this.keyIv = keyIv;
+            this.expires = expires;
+        }
+
+        public boolean isExpired()
+        {
+            return System.currentTimeMillis() > this.expires;
+        }
+
+        public boolean verify(long challenge, int encoded)
+        {
+            boolean verified;
+            synchronized (this.authGenerator)
+            {
+                verified = this.authGenerator.verifyChallenge(challenge, this.id, encoded);
+            }
+            return verified && this.nonces.addIfNotPresent(challenge);
+        }
     }
 
     private static class UserNonces
@@ -2,24 +2,40 @@ package com.gs.jrpip.server;
 
 import com.gs.jrpip.JrpipEventListener;
 import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.codec.CompactCodec;
+import com.gs.jrpip.codec.JrpipCodec;
 import com.gs.jrpip.util.AuthGenerator;
 
+import java.lang.reflect.Method;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class SocketServerConfig
 {
     private final int port;
     private int serverSocketTimeout = 1000;
     private int idleSocketCloseTime = 10000;
+    private int sessionTicketLifetime = 10*60*1000; // ten minutes
     private long logStatsInterval = 60*60*1000; // an hour
+    private boolean nonBlockingIo;
+    private boolean retainResponseBytes;
+    private long maxLifeTime = Context.MAX_LIFE_TIME;
+    private long maxLifeTimeFromFinished = Context.MAX_LIFE_TIME_FROM_FINISHED;
+    private String unixSocketPath;
+    private int maxRequestSize = 256 * 1024 * 1024;
+    private int selectorThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private Executor invocationExecutor;
+    private int invocationThreads;
     private MethodInterceptor methodInterceptor;
     private List<SingleServiceConfig> configs = new ArrayList<>(2);
     private List<JrpipEventListener> listeners = new ArrayList<>(2);
     private Map<String, byte[]> userTokens = new HashMap<>(2);
+    private List<JrpipCodec> codecs = new ArrayList<>(2);
 
     /**
      * Create a new config for a socket server
@@ -29,6 +45,7 @@ public class SocketServerConfig
     public SocketServerConfig(int port)
     {
         this.port = port;
+        this.codecs.add(new CompactCodec());
     }
 
     public int getIdleSocketCloseTime()
@@ -45,6 +62,21 @@ public class SocketServerConfig
         this.idleSocketCloseTime = idleSocketCloseTime;
     }
 
+    public int getSessionTicketLifetime()
+    {
+        return sessionTicketLifetime;
+    }
+
+    /**
+     * Authenticated clients get a session ticket, which lets their new connections skip the full handshake until
+     * it expires. Default: 600000 (10 minutes)
+     * @param sessionTicketLifetime value in milliseconds, 0 to turn off tickets
+     */
+    public void setSessionTicketLifetime(int sessionTicketLifetime)
+    {
+        this.sessionTicketLifetime = sessionTicketLifetime;
+    }
+
     public int getServerSocketTimeout()
     {
         return serverSocketTimeout;
@@ -64,6 +96,181 @@ public class SocketServerConfig
         this.serverSocketTimeout = serverSocketTimeout;
     }
 
+    public boolean isNonBlockingIo()
+    {
+        return nonBlockingIo;
+    }
+
+    /**
+     * Serve connections from a few selector threads instead of a thread per connection. Requests are read
+     * and written without blocking; only the method invocation occupies a worker thread. Useful when there
+     * are many mostly idle clients. Default: false
+     * @param nonBlockingIo true to use selector threads
+     */
+    public void setNonBlockingIo(boolean nonBlockingIo)
+    {
+        this.nonBlockingIo = nonBlockingIo;
+    }
+
+    public int getMaxRequestSize()
+    {
+        return maxRequestSize;
+    }
+
+    /**
+     * Requests that are read whole before they're processed (non-blocking io and multiplexed connections) may not be
+     * larger than this. A larger request is read to its end without being kept, not invoked, and answered with a
+     * "request too large" status that the client reports as a 413. Default: 256 MB
+     * @param maxRequestSize value in bytes, must be > 0
+     */
+    public void setMaxRequestSize(int maxRequestSize)
+    {
+        if (maxRequestSize <= 0)
+        {
+            throw new JrpipRuntimeException("Max request size must be > 0");
+        }
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    public boolean isRetainResponseBytes()
+    {
+        return retainResponseBytes;
+    }
+
+    /**
+     * Finished responses are kept until the client thanks the server for them, in case it asks for a resend.
+     * With this set, the server keeps the compressed response bytes from the first write instead of the result
+     * object, and a resend is a plain copy. Mostly useful for large results. Default: false
+     * @param retainResponseBytes true to keep the serialized response instead of the result
+     */
+    public void setRetainResponseBytes(boolean retainResponseBytes)
+    {
+        this.retainResponseBytes = retainResponseBytes;
+    }
+
+    public long getMaxLifeTime()
+    {
+        return maxLifeTime;
+    }
+
+    /**
+     * A request that shows no sign of life (reading parameters, invoking) for this long is dropped.
+     * Default: 600000 (10 minutes)
+     * @param maxLifeTime value in milliseconds
+     */
+    public void setMaxLifeTime(long maxLifeTime)
+    {
+        this.maxLifeTime = maxLifeTime;
+    }
+
+    public long getMaxLifeTimeFromFinished()
+    {
+        return maxLifeTimeFromFinished;
+    }
+
+    /**
+     * A finished result is kept this long for resends if the client doesn't thank the server for it.
+     * Clients stop asking for resends after 120000 (2 minutes), so a shorter value can re-execute a call
+     * after a long network outage. Default: 120000
+     * @param maxLifeTimeFromFinished value in milliseconds
+     */
+    public void setMaxLifeTimeFromFinished(long maxLifeTimeFromFinished)
+    {
+        this.maxLifeTimeFromFinished = maxLifeTimeFromFinished;
+    }
+
+    public String getUnixSocketPath()
+    {
+        return unixSocketPath;
+    }
+
+    /**
+     * Also listen on a unix domain socket (requires JDK 16+), for clients on the same host using a
+     * jpunix:///path url. Unix domain connections are always served by the non-blocking event loops, with the limits
+     * of {@link #setMaxRequestSize(int)}; tcp connections stay blocking unless {@link #setNonBlockingIo(boolean)} is set.
+     * @param unixSocketPath the socket file; an existing file at this path is replaced
+     */
+    public void setUnixSocketPath(String unixSocketPath)
+    {
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    public int getSelectorThreads()
+    {
+        return selectorThreads;
+    }
+
+    /**
+     * Number of selector threads used when non-blocking io is on. Default: half the available processors
+     * @param selectorThreads must be > 0
+     */
+    public void setSelectorThreads(int selectorThreads)
+    {
+        if (selectorThreads <= 0)
+        {
+            throw new JrpipRuntimeException("Selector threads must be > 0");
+        }
+        this.selectorThreads = selectorThreads;
+    }
+
+    public Executor getInvocationExecutor()
+    {
+        return invocationExecutor;
+    }
+
+    /**
+     * Run service methods on this executor instead of the thread that reads the connection.
+     * The connection thread decodes the request, waits for the method to finish and writes the response.
+     * With non-blocking io, the whole conversation runs on the executor. Default: null (use the connection thread)
+     * @param invocationExecutor the executor. It is not shut down when the server stops.
+     */
+    public void setInvocationExecutor(Executor invocationExecutor)
+    {
+        this.invocationExecutor = invocationExecutor;
+        this.invocationThreads = 0;
+    }
+
+    /**
+     * Run each service method on a new virtual thread. Requires JDK 21 or later.
+     */
+    public void useVirtualThreadInvocation()
+    {
+        try
+        {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            this.invocationExecutor = (Executor) method.invoke(null);
+            this.invocationThreads = 0;
+        }
+        catch (Exception e)
+        {
+            throw new JrpipRuntimeException("Virtual threads are not available in this JVM", e);
+        }
+    }
+
+    /**
+     * Run service methods on a fixed pool of platform threads. Requests beyond the pool size wait their turn.
+     * Useful for sizing cpu bound services. Each server started with this config creates its own pool and shuts
+     * it down when it stops.
+     * @param threads the size of the pool, must be > 0
+     */
+    public void useBoundedInvocationPool(int threads)
+    {
+        if (threads <= 0)
+        {
+            throw new JrpipRuntimeException("Invocation threads must be > 0");
+        }
+        this.invocationExecutor = null;
+        this.invocationThreads = threads;
+    }
+
+    /**
+     * @return the size of the pool set with useBoundedInvocationPool, or 0
+     */
+    public int getInvocationThreads()
+    {
+        return invocationThreads;
+    }
+
     public MethodInterceptor getMethodInterceptor()
     {
         return methodInterceptor;
@@ -126,6 +333,42 @@ public class SocketServerConfig
         this.addServiceInstance(serviceInterface, serviceInstance, false);
     }
 
+    /**
+     * Limit the number of concurrent invocations of a service. Once the limit is reached, up to maxQueued requests
+     * wait for a slot, for up to 10 seconds; further requests are answered with a busy status, without reading
+     * their parameters, and the client retries them with a backoff.
+     *
+     * @param serviceInterface an interface previously added with addServiceConfig or addServiceInstance
+     * @param maxConcurrent the maximum number of concurrent invocations, must be > 0
+     * @param maxQueued the number of requests allowed to wait, must be >= 0
+     */
+    public void setConcurrencyLimit(Class serviceInterface, int maxConcurrent, int maxQueued)
+    {
+        this.setConcurrencyLimit(serviceInterface, maxConcurrent, maxQueued, ServiceDefinition.DEFAULT_MAX_QUEUE_WAIT);
+    }
+
+    /**
+     * @param maxQueueWaitMillis how long a waiting request may wait for a slot before it's answered with a busy
+     * status, must be >= 0
+     * @see #setConcurrencyLimit(Class, int, int)
+     */
+    public void setConcurrencyLimit(Class serviceInterface, int maxConcurrent, int maxQueued, long maxQueueWaitMillis)
+    {
+        if (maxConcurrent <= 0 || maxQueued < 0 || maxQueueWaitMillis < 0)
+        {
+            throw new JrpipRuntimeException("maxConcurrent must be > 0, maxQueued and maxQueueWaitMillis must be >= 0");
+        }
+        for (SingleServiceConfig config : this.configs)
+        {
+            if (config.getServiceInterface().equals(serviceInterface))
+            {
+                config.setConcurrencyLimit(maxConcurrent, maxQueued, maxQueueWaitMillis);
+                return;
+            }
+        }
+        throw new JrpipRuntimeException("No service configured for " + serviceInterface.getName());
+    }
+
     /**
      * Add authentication requirement. Can be called multiple times with different credentials.
      * All credentials have the same level of access.
@@ -156,6 +399,28 @@ public class SocketServerConfig
         this.listeners.add(listener);
     }
 
+    /**
+     * Offers a codec to clients, which use it for the methods annotated with its name. {@link CompactCodec} is
+     * always offered. A codec added under the name of another replaces it.
+     */
+    public void addCodec(JrpipCodec codec)
+    {
+        for (int i = 0; i < this.codecs.size(); i++)
+        {
+            if (this.codecs.get(i).getName().equals(codec.getName()))
+            {
+                this.codecs.set(i, codec);
+                return;
+            }
+        }
+        this.codecs.add(codec);
+    }
+
+    public List<JrpipCodec> getCodecs()
+    {
+        return codecs;
+    }
+
     public long getLogStatsInterval()
     {
         return logStatsInterval;
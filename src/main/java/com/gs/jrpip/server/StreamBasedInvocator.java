@@ -16,14 +16,25 @@
 
 package com.gs.jrpip.server;
 
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
+import com.gs.jrpip.BatchResults;
 import com.gs.jrpip.MethodResolver;
 import com.gs.jrpip.RequestId;
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.util.stream.PrimitiveLayout;
+import com.gs.jrpip.util.stream.StreamedArgumentLayout;
+import com.gs.jrpip.util.stream.StreamedResultLayout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,6 +46,11 @@ public class StreamBasedInvocator
     public static final byte OK_STATUS = (byte) 0;
     public static final byte FAULT_STATUS = (byte) 1;
     public static final byte REQUEST_NEVER_ARRVIED_STATUS = (byte) 2;
+    /**
+     * The service is at its concurrency limit and its wait queue is full. The parameters were not read; the client
+     * should send the request again later.
+     */
+    public static final byte SERVER_BUSY_STATUS = (byte) 3;
 
     public static final byte INVOKE_REQUEST = (byte) 0;
     public static final byte RESEND_REQUEST = (byte) 1;
@@ -42,10 +58,146 @@ public class StreamBasedInvocator
     public static final byte PING_REQUEST = (byte) 3;
     public static final byte INIT_REQUEST = (byte) 4;
     public static final byte CREATE_SESSION_REQUEST = (byte) 5;
+    /**
+     * Like an invoke request, but the service and method names are replaced by the int ids the server listed
+     * when it granted {@link #METHOD_ID_CAPABILITY}.
+     */
+    public static final byte INVOKE_BY_ID_REQUEST = (byte) 6;
+    /**
+     * Like an invoke request, but the service name is followed by a parallel flag, a count and that many method
+     * names with their arguments. The calls run as one invocation and the result is a {@link BatchResults}.
+     * Only sent to servers that granted {@link #BATCH_CAPABILITY}.
+     */
+    public static final byte BATCH_REQUEST = (byte) 7;
     public static final byte AUTH_FAILED = (byte) 8;
+    /**
+     * The session ticket sent to resume a session is unknown or expired. Nothing else was read; the client should
+     * authenticate in full and send the request again.
+     */
+    public static final byte SESSION_EXPIRED = (byte) 9;
+    /**
+     * The request was larger than the server accepts. Its body was skipped and nothing was invoked; sending it
+     * again won't help.
+     */
+    public static final byte REQUEST_TOO_LARGE = (byte) 10;
     public static final int AUTH_MASK = 0x80;
     public static final int COMPRESSED_MASK = 0x40;
     public static final int ENCRYPT_MASK = 0x20;
+    /**
+     * The request type is followed by a byte of request options and the response starts with a byte of response
+     * options. Only sent to servers that granted {@link #CLOSE_NOTICE_CAPABILITY}.
+     */
+    public static final int OPTIONS_MASK = 0x10;
+
+    /**
+     * Response option: the server is draining and closes the connection after this response.
+     */
+    public static final int CLOSE_NOTICE = 0x01;
+
+    /**
+     * Request option: the options are followed by a session ticket id, a challenge and its code, which replace
+     * the auth header.
+     */
+    public static final int RESUME_SESSION_OPTION = 0x01;
+    /**
+     * Request option: the options are followed by thank you notes for earlier requests, written as a count and
+     * the client ip, proxy id and transaction id of each request id.
+     */
+    public static final int THANK_YOU_OPTION = 0x02;
+    /**
+     * Request option: the options are followed, after any thank you notes, by the id of the codec that wrote the
+     * invocation body and writes its result. Only sent to servers that granted {@link #CODEC_CAPABILITY}.
+     */
+    public static final int CODEC_OPTION = 0x04;
+    /**
+     * Request option: the invocation body is in the {@link com.gs.jrpip.util.stream.PrimitiveLayout}: the request id
+     * as its three fields, the service and method, then the arguments as their types. A normal result comes back
+     * in the same layout, with nothing after the status for void methods. Only sent to servers that granted
+     * {@link #PRIMITIVE_CALL_CAPABILITY}.
+     */
+    public static final int PRIMITIVE_OPTION = 0x08;
+    /**
+     * Request option: the result of a method returning an Iterator, a Stream or a cursor is written in the
+     * {@link com.gs.jrpip.util.stream.StreamedResultLayout} as the service produces it. Only sent to servers that
+     * granted {@link #STREAMED_RESULT_CAPABILITY}.
+     */
+    public static final int STREAMED_RESULT_OPTION = 0x10;
+    /**
+     * Request option of an init: the options are followed, before any session ticket, by the vm id and start time
+     * of the server instance whose method ids and codec names the client kept. If they name this server, the init
+     * response leaves those tables out. Only sent to servers that granted {@link #SERVER_INSTANCE_CAPABILITY}.
+     */
+    public static final int KNOWN_INSTANCE_OPTION = 0x20;
+
+    /**
+     * Capability bits are appended to the init request by the client and echoed back (as granted) by the server.
+     * Older peers neither send nor read them.
+     */
+    public static final int MULTIPLEX_CAPABILITY = 0x01;
+    public static final int CLOSE_NOTICE_CAPABILITY = 0x02;
+    /**
+     * When granted during an authenticated init, the capabilities are followed by a session ticket id and its
+     * lifetime in milliseconds.
+     */
+    public static final int SESSION_TICKET_CAPABILITY = 0x04;
+    /**
+     * The server reads thank you notes sent with {@link #THANK_YOU_OPTION}.
+     */
+    public static final int THANK_YOU_OPTION_CAPABILITY = 0x08;
+    /**
+     * The server accepts {@link #BATCH_REQUEST}.
+     */
+    public static final int BATCH_CAPABILITY = 0x10;
+    /**
+     * When granted, the init response ends with the ids to use in {@link #INVOKE_BY_ID_REQUEST}: a count of
+     * services and for each service its interface name, a count of methods and their mangled names. Ids are
+     * positions in those lists and are only valid on the connection that received them.
+     */
+    public static final int METHOD_ID_CAPABILITY = 0x20;
+    /**
+     * When granted, the bodies of invoke and batch requests on the connection are written through a
+     * {@link com.gs.jrpip.util.stream.ClassDescriptorTableOutput}: each class descriptor is sent once per
+     * connection. Not granted on multiplexed connections, whose requests may be read out of order.
+     */
+    public static final int CLASS_TABLE_CAPABILITY = 0x40;
+    /**
+     * When granted, the init response ends with the codecs the server knows: a count and their names. Ids are
+     * positions in the list. A body written by a codec starts with the request id as its three fields.
+     */
+    public static final int CODEC_CAPABILITY = 0x80;
+    /**
+     * The server reads invocations sent with {@link #PRIMITIVE_OPTION}.
+     */
+    public static final int PRIMITIVE_CALL_CAPABILITY = 0x100;
+    /**
+     * The server reads byte arrays and ByteBuffers in the {@link com.gs.jrpip.util.stream.PrimitiveLayout}, as a
+     * length and the raw bytes. Invocations with them follow the compression setting of the method.
+     */
+    public static final int RAW_BYTES_CAPABILITY = 0x200;
+    /**
+     * The server reads invocations sent with {@link #STREAMED_RESULT_OPTION}. The elements written to the client are
+     * also written to a file in the spill directory, from which resends are answered.
+     */
+    public static final int STREAMED_RESULT_CAPABILITY = 0x400;
+    /**
+     * The server reads the InputStream argument of a method in the
+     * {@link com.gs.jrpip.util.stream.StreamedArgumentLayout}, and hands the method the bytes as they arrive.
+     */
+    public static final int STREAMED_ARGUMENT_CAPABILITY = 0x800;
+    /**
+     * The init response names the server instance by its start time, after any session ticket. Together with the vm
+     * id in the proxy id, it lets later connections of the client skip the method ids and codec names with the
+     * {@link #KNOWN_INSTANCE_OPTION}.
+     */
+    public static final int SERVER_INSTANCE_CAPABILITY = 0x1000;
+
+    /**
+     * @return false for the statuses that are not followed by a serialized result
+     */
+    public static boolean hasResult(byte status)
+    {
+        return status != REQUEST_NEVER_ARRVIED_STATUS && status != SERVER_BUSY_STATUS;
+    }
 
     public static boolean hasAuth(byte req)
     {
@@ -62,6 +214,11 @@ public class StreamBasedInvocator
         return (req & ENCRYPT_MASK) != 0;
     }
 
+    public static boolean hasOptions(byte req)
+    {
+        return (req & OPTIONS_MASK) != 0;
+    }
+
     public static byte withAuth(byte req)
     {
         return (byte) (req | AUTH_MASK);
@@ -77,9 +234,34 @@ public class StreamBasedInvocator
         return (byte) (req | ENCRYPT_MASK);
     }
 
+    public static byte withOptions(byte req)
+    {
+        return (byte) (req | OPTIONS_MASK);
+    }
+
+    public static byte withoutOptions(byte req)
+    {
+        return (byte) (req & ~OPTIONS_MASK);
+    }
+
     public static byte withoutMasks(byte req)
     {
-        return (byte) (req & ~(AUTH_MASK | COMPRESSED_MASK | ENCRYPT_MASK));
+        return (byte) (req & ~(AUTH_MASK | COMPRESSED_MASK | ENCRYPT_MASK | OPTIONS_MASK));
+    }
+
+    /**
+     * Reads the optional capability bits at the end of an init conversation.
+     * @return the capabilities, or zero if the peer didn't send any
+     */
+    public static int readCapabilities(InputStream in) throws IOException
+    {
+        int first = in.read();
+        if (first < 0)
+        {
+            return 0;
+        }
+        DataInputStream dis = new DataInputStream(in);
+        return (first << 24) | (dis.readUnsignedByte() << 16) | dis.readUnsignedShort();
     }
 
     //private static final boolean CAUSE_RANDOM_ERROR = true;
@@ -87,6 +269,12 @@ public class StreamBasedInvocator
     private static final Logger LOGGER = LoggerFactory.getLogger(StreamBasedInvocator.class.getName());
 
     private boolean abortInvocation;
+    private boolean continueInvocation;
+    private Method method;
+    private Object[] values;
+    private Method[] batchMethods;
+    private Object[][] batchValues;
+    private Method batchHandler;
 
     /**
      * Invoke the object with the request from the input stream.
@@ -118,6 +306,94 @@ public class StreamBasedInvocator
             DataOutputStream binaryLogger,
             MethodInterceptor interceptor,
             JrpipRequestContext requestContext) throws IOException, ClassNotFoundException
+    {
+        this.readParameters(in, context, methodResolver);
+        this.invokeMethod(context, service, remoteAddress, requestId, listeners, binaryLogger, interceptor, requestContext);
+    }
+
+    /**
+     * Reads the method and its arguments from the stream. The method itself is run by
+     * {@link #invokeMethod}, possibly on a different thread.
+     */
+    public void readParameters(ObjectInput in, Context context, MethodResolver methodResolver)
+            throws IOException, ClassNotFoundException
+    {
+        boolean continueInvocation = this.startReading(context);
+        Method method = readMethod(in, methodResolver);
+        Object[] values = readArguments(in, method, context);
+        this.continueInvocation = continueInvocation;
+        this.method = method;
+        this.values = values;
+    }
+
+    /**
+     * Like {@link #readParameters}, for an invoke by id: the method is named by its id in the resolver.
+     */
+    public void readParametersById(ObjectInput in, Context context, MethodResolver methodResolver)
+            throws IOException, ClassNotFoundException
+    {
+        boolean continueInvocation = this.startReading(context);
+        int methodId = in.readInt();
+        Method method = methodResolver.getMethodFromId(methodId);
+        if (method == null)
+        {
+            throw new IOException("No server method with id:" + methodId);
+        }
+        Object[] values = readArguments(in, method, context);
+        this.continueInvocation = continueInvocation;
+        this.method = method;
+        this.values = values;
+    }
+
+    /**
+     * Reads the calls of a batch request. They are run by {@link #invokeBatch}.
+     */
+    public void readBatch(ObjectInput in, Context context, MethodResolver methodResolver)
+            throws IOException, ClassNotFoundException
+    {
+        boolean continueInvocation = this.startReading(context);
+        int count = in.readInt();
+        Method[] methods = new Method[count];
+        Object[][] values = new Object[count][];
+        for (int i = 0; i < count; i++)
+        {
+            methods[i] = readMethod(in, methodResolver);
+            if (MethodResolver.hasStreamedArgument(methods[i]))
+            {
+                throw new IOException("Method " + methods[i].getName() + " takes a stream and can't be batched");
+            }
+            values[i] = readArguments(in, methods[i], context);
+        }
+        this.continueInvocation = continueInvocation;
+        this.batchMethods = methods;
+        this.batchValues = values;
+        this.batchHandler = count > 1 && allSame(methods) ? methodResolver.getBatchHandler(methods[0]) : null;
+    }
+
+    private static boolean allSame(Method[] methods)
+    {
+        for (Method method : methods)
+        {
+            if (!method.equals(methods[0]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of calls read by {@link #readBatch}
+     */
+    public int getBatchSize()
+    {
+        return this.batchMethods.length;
+    }
+
+    /**
+     * @return false if another request for the same invocation is running or has finished it
+     */
+    private boolean startReading(Context context)
     {
         boolean continueInvocation = true;
         synchronized (context)
@@ -145,6 +421,11 @@ public class StreamBasedInvocator
                 context.setReadingParametersState(this);
             }
         }
+        return continueInvocation;
+    }
+
+    private static Method readMethod(ObjectInput in, MethodResolver methodResolver) throws IOException, ClassNotFoundException
+    {
         //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
         String methodName = (String) in.readObject();
         Method method = methodResolver.getMethodFromMangledName(methodName);
@@ -153,82 +434,285 @@ public class StreamBasedInvocator
         {
             throw new IOException("No server method matching:" + methodName);
         }
+        return method;
+    }
 
+    private static Object[] readArguments(ObjectInput in, Method method, Context context) throws IOException, ClassNotFoundException
+    {
+        if (in instanceof PrimitiveLayout.Input)
+        {
+            context.setPrimitiveResultType(method.getReturnType());
+            return ((PrimitiveLayout.Input) in).readArguments(method);
+        }
         Class[] args = method.getParameterTypes();
         Object[] values = new Object[args.length];
+        int serialized = MethodResolver.hasStreamedArgument(method) ? args.length - 1 : args.length;
 
-        for (int i = 0; i < args.length; i++)
+        for (int i = 0; i < serialized; i++)
         {
             //if (CAUSE_RANDOM_ERROR) if (Math.random() > ERROR_RATE) throw new IOException("Random error, for testing only!");
             values[i] = in.readObject();
         }
-        if (continueInvocation)
+        if (serialized < args.length)
         {
-            context.setInvokingMethodState(this);
+            // the method reads the rest of the request itself
+            values[serialized] = StreamedArgumentLayout.read(in);
+        }
+        return values;
+    }
 
-            if (!this.abortInvocation)
+    /**
+     * Takes what the method didn't read of its stream argument off the request.
+     */
+    private static void drainStreamedArgument(Object[] values) throws IOException
+    {
+        if (values != null && values.length > 0 && values[values.length - 1] instanceof StreamedArgumentLayout.Input)
+        {
+            ((StreamedArgumentLayout.Input) values[values.length - 1]).drain();
+        }
+    }
+
+    /**
+     * Invokes the method read by {@link #readParameters}, unless another request for the same invocation got there first.
+     */
+    public void invokeMethod(
+            Context context,
+            Object service,
+            String remoteAddress,
+            RequestId requestId,
+            ListenerRegistry listeners,
+            DataOutputStream binaryLogger,
+            MethodInterceptor interceptor,
+            JrpipRequestContext requestContext) throws IOException
+    {
+        try
+        {
+            if (this.continueInvocation)
             {
-                boolean appliedPostEvaluation = false;
-                long start = System.currentTimeMillis();
-                try
+                context.setInvokingMethodState(this);
+
+                if (!this.abortInvocation)
                 {
-                    listeners.methodStarted(requestId, method, remoteAddress, values);
+                    this.evaluate(context, this.method, this.values, service, remoteAddress, requestId, listeners,
+                            binaryLogger, interceptor, requestContext);
+                }
+            }
+        }
+        finally
+        {
+            drainStreamedArgument(this.values);
+        }
+    }
+
+    /**
+     * Runs the calls read by {@link #readBatch}, in order, or concurrently on the executor when it's not null.
+     * Each call gets its own result or exception; the batch as a whole finishes normally. Calls of a single
+     * method that has a {@link com.gs.jrpip.BatchHandler} are run by one call of the handler instead.
+     */
+    public void invokeBatch(
+            Context context,
+            Object service,
+            String remoteAddress,
+            RequestId requestId,
+            ListenerRegistry listeners,
+            DataOutputStream binaryLogger,
+            MethodInterceptor interceptor,
+            JrpipRequestContext requestContext,
+            Executor executor) throws IOException
+    {
+        if (!this.continueInvocation)
+        {
+            return;
+        }
+        context.setInvokingMethodState(this);
+        if (this.abortInvocation)
+        {
+            return;
+        }
+        if (this.batchHandler != null)
+        {
+            this.invokeBatchHandler(context, service, remoteAddress, requestId, listeners, binaryLogger, interceptor, requestContext);
+            return;
+        }
+        int count = this.batchMethods.length;
+        Context[] calls = new Context[count];
+        FutureTask<?>[] tasks = new FutureTask<?>[count];
+        for (int i = 0; i < count; i++)
+        {
+            Context call = new Context();
+            Method method = this.batchMethods[i];
+            Object[] values = this.batchValues[i];
+            calls[i] = call;
+            if (executor == null)
+            {
+                this.evaluate(call, method, values, service, remoteAddress, requestId, listeners, binaryLogger, interceptor, requestContext);
+            }
+            else
+            {
+                tasks[i] = new FutureTask<Object>(() ->
+                {
+                    this.evaluate(call, method, values, service, remoteAddress, requestId, listeners, binaryLogger, interceptor, requestContext);
+                    return null;
+                });
+                executor.execute(tasks[i]);
+            }
+        }
+        Object[] results = new Object[count];
+        boolean[] thrown = new boolean[count];
+        for (int i = 0; i < count; i++)
+        {
+            if (tasks[i] != null)
+            {
+                awaitQuietly(tasks[i]);
+            }
+            results[i] = calls[i].getReturnValue();
+            thrown[i] = calls[i].isExceptionThrown();
+        }
+        context.setReturnValue(new BatchResults(results, thrown), false);
+    }
 
-                    if (interceptor != null)
-                    {
-                        interceptor.beforeMethodEvaluation(requestContext, method, values);
-                    }
+    private void invokeBatchHandler(
+            Context context,
+            Object service,
+            String remoteAddress,
+            RequestId requestId,
+            ListenerRegistry listeners,
+            DataOutputStream binaryLogger,
+            MethodInterceptor interceptor,
+            JrpipRequestContext requestContext) throws IOException
+    {
+        int count = this.batchValues.length;
+        List<Object> arguments = new ArrayList<>(count);
+        for (Object[] values : this.batchValues)
+        {
+            arguments.add(values[0]);
+        }
+        Context call = new Context();
+        this.evaluate(call, this.batchHandler, new Object[]{arguments}, service, remoteAddress, requestId, listeners,
+                binaryLogger, interceptor, requestContext);
+        Object returned = call.getReturnValue();
+        boolean failed = call.isExceptionThrown();
+        if (!failed && (returned == null || ((List) returned).size() != count))
+        {
+            returned = new JrpipRuntimeException("Batch handler " + this.batchHandler.getName() + " returned "
+                    + (returned == null ? "null" : ((List) returned).size() + " results") + " for " + count + " calls");
+            failed = true;
+        }
+        Object[] results = new Object[count];
+        boolean[] thrown = new boolean[count];
+        for (int i = 0; i < count; i++)
+        {
+            results[i] = failed ? returned : ((List) returned).get(i);
+            thrown[i] = failed;
+        }
+        context.setReturnValue(new BatchResults(results, thrown), false);
+    }
 
-                    Object result = method.invoke(service, values);
+    /**
+     * Runs the call on this thread if no executor thread has picked it up yet, so a batch can't starve when the
+     * executor is busy with the conversation that sent it.
+     */
+    private static void awaitQuietly(FutureTask<?> task)
+    {
+        task.run();
+        while (true)
+        {
+            try
+            {
+                task.get();
+                return;
+            }
+            catch (InterruptedException e)
+            {
+                // the response can't be written before every call is done
+            }
+            catch (Exception e)
+            {
+                // evaluate records the method's failure in its context
+                LOGGER.error("unexpected exception in batch call", e);
+                return;
+            }
+        }
+    }
 
-                    if (interceptor != null)
-                    {
-                        // this might throw and dont want to call afterMethodEvaluationFails since intercepted the method already...
-                        appliedPostEvaluation = true;
-                        interceptor.afterMethodEvaluationFinishes(requestContext, method, values, result);
-                    }
+    private void evaluate(
+            Context context,
+            Method method,
+            Object[] values,
+            Object service,
+            String remoteAddress,
+            RequestId requestId,
+            ListenerRegistry listeners,
+            DataOutputStream binaryLogger,
+            MethodInterceptor interceptor,
+            JrpipRequestContext requestContext) throws IOException
+    {
+        boolean appliedPostEvaluation = false;
+        long start = System.currentTimeMillis();
+        try
+        {
+            listeners.methodStarted(requestId, method, remoteAddress, values);
 
-                    context.setReturnValue(result, false);
-                    listeners.methodFinished(requestId, method, remoteAddress, result);
-                }
-                catch (Throwable e)
+            if (interceptor != null)
+            {
+                interceptor.beforeMethodEvaluation(requestContext, method, values);
+            }
+
+            Object result = method.invoke(service, values);
+            if (!context.isStreamedResult() && MethodResolver.hasStreamedResult(method))
+            {
+                // the response is written as one object; the proxy turns the list back into the declared type
+                result = StreamedResultLayout.toList(result);
+            }
+
+            if (interceptor != null)
+            {
+                // this might throw and dont want to call afterMethodEvaluationFails since intercepted the method already...
+                appliedPostEvaluation = true;
+                interceptor.afterMethodEvaluationFinishes(requestContext, method, values, result);
+            }
+
+            context.setReturnValue(result, false);
+            listeners.methodFinished(requestId, method, remoteAddress, result);
+        }
+        catch (Throwable e)
+        {
+            if (e instanceof InvocationTargetException)
+            {
+                e = ((InvocationTargetException) e).getTargetException();
+            }
+            LOGGER.error("an exception occured while invoking {}", method.getName(), e);
+
+            // if the errors is because the interceptor.afterMethodEvaluationFinishes
+            // dont call the interceptor again
+            if (!appliedPostEvaluation && interceptor != null)
+            {
+                try
                 {
-                    if (e instanceof InvocationTargetException)
-                    {
-                        e = ((InvocationTargetException) e).getTargetException();
-                    }
-                    LOGGER.error("an exception occured while invoking {}", method.getName(), e);
-
-                    // if the errors is because the interceptor.afterMethodEvaluationFinishes
-                    // dont call the interceptor again
-                    if (!appliedPostEvaluation && interceptor != null)
-                    {
-                        try
-                        {
-                            interceptor.afterMethodEvaluationFails(requestContext, method, values, e);
-                        }
-                        catch (Throwable interceptorException)
-                        {
-                            LOGGER.error("an exception occured while invoking interceptor {}.afterMethodEvaluationFails", interceptor.getClass().getSimpleName(), e);
-                            e = interceptorException;
-                        }
-                    }
-
-                    context.setReturnValue(e, true);
-
-                    listeners.methodFailed(requestId, method, remoteAddress, e);
+                    interceptor.afterMethodEvaluationFails(requestContext, method, values, e);
                 }
-                finally
+                catch (Throwable interceptorException)
                 {
-                    long currentTime = System.currentTimeMillis();
-                    binaryLogger.writeLong(start);
-                    binaryLogger.writeLong(currentTime);
-                    if (LOGGER.isDebugEnabled())
-                    {
-                        LOGGER.debug("Invoking method {}.{} took {} ms", method.getDeclaringClass().getName(), method.getName(), currentTime - start);
-                    }
+                    LOGGER.error("an exception occured while invoking interceptor {}.afterMethodEvaluationFails", interceptor.getClass().getSimpleName(), e);
+                    e = interceptorException;
                 }
             }
+
+            context.setReturnValue(e, true);
+
+            listeners.methodFailed(requestId, method, remoteAddress, e);
+        }
+        finally
+        {
+            // the binary log copies the request as it is read, so it has to end before the timings
+            drainStreamedArgument(values);
+            long currentTime = System.currentTimeMillis();
+            binaryLogger.writeLong(start);
+            binaryLogger.writeLong(currentTime);
+            if (LOGGER.isDebugEnabled())
+            {
+                LOGGER.debug("Invoking method {}.{} took {} ms", method.getDeclaringClass().getName(), method.getName(), currentTime - start);
+            }
         }
     }
 
@@ -3,6 +3,7 @@ package com.gs.jrpip.util;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.text.ParseException;
@@ -37,15 +38,32 @@ public class AuthGenerator
 
     public boolean verifyChallenge(long challenge, int encoded)
     {
-        long timePart = challenge >>> 20;
-        long now = System.currentTimeMillis();
-        if (timePart < now - 2000 || timePart > now + 2000)
+        if (!isRecent(challenge))
         {
             return false;
         }
         return encoded == this.generator.generateResponseCode(challenge);
     }
 
+    /**
+     * Verifies a challenge that is bound to a session, so the code can't be replayed against another session.
+     */
+    public boolean verifyChallenge(long challenge, long sessionId, int encoded)
+    {
+        if (!isRecent(challenge))
+        {
+            return false;
+        }
+        return encoded == this.authCode(challenge, sessionId);
+    }
+
+    private static boolean isRecent(long challenge)
+    {
+        long timePart = challenge >>> 20;
+        long now = System.currentTimeMillis();
+        return timePart >= now - 2000 && timePart <= now + 2000;
+    }
+
     public byte[] generateKeyIv(long challenge)
     {
         challenge ^= challenge >>> 23;
@@ -57,11 +75,38 @@ public class AuthGenerator
         return this.generator.hash(challenge);
     }
 
+    /**
+     * Derives the key and iv of a connection that resumes a session from the session's key and iv and the
+     * challenge of the resume, HKDF style (RFC 5869, HMAC-SHA256), so no two connections encrypt with the same ones.
+     */
+    public static byte[] deriveKeyIv(byte[] sessionKeyIv, long challenge)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(ByteBuffer.allocate(8).putLong(challenge).array(), "HmacSHA256"));
+            byte[] pseudoRandomKey = mac.doFinal(sessionKeyIv);
+            mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+            mac.update("jrpip resumed session".getBytes(StandardCharsets.US_ASCII));
+            mac.update((byte) 1);
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new RuntimeException("Shouldn't get here", e);
+        }
+    }
+
     public int authCode(long challenge)
     {
         return this.generator.generateResponseCode(challenge);
     }
 
+    public int authCode(long challenge, long sessionId)
+    {
+        return this.generator.generateResponseCode(ByteBuffer.allocate(16).putLong(challenge).putLong(sessionId).array());
+    }
+
     static Base32String getInstance()
     {
         return INSTANCE;
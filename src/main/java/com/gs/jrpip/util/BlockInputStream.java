@@ -6,7 +6,6 @@ import java.io.InputStream;
 
 public class BlockInputStream extends InputStream
 {
-    private static ThreadLocal<Blockbuf> buffers = new ThreadLocal<>();
     public static final int MAX_LENGTH = 9000; // about 4*tcp MTU
     public static final byte[] MAGIC = new byte[4];
 
@@ -84,13 +83,14 @@ public class BlockInputStream extends InputStream
         return false;
     }
 
+    /**
+     * The buffer belongs to the stream, so a service can make socket calls of its own while it reads a request.
+     */
     public void beginConversation() throws IOException
     {
-        this.buffer = buffers.get();
-        if (buffer == null)
+        if (this.buffer == null)
         {
-            buffer = new Blockbuf();
-            buffers.set(buffer);
+            this.buffer = new Blockbuf();
         }
         this.buffer.reset();
     }
@@ -121,6 +121,11 @@ public class BlockInputStream extends InputStream
         public int read(InputStream in) throws IOException
         {
             readHeaderIfNot(in);
+            while (!last && this.readPos == this.totalLength)
+            {
+                this.reset();
+                this.readHeaderIfNot(in);
+            }
             if (last && this.readPos == this.totalLength)
             {
                 return -1;
@@ -5,8 +5,6 @@ import java.io.OutputStream;
 
 public class BlockOutputStream extends OutputStream
 {
-    private static ThreadLocal<BlockWriteBuffer> buffers = new ThreadLocal<>();
-
     private OutputStream out;
     private BlockWriteBuffer buffer;
 
@@ -27,13 +25,14 @@ public class BlockOutputStream extends OutputStream
         this.buffer.write(this.out, (byte)(b & 0xFF));
     }
 
+    /**
+     * The buffer belongs to the stream, so a service can make socket calls of its own while its response is open.
+     */
     public void beginConversation()
     {
-        this.buffer = buffers.get();
-        if (buffer == null)
+        if (this.buffer == null)
         {
-            buffer = new BlockWriteBuffer();
-            buffers.set(buffer);
+            this.buffer = new BlockWriteBuffer();
         }
         this.buffer.reset();
     }
@@ -63,14 +62,25 @@ public class BlockOutputStream extends OutputStream
         this.buffer.write(out, (byte) v);
     }
 
+    /**
+     * The block header sits in front of the data in the same array, so a block goes out in one write to the socket.
+     */
     private static class BlockWriteBuffer
     {
-        private byte[] buf = new byte[BlockInputStream.MAX_LENGTH];
+        private static final int HEADER_LENGTH = BlockInputStream.MAGIC.length + 2;
+
+        private byte[] buf = new byte[HEADER_LENGTH + BlockInputStream.MAX_LENGTH];
         private int written;
 
+        BlockWriteBuffer()
+        {
+            System.arraycopy(BlockInputStream.MAGIC, 0, buf, 0, BlockInputStream.MAGIC.length);
+            this.written = HEADER_LENGTH;
+        }
+
         public void reset()
         {
-            this.written = 0;
+            this.written = HEADER_LENGTH;
         }
 
         public void write(OutputStream out, byte b) throws IOException
@@ -111,16 +121,16 @@ public class BlockOutputStream extends OutputStream
 
         private void writeToOutput(OutputStream out, boolean last) throws IOException
         {
-            out.write(BlockInputStream.MAGIC);
-            int high = written >> 8;
+            int length = written - HEADER_LENGTH;
+            int high = length >> 8;
             if (last)
             {
                 high |= (1 << 7);
             }
-            out.write(high);
-            out.write(written & 0xFF);
+            buf[HEADER_LENGTH - 2] = (byte) high;
+            buf[HEADER_LENGTH - 1] = (byte) (length & 0xFF);
             out.write(buf, 0, written);
-            written = 0;
+            written = HEADER_LENGTH;
         }
 
         public void writeFinalBlock(OutputStream out) throws IOException
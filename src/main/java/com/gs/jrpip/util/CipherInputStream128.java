@@ -53,7 +53,7 @@ public class CipherInputStream128 extends InputStream
         {
             return -1;
         }
-        return inBuf[inBufPos++];
+        return inBuf[inBufPos++] & 0xFF;
     }
 
     private void fillInBuf() throws IOException
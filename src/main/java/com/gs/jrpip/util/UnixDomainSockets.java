@@ -0,0 +1,113 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.util;
+
+import com.gs.jrpip.client.JrpipRuntimeException;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain socket channels (JDK 16+), looked up reflectively so the library still runs on older JVMs.
+ */
+public class UnixDomainSockets
+{
+    private UnixDomainSockets()
+    {
+    }
+
+    public static SocketChannel open(String path) throws IOException
+    {
+        SocketChannel channel = (SocketChannel) openChannel(SocketChannel.class, unixFamily());
+        try
+        {
+            channel.connect(address(path));
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    public static ServerSocketChannel bind(String path) throws IOException
+    {
+        ServerSocketChannel channel = (ServerSocketChannel) openChannel(ServerSocketChannel.class, unixFamily());
+        try
+        {
+            channel.bind(address(path));
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static ProtocolFamily unixFamily()
+    {
+        try
+        {
+            return StandardProtocolFamily.valueOf("UNIX");
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new JrpipRuntimeException("Unix domain sockets are not available in this JVM", e);
+        }
+    }
+
+    private static SocketAddress address(String path)
+    {
+        try
+        {
+            Method of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            return (SocketAddress) of.invoke(null, path);
+        }
+        catch (Exception e)
+        {
+            throw new JrpipRuntimeException("Unix domain sockets are not available in this JVM", e);
+        }
+    }
+
+    private static Object openChannel(Class channelClass, ProtocolFamily family) throws IOException
+    {
+        try
+        {
+            return channelClass.getMethod("open", ProtocolFamily.class).invoke(null, family);
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new JrpipRuntimeException("Could not open unix domain socket", e.getCause());
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new JrpipRuntimeException("Unix domain sockets are not available in this JVM", e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.util.stream;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The receiving side of a connection's class descriptor table. Messages must be read in the order they were
+ * written.
+ *
+ * @see ClassDescriptorTableOutput
+ */
+public class ClassDescriptorTableInput
+{
+    private final List<ObjectStreamClass> descriptors = new ArrayList<>();
+
+    /**
+     * Adds the descriptors sent ahead of the message to the table.
+     *
+     * @return the stream to read the body of the message from
+     */
+    public ObjectInputStream startReading(InputStream in) throws IOException, ClassNotFoundException
+    {
+        int count = new DataInputStream(in).readInt();
+        if (count > 0)
+        {
+            DescriptorInputStream descriptors = new DescriptorInputStream(in);
+            for (int i = 0; i < count; i++)
+            {
+                this.descriptors.add(descriptors.readDescriptor());
+            }
+        }
+        return new TableObjectInputStream(in);
+    }
+
+    /**
+     * @return the number of descriptors received so far
+     */
+    public int size()
+    {
+        return this.descriptors.size();
+    }
+
+    private class TableObjectInputStream extends ObjectInputStream
+    {
+        private TableObjectInputStream(InputStream in) throws IOException
+        {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException
+        {
+            int id = this.readInt();
+            if (id < 0 || id >= descriptors.size())
+            {
+                throw new StreamCorruptedException("Unknown class descriptor id " + id);
+            }
+            return descriptors.get(id);
+        }
+    }
+
+    private static class DescriptorInputStream extends ObjectInputStream
+    {
+        private DescriptorInputStream(InputStream in) throws IOException
+        {
+            super(in);
+        }
+
+        private ObjectStreamClass readDescriptor() throws IOException, ClassNotFoundException
+        {
+            return super.readClassDescriptor();
+        }
+    }
+}
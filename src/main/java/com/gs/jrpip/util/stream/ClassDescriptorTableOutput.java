@@ -0,0 +1,173 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.util.stream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sending side of a class descriptor table kept for the life of a connection. A class descriptor is sent
+ * in full the first time its class is written on the connection and as an int id after that. Each message still
+ * gets a fresh object stream, so object identity doesn't carry over from one message to the next.
+ * <p/>
+ * The descriptors new to a message are written ahead of its body, so the peer learns them even if it stops
+ * reading the body early. They only join the table once the peer has answered the message.
+ *
+ * @see ClassDescriptorTableInput
+ */
+public class ClassDescriptorTableOutput
+{
+    private final Map<Class<?>, Integer> ids = new HashMap<>();
+    private final Map<Class<?>, Integer> pendingIds = new HashMap<>();
+    private final List<ObjectStreamClass> pending = new ArrayList<>();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+    private final BodyOutputStream bodyOut = new BodyOutputStream();
+
+    /**
+     * @return the stream for the body of the next message. The body is buffered until {@link #finishWriting}.
+     */
+    public ObjectOutputStream startWriting() throws IOException
+    {
+        this.rollback();
+        this.body.reset();
+        this.bodyOut.target = this.body;
+        return new TableObjectOutputStream(this.bodyOut);
+    }
+
+    /**
+     * Writes the descriptors new to the message, then its body. What is written to the body stream after this goes
+     * straight to out, so it must not need new descriptors.
+     */
+    public void finishWriting(ObjectOutputStream objectOut, OutputStream out) throws IOException
+    {
+        objectOut.flush();
+        new DataOutputStream(out).writeInt(this.pending.size());
+        if (!this.pending.isEmpty())
+        {
+            DescriptorOutputStream descriptors = new DescriptorOutputStream(out);
+            for (ObjectStreamClass desc : this.pending)
+            {
+                descriptors.writeDescriptor(desc);
+            }
+            descriptors.flush();
+        }
+        this.body.writeTo(out);
+        this.bodyOut.target = out;
+    }
+
+    /**
+     * The peer answered the last message, so it has read its new descriptors.
+     */
+    public void commit()
+    {
+        this.ids.putAll(this.pendingIds);
+        this.pending.clear();
+        this.pendingIds.clear();
+    }
+
+    /**
+     * The peer turned the last message away before reading it.
+     */
+    public void rollback()
+    {
+        this.pending.clear();
+        this.pendingIds.clear();
+    }
+
+    /**
+     * @return the number of descriptors the peer has
+     */
+    public int size()
+    {
+        return this.ids.size();
+    }
+
+    private int idFor(ObjectStreamClass desc)
+    {
+        Class<?> type = desc.forClass();
+        Integer id = this.ids.get(type);
+        if (id == null)
+        {
+            id = this.pendingIds.get(type);
+            if (id == null)
+            {
+                id = this.ids.size() + this.pending.size();
+                this.pending.add(desc);
+                this.pendingIds.put(type, id);
+            }
+        }
+        return id;
+    }
+
+    private static class BodyOutputStream extends OutputStream
+    {
+        private OutputStream target;
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.target.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            this.target.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            this.target.flush();
+        }
+    }
+
+    private class TableObjectOutputStream extends ObjectOutputStream
+    {
+        private TableObjectOutputStream(OutputStream out) throws IOException
+        {
+            super(out);
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException
+        {
+            this.writeInt(idFor(desc));
+        }
+    }
+
+    private static class DescriptorOutputStream extends ObjectOutputStream
+    {
+        private DescriptorOutputStream(OutputStream out) throws IOException
+        {
+            super(out);
+        }
+
+        private void writeDescriptor(ObjectStreamClass desc) throws IOException
+        {
+            super.writeClassDescriptor(desc);
+        }
+    }
+}
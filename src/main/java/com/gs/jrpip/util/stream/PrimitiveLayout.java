@@ -0,0 +1,307 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.util.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import com.gs.jrpip.MethodResolver;
+
+/**
+ * The fixed layout of calls to methods whose parameters and result are primitives or Strings: each value is
+ * written as its type, without a stream header, class descriptors or boxing on the wire. The objects of the
+ * layout are Strings, written as a marker byte (null, modified UTF-8 or chars) and the value, and byte arrays and
+ * ByteBuffers, written as a raw frame: the marker, the length and the bytes straight from the caller's array.
+ *
+ * @see MethodResolver#hasPrimitiveSignature(Method)
+ * @see MethodResolver#hasRawSignature(Method)
+ */
+public final class PrimitiveLayout
+{
+    private static final byte NULL_OBJECT = 0;
+    private static final byte UTF_STRING = 1;
+    private static final byte CHAR_STRING = 2;
+    private static final byte RAW_BYTES = 3;
+
+    // writeUTF takes at most 65535 bytes, which holds any string of up to a third of that
+    private static final int MAX_UTF_LENGTH = 65535 / 3;
+    private static final int COPY_CHUNK = 8192;
+
+    private PrimitiveLayout()
+    {
+        throw new AssertionError("Suppress default constructor for noninstantiability");
+    }
+
+    public static class Output extends DataOutputStream implements ObjectOutput
+    {
+        public Output(OutputStream out)
+        {
+            super(out);
+        }
+
+        /**
+         * Writes a String, a byte array or ByteBuffer, or a boxed primitive as its primitive type.
+         */
+        @Override
+        public void writeObject(Object obj) throws IOException
+        {
+            if (obj == null || obj instanceof String)
+            {
+                this.writeString((String) obj);
+            }
+            else if (obj instanceof byte[])
+            {
+                byte[] bytes = (byte[]) obj;
+                this.writeByte(RAW_BYTES);
+                this.writeInt(bytes.length);
+                this.write(bytes, 0, bytes.length);
+            }
+            else if (obj instanceof ByteBuffer)
+            {
+                this.writeBuffer((ByteBuffer) obj);
+            }
+            else if (obj instanceof Integer)
+            {
+                this.writeInt((Integer) obj);
+            }
+            else if (obj instanceof Long)
+            {
+                this.writeLong((Long) obj);
+            }
+            else if (obj instanceof Boolean)
+            {
+                this.writeBoolean((Boolean) obj);
+            }
+            else if (obj instanceof Double)
+            {
+                this.writeDouble((Double) obj);
+            }
+            else if (obj instanceof Float)
+            {
+                this.writeFloat((Float) obj);
+            }
+            else if (obj instanceof Short)
+            {
+                this.writeShort((Short) obj);
+            }
+            else if (obj instanceof Byte)
+            {
+                this.writeByte((Byte) obj);
+            }
+            else if (obj instanceof Character)
+            {
+                this.writeChar((Character) obj);
+            }
+            else
+            {
+                throw new IOException("Not a primitive or String: " + obj.getClass().getName());
+            }
+        }
+
+        /**
+         * Writes the remaining bytes of the buffer without moving its position.
+         */
+        private void writeBuffer(ByteBuffer buffer) throws IOException
+        {
+            int length = buffer.remaining();
+            this.writeByte(RAW_BYTES);
+            this.writeInt(length);
+            if (buffer.hasArray())
+            {
+                this.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                return;
+            }
+            ByteBuffer source = buffer.duplicate();
+            byte[] chunk = new byte[Math.min(length, COPY_CHUNK)];
+            while (source.hasRemaining())
+            {
+                int toCopy = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, toCopy);
+                this.write(chunk, 0, toCopy);
+            }
+        }
+
+        private void writeString(String value) throws IOException
+        {
+            if (value == null)
+            {
+                this.writeByte(NULL_OBJECT);
+            }
+            else if (value.length() <= MAX_UTF_LENGTH)
+            {
+                this.writeByte(UTF_STRING);
+                this.writeUTF(value);
+            }
+            else
+            {
+                this.writeByte(CHAR_STRING);
+                this.writeInt(value.length());
+                this.writeChars(value);
+            }
+        }
+
+        /**
+         * Writes a value of the type; void has no value.
+         */
+        public void writeValue(Class<?> type, Object value) throws IOException
+        {
+            if (type != void.class)
+            {
+                this.writeObject(value);
+            }
+        }
+    }
+
+    public static class Input extends DataInputStream implements ObjectInput
+    {
+        public Input(InputStream in)
+        {
+            super(in);
+        }
+
+        /**
+         * @return the next String
+         */
+        @Override
+        public Object readObject() throws IOException
+        {
+            byte marker = this.readByte();
+            switch (marker)
+            {
+                case NULL_OBJECT:
+                    return null;
+                case UTF_STRING:
+                    return this.readUTF();
+                case CHAR_STRING:
+                    int length = this.readInt();
+                    if (length < 0)
+                    {
+                        throw new StreamCorruptedException("Negative length " + length);
+                    }
+                    char[] chars = new char[length];
+                    for (int i = 0; i < length; i++)
+                    {
+                        chars[i] = this.readChar();
+                    }
+                    return new String(chars);
+                default:
+                    throw new StreamCorruptedException("Unknown string marker " + marker);
+            }
+        }
+
+        /**
+         * @return the value of the type, boxed, or null for void
+         */
+        public Object readValue(Class<?> type) throws IOException
+        {
+            if (type == int.class)
+            {
+                return this.readInt();
+            }
+            if (type == long.class)
+            {
+                return this.readLong();
+            }
+            if (type == String.class)
+            {
+                return this.readObject();
+            }
+            if (type == boolean.class)
+            {
+                return this.readBoolean();
+            }
+            if (type == double.class)
+            {
+                return this.readDouble();
+            }
+            if (type == float.class)
+            {
+                return this.readFloat();
+            }
+            if (type == short.class)
+            {
+                return this.readShort();
+            }
+            if (type == byte.class)
+            {
+                return this.readByte();
+            }
+            if (type == char.class)
+            {
+                return this.readChar();
+            }
+            if (type == byte[].class)
+            {
+                return this.readBytes();
+            }
+            if (type == ByteBuffer.class)
+            {
+                byte[] bytes = this.readBytes();
+                return bytes == null ? null : ByteBuffer.wrap(bytes);
+            }
+            if (type == void.class)
+            {
+                return null;
+            }
+            throw new IOException("Not a primitive or String: " + type.getName());
+        }
+
+        private byte[] readBytes() throws IOException
+        {
+            byte marker = this.readByte();
+            if (marker == NULL_OBJECT)
+            {
+                return null;
+            }
+            if (marker != RAW_BYTES)
+            {
+                throw new StreamCorruptedException("Unknown bytes marker " + marker);
+            }
+            int length = this.readInt();
+            if (length < 0)
+            {
+                throw new StreamCorruptedException("Negative length " + length);
+            }
+            byte[] bytes = new byte[length];
+            this.readFully(bytes);
+            return bytes;
+        }
+
+        public Object[] readArguments(Method method) throws IOException
+        {
+            if (!MethodResolver.hasRawSignature(method))
+            {
+                throw new IOException("Method " + method.getName() + " takes or returns objects");
+            }
+            Class<?>[] types = method.getParameterTypes();
+            Object[] values = new Object[types.length];
+            for (int i = 0; i < types.length; i++)
+            {
+                values[i] = this.readValue(types[i]);
+            }
+            return values;
+        }
+    }
+}
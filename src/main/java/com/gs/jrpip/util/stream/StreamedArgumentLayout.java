@@ -0,0 +1,233 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.util.stream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.lang.reflect.Method;
+
+import com.gs.jrpip.MethodResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The layout of an InputStream argument, written in the object stream of the invocation after the other arguments:
+ * a boolean that is false for a null stream, then the bytes in chunks, each after its length, and a zero length
+ * after the last one. A negative length ends the bytes early because the sender could not read its stream.
+ *
+ * @see MethodResolver#hasStreamedArgument(Method)
+ */
+public final class StreamedArgumentLayout
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamedArgumentLayout.class);
+
+    public static final int CHUNK_SIZE = 8192;
+
+    private static final int END = 0;
+    private static final int ABORTED = -1;
+
+    private StreamedArgumentLayout()
+    {
+        throw new AssertionError("Suppress default constructor for noninstantiability");
+    }
+
+    /**
+     * Writes the bytes as they are read from data, which is left open.
+     */
+    public static void write(ObjectOutput out, InputStream data) throws IOException
+    {
+        out.writeBoolean(data != null);
+        if (data == null)
+        {
+            return;
+        }
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (true)
+        {
+            int read;
+            try
+            {
+                read = data.read(chunk);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                LOGGER.warn("Could not read the stream argument; the service gets the rest of the stream as a failure", e);
+                out.writeInt(ABORTED);
+                return;
+            }
+            if (read < 0)
+            {
+                break;
+            }
+            if (read > 0)
+            {
+                out.writeInt(read);
+                out.write(chunk, 0, read);
+            }
+        }
+        out.writeInt(END);
+    }
+
+    /**
+     * @return the stream the service reads the bytes from as they arrive, or null if a null stream was sent
+     */
+    public static Input read(ObjectInput in) throws IOException
+    {
+        return in.readBoolean() ? new Input(in) : null;
+    }
+
+    /**
+     * Reads whatever the service left of the bytes, so the rest of the request can be read.
+     */
+    public static void skip(ObjectInput in) throws IOException
+    {
+        Input input = read(in);
+        if (input != null)
+        {
+            input.drain();
+        }
+    }
+
+    /**
+     * The bytes of an InputStream argument. They can only be read while the method runs: the server reads what
+     * is left once it returns.
+     */
+    public static final class Input extends InputStream
+    {
+        private final ObjectInput in;
+        private int remaining;
+        private boolean finished;
+        private boolean aborted;
+        private boolean closed;
+
+        private Input(ObjectInput in)
+        {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (!this.fill())
+            {
+                return -1;
+            }
+            int result = this.in.read();
+            if (result < 0)
+            {
+                throw new EOFException("The request ended in the middle of a stream argument");
+            }
+            this.remaining--;
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!this.fill())
+            {
+                return -1;
+            }
+            int read = this.in.read(b, off, Math.min(len, this.remaining));
+            if (read < 0)
+            {
+                throw new EOFException("The request ended in the middle of a stream argument");
+            }
+            this.remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            if (this.closed || this.remaining == 0)
+            {
+                return 0;
+            }
+            return Math.min(this.remaining, this.in.available());
+        }
+
+        /**
+         * Stops the service from reading further. The bytes it didn't read are still taken off the request.
+         */
+        @Override
+        public void close()
+        {
+            this.closed = true;
+        }
+
+        /**
+         * Reads the bytes the service didn't.
+         */
+        public void drain() throws IOException
+        {
+            this.closed = true;
+            byte[] skipped = new byte[CHUNK_SIZE];
+            while (this.next())
+            {
+                int length = Math.min(this.remaining, skipped.length);
+                this.in.readFully(skipped, 0, length);
+                this.remaining -= length;
+            }
+        }
+
+        /**
+         * @return false at the end of the bytes
+         */
+        private boolean fill() throws IOException
+        {
+            if (this.closed)
+            {
+                throw new IOException("Stream closed");
+            }
+            if (this.next())
+            {
+                return true;
+            }
+            if (this.aborted)
+            {
+                throw new IOException("The client could not read the stream it was sending");
+            }
+            return false;
+        }
+
+        private boolean next() throws IOException
+        {
+            while (this.remaining == 0 && !this.finished)
+            {
+                int length = this.in.readInt();
+                if (length <= 0)
+                {
+                    this.finished = true;
+                    this.aborted = length == ABORTED;
+                }
+                else
+                {
+                    this.remaining = length;
+                }
+            }
+            return this.remaining > 0;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.util.stream;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.gs.jrpip.MethodResolver;
+
+/**
+ * The layout of a result sent element by element: a marker byte before each element and one after the last, in a
+ * single object stream. A null result is a single marker. An exception thrown while iterating ends the stream with
+ * a fault marker and the exception, after the elements that were already written.
+ *
+ * @see MethodResolver#hasStreamedResult(Method)
+ */
+public final class StreamedResultLayout
+{
+    public static final byte END = 0;
+    public static final byte ELEMENT = 1;
+    public static final byte FAULT = 2;
+    public static final byte NULL_RESULT = 3;
+
+    // the object streams forget the elements they wrote this often, so neither side keeps them all reachable
+    private static final int RESET_INTERVAL = 1024;
+
+    private StreamedResultLayout()
+    {
+        throw new AssertionError("Suppress default constructor for noninstantiability");
+    }
+
+    /**
+     * Writes the elements as the result produces them and closes the result.
+     */
+    public static void write(ObjectOutputStream out, Object result) throws IOException
+    {
+        if (result == null)
+        {
+            out.writeByte(NULL_RESULT);
+            return;
+        }
+        boolean closed = false;
+        try
+        {
+            Iterator<?> iterator = iterator(result);
+            int count = 0;
+            while (true)
+            {
+                Object element;
+                try
+                {
+                    if (!iterator.hasNext())
+                    {
+                        closed = true;
+                        close(result);
+                        break;
+                    }
+                    element = iterator.next();
+                }
+                catch (Throwable t)
+                {
+                    out.writeByte(FAULT);
+                    out.writeObject(t);
+                    return;
+                }
+                out.writeByte(ELEMENT);
+                out.writeObject(element);
+                if (++count % RESET_INTERVAL == 0)
+                {
+                    out.reset();
+                }
+            }
+            out.writeByte(END);
+        }
+        finally
+        {
+            if (!closed)
+            {
+                closeQuietly(result);
+            }
+        }
+    }
+
+    /**
+     * Reads a streamed result into a list, for transports that send it as one object.
+     */
+    public static List<Object> toList(Object result)
+    {
+        if (result == null)
+        {
+            return null;
+        }
+        List<Object> list = new ArrayList<>();
+        boolean closed = false;
+        try
+        {
+            Iterator<?> iterator = iterator(result);
+            while (iterator.hasNext())
+            {
+                list.add(iterator.next());
+            }
+            closed = true;
+            close(result);
+        }
+        finally
+        {
+            if (!closed)
+            {
+                closeQuietly(result);
+            }
+        }
+        return list;
+    }
+
+    private static Iterator<?> iterator(Object result)
+    {
+        if (result instanceof Stream)
+        {
+            return ((Stream<?>) result).iterator();
+        }
+        return (Iterator<?>) result;
+    }
+
+    private static void close(Object result)
+    {
+        if (result instanceof AutoCloseable)
+        {
+            try
+            {
+                ((AutoCloseable) result).close();
+            }
+            catch (RuntimeException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException("Could not close " + result, e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Object result)
+    {
+        try
+        {
+            close(result);
+        }
+        catch (RuntimeException e)
+        {
+            // the failure that got here is the one to report
+        }
+    }
+}
@@ -22,8 +22,10 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.lang.reflect.Method;
 
+import com.gs.jrpip.MethodResolver;
 import com.gs.jrpip.MethodResolverFactory;
 import com.gs.jrpip.RequestId;
+import com.gs.jrpip.util.stream.StreamedArgumentLayout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,10 +64,16 @@ public class RequestInflatorSequenceHelper
     {
         int parametersSize = method.getParameterTypes().length;
         Object[] parameters = new Object[parametersSize];
-        for (int i = 0; i < parametersSize; i++)
+        int serialized = MethodResolver.hasStreamedArgument(method) ? parametersSize - 1 : parametersSize;
+        for (int i = 0; i < serialized; i++)
         {
             parameters[i] = result.readObject();
         }
+        if (serialized < parametersSize)
+        {
+            // the bytes of a stream argument are not kept
+            StreamedArgumentLayout.skip(result);
+        }
         return parameters;
     }
 }
@@ -0,0 +1,139 @@
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.client.JrpipTimeoutException;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class AdmissionControlSocketTest extends SocketTestCase
+{
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.setConcurrencyLimit(Echo.class, 1, 1, 300);
+    }
+
+    public void testBusyRequestIsRetried() throws Exception
+    {
+        final Echo echo = this.buildEchoProxy();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<String> slow = executor.submit(() -> echo.echoAndSleep("slow", 500));
+            Thread.sleep(100);
+            Assert.assertEquals("hello", echo.echo("hello"));
+            Assert.assertEquals("slow", slow.get());
+            Assert.assertTrue(this.server.getBusyRequests() > 0);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testQueuedRequestWaitsForSlot() throws Exception
+    {
+        final Echo echo = this.buildEchoProxy();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<String> slow = executor.submit(() -> echo.echoAndSleep("slow", 150));
+            Thread.sleep(50);
+            Assert.assertEquals("hello", echo.echo("hello"));
+            Assert.assertEquals("slow", slow.get());
+            Assert.assertEquals(0, this.server.getBusyRequests());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testQueuedRequestGivesUpAfterMaxWait() throws Exception
+    {
+        final Echo echo = this.buildEchoProxy();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<String> slow = executor.submit(() -> echo.echoAndSleep("slow", 1000));
+            Thread.sleep(100);
+            Assert.assertEquals("hello", echo.echo("hello"));
+            Assert.assertEquals("slow", slow.get());
+            Assert.assertTrue(this.server.getBusyRequests() > 0);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testInterruptedWhileBusy() throws Exception
+    {
+        final Echo echo = this.buildEchoProxy();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<String> slow = executor.submit(() -> echo.echoAndSleep("slow", 2000));
+            Thread.sleep(100);
+            final Thread caller = Thread.currentThread();
+            new Thread(() ->
+            {
+                try
+                {
+                    Thread.sleep(600);
+                }
+                catch (InterruptedException e)
+                {
+                    // ignore
+                }
+                caller.interrupt();
+            }).start();
+            long start = System.currentTimeMillis();
+            try
+            {
+                echo.echo("hello");
+                Assert.fail("must not get here");
+            }
+            catch (JrpipRuntimeException e)
+            {
+                Assert.assertTrue(Thread.interrupted());
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+            Assert.assertEquals("slow", slow.get());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testBusyUntilTimeout() throws Exception
+    {
+        final Echo slowEcho = this.buildEchoProxy();
+        Echo echo = this.buildEchoProxy(200);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<String> slow = executor.submit(() -> slowEcho.echoAndSleep("slow", 1000));
+            Thread.sleep(100);
+            try
+            {
+                echo.echo("hello");
+                Assert.fail("must not get here");
+            }
+            catch (JrpipTimeoutException e)
+            {
+                // expected
+            }
+            Assert.assertEquals("slow", slow.get());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.client.JrpipTimeoutException;
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import org.junit.Assert;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class AsyncProxySocketTest
+        extends SocketTestCase
+{
+    private EchoAsync buildEchoAsyncProxy(boolean multiplexed, int timeout) throws MalformedURLException
+    {
+        SocketMessageTransport transport = new SocketMessageTransport();
+        transport.setMultiplexed(multiplexed);
+        MtProxyFactory factory = new MtProxyFactory(transport);
+        factory.setUseLocalService(false);
+        return factory.createAsync(EchoAsync.class, Echo.class, this.getJrpipUrl(), timeout);
+    }
+
+    public void testEcho() throws Exception
+    {
+        EchoAsync echo = this.buildEchoAsyncProxy(false, 0);
+        Assert.assertEquals("hello", echo.echo("hello").get());
+        Assert.assertEquals("hello again", echo.echo("hello again").get());
+    }
+
+    public void testMultiplexedEcho() throws Exception
+    {
+        EchoAsync echo = this.buildEchoAsyncProxy(true, 0);
+        Assert.assertEquals("hello", echo.echo("hello").get());
+        Assert.assertEquals("hello again", echo.echo("hello again").get());
+    }
+
+    public void testConcurrentCallsFromOneThread() throws Exception
+    {
+        EchoAsync echo = this.buildEchoAsyncProxy(true, 0);
+        Assert.assertEquals("hello", echo.echo("hello").get());
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++)
+        {
+            results.add(echo.echoAndSleep("hello" + i, 300));
+        }
+        for (int i = 0; i < 10; i++)
+        {
+            Assert.assertEquals("hello" + i, results.get(i).get());
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        Assert.assertEquals(1, this.server.getConnectionCount());
+    }
+
+    public void testBoundedPool() throws Exception
+    {
+        int maxThreads = MtProxyFactory.getAsyncThreads();
+        MtProxyFactory.setAsyncThreads(2);
+        try
+        {
+            EchoAsync echo = this.buildEchoAsyncProxy(false, 0);
+            List<CompletableFuture<String>> results = new ArrayList<>();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 6; i++)
+            {
+                results.add(echo.echoAndSleep("hello" + i, 300));
+            }
+            for (int i = 0; i < 6; i++)
+            {
+                Assert.assertEquals("hello" + i, results.get(i).get());
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start >= 900);
+        }
+        finally
+        {
+            MtProxyFactory.setAsyncThreads(maxThreads);
+        }
+    }
+
+    public void testDeclaredException() throws Exception
+    {
+        EchoAsync echo = this.buildEchoAsyncProxy(true, 0);
+        try
+        {
+            echo.throwExpectedException().get();
+            Assert.fail("should not get here");
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof FakeException);
+        }
+        try
+        {
+            echo.throwUnexpectedException().get();
+            Assert.fail("should not get here");
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof RuntimeException);
+        }
+    }
+
+    public void testTimeout() throws Exception
+    {
+        EchoAsync echo = this.buildEchoAsyncProxy(true, 200);
+        Assert.assertEquals("hello", echo.echo("hello").get());
+        try
+        {
+            echo.echoAndSleep("hello", 2000).get();
+            Assert.fail("should not get here");
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof JrpipTimeoutException);
+        }
+    }
+
+    public void testMismatchedInterface() throws Exception
+    {
+        MtProxyFactory factory = new MtProxyFactory(new SocketMessageTransport());
+        try
+        {
+            factory.createAsync(Runnable.class, Echo.class, this.getJrpipUrl());
+            Assert.fail("should not get here");
+        }
+        catch (JrpipRuntimeException e)
+        {
+            // expected
+        }
+    }
+}
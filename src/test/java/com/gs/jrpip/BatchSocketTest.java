@@ -0,0 +1,126 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.JrpipBatch;
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+public class BatchSocketTest
+        extends SocketTestCase
+{
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.useBoundedInvocationPool(4);
+    }
+
+    public void testCallsGoInOneRequest() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        JrpipBatch<Echo> batch = MtProxyFactory.createBatch(Echo.class, echo);
+        Assert.assertNull(batch.record().echo("hello"));
+        Assert.assertEquals(0, batch.record().testUnserializableObject("x"));
+        batch.record().throwExpectedException();
+        batch.record().uncompressedEcho("world");
+        Assert.assertEquals(4, batch.size());
+
+        BatchResults results = batch.execute();
+        Assert.assertEquals(1, this.server.getBatchRequests());
+        Assert.assertEquals(4, results.size());
+        Assert.assertEquals("hello", results.getResult(0));
+        Assert.assertEquals("x".hashCode(), results.getResult(1));
+        Assert.assertTrue(results.isFailed(2));
+        Assert.assertTrue(results.getException(2) instanceof FakeException);
+        Assert.assertNull(results.getResult(2));
+        Assert.assertFalse(results.isFailed(3));
+        Assert.assertEquals("world", results.getResult(3));
+    }
+
+    public void testCallsRunInOrder() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        JrpipBatch<Echo> batch = MtProxyFactory.createBatch(Echo.class, echo);
+        for (int i = 0; i < 100; i++)
+        {
+            batch.record().echoObject(i);
+        }
+        BatchResults results = batch.execute();
+        for (int i = 0; i < 100; i++)
+        {
+            Assert.assertEquals(i, results.getResult(i));
+        }
+    }
+
+    public void testParallelCallsOverlap() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        JrpipBatch<Echo> batch = MtProxyFactory.createBatch(Echo.class, echo);
+        batch.setParallel(true);
+        for (int i = 0; i < 4; i++)
+        {
+            batch.record().echoAndSleep("e" + i, 500);
+        }
+        long start = System.currentTimeMillis();
+        BatchResults results = batch.execute();
+        Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+        for (int i = 0; i < 4; i++)
+        {
+            Assert.assertEquals("e" + i, results.getResult(i));
+        }
+    }
+
+    public void testExecutesOnce() throws Exception
+    {
+        JrpipBatch<Echo> batch = MtProxyFactory.createBatch(Echo.class, this.buildEchoProxy());
+        batch.record().echo("hello");
+        batch.execute();
+        try
+        {
+            batch.execute();
+            Assert.fail("should not get here");
+        }
+        catch (JrpipRuntimeException e)
+        {
+            // expected
+        }
+        try
+        {
+            batch.record().echo("too late");
+            Assert.fail("should not get here");
+        }
+        catch (JrpipRuntimeException e)
+        {
+            // expected
+        }
+        Assert.assertEquals(1, this.server.getBatchRequests());
+    }
+
+    public void testLocalServiceRunsDirectly() throws Exception
+    {
+        JrpipBatch<Echo> batch = MtProxyFactory.createBatch(Echo.class, new EchoImpl());
+        batch.record().echo("hello");
+        batch.record().throwUnexpectedException();
+        BatchResults results = batch.execute();
+        Assert.assertEquals("hello", results.getResult(0));
+        Assert.assertTrue(results.getException(1) instanceof RuntimeException);
+        Assert.assertEquals(0, this.server.getBatchRequests());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.ResultCacheStats;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CacheableSocketTest
+        extends SocketTestCase
+{
+    private static final AtomicInteger INVOCATIONS = new AtomicInteger();
+
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.addServiceConfig(Lookup.class, LookupImpl.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        INVOCATIONS.set(0);
+    }
+
+    private Lookup buildLookupProxy() throws Exception
+    {
+        MtProxyFactory factory = new MtProxyFactory(new SocketMessageTransport());
+        factory.setUseLocalService(false);
+        return factory.create(Lookup.class, this.getJrpipUrl());
+    }
+
+    private static ResultCacheStats statsFor(Lookup lookup, String methodName)
+    {
+        for (ResultCacheStats stats : MtProxyFactory.getResultCacheStats(lookup))
+        {
+            if (stats.getMethodName().endsWith('.' + methodName))
+            {
+                return stats;
+            }
+        }
+        throw new AssertionError("no cache for " + methodName);
+    }
+
+    public void testHitSkipsServer() throws Exception
+    {
+        Lookup lookup = this.buildLookupProxy();
+        List<String> first = lookup.find("a", 3);
+        first.add("changed by caller");
+        Assert.assertEquals(3, lookup.find("a", 3).size());
+        Assert.assertEquals(1, INVOCATIONS.get());
+        Assert.assertEquals(4, lookup.find("a", 4).size());
+        Assert.assertEquals(2, INVOCATIONS.get());
+
+        ResultCacheStats stats = statsFor(lookup, "find");
+        Assert.assertEquals(1, stats.getHits());
+        Assert.assertEquals(2, stats.getMisses());
+        Assert.assertEquals(2, stats.getEntries());
+    }
+
+    public void testUncachedMethodAlwaysCalls() throws Exception
+    {
+        Lookup lookup = this.buildLookupProxy();
+        lookup.count("a");
+        lookup.count("a");
+        Assert.assertEquals(2, INVOCATIONS.get());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception
+    {
+        Lookup lookup = this.buildLookupProxy();
+        lookup.recent(1);
+        lookup.recent(2);
+        lookup.recent(1);
+        lookup.recent(3);
+        Assert.assertEquals(3, INVOCATIONS.get());
+        lookup.recent(1);
+        Assert.assertEquals(3, INVOCATIONS.get());
+        lookup.recent(2);
+        Assert.assertEquals(4, INVOCATIONS.get());
+        Assert.assertTrue(statsFor(lookup, "recent").getEvictions() > 0);
+    }
+
+    public void testExpiredEntryIsFetchedAgain() throws Exception
+    {
+        Lookup lookup = this.buildLookupProxy();
+        lookup.shortLived("a");
+        lookup.shortLived("a");
+        Assert.assertEquals(1, INVOCATIONS.get());
+        Thread.sleep(200);
+        lookup.shortLived("a");
+        Assert.assertEquals(2, INVOCATIONS.get());
+    }
+
+    public interface Lookup
+    {
+        @Cacheable
+        List<String> find(String prefix, int count);
+
+        @Cacheable(maxEntries = 2)
+        int recent(int value);
+
+        @Cacheable(ttlMillis = 100)
+        String shortLived(String value);
+
+        int count(String value);
+    }
+
+    public static class LookupImpl implements Lookup
+    {
+        @Override
+        public List<String> find(String prefix, int count)
+        {
+            INVOCATIONS.incrementAndGet();
+            List<String> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+            {
+                result.add(prefix + i);
+            }
+            return result;
+        }
+
+        @Override
+        public int recent(int value)
+        {
+            INVOCATIONS.incrementAndGet();
+            return value;
+        }
+
+        @Override
+        public String shortLived(String value)
+        {
+            INVOCATIONS.incrementAndGet();
+            return value;
+        }
+
+        @Override
+        public int count(String value)
+        {
+            return INVOCATIONS.incrementAndGet();
+        }
+    }
+}
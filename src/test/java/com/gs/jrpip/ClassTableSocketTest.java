@@ -0,0 +1,90 @@
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.SocketMessageTransport;
+import org.junit.Assert;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ClassTableSocketTest extends SessionTicketSocketTest
+{
+    @Override
+    protected void setUp() throws Exception
+    {
+        SocketMessageTransport.setReuseClassDescriptors(true);
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        SocketMessageTransport.setReuseClassDescriptors(false);
+        super.tearDown();
+    }
+
+    public void testNewClassesOnEveryCall() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        List<Object> value = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            Assert.assertEquals(value, echo.echoObject(value));
+            Assert.assertEquals(value, echo.echoObject(value));
+            switch (i % 4)
+            {
+                case 0:
+                    value.add(new Date(i));
+                    break;
+                case 1:
+                    value.add(new BigDecimal(i));
+                    break;
+                case 2:
+                    value.add(new HashMap<>());
+                    break;
+                default:
+                    value.add((long) i);
+            }
+        }
+    }
+
+    public void testConcurrentCallsUseClassTable() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        List<Object> value = new ArrayList<>();
+        value.add(new Date(1));
+        value.add(new BigDecimal(2));
+        Assert.assertEquals(value, echo.echoObject(value));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            // the threads open more connections, each of which sets up its class table at its init
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+            {
+                results.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < 10; i++)
+                    {
+                        Assert.assertEquals(value, echo.echoObject(value));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results)
+            {
+                result.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        Assert.assertEquals(81, this.server.getClassTableInvocations());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.codec.CompactCodec;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+public class CodecSocketTest
+        extends SocketTestCase
+{
+    public enum Side
+    {
+        BUY, SELL
+    }
+
+    @Codec(CompactCodec.NAME)
+    public interface Values
+    {
+        Object echo(Object value);
+
+        Map<String, Side> sides(List<String> names);
+
+        void fail(String message) throws FakeException;
+
+        @Codec("unknown")
+        String unknown(String value);
+    }
+
+    public static class ValuesImpl implements Values
+    {
+        @Override
+        public Object echo(Object value)
+        {
+            return value;
+        }
+
+        @Override
+        public Map<String, Side> sides(List<String> names)
+        {
+            Map<String, Side> sides = new HashMap<>();
+            for (String name : names)
+            {
+                sides.put(name, Side.valueOf(name));
+            }
+            return sides;
+        }
+
+        @Override
+        public void fail(String message) throws FakeException
+        {
+            throw new FakeException(message);
+        }
+
+        @Override
+        public String unknown(String value)
+        {
+            return value;
+        }
+    }
+
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.addServiceConfig(Values.class, ValuesImpl.class);
+    }
+
+    private Values buildValuesProxy(SocketMessageTransport transport) throws Exception
+    {
+        MtProxyFactory factory = new MtProxyFactory(transport);
+        factory.setUseLocalService(false);
+        return factory.create(Values.class, this.getJrpipUrl());
+    }
+
+    public void testCallsUseCodec() throws Exception
+    {
+        Values values = this.buildValuesProxy(new SocketMessageTransport());
+        List<Object> list = new ArrayList<>(Arrays.asList("a", 1, 2L, null, new BigDecimal("1.5"), Side.SELL));
+        Assert.assertEquals(list, values.echo(list));
+        Map<String, Side> expected = new HashMap<>();
+        expected.put("BUY", Side.BUY);
+        Assert.assertEquals(expected, values.sides(new ArrayList<>(Arrays.asList("BUY"))));
+        int[] ints = (int[]) values.echo(new int[]{1, 2, 3});
+        Assert.assertEquals(3, ints[2]);
+        Assert.assertEquals(3, this.server.getCodecInvocations());
+    }
+
+    public void testConcurrentCallsUseCodec() throws Exception
+    {
+        Values values = this.buildValuesProxy(new SocketMessageTransport());
+        Assert.assertEquals("hello", values.echo("hello"));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            // the threads open more connections, each of which learns the codec ids at its init
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+            {
+                final int thread = t;
+                results.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < 10; i++)
+                    {
+                        List<Object> list = new ArrayList<>(Arrays.asList(thread, i, Side.BUY));
+                        Assert.assertEquals(list, values.echo(list));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results)
+            {
+                result.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        Assert.assertEquals(81, this.server.getCodecInvocations());
+    }
+
+    public void testExceptionWithCodec() throws Exception
+    {
+        Values values = this.buildValuesProxy(new SocketMessageTransport());
+        try
+        {
+            values.fail("expected");
+            Assert.fail("must not get here");
+        }
+        catch (FakeException e)
+        {
+            Assert.assertEquals("expected", e.getMessage());
+        }
+        Assert.assertEquals(1, this.server.getCodecInvocations());
+    }
+
+    public void testMultiplexedCallsUseCodec() throws Exception
+    {
+        SocketMessageTransport transport = new SocketMessageTransport();
+        transport.setMultiplexed(true);
+        Values values = this.buildValuesProxy(transport);
+        Assert.assertEquals("hello", values.echo("hello"));
+        Assert.assertEquals(1, this.server.getCodecInvocations());
+    }
+
+    public void testUnknownCodecFallsBack() throws Exception
+    {
+        Values values = this.buildValuesProxy(new SocketMessageTransport());
+        Assert.assertEquals("hello", values.unknown("hello"));
+        Assert.assertEquals("hello", this.buildEchoProxy().echo("hello"));
+        Assert.assertEquals(0, this.server.getCodecInvocations());
+    }
+}
@@ -0,0 +1,43 @@
+package com.gs.jrpip;
+
+import org.junit.Assert;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DrainSocketTest extends SocketTestCase
+{
+    public void testDrainIdleConnections() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        Assert.assertTrue(this.server.getConnectionCount() > 0);
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(this.server.drain(5000));
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        Assert.assertEquals(0, this.server.getConnectionCount());
+    }
+
+    public void testDrainWaitsForRequestInProgress() throws Exception
+    {
+        final Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<String> slow = executor.submit(() -> echo.echoAndSleep("slow", 500));
+            Thread.sleep(100);
+            Assert.assertEquals(1, this.server.getActiveRequests());
+            Assert.assertTrue(this.server.drain(5000));
+            Assert.assertTrue(this.server.isDraining());
+            Assert.assertEquals("slow", slow.get());
+            Assert.assertEquals(0, this.server.getConnectionCount());
+            Assert.assertEquals(0, this.server.getActiveRequests());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
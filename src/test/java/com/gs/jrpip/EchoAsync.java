@@ -0,0 +1,30 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface EchoAsync
+{
+    CompletableFuture<String> echo(String input);
+
+    CompletableFuture<String> echoAndSleep(String input, long sleepInMillis);
+
+    CompletableFuture<Void> throwExpectedException();
+
+    CompletableFuture<Void> throwUnexpectedException();
+}
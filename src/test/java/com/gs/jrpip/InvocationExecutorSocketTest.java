@@ -0,0 +1,47 @@
+package com.gs.jrpip;
+
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+public class InvocationExecutorSocketTest extends SimpleSocketServiceTest
+{
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.useBoundedInvocationPool(2);
+    }
+
+    public void testPoolIsOwnedByServer() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        Assert.assertTrue(this.countInvokerThreads("JrpipInvoker Port " + this.getPort()) > 0);
+        Assert.assertEquals(0, this.countInvokerThreads("JrpipInvoker Port 0"));
+        this.server.stop();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.countInvokerThreads("JrpipInvoker Port " + this.getPort()) > 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, this.countInvokerThreads("JrpipInvoker Port " + this.getPort()));
+    }
+
+    private int countInvokerThreads(String prefix)
+    {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.isAlive() && thread.getName().startsWith(prefix + " pool-"))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void testTerminateServerSide()
+    {
+        // the client retries for two minutes before it gives up; SimpleSocketServiceTest covers this once
+    }
+}
@@ -0,0 +1,162 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServer;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+public class MethodIdSocketTest
+        extends SocketTestCase
+{
+    public interface Unserved
+    {
+        String echo(String input);
+    }
+
+    public static class UnservedImpl implements Unserved
+    {
+        @Override
+        public String echo(String input)
+        {
+            return input;
+        }
+    }
+
+    public void testCallsGoById() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        Assert.assertEquals("x".hashCode(), echo.testUnserializableObject("x"));
+        Assert.assertEquals(2, this.server.getInvocationsById());
+    }
+
+    public void testConcurrentCallsGoById() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            // the threads open more connections, each of which confirms at its init that the ids it has are still valid
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+            {
+                final int thread = t;
+                results.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < 10; i++)
+                    {
+                        Assert.assertEquals(thread + ":" + i, echo.echoAndSleep(thread + ":" + i, 10));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results)
+            {
+                result.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        Assert.assertEquals(81, this.server.getInvocationsById());
+        Assert.assertEquals(1, this.server.getMethodTablesSent());
+    }
+
+    public void testRestartedServerSendsItsIds() throws Exception
+    {
+        this.server.stop();
+        SocketServerConfig config = new SocketServerConfig(this.getPort());
+        config.setServerSocketTimeout(50);
+        config.setIdleSocketCloseTime(100);
+        config.addServiceConfig(Echo.class, EchoImpl.class);
+        this.server = new SocketServer(config);
+        this.server.start();
+
+        Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        this.server.stop();
+        Thread.sleep(200); // the connection is gone now
+
+        config = new SocketServerConfig(this.getPort());
+        config.setServerSocketTimeout(50);
+        config.addServiceConfig(Unserved.class, UnservedImpl.class);
+        config.addServiceConfig(Echo.class, EchoImpl.class);
+        this.server = new SocketServer(config);
+        this.server.start();
+
+        Assert.assertEquals("hello again", echo.echo("hello again"));
+        Assert.assertEquals(1, this.server.getInvocationsById());
+        Assert.assertEquals(1, this.server.getMethodTablesSent());
+    }
+
+    public void testExceptionById() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        try
+        {
+            echo.throwExpectedException();
+            Assert.fail("must not get here");
+        }
+        catch (FakeException e)
+        {
+            // expected
+        }
+        Assert.assertEquals(1, this.server.getInvocationsById());
+    }
+
+    public void testMultiplexedCallsGoById() throws Exception
+    {
+        SocketMessageTransport transport = new SocketMessageTransport();
+        transport.setMultiplexed(true);
+        Echo echo = this.buildEchoFromTransport(0, transport);
+        Assert.assertEquals("hello", echo.echo("hello"));
+        MtProxyFactory factory = new MtProxyFactory(transport);
+        factory.setUseLocalService(false);
+        EchoAsync async = factory.createAsync(EchoAsync.class, Echo.class, this.getJrpipUrl());
+        Assert.assertEquals("hello again", async.echo("hello again").get());
+        Assert.assertEquals(2, this.server.getInvocationsById());
+    }
+
+    public void testUnlistedServiceFallsBackToName() throws Exception
+    {
+        MtProxyFactory factory = new MtProxyFactory(new SocketMessageTransport());
+        factory.setUseLocalService(false);
+        Unserved unserved = factory.create(Unserved.class, this.getJrpipUrl());
+        try
+        {
+            unserved.echo("hello");
+            Assert.fail("must not get here");
+        }
+        catch (JrpipRuntimeException e)
+        {
+            Assert.assertTrue(e.getMessage().contains(Unserved.class.getName()));
+        }
+        Assert.assertEquals(0, this.server.getInvocationsById());
+    }
+}
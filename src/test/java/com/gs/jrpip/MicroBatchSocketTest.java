@@ -0,0 +1,261 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.JrpipTimeoutException;
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+public class MicroBatchSocketTest
+        extends SocketTestCase
+{
+    private static final int CALLERS = 8;
+    private static final AtomicInteger SINGLE_CALLS = new AtomicInteger();
+    private static final AtomicInteger HANDLER_CALLS = new AtomicInteger();
+
+    private ExecutorService executor;
+    private Catalog catalog;
+
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.addServiceConfig(Catalog.class, CatalogImpl.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        SINGLE_CALLS.set(0);
+        HANDLER_CALLS.set(0);
+        this.executor = Executors.newFixedThreadPool(CALLERS);
+        MtProxyFactory factory = new MtProxyFactory(new SocketMessageTransport());
+        factory.setUseLocalService(false);
+        this.catalog = factory.create(Catalog.class, this.getJrpipUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        this.executor.shutdownNow();
+        super.tearDown();
+    }
+
+    private List<Object> callTogether(IntFunction<Object> call) throws Exception
+    {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++)
+        {
+            final int id = i;
+            futures.add(this.executor.submit(() ->
+            {
+                start.await();
+                try
+                {
+                    return call.apply(id);
+                }
+                catch (RuntimeException e)
+                {
+                    return e;
+                }
+            }));
+        }
+        start.countDown();
+        List<Object> result = new ArrayList<>();
+        for (Future<Object> future : futures)
+        {
+            result.add(future.get());
+        }
+        return result;
+    }
+
+    public void testConcurrentCallsGoToHandler() throws Exception
+    {
+        List<Object> results = this.callTogether((id) -> this.catalog.lookup(id));
+        for (int i = 0; i < CALLERS; i++)
+        {
+            Assert.assertEquals("item" + i, results.get(i));
+        }
+        Assert.assertTrue(this.server.getBatchRequests() > 0);
+        Assert.assertTrue(this.server.getBatchRequests() < CALLERS);
+        Assert.assertEquals(this.server.getBatchRequests(), HANDLER_CALLS.get());
+    }
+
+    public void testAnnotatedHandler() throws Exception
+    {
+        List<Object> results = this.callTogether((id) -> this.catalog.find(id));
+        for (int i = 0; i < CALLERS; i++)
+        {
+            Assert.assertEquals("found" + i, results.get(i));
+        }
+        Assert.assertEquals(this.server.getBatchRequests(), HANDLER_CALLS.get());
+        Assert.assertTrue(HANDLER_CALLS.get() > 0);
+    }
+
+    public void testCallsWithoutHandlerRunOneByOne() throws Exception
+    {
+        List<Object> results = this.callTogether((id) -> this.catalog.plain(id));
+        for (int i = 0; i < CALLERS; i++)
+        {
+            Assert.assertEquals("plain" + i, results.get(i));
+        }
+        Assert.assertTrue(this.server.getBatchRequests() > 0);
+        Assert.assertEquals(CALLERS, SINGLE_CALLS.get());
+        Assert.assertEquals(0, HANDLER_CALLS.get());
+    }
+
+    public void testLoneCallIsSentOnItsOwn() throws Exception
+    {
+        Assert.assertEquals("item3", this.catalog.lookup(3));
+        Assert.assertEquals(0, this.server.getBatchRequests());
+        Assert.assertEquals(1, SINGLE_CALLS.get());
+    }
+
+    public void testJoinedCallTimesOutWhileGroupIsOpen() throws Exception
+    {
+        long start = System.currentTimeMillis();
+        Future<Object> alone = this.executor.submit(() -> this.catalog.slow(0));
+        Thread.sleep(100);
+        Future<Object> leader = this.executor.submit(() -> this.catalog.slow(1));
+        Thread.sleep(100);
+        Future<Object> joined = this.executor.submit(() ->
+        {
+            try
+            {
+                return this.catalog.slow(2);
+            }
+            catch (RuntimeException e)
+            {
+                return e;
+            }
+        });
+        Assert.assertEquals("slow0", alone.get());
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        Assert.assertTrue(joined.get() instanceof JrpipTimeoutException);
+        Assert.assertTrue(System.currentTimeMillis() - start < 1900);
+        Assert.assertEquals("slow1", leader.get());
+    }
+
+    public void testHandlerExceptionReachesEveryCall() throws Exception
+    {
+        List<Object> results = this.callTogether((id) -> this.catalog.lookup(-1));
+        for (Object result : results)
+        {
+            Assert.assertTrue(result instanceof IllegalArgumentException);
+        }
+    }
+
+    public interface Catalog
+    {
+        @MicroBatch(windowMicros = 20000)
+        String lookup(int id);
+
+        @MicroBatch(windowMicros = 20000)
+        String find(int id);
+
+        @MicroBatch(windowMicros = 20000)
+        String plain(int id);
+
+        @MicroBatch(windowMicros = 2000000)
+        @Timeout(timeoutMillis = 1000)
+        String slow(int id);
+    }
+
+    public static class CatalogImpl implements Catalog
+    {
+        @Override
+        public String lookup(int id)
+        {
+            SINGLE_CALLS.incrementAndGet();
+            checkId(id);
+            return "item" + id;
+        }
+
+        public List<String> lookupAll(List<Integer> ids)
+        {
+            HANDLER_CALLS.incrementAndGet();
+            List<String> result = new ArrayList<>(ids.size());
+            for (int id : ids)
+            {
+                checkId(id);
+                result.add("item" + id);
+            }
+            return result;
+        }
+
+        @Override
+        public String find(int id)
+        {
+            SINGLE_CALLS.incrementAndGet();
+            return "found" + id;
+        }
+
+        @BatchHandler("find")
+        public List<String> findMany(List<Integer> ids)
+        {
+            HANDLER_CALLS.incrementAndGet();
+            List<String> result = new ArrayList<>(ids.size());
+            for (int id : ids)
+            {
+                result.add("found" + id);
+            }
+            return result;
+        }
+
+        @Override
+        public String plain(int id)
+        {
+            SINGLE_CALLS.incrementAndGet();
+            return "plain" + id;
+        }
+
+        @Override
+        public String slow(int id)
+        {
+            try
+            {
+                Thread.sleep(300);
+            }
+            catch (InterruptedException e)
+            {
+                throw new RuntimeException(e);
+            }
+            return "slow" + id;
+        }
+
+        private static void checkId(int id)
+        {
+            if (id < 0)
+            {
+                throw new IllegalArgumentException("bad id " + id);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MultiplexedSocketServiceTest extends SimpleSocketServiceTest
+{
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.setMaxRequestSize(4000000);
+    }
+
+    @Override
+    protected Echo buildEchoProxy(int timeout) throws MalformedURLException
+    {
+        SocketMessageTransport transport = new SocketMessageTransport();
+        transport.setMultiplexed(true);
+        return buildEchoFromTransport(timeout, transport);
+    }
+
+    public void testConcurrentCallsShareConnection() throws Exception
+    {
+        final Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try
+        {
+            List<Future<String>> results = new ArrayList<>();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 10; i++)
+            {
+                final String input = "hello" + i;
+                results.add(executor.submit(() -> echo.echoAndSleep(input, 300)));
+            }
+            for (int i = 0; i < 10; i++)
+            {
+                Assert.assertEquals("hello" + i, results.get(i).get());
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+            Assert.assertEquals(1, this.server.getConnectionCount());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testRequestLargerThanMax() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        StringBuilder builder = new StringBuilder(5000000);
+        for (int i = 0; builder.length() < 5000000; i++)
+        {
+            builder.append(i);
+        }
+        try
+        {
+            echo.uncompressedEcho(builder.toString());
+            Assert.fail("must not get here");
+        }
+        catch (JrpipRuntimeException e)
+        {
+            Assert.assertTrue(e.getMessage().contains("413"));
+        }
+        Assert.assertTrue(this.server.getTooLargeRequests() > 0);
+        Assert.assertEquals("hello", echo.echo("hello"));
+        Assert.assertEquals(1, this.server.getConnectionCount());
+    }
+
+    @Override
+    public void testTerminateServerSide()
+    {
+        // the client retries for two minutes before it gives up; SimpleSocketServiceTest covers this once
+    }
+}
@@ -0,0 +1,157 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.Iterator;
+import java.util.stream.IntStream;
+
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+/**
+ * Services that call other jrpip services over sockets while they handle a request.
+ */
+public class NestedCallSocketTest
+        extends SocketTestCase
+{
+    private static final int UPLOAD_SIZE = 200000;
+
+    private static volatile String echoUrl;
+
+    public interface Relay
+    {
+        String relay(String input);
+
+        String relayHalfway(InputStream data) throws IOException;
+
+        Iterator<String> relayRows(int count);
+    }
+
+    public static class RelayImpl implements Relay
+    {
+        @Override
+        public String relay(String input)
+        {
+            return "relayed " + echo().echo(input);
+        }
+
+        @Override
+        public String relayHalfway(InputStream data) throws IOException
+        {
+            long sum = 0;
+            long count = 0;
+            String echoed = null;
+            int b;
+            while ((b = data.read()) >= 0)
+            {
+                sum += b;
+                if (++count == UPLOAD_SIZE / 2)
+                {
+                    echoed = echo().echo("halfway");
+                }
+            }
+            return echoed + " " + count + " " + sum;
+        }
+
+        @Override
+        public Iterator<String> relayRows(int count)
+        {
+            return IntStream.range(0, count).mapToObj((i) -> echo().echo("row " + i)).iterator();
+        }
+    }
+
+    private static Echo echo()
+    {
+        MtProxyFactory factory = new MtProxyFactory(new SocketMessageTransport());
+        factory.setUseLocalService(false);
+        try
+        {
+            return factory.create(Echo.class, echoUrl);
+        }
+        catch (MalformedURLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        echoUrl = this.getJrpipUrl();
+    }
+
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.addServiceConfig(Relay.class, RelayImpl.class);
+    }
+
+    private Relay buildRelayProxy() throws Exception
+    {
+        MtProxyFactory factory = new MtProxyFactory(new SocketMessageTransport());
+        factory.setUseLocalService(false);
+        return factory.create(Relay.class, this.getJrpipUrl());
+    }
+
+    public void testNestedCall() throws Exception
+    {
+        Relay relay = this.buildRelayProxy();
+        for (int i = 0; i < 20; i++)
+        {
+            Assert.assertEquals("relayed hello " + i, relay.relay("hello " + i));
+        }
+        // each call went through once, without pings and resends to recover from a broken response
+        Assert.assertEquals(40, this.server.getMethodInvocations());
+        Assert.assertEquals(0, this.server.getResendRequests());
+    }
+
+    public void testNestedCallWhileReadingStreamedArgument() throws Exception
+    {
+        byte[] bytes = new byte[UPLOAD_SIZE];
+        long sum = 0;
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) (i % 251);
+            sum += i % 251;
+        }
+        Relay relay = this.buildRelayProxy();
+        Assert.assertEquals("halfway " + UPLOAD_SIZE + " " + sum, relay.relayHalfway(new ByteArrayInputStream(bytes)));
+        Assert.assertEquals(2, this.server.getMethodInvocations());
+    }
+
+    public void testNestedCallWhileStreamingResult() throws Exception
+    {
+        Relay relay = this.buildRelayProxy();
+        Iterator<String> rows = relay.relayRows(500);
+        int count = 0;
+        while (rows.hasNext())
+        {
+            Assert.assertEquals("row " + count, rows.next());
+            count++;
+        }
+        Assert.assertEquals(500, count);
+        Assert.assertEquals(501, this.server.getMethodInvocations());
+        Assert.assertEquals(0, this.server.getResendRequests());
+    }
+}
@@ -0,0 +1,56 @@
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+public class NioSocketServiceTest extends SimpleSocketServiceTest
+{
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.setNonBlockingIo(true);
+        config.setSelectorThreads(2);
+        config.setMaxRequestSize(4000000);
+    }
+
+    public void testResponseLargerThanWriteQueue() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        String large = largeString(1500000);
+        Assert.assertEquals(large, echo.uncompressedEcho(large));
+        Assert.assertEquals("hello", echo.echo("hello"));
+    }
+
+    public void testRequestLargerThanMax() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        try
+        {
+            echo.uncompressedEcho(largeString(5000000));
+            Assert.fail("must not get here");
+        }
+        catch (JrpipRuntimeException e)
+        {
+            Assert.assertTrue(e.getMessage().contains("413"));
+        }
+        Assert.assertTrue(this.server.getTooLargeRequests() > 0);
+        Assert.assertEquals("hello", echo.echo("hello"));
+    }
+
+    private static String largeString(int length)
+    {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; builder.length() < length; i++)
+        {
+            builder.append(i);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void testTerminateServerSide()
+    {
+        // the client retries for two minutes before it gives up; SimpleSocketServiceTest covers this once
+    }
+}
@@ -0,0 +1,144 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+public class PrimitiveCallSocketTest
+        extends SocketTestCase
+{
+    public interface Counters
+    {
+        long count(String key, int day);
+
+        void ack(long id);
+
+        String label(String prefix, char separator, double value);
+
+        boolean check(byte flags, short mask, float ratio) throws FakeException;
+    }
+
+    public static class CountersImpl implements Counters
+    {
+        private long acked;
+
+        @Override
+        public long count(String key, int day)
+        {
+            return key.length() * 1000000000000L + day;
+        }
+
+        @Override
+        public void ack(long id)
+        {
+            this.acked = id;
+        }
+
+        @Override
+        public String label(String prefix, char separator, double value)
+        {
+            if (prefix == null)
+            {
+                return null;
+            }
+            return prefix + separator + value + separator + this.acked;
+        }
+
+        @Override
+        public boolean check(byte flags, short mask, float ratio) throws FakeException
+        {
+            if (ratio < 0)
+            {
+                throw new FakeException("negative ratio");
+            }
+            return (flags & mask) != 0;
+        }
+    }
+
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.addServiceConfig(Counters.class, CountersImpl.class);
+    }
+
+    private Counters buildCountersProxy(SocketMessageTransport transport) throws Exception
+    {
+        MtProxyFactory factory = new MtProxyFactory(transport);
+        factory.setUseLocalService(false);
+        return factory.create(Counters.class, this.getJrpipUrl());
+    }
+
+    public void testPrimitiveCalls() throws Exception
+    {
+        Counters counters = this.buildCountersProxy(new SocketMessageTransport());
+        Assert.assertEquals(3000000000007L, counters.count("abc", 7));
+        counters.ack(42L);
+        Assert.assertEquals("x:1.5:42", counters.label("x", ':', 1.5));
+        Assert.assertNull(counters.label(null, ':', 1.5));
+        Assert.assertTrue(counters.check((byte) 3, (short) 2, 0.5f));
+        Assert.assertFalse(counters.check((byte) 1, (short) 2, 0.5f));
+        Assert.assertEquals(6, this.server.getPrimitiveInvocations());
+    }
+
+    public void testLongStrings() throws Exception
+    {
+        Counters counters = this.buildCountersProxy(new SocketMessageTransport());
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 30000; i++)
+        {
+            builder.append('\u20ac');
+        }
+        String prefix = builder.toString();
+        Assert.assertEquals(30000000000000001L, counters.count(prefix, 1));
+        Assert.assertEquals(prefix + "-2.0-0", counters.label(prefix, '-', 2.0));
+    }
+
+    public void testExceptionFromPrimitiveCall() throws Exception
+    {
+        Counters counters = this.buildCountersProxy(new SocketMessageTransport());
+        try
+        {
+            counters.check((byte) 1, (short) 1, -1.0f);
+            Assert.fail("must not get here");
+        }
+        catch (FakeException e)
+        {
+            Assert.assertEquals("negative ratio", e.getMessage());
+        }
+        Assert.assertEquals(1, this.server.getPrimitiveInvocations());
+    }
+
+    public void testMultiplexedPrimitiveCalls() throws Exception
+    {
+        SocketMessageTransport transport = new SocketMessageTransport();
+        transport.setMultiplexed(true);
+        Counters counters = this.buildCountersProxy(transport);
+        Assert.assertEquals(2000000000005L, counters.count("ab", 5));
+        counters.ack(7L);
+        Assert.assertEquals(2, this.server.getPrimitiveInvocations());
+    }
+
+    public void testOtherCallsAreSerialized() throws Exception
+    {
+        Assert.assertEquals("hello", this.buildEchoProxy().echoObject("hello"));
+        Assert.assertEquals(0, this.server.getPrimitiveInvocations());
+    }
+}
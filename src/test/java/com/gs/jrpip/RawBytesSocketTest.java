@@ -0,0 +1,156 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+public class RawBytesSocketTest
+        extends SocketTestCase
+{
+    public interface Blobs
+    {
+        byte[] reverse(byte[] data);
+
+        int sum(String name, ByteBuffer data);
+
+        ByteBuffer range(byte[] data, int from, int to);
+
+        @Compression(compress = false)
+        byte[] store(String name, byte[] data);
+    }
+
+    public static class BlobsImpl implements Blobs
+    {
+        @Override
+        public byte[] reverse(byte[] data)
+        {
+            if (data == null)
+            {
+                return null;
+            }
+            byte[] reversed = new byte[data.length];
+            for (int i = 0; i < data.length; i++)
+            {
+                reversed[i] = data[data.length - 1 - i];
+            }
+            return reversed;
+        }
+
+        @Override
+        public int sum(String name, ByteBuffer data)
+        {
+            int sum = 0;
+            while (data.hasRemaining())
+            {
+                sum += data.get();
+            }
+            return sum;
+        }
+
+        @Override
+        public ByteBuffer range(byte[] data, int from, int to)
+        {
+            return ByteBuffer.wrap(data, from, to - from);
+        }
+
+        @Override
+        public byte[] store(String name, byte[] data)
+        {
+            return data;
+        }
+    }
+
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.addServiceConfig(Blobs.class, BlobsImpl.class);
+    }
+
+    private Blobs buildBlobsProxy(SocketMessageTransport transport) throws Exception
+    {
+        MtProxyFactory factory = new MtProxyFactory(transport);
+        factory.setUseLocalService(false);
+        return factory.create(Blobs.class, this.getJrpipUrl());
+    }
+
+    private static byte[] createBlob(int length)
+    {
+        byte[] blob = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            blob[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return blob;
+    }
+
+    public void testByteArrays() throws Exception
+    {
+        Blobs blobs = this.buildBlobsProxy(new SocketMessageTransport());
+        byte[] blob = createBlob(1000000);
+        byte[] reversed = blobs.reverse(blob);
+        Assert.assertEquals(blob.length, reversed.length);
+        Assert.assertEquals(blob[0], reversed[blob.length - 1]);
+        Assert.assertTrue(Arrays.equals(blob, blobs.reverse(reversed)));
+        Assert.assertEquals(0, blobs.reverse(new byte[0]).length);
+        Assert.assertNull(blobs.reverse(null));
+        Assert.assertTrue(Arrays.equals(blob, blobs.store("blob", blob)));
+        Assert.assertEquals(5, this.server.getPrimitiveInvocations());
+    }
+
+    public void testByteBuffers() throws Exception
+    {
+        Blobs blobs = this.buildBlobsProxy(new SocketMessageTransport());
+        byte[] blob = createBlob(100000);
+        int expected = 0;
+        for (int i = 10; i < blob.length; i++)
+        {
+            expected += blob[i];
+        }
+        ByteBuffer heap = ByteBuffer.wrap(blob);
+        heap.position(10);
+        Assert.assertEquals(expected, blobs.sum("heap", heap));
+        Assert.assertEquals(10, heap.position());
+        ByteBuffer direct = ByteBuffer.allocateDirect(blob.length);
+        direct.put(blob);
+        direct.flip();
+        direct.position(10);
+        Assert.assertEquals(expected, blobs.sum("direct", direct));
+        Assert.assertEquals(10, direct.position());
+
+        ByteBuffer range = blobs.range(blob, 5, 20005);
+        Assert.assertEquals(20000, range.remaining());
+        Assert.assertEquals(blob[5], range.get(range.position()));
+        Assert.assertEquals(3, this.server.getPrimitiveInvocations());
+    }
+
+    public void testMultiplexedByteArrays() throws Exception
+    {
+        SocketMessageTransport transport = new SocketMessageTransport();
+        transport.setMultiplexed(true);
+        Blobs blobs = this.buildBlobsProxy(transport);
+        byte[] blob = createBlob(50000);
+        Assert.assertTrue(Arrays.equals(blob, blobs.store("blob", blob)));
+        Assert.assertEquals(1, this.server.getPrimitiveInvocations());
+    }
+}
@@ -0,0 +1,19 @@
+package com.gs.jrpip;
+
+import com.gs.jrpip.server.SocketServerConfig;
+
+public class RetainResponseBytesSocketTest extends EncryptSocketTest
+{
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        super.addMoreConfig(config);
+        config.setRetainResponseBytes(true);
+    }
+
+    @Override
+    public void testTerminateServerSide()
+    {
+        // the client retries for two minutes before it gives up; SimpleSocketServiceTest covers this once
+    }
+}
@@ -0,0 +1,78 @@
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SessionTicketSocketTest extends EncryptSocketTest
+{
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        super.addMoreConfig(config);
+        config.addServiceConfig(StreamedArgumentSocketTest.Loader.class, StreamedArgumentSocketTest.LoaderImpl.class);
+    }
+
+    public void testNewConnectionsResumeSession() throws Exception
+    {
+        final Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try
+        {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+            {
+                final String input = "hello" + i;
+                results.add(executor.submit(() -> echo.echoAndSleep(input, 200)));
+            }
+            for (int i = 0; i < 5; i++)
+            {
+                Assert.assertEquals("hello" + i, results.get(i).get());
+            }
+            Assert.assertTrue(this.server.getResumedSessions() > 0);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testStreamedArgumentOnResumedConnection() throws Exception
+    {
+        final Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        MtProxyFactory factory = new MtProxyFactory(new SocketMessageTransport("fred", TOKEN, true));
+        factory.setUseLocalService(false);
+        StreamedArgumentSocketTest.Loader loader = factory.create(StreamedArgumentSocketTest.Loader.class, this.getJrpipUrl());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            // keeps the authenticated socket busy, so the upload goes on a new one
+            Future<String> busy = executor.submit(() -> echo.echoAndSleep("busy", 500));
+            Thread.sleep(100);
+            Assert.assertEquals(3 + 6, loader.load("abc", new ByteArrayInputStream(new byte[] {1, 2, 3})));
+            Assert.assertEquals("busy", busy.get());
+            // the new connection resumed the session at its init, before any of the bytes were sent
+            Assert.assertEquals(1, this.server.getResumedSessions());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public void testTerminateServerSide()
+    {
+        // the client retries for two minutes before it gives up; SimpleSocketServiceTest covers this once
+    }
+}
@@ -0,0 +1,233 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightSocketTest
+        extends SocketTestCase
+{
+    private static final int CALLERS = 8;
+    private static final AtomicInteger INVOCATIONS = new AtomicInteger();
+
+    private ExecutorService executor;
+
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.addServiceConfig(Slow.class, SlowImpl.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        INVOCATIONS.set(0);
+        this.executor = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        this.executor.shutdownNow();
+        super.tearDown();
+    }
+
+    private MtProxyFactory buildFactory()
+    {
+        MtProxyFactory factory = new MtProxyFactory(new SocketMessageTransport());
+        factory.setUseLocalService(false);
+        return factory;
+    }
+
+    private <T> List<T> callTogether(Callable<T> callable) throws Exception
+    {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++)
+        {
+            futures.add(this.executor.submit(() ->
+            {
+                start.await();
+                return callable.call();
+            }));
+        }
+        start.countDown();
+        List<T> result = new ArrayList<>();
+        for (Future<T> future : futures)
+        {
+            result.add(future.get());
+        }
+        return result;
+    }
+
+    public void testIdenticalCallsShareOneInvocation() throws Exception
+    {
+        Slow slow = this.buildFactory().create(Slow.class, this.getJrpipUrl());
+        List<List<String>> results = this.callTogether(() -> slow.list("a"));
+        Assert.assertEquals(1, INVOCATIONS.get());
+        for (int i = 1; i < CALLERS; i++)
+        {
+            Assert.assertEquals(results.get(0), results.get(i));
+            Assert.assertNotSame(results.get(0), results.get(i));
+        }
+    }
+
+    public void testImmutableResultIsShared() throws Exception
+    {
+        Slow slow = this.buildFactory().create(Slow.class, this.getJrpipUrl());
+        List<List<String>> results = this.callTogether(() -> slow.sharedList("a"));
+        Assert.assertEquals(1, INVOCATIONS.get());
+        for (int i = 1; i < CALLERS; i++)
+        {
+            Assert.assertSame(results.get(0), results.get(i));
+        }
+    }
+
+    public void testProxiesToSameEndpointShare() throws Exception
+    {
+        MtProxyFactory factory = this.buildFactory();
+        Slow first = factory.create(Slow.class, this.getJrpipUrl());
+        Slow second = factory.create(Slow.class, this.getJrpipUrl());
+        AtomicInteger turn = new AtomicInteger();
+        this.callTogether(() -> (turn.incrementAndGet() % 2 == 0 ? first : second).list("a"));
+        Assert.assertEquals(1, INVOCATIONS.get());
+    }
+
+    public void testDifferentArgumentsAreNotShared() throws Exception
+    {
+        Slow slow = this.buildFactory().create(Slow.class, this.getJrpipUrl());
+        AtomicInteger next = new AtomicInteger();
+        this.callTogether(() -> slow.list("a" + next.incrementAndGet() % 2));
+        Assert.assertEquals(2, INVOCATIONS.get());
+    }
+
+    public void testOtherMethodsAreNotShared() throws Exception
+    {
+        Slow slow = this.buildFactory().create(Slow.class, this.getJrpipUrl());
+        this.callTogether(() -> slow.uncoalesced("a"));
+        Assert.assertEquals(CALLERS, INVOCATIONS.get());
+    }
+
+    public void testExceptionReachesAllCallers() throws Exception
+    {
+        Slow slow = this.buildFactory().create(Slow.class, this.getJrpipUrl());
+        List<String> messages = this.callTogether(() ->
+        {
+            try
+            {
+                slow.list(null);
+                return "no exception";
+            }
+            catch (IllegalArgumentException e)
+            {
+                return e.getMessage();
+            }
+        });
+        Assert.assertEquals(1, INVOCATIONS.get());
+        for (String message : messages)
+        {
+            Assert.assertEquals("no prefix", message);
+        }
+    }
+
+    public void testAsyncCallsShareOneInvocation() throws Exception
+    {
+        SlowAsync slow = this.buildFactory().createAsync(SlowAsync.class, Slow.class, this.getJrpipUrl());
+        List<CompletableFuture<List<String>>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++)
+        {
+            futures.add(slow.list("a"));
+        }
+        for (CompletableFuture<List<String>> future : futures)
+        {
+            Assert.assertEquals(3, future.get().size());
+        }
+        Assert.assertEquals(1, INVOCATIONS.get());
+        Assert.assertEquals(3, this.buildFactory().create(Slow.class, this.getJrpipUrl()).list("a").size());
+        Assert.assertEquals(2, INVOCATIONS.get());
+    }
+
+    public interface Slow
+    {
+        @SingleFlight
+        List<String> list(String prefix);
+
+        @SingleFlight(immutableResult = true)
+        List<String> sharedList(String prefix);
+
+        List<String> uncoalesced(String prefix);
+    }
+
+    public interface SlowAsync
+    {
+        CompletableFuture<List<String>> list(String prefix);
+    }
+
+    public static class SlowImpl implements Slow
+    {
+        @Override
+        public List<String> list(String prefix)
+        {
+            INVOCATIONS.incrementAndGet();
+            try
+            {
+                Thread.sleep(500);
+            }
+            catch (InterruptedException e)
+            {
+                // ignore
+            }
+            if (prefix == null)
+            {
+                throw new IllegalArgumentException("no prefix");
+            }
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < 3; i++)
+            {
+                result.add(prefix + i);
+            }
+            return result;
+        }
+
+        @Override
+        public List<String> sharedList(String prefix)
+        {
+            return this.list(prefix);
+        }
+
+        @Override
+        public List<String> uncoalesced(String prefix)
+        {
+            return this.list(prefix);
+        }
+    }
+}
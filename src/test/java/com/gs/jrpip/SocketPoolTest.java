@@ -0,0 +1,141 @@
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.client.JrpipTimeoutException;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.client.SocketPoolStats;
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SocketPoolTest extends SocketTestCase
+{
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        SocketMessageTransport.setMaxConnectionsPerServer(0);
+        SocketMessageTransport.setBorrowTimeout(30000);
+    }
+
+    public void testMaxConnectionsPerServer() throws Exception
+    {
+        SocketMessageTransport.setMaxConnectionsPerServer(2);
+        final Echo echo = this.buildEchoProxy();
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try
+        {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 6; i++)
+            {
+                final String input = "hello" + i;
+                results.add(executor.submit(() -> echo.echoAndSleep(input, 100)));
+            }
+            for (int i = 0; i < 6; i++)
+            {
+                Assert.assertEquals("hello" + i, results.get(i).get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        SocketPoolStats stats = this.getPoolStats();
+        Assert.assertTrue(stats.getCreated() <= 2);
+        Assert.assertTrue(stats.getBorrowed() + stats.getIdle() <= 2);
+    }
+
+    public void testBorrowTimeout() throws Exception
+    {
+        SocketMessageTransport.setMaxConnectionsPerServer(1);
+        SocketMessageTransport.setBorrowTimeout(200);
+        final Echo echo = this.buildEchoProxy();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<String> slow = executor.submit(() -> echo.echoAndSleep("slow", 1000));
+            Thread.sleep(100);
+            try
+            {
+                echo.echo("hello");
+                Assert.fail("should not get here");
+            }
+            catch (JrpipTimeoutException e)
+            {
+                // expected
+            }
+            Assert.assertEquals("slow", slow.get());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testInterruptedWhileWaitingForConnection() throws Exception
+    {
+        SocketMessageTransport.setMaxConnectionsPerServer(1);
+        final Echo echo = this.buildEchoProxy();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<String> slow = executor.submit(() -> echo.echoAndSleep("slow", 1000));
+            Thread.sleep(100);
+            final Thread caller = Thread.currentThread();
+            new Thread(() ->
+            {
+                try
+                {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e)
+                {
+                    // ignore
+                }
+                caller.interrupt();
+            }).start();
+            long start = System.currentTimeMillis();
+            try
+            {
+                echo.echo("hello");
+                Assert.fail("should not get here");
+            }
+            catch (JrpipRuntimeException e)
+            {
+                Assert.assertTrue(Thread.interrupted());
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 800);
+            Assert.assertEquals("slow", slow.get());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    public void testPrewarm() throws Exception
+    {
+        SocketMessageTransport transport = new SocketMessageTransport();
+        transport.prewarm(this.getJrpipUrl(), 3);
+        Assert.assertEquals(3, this.getPoolStats().getIdle());
+        Echo echo = this.buildEchoFromTransport(0, transport);
+        Assert.assertEquals("hello", echo.echo("hello"));
+        Assert.assertEquals(3, this.getPoolStats().getCreated());
+    }
+
+    private SocketPoolStats getPoolStats()
+    {
+        for (SocketPoolStats stats : SocketMessageTransport.getSocketPoolStats())
+        {
+            if (stats.getUrl().equals(this.getJrpipUrl()))
+            {
+                return stats;
+            }
+        }
+        throw new AssertionError("no connections to " + this.getJrpipUrl());
+    }
+}
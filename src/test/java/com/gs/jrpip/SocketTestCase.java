@@ -63,7 +63,12 @@ public abstract class SocketTestCase
         this.server = new SocketServer(config);
         this.server.start();
         this.port = this.server.getPort();
-        this.jrpipUrl = "jpfs://localhost:" + this.port;
+        this.jrpipUrl = this.createJrpipUrl();
+    }
+
+    protected String createJrpipUrl()
+    {
+        return "jpfs://localhost:" + this.port;
     }
 
     protected SocketServerConfig createConfig()
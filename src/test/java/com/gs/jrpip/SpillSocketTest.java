@@ -0,0 +1,43 @@
+package com.gs.jrpip;
+
+import com.gs.jrpip.server.ContextCache;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+public class SpillSocketTest extends SimpleSocketServiceTest
+{
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        ContextCache.getInstance().setRetainedBytesBudget(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        ContextCache.getInstance().setRetainedBytesBudget(0);
+    }
+
+    public void testFinishedResultsSpill() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        StringBuilder largeBuffer = new StringBuilder(50000);
+        for (int i = 0; i < 50000; i++)
+        {
+            largeBuffer.append(i);
+        }
+        String largeString = largeBuffer.toString();
+        for (int i = 0; i < 5; i++)
+        {
+            Assert.assertEquals(largeString, echo.echo(largeString));
+        }
+        Assert.assertEquals(0, ContextCache.getInstance().getRetainedBytes());
+    }
+
+    @Override
+    public void testTerminateServerSide()
+    {
+        // the client retries for two minutes before it gives up; SimpleSocketServiceTest covers this once
+    }
+}
@@ -0,0 +1,255 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.gs.jrpip.client.JrpipBatch;
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+public class StreamedArgumentSocketTest
+        extends SocketTestCase
+{
+    private static volatile CountDownLatch firstBytesRead;
+
+    public interface Loader
+    {
+        long load(String name, InputStream data) throws IOException;
+
+        int readSome(int count, InputStream data) throws IOException;
+
+        String tagged(List<String> tags, InputStream data) throws IOException;
+
+        boolean isNull(InputStream data);
+    }
+
+    public static class LoaderImpl implements Loader
+    {
+        @Override
+        public long load(String name, InputStream data) throws IOException
+        {
+            byte[] buffer = new byte[10000];
+            long sum = 0;
+            int read;
+            while ((read = data.read(buffer)) >= 0)
+            {
+                for (int i = 0; i < read; i++)
+                {
+                    sum += buffer[i] & 0xFF;
+                }
+                if (firstBytesRead != null)
+                {
+                    firstBytesRead.countDown();
+                }
+            }
+            return name.length() + sum;
+        }
+
+        @Override
+        public int readSome(int count, InputStream data) throws IOException
+        {
+            int sum = 0;
+            for (int i = 0; i < count; i++)
+            {
+                sum += data.read();
+            }
+            return sum;
+        }
+
+        @Override
+        public String tagged(List<String> tags, InputStream data) throws IOException
+        {
+            StringBuilder result = new StringBuilder(String.join(",", tags)).append(':');
+            int b;
+            while ((b = data.read()) >= 0)
+            {
+                result.append((char) b);
+            }
+            return result.toString();
+        }
+
+        @Override
+        public boolean isNull(InputStream data)
+        {
+            return data == null;
+        }
+    }
+
+    /**
+     * Produces count bytes without holding them; once half are read, waits for the service to see the first ones.
+     */
+    private static class GeneratedStream extends InputStream
+    {
+        private final long count;
+        private long position;
+        private long sum;
+
+        private GeneratedStream(long count)
+        {
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (this.position == this.count)
+            {
+                return -1;
+            }
+            if (this.position == this.count / 2 && firstBytesRead != null)
+            {
+                try
+                {
+                    Assert.assertTrue("the service didn't get any bytes before the upload ended",
+                            firstBytesRead.await(10, TimeUnit.SECONDS));
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IOException(e);
+                }
+            }
+            int result = (int) (this.position++ * 31 % 251);
+            this.sum += result;
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int read = 0;
+            while (read < len)
+            {
+                int next = this.read();
+                if (next < 0)
+                {
+                    return read == 0 ? -1 : read;
+                }
+                b[off + read++] = (byte) next;
+                if (this.position == this.count / 2)
+                {
+                    break;
+                }
+            }
+            return read;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        firstBytesRead = null;
+        super.setUp();
+    }
+
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.addServiceConfig(Loader.class, LoaderImpl.class);
+    }
+
+    private Loader buildLoaderProxy(SocketMessageTransport transport) throws Exception
+    {
+        MtProxyFactory factory = new MtProxyFactory(transport);
+        factory.setUseLocalService(false);
+        return factory.create(Loader.class, this.getJrpipUrl());
+    }
+
+    public void testLargeUpload() throws Exception
+    {
+        Loader loader = this.buildLoaderProxy(new SocketMessageTransport());
+        GeneratedStream data = new GeneratedStream(20000000L);
+        long result = loader.load("big1", data);
+        Assert.assertEquals(20000000L, data.position);
+        Assert.assertEquals(4 + data.sum, result);
+    }
+
+    public void testServiceReadsWhileUploading() throws Exception
+    {
+        Loader loader = this.buildLoaderProxy(new SocketMessageTransport());
+        firstBytesRead = new CountDownLatch(1);
+        GeneratedStream data = new GeneratedStream(1000000L);
+        long result = loader.load("x", data);
+        Assert.assertEquals(1 + data.sum, result);
+    }
+
+    public void testUnreadBytesAreSkipped() throws Exception
+    {
+        Loader loader = this.buildLoaderProxy(new SocketMessageTransport());
+        Assert.assertEquals(1 + 2 + 3, loader.readSome(3, new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5})));
+        // the first ten generated bytes
+        Assert.assertEquals(1144, loader.readSome(10, new GeneratedStream(3000000L)));
+        Assert.assertEquals("a,b:xyz", loader.tagged(Arrays.asList("a", "b"), new ByteArrayInputStream("xyz".getBytes())));
+        Assert.assertTrue(loader.isNull(null));
+        Assert.assertFalse(loader.isNull(new ByteArrayInputStream(new byte[0])));
+    }
+
+    public void testWithClassTable() throws Exception
+    {
+        SocketMessageTransport.setReuseClassDescriptors(true);
+        try
+        {
+            Loader loader = this.buildLoaderProxy(new SocketMessageTransport());
+            for (int i = 0; i < 3; i++)
+            {
+                Assert.assertEquals("t" + i + ":abc", loader.tagged(Arrays.asList("t" + i), new ByteArrayInputStream("abc".getBytes())));
+            }
+            GeneratedStream data = new GeneratedStream(100000L);
+            long result = loader.load("abc", data);
+            Assert.assertEquals(3 + data.sum, result);
+        }
+        finally
+        {
+            SocketMessageTransport.setReuseClassDescriptors(false);
+        }
+    }
+
+    public void testMultiplexedTransportUsesOwnConnection() throws Exception
+    {
+        SocketMessageTransport transport = new SocketMessageTransport();
+        transport.setMultiplexed(true);
+        Loader loader = this.buildLoaderProxy(transport);
+        firstBytesRead = new CountDownLatch(1);
+        GeneratedStream data = new GeneratedStream(1000000L);
+        long result = loader.load("m", data);
+        Assert.assertEquals(1 + data.sum, result);
+    }
+
+    public void testNotBatched() throws Exception
+    {
+        Loader loader = this.buildLoaderProxy(new SocketMessageTransport());
+        JrpipBatch<Loader> batch = MtProxyFactory.createBatch(Loader.class, loader);
+        try
+        {
+            batch.record().isNull(null);
+            Assert.fail("should not get here");
+        }
+        catch (JrpipRuntimeException e)
+        {
+            Assert.assertTrue(e.getMessage().contains("can't be batched"));
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.ContextCache;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+public class StreamedResultSocketTest
+        extends SocketTestCase
+{
+    private static final AtomicInteger CLOSED = new AtomicInteger();
+    private static final AtomicInteger PRODUCED = new AtomicInteger();
+    // counted apart from CLOSED: a cursor of an earlier test may still be closing on the server
+    private static final AtomicInteger ENDLESS_CLOSED = new AtomicInteger();
+
+    public interface Rows
+    {
+        Iterator<String> rows(int count);
+
+        Stream<Integer> numbers(int count);
+
+        JrpipCursor<String> cursor(int count);
+
+        Iterator<String> failAfter(int count);
+
+        Iterator<String> none();
+
+        JrpipCursor<String> endless();
+    }
+
+    public static class RowsImpl implements Rows
+    {
+        @Override
+        public Iterator<String> rows(int count)
+        {
+            return new Iterator<String>()
+            {
+                private int next;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return this.next < count;
+                }
+
+                @Override
+                public String next()
+                {
+                    if (!this.hasNext())
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    return "row " + this.next++;
+                }
+            };
+        }
+
+        @Override
+        public Stream<Integer> numbers(int count)
+        {
+            return IntStream.range(0, count).boxed().onClose(CLOSED::incrementAndGet);
+        }
+
+        @Override
+        public JrpipCursor<String> cursor(int count)
+        {
+            Iterator<String> rows = this.rows(count);
+            return new JrpipCursor<String>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return rows.hasNext();
+                }
+
+                @Override
+                public String next()
+                {
+                    return rows.next();
+                }
+
+                @Override
+                public void close()
+                {
+                    CLOSED.incrementAndGet();
+                }
+            };
+        }
+
+        @Override
+        public Iterator<String> failAfter(int count)
+        {
+            return IntStream.rangeClosed(0, count).mapToObj((i) ->
+            {
+                if (i == count)
+                {
+                    throw new IllegalStateException("failed after " + count);
+                }
+                return "row " + i;
+            }).iterator();
+        }
+
+        @Override
+        public Iterator<String> none()
+        {
+            return null;
+        }
+
+        @Override
+        public JrpipCursor<String> endless()
+        {
+            return new JrpipCursor<String>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return true;
+                }
+
+                @Override
+                public String next()
+                {
+                    return "row " + PRODUCED.getAndIncrement();
+                }
+
+                @Override
+                public void close()
+                {
+                    ENDLESS_CLOSED.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        CLOSED.set(0);
+        PRODUCED.set(0);
+        ENDLESS_CLOSED.set(0);
+        super.setUp();
+    }
+
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.addServiceConfig(Rows.class, RowsImpl.class);
+    }
+
+    private Rows buildRowsProxy(SocketMessageTransport transport) throws Exception
+    {
+        MtProxyFactory factory = new MtProxyFactory(transport);
+        factory.setUseLocalService(false);
+        return factory.create(Rows.class, this.getJrpipUrl());
+    }
+
+    public void testIterator() throws Exception
+    {
+        Rows rows = this.buildRowsProxy(new SocketMessageTransport());
+        Iterator<String> iterator = rows.rows(200000);
+        int count = 0;
+        while (iterator.hasNext())
+        {
+            Assert.assertEquals("row " + count, iterator.next());
+            count++;
+        }
+        Assert.assertEquals(200000, count);
+        Assert.assertFalse(rows.rows(0).hasNext());
+        Assert.assertNull(rows.none());
+        Assert.assertEquals(3, this.server.getStreamedInvocations());
+    }
+
+    public void testStream() throws Exception
+    {
+        Rows rows = this.buildRowsProxy(new SocketMessageTransport());
+        try (Stream<Integer> numbers = rows.numbers(10000))
+        {
+            Assert.assertEquals(49995000L, numbers.mapToLong(Integer::longValue).sum());
+        }
+        Assert.assertEquals(1, CLOSED.get());
+        Assert.assertEquals(1, this.server.getStreamedInvocations());
+    }
+
+    public void testEarlyClose() throws Exception
+    {
+        Rows rows = this.buildRowsProxy(new SocketMessageTransport());
+        try (JrpipCursor<String> cursor = rows.cursor(100000))
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                Assert.assertEquals("row " + i, cursor.next());
+            }
+        }
+        Iterator<String> iterator = rows.rows(3);
+        Assert.assertEquals("row 0", iterator.next());
+        Assert.assertEquals("row 1", iterator.next());
+        Assert.assertEquals("row 2", iterator.next());
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    public void testEarlyCloseStopsTheServer() throws Exception
+    {
+        Rows rows = this.buildRowsProxy(new SocketMessageTransport());
+        try (JrpipCursor<String> cursor = rows.endless())
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                Assert.assertEquals("row " + i, cursor.next());
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (ENDLESS_CLOSED.get() == 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals("the server kept iterating after the cursor was closed", 1, ENDLESS_CLOSED.get());
+        int produced = PRODUCED.get();
+        Thread.sleep(200);
+        Assert.assertEquals(produced, PRODUCED.get());
+    }
+
+    public void testSpillFileIsCapped() throws Exception
+    {
+        ContextCache cache = ContextCache.getInstance();
+        long maxBytes = cache.getMaxStreamedResultBytes();
+        File spillDirectory = cache.getSpillDirectory();
+        File directory = Files.createTempDirectory("jrpip").toFile();
+        cache.setMaxStreamedResultBytes(100000);
+        cache.setSpillDirectory(directory);
+        try
+        {
+            Rows rows = this.buildRowsProxy(new SocketMessageTransport());
+            Iterator<String> iterator = rows.rows(200000);
+            int count = 0;
+            while (iterator.hasNext())
+            {
+                Assert.assertEquals("row " + count, iterator.next());
+                if (++count == 150000)
+                {
+                    for (File file : directory.listFiles())
+                    {
+                        Assert.assertTrue(file.length() <= 100000);
+                    }
+                }
+            }
+            Assert.assertEquals(200000, count);
+        }
+        finally
+        {
+            cache.setMaxStreamedResultBytes(maxBytes);
+            cache.setSpillDirectory(spillDirectory);
+            for (File file : directory.listFiles())
+            {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public void testFaultWhileIterating() throws Exception
+    {
+        Rows rows = this.buildRowsProxy(new SocketMessageTransport());
+        Iterator<String> iterator = rows.failAfter(5);
+        for (int i = 0; i < 5; i++)
+        {
+            Assert.assertEquals("row " + i, iterator.next());
+        }
+        try
+        {
+            iterator.hasNext();
+            Assert.fail("should not get here");
+        }
+        catch (IllegalStateException e)
+        {
+            Assert.assertEquals("failed after 5", e.getMessage());
+        }
+        Assert.assertFalse(iterator.hasNext());
+        Assert.assertEquals("row 0", rows.rows(2).next());
+    }
+
+    public void testMultiplexedResultsAreSentAsLists() throws Exception
+    {
+        SocketMessageTransport transport = new SocketMessageTransport();
+        transport.setMultiplexed(true);
+        Rows rows = this.buildRowsProxy(transport);
+        Iterator<String> iterator = rows.rows(1000);
+        int count = 0;
+        while (iterator.hasNext())
+        {
+            Assert.assertEquals("row " + count, iterator.next());
+            count++;
+        }
+        Assert.assertEquals(1000, count);
+        try (JrpipCursor<String> cursor = rows.cursor(5))
+        {
+            Assert.assertEquals("row 0", cursor.next());
+        }
+        Assert.assertEquals(1, CLOSED.get());
+        Assert.assertEquals(10, rows.numbers(5).mapToInt(Integer::intValue).sum());
+        Assert.assertEquals(0, this.server.getStreamedInvocations());
+    }
+}
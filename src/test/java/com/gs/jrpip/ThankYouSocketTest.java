@@ -0,0 +1,45 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip;
+
+import org.junit.Assert;
+
+public class ThankYouSocketTest
+        extends SocketTestCase
+{
+    public void testThankYouGoesWithNextCall() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        Assert.assertEquals("hello again", echo.echo("hello again"));
+        Assert.assertEquals(1, this.server.getPiggybackedThankYous());
+        Assert.assertEquals(0, this.server.getThankYous());
+    }
+
+    public void testThankYouSentAloneWhenIdle() throws Exception
+    {
+        Echo echo = this.buildEchoProxy();
+        Assert.assertEquals("hello", echo.echo("hello"));
+        long end = System.currentTimeMillis() + 5000;
+        while (this.server.getThankYous() == 0 && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(1, this.server.getThankYous());
+        Assert.assertEquals(0, this.server.getPiggybackedThankYous());
+    }
+}
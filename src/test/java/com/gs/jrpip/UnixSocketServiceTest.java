@@ -0,0 +1,61 @@
+package com.gs.jrpip;
+
+import com.gs.jrpip.client.JrpipRuntimeException;
+import com.gs.jrpip.client.MtProxyFactory;
+import com.gs.jrpip.client.SocketMessageTransport;
+import com.gs.jrpip.server.SocketServerConfig;
+import org.junit.Assert;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UnixSocketServiceTest extends SimpleSocketServiceTest
+{
+    private static final AtomicInteger SOCKET_COUNT = new AtomicInteger();
+
+    // stopped servers keep serving their open connections, so each test gets its own path
+    private final String socketPath = new File(System.getProperty("java.io.tmpdir"),
+            "jrpip-test-" + SOCKET_COUNT.incrementAndGet() + ".sock").getAbsolutePath();
+
+    @Override
+    protected void addMoreConfig(SocketServerConfig config)
+    {
+        config.setUnixSocketPath(this.socketPath);
+        config.setMaxRequestSize(4000000);
+    }
+
+    @Override
+    protected String createJrpipUrl()
+    {
+        return "jpunix://" + this.socketPath;
+    }
+
+    public void testTcpConnectionsStayBlocking() throws Exception
+    {
+        StringBuilder builder = new StringBuilder(5000000);
+        for (int i = 0; builder.length() < 5000000; i++)
+        {
+            builder.append(i);
+        }
+        String large = builder.toString();
+        MtProxyFactory factory = new MtProxyFactory(new SocketMessageTransport());
+        factory.setUseLocalService(false);
+        Echo tcp = factory.create(Echo.class, "jpfs://localhost:" + this.getPort());
+        Assert.assertEquals(large, tcp.uncompressedEcho(large));
+        try
+        {
+            this.buildEchoProxy().uncompressedEcho(large);
+            Assert.fail("must not get here");
+        }
+        catch (JrpipRuntimeException e)
+        {
+            Assert.assertTrue(e.getMessage().contains("413"));
+        }
+    }
+
+    @Override
+    public void testTerminateServerSide()
+    {
+        // the client retries for two minutes before it gives up; SimpleSocketServiceTest covers this once
+    }
+}
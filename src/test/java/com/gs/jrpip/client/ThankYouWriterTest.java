@@ -21,6 +21,9 @@ import com.gs.jrpip.RequestId;
 import org.apache.commons.httpclient.Cookie;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class ThankYouWriterTest extends JrpipTestCase
 {
     public void testAddRequest() throws Exception
@@ -47,4 +50,66 @@ public class ThankYouWriterTest extends JrpipTestCase
 
         assertEquals(3, thankYouWriter.getPendingRequests());
     }
+
+    public void testEndpointIsRemovedOnceDrained() throws Exception
+    {
+        AuthenticatedUrl url = new AuthenticatedUrl(this.getJrpipUrl(), new UsernamePasswordCredentials("username"));
+        final AtomicInteger sent = new AtomicInteger();
+        HttpMessageTransport transport = new HttpMessageTransport()
+        {
+            @Override
+            public boolean sendThanks(Object k, MessageTransportData data, List<RequestId> requestList)
+            {
+                sent.addAndGet(requestList.size());
+                return true;
+            }
+        };
+        ThankYouWriter thankYouWriter = ThankYouWriter.getINSTANCE();
+        thankYouWriter.stopThankYouThread();
+        try
+        {
+            thankYouWriter.addRequest(transport, new HttpMessageTransportData(url, true, 0, null), new RequestId(1));
+            thankYouWriter.addRequest(transport, new HttpMessageTransportData(url, true, 0, null), new RequestId(2));
+            assertEquals(1, thankYouWriter.getEndpointCount());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (thankYouWriter.getEndpointCount() > 0 && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(50);
+            }
+            assertEquals(0, thankYouWriter.getEndpointCount());
+            assertEquals(2, sent.get());
+        }
+        finally
+        {
+            thankYouWriter.stopThankYouThread();
+        }
+    }
+
+    public void testDropsOldestWhenEndpointIsFull() throws Exception
+    {
+        AuthenticatedUrl url = new AuthenticatedUrl(this.getJrpipUrl(), new UsernamePasswordCredentials("username"));
+        HttpMessageTransport transport = new HttpMessageTransport();
+        HttpMessageTransportData data = new HttpMessageTransportData(url, true, 0, null);
+        ThankYouWriter thankYouWriter = ThankYouWriter.getINSTANCE();
+        thankYouWriter.stopThankYouThread();
+        ThankYouWriter.setMaxPendingPerEndpoint(2);
+        try
+        {
+            long dropped = thankYouWriter.getDroppedRequests();
+            RequestId first = new RequestId(1);
+            thankYouWriter.addRequest(transport, data, first);
+            thankYouWriter.addRequest(transport, data, new RequestId(1));
+            thankYouWriter.addRequest(transport, data, new RequestId(1));
+
+            assertEquals(Integer.valueOf(2), thankYouWriter.getPendingRequestsPerEndpoint().get(data.createThankYouKey()));
+            assertEquals(dropped + 1, thankYouWriter.getDroppedRequests());
+            assertFalse(thankYouWriter.takeRequests(data.createThankYouKey()).contains(first));
+            assertEquals(0, thankYouWriter.getPendingRequests());
+        }
+        finally
+        {
+            ThankYouWriter.setMaxPendingPerEndpoint(10000);
+            thankYouWriter.stopThankYouThread();
+        }
+    }
 }
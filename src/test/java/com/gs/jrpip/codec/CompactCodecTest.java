@@ -0,0 +1,202 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactCodecTest
+{
+    private final CompactCodec codec = new CompactCodec();
+
+    public enum Side
+    {
+        BUY,
+        SELL
+        {
+            @Override
+            public String toString()
+            {
+                return "sell";
+            }
+        }
+    }
+
+    @Test
+    public void testCommonTypes() throws IOException, ClassNotFoundException
+    {
+        Map<Object, Object> value = new LinkedHashMap<>();
+        value.put("int", 1);
+        value.put("long", Long.MAX_VALUE);
+        value.put("double", 1.5d);
+        value.put("float", 2.5f);
+        value.put("short", (short) 3);
+        value.put("byte", (byte) 4);
+        value.put("char", 'c');
+        value.put("boolean", Boolean.TRUE);
+        value.put(null, "null key");
+        value.put("null", null);
+        value.put("enum", Side.SELL);
+        value.put("list", new ArrayList<>(Arrays.asList("a", 1, null)));
+        value.put("linked", new LinkedList<>(Arrays.asList(Side.BUY, 2L)));
+        value.put("map", new HashMap<>(Collections.singletonMap(1, "one")));
+        Object[] copy = this.roundTrip(value);
+        Assert.assertEquals(value, copy[0]);
+        Assert.assertEquals(LinkedHashMap.class, copy[0].getClass());
+        Assert.assertSame(Side.SELL, ((Map<?, ?>) copy[0]).get("enum"));
+    }
+
+    @Test
+    public void testArrays() throws IOException, ClassNotFoundException
+    {
+        Object[] copy = this.roundTrip(new int[]{1, 2}, new long[]{3L}, new double[]{4.5d}, new byte[]{6, 7},
+                new boolean[]{true}, new char[]{'x'}, new short[]{8}, new float[]{9.5f},
+                new String[]{"s", null}, new Object[]{"o", 10});
+        Assert.assertTrue(Arrays.equals(new int[]{1, 2}, (int[]) copy[0]));
+        Assert.assertTrue(Arrays.equals(new long[]{3L}, (long[]) copy[1]));
+        Assert.assertTrue(Arrays.equals(new double[]{4.5d}, (double[]) copy[2]));
+        Assert.assertArrayEquals(new byte[]{6, 7}, (byte[]) copy[3]);
+        Assert.assertTrue(((boolean[]) copy[4])[0]);
+        Assert.assertTrue(Arrays.equals(new char[]{'x'}, (char[]) copy[5]));
+        Assert.assertTrue(Arrays.equals(new short[]{8}, (short[]) copy[6]));
+        Assert.assertTrue(Arrays.equals(new float[]{9.5f}, (float[]) copy[7]));
+        Assert.assertArrayEquals(new String[]{"s", null}, (String[]) copy[8]);
+        Assert.assertArrayEquals(new Object[]{"o", 10}, (Object[]) copy[9]);
+    }
+
+    @Test
+    public void testLongAndUnpairedStrings() throws IOException, ClassNotFoundException
+    {
+        char[] chars = new char[70000];
+        Arrays.fill(chars, '\u20ac');
+        chars[5] = '\ud800';
+        String value = new String(chars);
+        Object[] copy = this.roundTrip(value, "\udc00 alone");
+        Assert.assertEquals(value, copy[0]);
+        Assert.assertEquals("\udc00 alone", copy[1]);
+    }
+
+    @Test
+    public void testIdentityIsKept() throws IOException, ClassNotFoundException
+    {
+        List<Object> cycle = new ArrayList<>();
+        cycle.add("first");
+        cycle.add(cycle);
+        int[] shared = {1};
+        Object[] copy = this.roundTrip(cycle, shared, new Object[]{shared, shared});
+        List<?> list = (List<?>) copy[0];
+        Assert.assertSame(list, list.get(1));
+        Object[] pair = (Object[]) copy[2];
+        Assert.assertSame(copy[1], pair[0]);
+        Assert.assertSame(copy[1], pair[1]);
+    }
+
+    @Test
+    public void testLargeCollections() throws IOException, ClassNotFoundException
+    {
+        List<Object> list = new ArrayList<>();
+        Map<Object, Object> map = new HashMap<>();
+        for (int i = 0; i < 5000; i++)
+        {
+            list.add(i);
+            map.put(i, "v" + i);
+        }
+        Object[] copy = this.roundTrip(list, map);
+        Assert.assertEquals(list, copy[0]);
+        Assert.assertEquals(map, copy[1]);
+    }
+
+    @Test
+    public void testCollectionSizeIsNotTrusted() throws IOException, ClassNotFoundException
+    {
+        // list and map tags claiming Integer.MAX_VALUE elements, with none following
+        for (int tag : new int[]{22, 24})
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(tag);
+            out.writeInt(Integer.MAX_VALUE);
+            out.flush();
+            ObjectInput in = this.codec.createInput(new ByteArrayInputStream(bytes.toByteArray()));
+            try
+            {
+                in.readObject();
+                Assert.fail("must not get here");
+            }
+            catch (EOFException e)
+            {
+                // expected, rather than running out of memory up front
+            }
+        }
+    }
+
+    @Test
+    public void testOtherTypesUseJavaSerialization() throws IOException, ClassNotFoundException
+    {
+        BigDecimal decimal = new BigDecimal("1.25");
+        TreeMap<String, Object> sorted = new TreeMap<>();
+        sorted.put("date", new Date(0L));
+        List<String> unmodifiable = Collections.unmodifiableList(Arrays.asList("u"));
+        Object[] copy = this.roundTrip(decimal, 5, sorted, "between", unmodifiable, decimal);
+        Assert.assertEquals(decimal, copy[0]);
+        Assert.assertEquals(5, copy[1]);
+        Assert.assertEquals(sorted, copy[2]);
+        Assert.assertEquals("between", copy[3]);
+        Assert.assertEquals(unmodifiable, copy[4]);
+        Assert.assertSame(copy[0], copy[5]);
+    }
+
+    private Object[] roundTrip(Object... values) throws IOException, ClassNotFoundException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutput out = this.codec.createOutput(bytes);
+        for (Object value : values)
+        {
+            out.writeObject(value);
+        }
+        out.writeInt(42);
+        out.flush();
+        ObjectInput in = this.codec.createInput(new ByteArrayInputStream(bytes.toByteArray()));
+        Object[] copy = new Object[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            copy[i] = in.readObject();
+        }
+        Assert.assertEquals(42, in.readInt());
+        Assert.assertEquals(-1, in.read());
+        return copy;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.server;
+
+import com.gs.jrpip.RequestId;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ContextCacheTest
+{
+    @Test
+    public void testFinishedContextExpires() throws Exception
+    {
+        RequestId requestId = new RequestId(System.nanoTime());
+        Context context = ContextCache.getInstance().getOrCreateContext(requestId, 60000, 200);
+        context.setReturnValue("done", false);
+        Assert.assertSame(context, ContextCache.getInstance().getContext(requestId));
+        Thread.sleep(600);
+        Assert.assertNull(ContextCache.getInstance().getContext(requestId));
+    }
+
+    @Test
+    public void testUnfinishedContextLivesUntilMaxLifeTime() throws Exception
+    {
+        RequestId requestId = new RequestId(System.nanoTime());
+        Context context = ContextCache.getInstance().getOrCreateContext(requestId, 400, 10);
+        Thread.sleep(100);
+        Assert.assertSame(context, ContextCache.getInstance().getContext(requestId));
+        Thread.sleep(700);
+        Assert.assertNull(ContextCache.getInstance().getContext(requestId));
+    }
+
+    @Test
+    public void testThankedContextsLeaveTheWheel() throws Exception
+    {
+        ContextCache cache = ContextCache.getInstance();
+        int scheduled = cache.getScheduledCount();
+        RequestId[] requestIds = new RequestId[100];
+        for (int i = 0; i < requestIds.length; i++)
+        {
+            requestIds[i] = new RequestId(System.nanoTime());
+            Context context = cache.getOrCreateContext(requestIds[i], 60000, 60000);
+            context.setReturnValue("done", false);
+            // moved in place, not added again
+            context.scheduleExpiry(true);
+        }
+        Assert.assertEquals(scheduled + requestIds.length, cache.getScheduledCount());
+        for (RequestId requestId : requestIds)
+        {
+            cache.removeContext(requestId);
+        }
+        Assert.assertEquals(scheduled, cache.getScheduledCount());
+    }
+}
@@ -0,0 +1,37 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.util;
+
+import junit.framework.TestCase;
+import org.junit.Assert;
+
+import java.util.Arrays;
+
+public class AuthGeneratorTest
+        extends TestCase
+{
+    public void testResumedConnectionsGetTheirOwnKeyIv() throws Exception
+    {
+        byte[] sessionKeyIv = new AuthGenerator(AuthGenerator.decode("nmmnswer263476i623rqwertq")).generateKeyIv(17L);
+        byte[] first = AuthGenerator.deriveKeyIv(sessionKeyIv, AuthGenerator.createChallenge());
+        byte[] second = AuthGenerator.deriveKeyIv(sessionKeyIv, AuthGenerator.createChallenge());
+        Assert.assertEquals(32, first.length);
+        Assert.assertFalse(Arrays.equals(first, second));
+        Assert.assertFalse(Arrays.equals(sessionKeyIv, first));
+        Assert.assertArrayEquals(AuthGenerator.deriveKeyIv(sessionKeyIv, 42L), AuthGenerator.deriveKeyIv(sessionKeyIv, 42L));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+package com.gs.jrpip.util.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClassDescriptorTableTest
+{
+    private final ClassDescriptorTableOutput output = new ClassDescriptorTableOutput();
+    private final ClassDescriptorTableInput input = new ClassDescriptorTableInput();
+
+    @Test
+    public void testDescriptorsAreSentOnce() throws IOException, ClassNotFoundException
+    {
+        byte[] first = this.write(createValue());
+        this.output.commit();
+        byte[] second = this.write(createValue());
+        this.output.commit();
+        Assert.assertTrue(second.length < first.length);
+        Assert.assertEquals(createValue(), this.read(first));
+        Assert.assertEquals(createValue(), this.read(second));
+        Assert.assertEquals(this.output.size(), this.input.size());
+    }
+
+    @Test
+    public void testRolledBackDescriptorsAreSentAgain() throws IOException, ClassNotFoundException
+    {
+        byte[] first = this.write("plain");
+        this.output.commit();
+        this.write(createValue());
+        this.output.rollback();
+        byte[] third = this.write(createValue());
+        this.output.commit();
+        Assert.assertEquals("plain", this.read(first));
+        Assert.assertEquals(createValue(), this.read(third));
+    }
+
+    @Test
+    public void testObjectIdentityIsPerMessage() throws IOException, ClassNotFoundException
+    {
+        List<Object> shared = createValue();
+        ObjectOutputStream objectOut = this.output.startWriting();
+        objectOut.writeObject(shared);
+        objectOut.writeObject(shared);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.output.finishWriting(objectOut, out);
+        this.output.commit();
+        ObjectInputStream objectIn = this.input.startReading(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertSame(objectIn.readObject(), objectIn.readObject());
+    }
+
+    private static List<Object> createValue()
+    {
+        List<Object> value = new ArrayList<>();
+        value.add(new Date(1000L));
+        HashMap<String, Integer> map = new HashMap<>();
+        map.put("one", 1);
+        value.add(map);
+        value.add(new BigDecimal("1.5"));
+        return value;
+    }
+
+    private byte[] write(Object value) throws IOException
+    {
+        ObjectOutputStream objectOut = this.output.startWriting();
+        objectOut.writeObject(value);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.output.finishWriting(objectOut, out);
+        return out.toByteArray();
+    }
+
+    private Object read(byte[] message) throws IOException, ClassNotFoundException
+    {
+        return this.input.startReading(new ByteArrayInputStream(message)).readObject();
+    }
+}
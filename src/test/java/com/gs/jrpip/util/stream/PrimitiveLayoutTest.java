@@ -0,0 +1,151 @@
+/*
+  Copyright 2017 Goldman Sachs.
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing,
+  software distributed under the License is distributed on an
+  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  KIND, either express or implied.  See the License for the
+  specific language governing permissions and limitations
+  under the License.
+ */
+
+
+package com.gs.jrpip.util.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrimitiveLayoutTest
+{
+    public interface Calls
+    {
+        long count(String key, int day, boolean exact, char separator);
+
+        void ack(double ratio);
+
+        Object lookup(String key);
+
+        String label(String[] parts);
+
+        int size(Byte[] boxed);
+    }
+
+    @Test
+    public void testArgumentsRoundTrip() throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrimitiveLayout.Output out = new PrimitiveLayout.Output(bytes);
+        out.writeObject("key");
+        out.writeObject(7);
+        out.writeObject(Boolean.TRUE);
+        out.writeObject('\u20ac');
+        out.flush();
+        Assert.assertEquals(1 + 2 + 3 + 4 + 1 + 2, bytes.size());
+
+        PrimitiveLayout.Input in = new PrimitiveLayout.Input(new ByteArrayInputStream(bytes.toByteArray()));
+        Object[] values = in.readArguments(Calls.class.getMethod("count", String.class, int.class, boolean.class, char.class));
+        Assert.assertTrue(Arrays.equals(new Object[]{"key", 7, true, '\u20ac'}, values));
+    }
+
+    @Test
+    public void testStrings() throws IOException
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 70000; i++)
+        {
+            builder.append((char) ('a' + i % 26));
+        }
+        String longString = builder.toString();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrimitiveLayout.Output out = new PrimitiveLayout.Output(bytes);
+        out.writeObject(null);
+        out.writeObject("");
+        out.writeObject(longString);
+        out.flush();
+
+        PrimitiveLayout.Input in = new PrimitiveLayout.Input(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertNull(in.readObject());
+        Assert.assertEquals("", in.readObject());
+        Assert.assertEquals(longString, in.readObject());
+    }
+
+    @Test
+    public void testRawBytes() throws IOException
+    {
+        ByteBuffer direct = ByteBuffer.allocateDirect(20000);
+        for (int i = 0; i < direct.capacity(); i++)
+        {
+            direct.put((byte) i);
+        }
+        direct.flip();
+        ByteBuffer heap = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        heap.position(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrimitiveLayout.Output out = new PrimitiveLayout.Output(bytes);
+        out.writeObject(new byte[]{5, 6});
+        out.writeObject(null);
+        out.writeObject(heap.slice());
+        out.writeObject(direct);
+        out.flush();
+        Assert.assertEquals(0, direct.position());
+
+        PrimitiveLayout.Input in = new PrimitiveLayout.Input(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertTrue(Arrays.equals(new byte[]{5, 6}, (byte[]) in.readValue(byte[].class)));
+        Assert.assertNull(in.readValue(ByteBuffer.class));
+        Assert.assertEquals(ByteBuffer.wrap(new byte[]{2, 3, 4}), in.readValue(ByteBuffer.class));
+        Assert.assertEquals(direct, in.readValue(ByteBuffer.class));
+    }
+
+    @Test
+    public void testVoidHasNoValue() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrimitiveLayout.Output out = new PrimitiveLayout.Output(bytes);
+        out.writeValue(void.class, null);
+        out.flush();
+        Assert.assertEquals(0, bytes.size());
+        Assert.assertNull(new PrimitiveLayout.Input(new ByteArrayInputStream(new byte[0])).readValue(void.class));
+    }
+
+    @Test
+    public void testObjectSignaturesAreRejected() throws Exception
+    {
+        PrimitiveLayout.Input in = new PrimitiveLayout.Input(new ByteArrayInputStream(new byte[16]));
+        for (String name : new String[]{"lookup", "label", "size"})
+        {
+            try
+            {
+                in.readArguments(findMethod(name));
+                Assert.fail("must not get here");
+            }
+            catch (IOException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    private static Method findMethod(String name)
+    {
+        for (Method method : Calls.class.getMethods())
+        {
+            if (method.getName().equals(name))
+            {
+                return method;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+}